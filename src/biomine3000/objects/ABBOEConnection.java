@@ -1,370 +1,501 @@
-package biomine3000.objects;
-
-import java.io.IOException;
-import java.net.Socket;
-import java.net.UnknownHostException;
-
-
-
-import util.dbg.ILogger;
-import util.net.NonBlockingSender;
-
-
-/**
- * Connection to an ABBOE server. Implementors should use method 
- * {@link #send(BusinessObject)} to send stuff. 
- */
-public class ABBOEConnection {
-                   
-    private ILogger log;
-    
-    private ClientParameters clientParameters;
-
-    /**
-     * Client callback interface for receiving objects and connection state change
-     * notifications (currently only termination of connection; might be that there is no need
-     * for any additions, though)
-     */
-    private BusinessObjectHandler objectHandler;
-    
-    /** Internal listener for businessobjectreader */
-    private BusinessObjectReader.Listener readerListener;    
-    private Socket socket = null;
-    
-    /** Internal state */
-    private State state;
-    
-    /** Simplified state, as seen by the client */
-    private ClientState clientState;
-    
-    private NonBlockingSender sender = null;
-    private BusinessObjectReader reader = null;
-    
-    /** State of send and receive threads and socket */
-    private boolean senderFinished = false;
-    private boolean receiverFinished = false;    
-    private boolean socketClosed = false;
-    private boolean closeOutputRequested = false;         
-    
-    
-    /**
-     * Actual initialization of communications done later by calling {@link #init()}
-     * to allow for peaceful registration into data structures e.g., before beginning
-     * the actual business of performing any communications
-     * (nothing will be sent or received before {@link #init()} is called).
-     */
-    public ABBOEConnection(ClientParameters clientParameters,
-                           Socket socket,                           
-                           ILogger log) throws UnknownHostException, IOException {                                        
-        this.socket = socket;
-        this.clientParameters = clientParameters;        
-        this.log = log;
-                
-        this.state = State.NOT_INITIALIZED;
-        this.clientState = ClientState.NOT_INITIALIZED;
-                           
-        MyShutdown sh = new MyShutdown();            
-        Runtime.getRuntime().addShutdownHook(sh);               
-    }
-    
-   /**
-    * Note that businessobject handler is not yet passed in constructor, as constructing the handler
-    * might require a reference to the connection.
-    */
-    public void init(BusinessObjectHandler businessObjectHandler) throws IOException {
-                
-        if (this.state != State.NOT_INITIALIZED) {
-            throw new IllegalStateException();
-        }
-        
-        this.objectHandler = businessObjectHandler;
-        
-        this.state = State.INITIALIZING;
-        this.clientState = ClientState.ACTIVE;        
-                
-        this.readerListener = new ReaderListener();                                       
-        this.sender = new NonBlockingSender(socket, new SenderListener());
-                      
-        // send registration to server
-        BusinessObject registerObj = Biomine3000Utils.makeRegisterPacket(clientParameters);
-        log.info("Sending register packet:" +new String(registerObj.bytes()));
-        sender.send(registerObj.bytes());
-        this.state = State.ACTIVE;        
-        
-        // start listening to objects from server
-        log.info("Starting reader thread...");
-        startReaderThread();               
-    }                     
-                   
-    /** Put object to queue of objects to be sent*/
-    public void send(BusinessObject object) throws IOException {        
-        if (clientParameters.sender != null) {
-            object.getMetaData().setSender(clientParameters.sender);
-        }
-        this.sender.send(object.bytes());        
-    }       
-        
-    public void sendClientListRequest() throws IOException {            
-        send(new BusinessObject(BusinessObjectEventType.CLIENTS_LIST));
-    }
-    
-    public synchronized String getName() {
-        return clientParameters.name;
-    }
-    
-    /** Closing of socket is to be done only after both sender and receiver have finished. */
-    private synchronized void closeSocketIfNeeded() {
-        log.dbg("closeSocketIfNeeded");
-        if (senderFinished && receiverFinished && !socketClosed) {
-            log.dbg("Closing socket");
-            try {
-                socket.close();
-                log.dbg("Closed socket");
-            }
-            catch (IOException e) {
-                log.error("Failed closing socket", e);
-            }
-            state = State.SHUT_DOWN;
-        }
-        else if (!senderFinished) {            
-            log.dbg("Sender not yet finished, not closing socket");
-        }
-        else if (!receiverFinished) {
-            log.dbg("Receiver not yet finished, not closing socket");
-        }
-        else {
-            log.dbg("Socket already closed");
-        }
-    }
-    
-    /**
-     * Initiate shutting down of connection. This will not be immediate:
-     * closing occurs by requesting a sender to send a special stop packet that causes 
-     * it to stop (done using method stop()), which after some intermediate processing 
-     * should lead to our beloved SenderListener being notified, at which point actual
-     * closing of socket output half will occur. After this, server is expected
-     * (having read everything that was send before the close, if any, and also having 
-     * sent everything it wants to send, if any) to close output half of its connection.
-     * Finally, this will be noticed as noMoreObjects in the reader listener, at which 
-     * point we will also close the input half of the socket and also the whole socket,
-     * the connection will be considered to be genuinely closed.   
-     */
-    public synchronized void initiateShutdown() {
-        if (!socketClosed && !closeOutputRequested) {
-            state = State.SHUTTING_DOWN;
-            closeOutputRequested = true;
-            log.dbg("Requesting sender to finish");
-            sender.requestStop();
-        }
-    }
-    
-   /**
-    * Closing occurs by requesting a sender to send a special stop packet that causes 
-    * it to stop (done using method stop()), which after some intermediate processing 
-    * should lead to our beloved SenderListener being notified, at which point actual
-    * closing will occur.
-    * 
-    * Closing of output will only be requested if ALL of the following conditions hold:
-    * <ul>
-    *   <li>socket has not been yet</li>
-    *   <li>sender has not finished yet</li>
-    *   <li>closing of output has not been requested yet</li> 
-    * </ul> 
-    * 
-    * If some of said conditions do not hold, calling this shall have no effect.
-    */              
-    protected synchronized void requestCloseOutputIfNeeded() {        
-        if (!socketClosed && !senderFinished && !closeOutputRequested) {
-            state = State.SHUTTING_DOWN;
-            closeOutputRequested = true;
-            log.dbg("Requesting sender to finish");
-            sender.requestStop();
-        }
-    }       
-    
-    private void startReaderThread() throws IOException {
-        if (readerListener == null) {
-            throw new RuntimeException("No readederListener");
-        }
-        reader = new BusinessObjectReader(socket.getInputStream(), readerListener, "reader-"+socket.getRemoteSocketAddress().toString(), true, log);
-        
-        Thread readerThread = new Thread(reader);
-        readerThread.start();
-    }
-    
-    /**
-     * Need to listen to sender sending it's last packet (or having received
-     * an error). At this point it is necessary to close the output channel 
-     * of the socket and possibly the whole socket (if also input has been closed) 
-     */
-    private class SenderListener implements NonBlockingSender.Listener {
-        public void senderFinished() {
-            synchronized(ABBOEConnection.this) {
-                log.dbg("Sender finished");
-                log.dbg("Closing socket output");
-                senderFinished = true;
-                try {
-                    socket.shutdownOutput();
-                }
-                catch (IOException e) {
-                    log.error("Failed shutting down send channel", e);
-                }
-                
-                closeSocketIfNeeded();                
-            }
-        }
-    }       
-    
-    /**
-     * To be called from subclass reader listener when receiving a noMoreObjects notification from
-     * the reader (probably resulting from the fact that server has closed connection). 
-     * 
-     * This method:<pre> 
-     *  • sets {@link #receiverFinished} to true to indicate that receiving has been finished
-     *  • closes input of socket 
-     *  • calls {@link #closeSocketIfNeeded} to shutdown socket, is also sending has been finished earlier.</pre> 
-     * Requiring this call to be performed just by convention is not an very satisfactory solution, 
-     * as there is no way of enforcing the subclass implementation to do so, possibly
-     * leading to an inconsistent state of the client.
-     */
-    protected synchronized void handleNoMoreObjects() {
-        state = State.SHUTTING_DOWN;
-        log.dbg("handleNoMoreObjects");
-        receiverFinished = true;
-        try {           
-            socket.shutdownInput();
-        }
-        catch (IOException e) {
-            log.error("Failed shutting down socket input", e);
-        }
-
-        requestCloseOutputIfNeeded();
-        
-        closeSocketIfNeeded();        
-    }
-    
-    class MyShutdown extends Thread {
-        public void run() {
-            log.dbg("Executing ABBOEConnection shutdown thread");
-            if (state == ABBOEConnection.State.ACTIVE) {
-                state = ABBOEConnection.State.SHUTTING_DOWN;            
-                // requesting closing of socket output stream should be sufficient to commence a complete 
-                // clean up of the connection, should that not have occurred yet                
-                
-                if (!socketClosed && !senderFinished && !closeOutputRequested) {
-                    requestCloseOutputIfNeeded();
-                }
-                else {
-                    log.dbg("No cleanup actions necessary");
-                }
-            }
-            else {
-                log.dbg("No cleanup actions performed in state: "+state);
-            }
-        }
-    }        
-             
-    @Override
-    public String toString() {
-        return socket.getRemoteSocketAddress().toString();
-    }
-    
-    
-    public interface BusinessObjectHandler extends biomine3000.objects.IBusinessObjectHandler {
-        
-        /** Self-explanatory */
-        public void handleObject(BusinessObject obj);
-        
-        /**
-         * Connection to server has been terminated somehow "normally". 
-         * It is at least in the current protocol undefined whether this has occurred  
-         * on the clients request or for some other reason known only to the server.
-         * 
-         * Client should attempt no more sending after receiving this.
-         * 
-         * DefaultClient implementation is responsible for closing the connection;
-         * the implementor of this interface does not need bother with such banalities.  
-         */ 
-        public void connectionTerminated();
-        
-        /**
-         * Connection to server has been terminated due to some error condition. 
-         * The connection will be (or already has been) closed anyway,
-         * as it is not possible in the current protocol to recover from any errors
-         * within a session (a lifetime of a TCP connection). This means that no recovery
-         * actions by the client are possible; the only option is to reconnect to the server.
-         * 
-         * DefaultClient implementation is responsible for closing the connection;
-         * the implementor of this interface does not need bother with that.
-         * 
-         * Note that a similar cleanup or resources (not related to server connection), if any, 
-         * should probably performed on receiving this as is done with the exceptionless
-         * version of this method {@link #connectionTerminated()}.
-         */
-        public void connectionTerminated(Exception e);
-    }
-
-    /**
-     * Internal listener for businessobjectreader; translates notifications received from there
-     * to client notifications notified through interface BusinessObjectHandler.     
-     */
-    private class ReaderListener extends BusinessObjectReader.AbstractListener {
-        
-        @Override
-        public void objectReceived(BusinessObject bo) {
-            objectHandler.handleObject(bo);        
-        }    
-        
-        @Override
-        public void noMoreObjects() {                                   
-            log.dbg("Server closed connection");
-            handleNoMoreObjects();
-                        
-            if (clientState != ClientState.FINISHED) {
-                objectHandler.connectionTerminated();
-                clientState = ClientState.FINISHED;
-            }
-        }
-    
-        @Override
-        public void handleException(Exception e) {
-            log.error("Exception in DefaultClient.readerListener", e);
-            handleNoMoreObjects();
-            
-            if (clientState != ClientState.FINISHED) {
-                objectHandler.connectionTerminated(e);
-                clientState = ClientState.FINISHED;
-            }
-        }
-
-        /** Do not consider this as an error; just notify handler that connection has been terminated */
-        @Override
-        public void connectionReset() {
-            log.dbg("Connection reset by server");
-            handleNoMoreObjects();
-            
-            objectHandler.connectionTerminated();
-        }
-    }
-
-    
-    protected enum State {
-        NOT_INITIALIZED,
-        INITIALIZING,
-        ACTIVE,
-        SHUTTING_DOWN,
-        SHUT_DOWN;
-    }
-    
-    /**
-     * Used to keep track of the state as seen by the client.
-     * This is a simplified version of the actual internal state managed within AbstractClient.
-     */
-    protected enum ClientState {
-        NOT_INITIALIZED,
-        ACTIVE,
-        FINISHED;
-    }
-    
-}
-
+package biomine3000.objects;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+
+
+import util.dbg.ILogger;
+import util.net.NonBlockingSender;
+
+
+/**
+ * Connection to an ABBOE server. Implementors should use method 
+ * {@link #send(BusinessObject)} to send stuff. 
+ * 
+ * With flow control requested (see {@link ClientParameters#flowControl}), content (objects other than events)
+ * is only sent against credits granted by the server (see {@link ABBOEServer#CREDIT_WINDOW}): sending blocks 
+ * while there are none, or, with {@link #send(BusinessObject, long)}, gives up after a timeout. Should the server 
+ * not grant any credits within {@link #INITIAL_CREDIT_TIMEOUT_MILLIS} (e.g. an older server), content is sent 
+ * without flow control.
+ */
+public class ABBOEConnection {
+                   
+    /** Max time to wait for the first credits from a server, before deciding it does not do flow control */
+    public static final long INITIAL_CREDIT_TIMEOUT_MILLIS = 5000;
+    
+    private ILogger log;
+    
+    private ClientParameters clientParameters;
+
+    /**
+     * Client callback interface for receiving objects and connection state change
+     * notifications (currently only termination of connection; might be that there is no need
+     * for any additions, though)
+     */
+    private BusinessObjectHandler objectHandler;
+    
+    /** Internal listener for businessobjectreader */
+    private BusinessObjectReader.Listener readerListener;    
+    private Socket socket = null;
+    
+    /** Internal state */
+    private State state;
+    
+    /** Simplified state, as seen by the client */
+    private ClientState clientState;
+    
+    private NonBlockingSender sender = null;
+    private BusinessObjectReader reader = null;
+    
+    /** State of send and receive threads and socket */
+    private boolean senderFinished = false;
+    private boolean receiverFinished = false;    
+    private boolean socketClosed = false;
+    private boolean closeOutputRequested = false;         
+    
+    /** Credits granted by server and not yet used; access to be synchronized on creditLock */
+    private int credits = 0;
+    private boolean creditsGranted = false;
+    /** Set when the server does not seem to grant credits */
+    private boolean creditsUnsupported = false;
+    private long creditWaitStart = 0;
+    private final Object creditLock = new Object();
+    
+    
+    /**
+     * Actual initialization of communications done later by calling {@link #init()}
+     * to allow for peaceful registration into data structures e.g., before beginning
+     * the actual business of performing any communications
+     * (nothing will be sent or received before {@link #init()} is called).
+     */
+    public ABBOEConnection(ClientParameters clientParameters,
+                           Socket socket,                           
+                           ILogger log) throws UnknownHostException, IOException {                                        
+        this.socket = socket;
+        this.clientParameters = clientParameters;        
+        this.log = log;
+                
+        this.state = State.NOT_INITIALIZED;
+        this.clientState = ClientState.NOT_INITIALIZED;
+                           
+        MyShutdown sh = new MyShutdown();            
+        Runtime.getRuntime().addShutdownHook(sh);               
+    }
+    
+   /**
+    * Note that businessobject handler is not yet passed in constructor, as constructing the handler
+    * might require a reference to the connection.
+    */
+    public void init(BusinessObjectHandler businessObjectHandler) throws IOException {
+                
+        if (this.state != State.NOT_INITIALIZED) {
+            throw new IllegalStateException();
+        }
+        
+        this.objectHandler = businessObjectHandler;
+        
+        this.state = State.INITIALIZING;
+        this.clientState = ClientState.ACTIVE;        
+                
+        this.readerListener = new ReaderListener();                                       
+        this.sender = new NonBlockingSender(socket, new SenderListener());
+                      
+        // send registration to server
+        BusinessObject registerObj = Biomine3000Utils.makeRegisterPacket(clientParameters);
+        log.info("Sending register packet:" +new String(registerObj.bytes()));
+        sender.send(registerObj.bytes());
+        this.state = State.ACTIVE;        
+        
+        // start listening to objects from server
+        log.info("Starting reader thread...");
+        startReaderThread();               
+    }                     
+                   
+    /** 
+     * Put object to queue of objects to be sent. With flow control, blocks until there is a credit for
+     * sending the object.
+     */
+    public void send(BusinessObject object) throws IOException {        
+        send(object, -1);
+    }       
+    
+    /**
+     * As {@link #send(BusinessObject)}, but with flow control, waits at most given time for a credit.
+     * @param timeoutMillis 0 for not waiting at all, negative for waiting as long as it takes.
+     * @return false if there was no credit in time, in which case the object was not sent.
+     */
+    public boolean send(BusinessObject object, long timeoutMillis) throws IOException {
+        if (!object.isEvent() && !acquireCredit(timeoutMillis)) {
+            return false;
+        }
+        if (clientParameters.sender != null) {
+            object.getMetaData().setSender(clientParameters.sender);
+        }
+        this.sender.send(object.bytes());
+        return true;
+    }
+    
+    /** 
+     * Put a shared, pre-encoded frame to queue of objects to be sent, as is; the sender 
+     * of this connection is not stamped to it. With flow control, blocks until there is a credit
+     * for sending the frame.
+     */
+    public void send(EncodedFrame frame) throws IOException {
+        send(frame, -1);
+    }
+    
+    /** As {@link #send(EncodedFrame)}, waiting at most given time for a credit (see {@link #send(BusinessObject, long)}) */
+    public boolean send(EncodedFrame frame, long timeoutMillis) throws IOException {
+        if (!frame.isEvent() && !acquireCredit(timeoutMillis)) {
+            return false;
+        }
+        this.sender.send(frame.array());
+        return true;
+    }
+    
+    /** Number of credits currently available; always 0 without flow control */
+    public int getCredits() {
+        synchronized(creditLock) {
+            return credits;
+        }
+    }
+    
+    /** 
+     * Take a credit for sending content, if flow control is in use. 
+     * @return false if none became available within the timeout.
+     * @throws IOException if the connection is closed while waiting. 
+     */
+    private boolean acquireCredit(long timeoutMillis) throws IOException {
+        if (!clientParameters.flowControl) {
+            return true;
+        }
+        long deadline = timeoutMillis >= 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        synchronized(creditLock) {
+            if (creditWaitStart == 0) {
+                creditWaitStart = System.currentTimeMillis();
+            }
+            while (credits == 0 && !creditsUnsupported) {
+                if (receiverFinished || senderFinished || closeOutputRequested) {
+                    throw new IOException("Connection closed while waiting for credits");
+                }
+                long now = System.currentTimeMillis();
+                long until = deadline;
+                if (!creditsGranted) {
+                    long initialDeadline = creditWaitStart + INITIAL_CREDIT_TIMEOUT_MILLIS;
+                    if (now >= initialDeadline) {
+                        log.warning("No credits from server in "+INITIAL_CREDIT_TIMEOUT_MILLIS+
+                                    " ms; sending without flow control");
+                        creditsUnsupported = true;
+                        break;
+                    }
+                    until = Math.min(deadline, initialDeadline);
+                }
+                long wait = until - now;
+                if (wait <= 0) {
+                    return false;
+                }
+                try {
+                    creditLock.wait(wait);
+                }
+                catch (InterruptedException e) {
+                    throw new IOException("Interrupted while waiting for credits");
+                }
+            }
+            if (!creditsUnsupported) {
+                credits--;
+            }
+            return true;
+        }
+    }
+    
+    private void grantCredits(int n) {
+        synchronized(creditLock) {
+            credits += n;
+            creditsGranted = true;
+            creditLock.notifyAll();
+        }
+    }
+    
+    /** Wake up anyone waiting for credits, to notice that the connection has been closed */
+    private void notifyCreditWaiters() {
+        synchronized(creditLock) {
+            creditLock.notifyAll();
+        }
+    }
+        
+    public void sendClientListRequest() throws IOException {            
+        send(new BusinessObject(BusinessObjectEventType.CLIENTS_LIST));
+    }
+    
+    public synchronized String getName() {
+        return clientParameters.name;
+    }
+    
+    /** Closing of socket is to be done only after both sender and receiver have finished. */
+    private synchronized void closeSocketIfNeeded() {
+        log.dbg("closeSocketIfNeeded");
+        if (senderFinished && receiverFinished && !socketClosed) {
+            log.dbg("Closing socket");
+            try {
+                socket.close();
+                log.dbg("Closed socket");
+            }
+            catch (IOException e) {
+                log.error("Failed closing socket", e);
+            }
+            state = State.SHUT_DOWN;
+        }
+        else if (!senderFinished) {            
+            log.dbg("Sender not yet finished, not closing socket");
+        }
+        else if (!receiverFinished) {
+            log.dbg("Receiver not yet finished, not closing socket");
+        }
+        else {
+            log.dbg("Socket already closed");
+        }
+    }
+    
+    /**
+     * Initiate shutting down of connection. This will not be immediate:
+     * closing occurs by requesting a sender to send a special stop packet that causes 
+     * it to stop (done using method stop()), which after some intermediate processing 
+     * should lead to our beloved SenderListener being notified, at which point actual
+     * closing of socket output half will occur. After this, server is expected
+     * (having read everything that was send before the close, if any, and also having 
+     * sent everything it wants to send, if any) to close output half of its connection.
+     * Finally, this will be noticed as noMoreObjects in the reader listener, at which 
+     * point we will also close the input half of the socket and also the whole socket,
+     * the connection will be considered to be genuinely closed.   
+     */
+    public synchronized void initiateShutdown() {
+        if (!socketClosed && !closeOutputRequested) {
+            state = State.SHUTTING_DOWN;
+            closeOutputRequested = true;
+            log.dbg("Requesting sender to finish");
+            sender.requestStop();
+            notifyCreditWaiters();
+        }
+    }
+    
+   /**
+    * Closing occurs by requesting a sender to send a special stop packet that causes 
+    * it to stop (done using method stop()), which after some intermediate processing 
+    * should lead to our beloved SenderListener being notified, at which point actual
+    * closing will occur.
+    * 
+    * Closing of output will only be requested if ALL of the following conditions hold:
+    * <ul>
+    *   <li>socket has not been yet</li>
+    *   <li>sender has not finished yet</li>
+    *   <li>closing of output has not been requested yet</li> 
+    * </ul> 
+    * 
+    * If some of said conditions do not hold, calling this shall have no effect.
+    */              
+    protected synchronized void requestCloseOutputIfNeeded() {        
+        if (!socketClosed && !senderFinished && !closeOutputRequested) {
+            state = State.SHUTTING_DOWN;
+            closeOutputRequested = true;
+            log.dbg("Requesting sender to finish");
+            sender.requestStop();
+        }
+    }       
+    
+    private void startReaderThread() throws IOException {
+        if (readerListener == null) {
+            throw new RuntimeException("No readederListener");
+        }
+        reader = new BusinessObjectReader(socket.getInputStream(), readerListener, "reader-"+socket.getRemoteSocketAddress().toString(), true, log);
+        
+        Thread readerThread = new Thread(reader);
+        readerThread.start();
+    }
+    
+    /**
+     * Need to listen to sender sending it's last packet (or having received
+     * an error). At this point it is necessary to close the output channel 
+     * of the socket and possibly the whole socket (if also input has been closed) 
+     */
+    private class SenderListener implements NonBlockingSender.Listener {
+        public void senderFinished() {
+            synchronized(ABBOEConnection.this) {
+                log.dbg("Sender finished");
+                log.dbg("Closing socket output");
+                senderFinished = true;
+                try {
+                    socket.shutdownOutput();
+                }
+                catch (IOException e) {
+                    log.error("Failed shutting down send channel", e);
+                }
+                
+                closeSocketIfNeeded();                
+            }
+            notifyCreditWaiters();
+        }
+    }       
+    
+    /**
+     * To be called from subclass reader listener when receiving a noMoreObjects notification from
+     * the reader (probably resulting from the fact that server has closed connection). 
+     * 
+     * This method:<pre> 
+     *  • sets {@link #receiverFinished} to true to indicate that receiving has been finished
+     *  • closes input of socket 
+     *  • calls {@link #closeSocketIfNeeded} to shutdown socket, is also sending has been finished earlier.</pre> 
+     * Requiring this call to be performed just by convention is not an very satisfactory solution, 
+     * as there is no way of enforcing the subclass implementation to do so, possibly
+     * leading to an inconsistent state of the client.
+     */
+    protected synchronized void handleNoMoreObjects() {
+        state = State.SHUTTING_DOWN;
+        log.dbg("handleNoMoreObjects");
+        receiverFinished = true;
+        try {           
+            socket.shutdownInput();
+        }
+        catch (IOException e) {
+            log.error("Failed shutting down socket input", e);
+        }
+
+        requestCloseOutputIfNeeded();
+        
+        closeSocketIfNeeded();        
+        notifyCreditWaiters();
+    }
+    
+    class MyShutdown extends Thread {
+        public void run() {
+            log.dbg("Executing ABBOEConnection shutdown thread");
+            if (state == ABBOEConnection.State.ACTIVE) {
+                state = ABBOEConnection.State.SHUTTING_DOWN;            
+                // requesting closing of socket output stream should be sufficient to commence a complete 
+                // clean up of the connection, should that not have occurred yet                
+                
+                if (!socketClosed && !senderFinished && !closeOutputRequested) {
+                    requestCloseOutputIfNeeded();
+                }
+                else {
+                    log.dbg("No cleanup actions necessary");
+                }
+            }
+            else {
+                log.dbg("No cleanup actions performed in state: "+state);
+            }
+        }
+    }        
+             
+    @Override
+    public String toString() {
+        return socket.getRemoteSocketAddress().toString();
+    }
+    
+    
+    public interface BusinessObjectHandler extends biomine3000.objects.IBusinessObjectHandler {
+        
+        /** Self-explanatory */
+        public void handleObject(BusinessObject obj);
+        
+        /**
+         * Connection to server has been terminated somehow "normally". 
+         * It is at least in the current protocol undefined whether this has occurred  
+         * on the clients request or for some other reason known only to the server.
+         * 
+         * Client should attempt no more sending after receiving this.
+         * 
+         * DefaultClient implementation is responsible for closing the connection;
+         * the implementor of this interface does not need bother with such banalities.  
+         */ 
+        public void connectionTerminated();
+        
+        /**
+         * Connection to server has been terminated due to some error condition. 
+         * The connection will be (or already has been) closed anyway,
+         * as it is not possible in the current protocol to recover from any errors
+         * within a session (a lifetime of a TCP connection). This means that no recovery
+         * actions by the client are possible; the only option is to reconnect to the server.
+         * 
+         * DefaultClient implementation is responsible for closing the connection;
+         * the implementor of this interface does not need bother with that.
+         * 
+         * Note that a similar cleanup or resources (not related to server connection), if any, 
+         * should probably performed on receiving this as is done with the exceptionless
+         * version of this method {@link #connectionTerminated()}.
+         */
+        public void connectionTerminated(Exception e);
+    }
+
+    /**
+     * Internal listener for businessobjectreader; translates notifications received from there
+     * to client notifications notified through interface BusinessObjectHandler.     
+     */
+    private class ReaderListener extends BusinessObjectReader.AbstractListener {
+        
+        @Override
+        public void objectReceived(BusinessObject bo) {
+            if (bo.isEvent() && bo.getMetaData().getKnownEvent() == BusinessObjectEventType.ABBOE_CREDIT) {
+                Integer n = bo.getMetaData().getInteger(ABBOEServer.CREDIT_KEY);
+                if (n != null) {
+                    grantCredits(n);
+                }
+                return;
+            }
+            objectHandler.handleObject(bo);        
+        }    
+        
+        @Override
+        public void noMoreObjects() {                                   
+            log.dbg("Server closed connection");
+            handleNoMoreObjects();
+                        
+            if (clientState != ClientState.FINISHED) {
+                objectHandler.connectionTerminated();
+                clientState = ClientState.FINISHED;
+            }
+        }
+    
+        @Override
+        public void handleException(Exception e) {
+            log.error("Exception in DefaultClient.readerListener", e);
+            handleNoMoreObjects();
+            
+            if (clientState != ClientState.FINISHED) {
+                objectHandler.connectionTerminated(e);
+                clientState = ClientState.FINISHED;
+            }
+        }
+
+        /** Do not consider this as an error; just notify handler that connection has been terminated */
+        @Override
+        public void connectionReset() {
+            log.dbg("Connection reset by server");
+            handleNoMoreObjects();
+            
+            objectHandler.connectionTerminated();
+        }
+    }
+
+    
+    protected enum State {
+        NOT_INITIALIZED,
+        INITIALIZING,
+        ACTIVE,
+        SHUTTING_DOWN,
+        SHUT_DOWN;
+    }
+    
+    /**
+     * Used to keep track of the state as seen by the client.
+     * This is a simplified version of the actual internal state managed within AbstractClient.
+     */
+    protected enum ClientState {
+        NOT_INITIALIZED,
+        ACTIVE,
+        FINISHED;
+    }
+    
+}
+
@@ -0,0 +1,415 @@
+package biomine3000.objects;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+
+import util.dbg.Logger;
+
+/**
+ * Optional append-only journal of business objects relayed by {@link ABBOEServer}, for replaying
+ * recent objects to clients that join late (or restart).
+ *
+ * Objects are appended as raw frames (see {@link BusinessObject#bytes()}) to segment files, which
+ * are memory-mapped. Each record in a segment is as follows: <pre>
+ *     int    length of frame (0 marks the end of records in a segment)
+ *     long   time of appending, in millis since epoch
+ *     byte[] frame
+ * </pre>
+ *
+ * A sparse index of (sequence number, time, offset) is kept in memory for every
+ * {@link #INDEX_INTERVAL}th record of each segment; when opening an existing journal, the index
+ * is rebuilt by scanning the segments.
+ *
+ * Replaying returns read-only slices of the mapped segments, to be streamed to a client
+ * by a {@link FrameSender} without copying the frames to the heap.
+ *
+ * Oldest segments are deleted when there are more than maxSegments of them.
+ */
+public class ABBOEJournal {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    /** Every INDEX_INTERVAL:th record of a segment is indexed */
+    public static final int INDEX_INTERVAL = 64;
+
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private File dir;
+    private int segmentSize;
+    private int maxSegments;
+
+    /** Oldest first. All access to segments should be synchronized on the journal. */
+    private LinkedList<Segment> segments;
+
+    /** Sequence number of next record to be appended */
+    private long nextSeq;
+
+    /** Time of last record appended; times of records are kept non-decreasing */
+    private long lastTime;
+
+    /**
+     * Open journal at given directory, creating the directory if needed. Existing
+     * segments are scanned to rebuild the index.
+     */
+    public ABBOEJournal(File dir, int segmentSize, int maxSegments) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.segments = new LinkedList<Segment>();
+        this.nextSeq = 0;
+        this.lastTime = 0;
+
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed creating journal dir: "+dir);
+        }
+
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        for (File file: files) {
+            String name = file.getName();
+            if (name.endsWith(SEGMENT_SUFFIX)) {
+                int number = Integer.parseInt(name.substring(0, name.length()-SEGMENT_SUFFIX.length()));
+                segments.add(openSegment(number, file, (int)file.length()));
+            }
+        }
+
+        if (segments.size() == 0) {
+            segments.add(newSegment(0, segmentSize));
+        }
+
+        log("Opened journal at "+dir+" with "+segments.size()+" segments and "+nextSeq+" records");
+    }
+
+    /** Create a new, empty segment file of given size */
+    private Segment newSegment(int number, int size) throws IOException {
+        File file = new File(dir, String.format("%010d", number)+SEGMENT_SUFFIX);
+        return openSegment(number, file, size);
+    }
+
+    /** Map a segment file, scanning any records already in it. */
+    private Segment openSegment(int number, File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        finally {
+            // the mapping stays valid after closing the file
+            raf.close();
+        }
+
+        Segment segment = new Segment(number, file, buffer);
+        int pos = 0;
+        while (pos + RECORD_HEADER_SIZE <= size) {
+            int length = buffer.getInt(pos);
+            if (length <= 0 || pos + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+            long time = buffer.getLong(pos+4);
+            segment.addRecord(nextSeq++, time, pos, length);
+            lastTime = Math.max(lastTime, time);
+            pos += RECORD_HEADER_SIZE + length;
+        }
+        segment.writePos = pos;
+        return segment;
+    }
+
+    /** 
+     * Append a frame to the journal. The frame may be given in parts (e.g. metadata and a shared payload),
+     * to be written back-to-back as a single record.
+     */
+    public synchronized void append(byte[]... parts) throws IOException {
+        int length = 0;
+        for (byte[] part: parts) {
+            length += part.length;
+        }
+        Segment segment = segments.getLast();
+        // leave room for a terminating zero length after each record
+        if (segment.writePos + RECORD_HEADER_SIZE + length + 4 > segment.buffer.capacity()) {
+            int size = Math.max(segmentSize, RECORD_HEADER_SIZE + length + 4);
+            segment.buffer.force();
+            segment = newSegment(segment.number+1, size);
+            segments.add(segment);
+            deleteOldSegments();
+        }
+
+        long time = Math.max(System.currentTimeMillis(), lastTime);
+        int offset = segment.writePos;
+        ByteBuffer buffer = segment.buffer;
+
+        // write length last, so that a partially written record is never taken to be complete
+        buffer.putLong(offset+4, time);
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(offset + RECORD_HEADER_SIZE);
+        for (byte[] part: parts) {
+            dst.put(part);
+        }
+        buffer.putInt(offset + RECORD_HEADER_SIZE + length, 0);
+        buffer.putInt(offset, length);
+
+        segment.addRecord(nextSeq++, time, offset, length);
+        segment.writePos = offset + RECORD_HEADER_SIZE + length;
+        lastTime = time;
+    }
+
+    private void deleteOldSegments() {
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.removeFirst();
+            log("Deleting journal segment: "+oldest.file);
+            if (!oldest.file.delete()) {
+                warn("Failed deleting journal segment: "+oldest.file);
+            }
+        }
+    }
+
+    /** Number of records currently in the journal */
+    public synchronized long getNumRecords() {
+        long n = 0;
+        for (Segment segment: segments) {
+            n += segment.numRecords;
+        }
+        return n;
+    }
+
+    /** Write any changes to disk */
+    public synchronized void flush() {
+        segments.getLast().buffer.force();
+    }
+
+    /**
+     * Frames of the last n records accepted by filter, oldest first.
+     * Returned buffers are slices of the mapped segments.
+     */
+    public synchronized List<ByteBuffer> replayLast(int n, Filter filter) {
+        if (n <= 0) {
+            return new ArrayList<ByteBuffer>();
+        }
+
+        // start scanning from about n records back, going further back until enough
+        // records have been accepted or the beginning of the journal is reached
+        long span = n;
+        while (true) {
+            Position start = findBySeq(nextSeq - span);
+            Deque<ByteBuffer> result = new ArrayDeque<ByteBuffer>(n);
+            if (start == null) {
+                // empty journal
+                return new ArrayList<ByteBuffer>(result);
+            }
+            for (Position pos = start; pos != null; pos = next(pos)) {
+                if (accept(pos, filter)) {
+                    if (result.size() == n) {
+                        result.removeFirst();
+                    }
+                    result.addLast(pos.frame());
+                }
+            }
+            if (result.size() == n || start.equals(at(0, 0))) {
+                return new ArrayList<ByteBuffer>(result);
+            }
+            span *= 4;
+        }
+    }
+
+    /**
+     * Frames of all records appended at or after given time (millis since epoch) accepted by filter,
+     * oldest first. Returned buffers are slices of the mapped segments.
+     */
+    public synchronized List<ByteBuffer> replaySince(long time, Filter filter) {
+        List<ByteBuffer> result = new ArrayList<ByteBuffer>();
+        for (Position pos = findByTime(time); pos != null; pos = next(pos)) {
+            if (pos.time() >= time && accept(pos, filter)) {
+                result.add(pos.frame());
+            }
+        }
+        return result;
+    }
+
+    private boolean accept(Position pos, Filter filter) {
+        try {
+            return filter.accept(pos.metadata());
+        }
+        catch (InvalidBusinessObjectException e) {
+            warn("Invalid frame in journal segment "+pos.segment.file+" at offset "+pos.offset);
+            return false;
+        }
+    }
+
+    /** Indexed position at or before record with given sequence number; null if journal is empty */
+    private Position findBySeq(long seq) {
+        for (int i=segments.size()-1; i>=0; i--) {
+            Segment segment = segments.get(i);
+            for (int j=segment.index.size()-1; j>=0; j--) {
+                IndexEntry entry = segment.index.get(j);
+                if (entry.seq <= seq) {
+                    return at(i, entry.offset);
+                }
+            }
+        }
+        return at(0, 0);
+    }
+
+    /** Indexed position before any record appended at or after given time; null if journal is empty */
+    private Position findByTime(long time) {
+        for (int i=segments.size()-1; i>=0; i--) {
+            Segment segment = segments.get(i);
+            for (int j=segment.index.size()-1; j>=0; j--) {
+                IndexEntry entry = segment.index.get(j);
+                if (entry.time < time) {
+                    return at(i, entry.offset);
+                }
+            }
+        }
+        return at(0, 0);
+    }
+
+    /** Position of first record at or after given offset, or null if there are no such records */
+    private Position at(int segmentIndex, int offset) {
+        while (offset >= segments.get(segmentIndex).writePos) {
+            if (segmentIndex == segments.size()-1) {
+                return null;
+            }
+            segmentIndex++;
+            offset = 0;
+        }
+        return new Position(segmentIndex, offset);
+    }
+
+    /** Null if no more records */
+    private Position next(Position pos) {
+        return at(pos.segmentIndex, pos.offset + RECORD_HEADER_SIZE + pos.length());
+    }
+
+    public String toString() {
+        return "ABBOEJournal at "+dir;
+    }
+
+    /** Position of a record; only valid while holding the lock on the journal. */
+    private class Position {
+        int segmentIndex;
+        Segment segment;
+        int offset;
+
+        Position(int segmentIndex, int offset) {
+            this.segmentIndex = segmentIndex;
+            this.segment = segments.get(segmentIndex);
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Position) {
+                Position pos = (Position)o;
+                return pos.segmentIndex == segmentIndex && pos.offset == offset;
+            }
+            else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return segmentIndex * 31 + offset;
+        }
+
+        int length() {
+            return segment.buffer.getInt(offset);
+        }
+
+        long time() {
+            return segment.buffer.getLong(offset+4);
+        }
+
+        /** Read-only slice containing just the frame */
+        ByteBuffer frame() {
+            ByteBuffer frame = segment.buffer.asReadOnlyBuffer();
+            frame.position(offset + RECORD_HEADER_SIZE);
+            frame.limit(offset + RECORD_HEADER_SIZE + length());
+            return frame.slice();
+        }
+
+        /** Parse metadata of the frame, not touching the payload */
+        BusinessObjectMetadata metadata() throws InvalidBusinessObjectException {
+            ByteBuffer buffer = segment.buffer;
+            int start = offset + RECORD_HEADER_SIZE;
+            int end = start + length();
+            int i = start;
+            while (i < end && buffer.get(i) != '\0') {
+                i++;
+            }
+            if (i >= end) {
+                throw new InvalidBusinessObjectException("No null byte in business object");
+            }
+            byte[] metabytes = new byte[i-start];
+            ByteBuffer src = buffer.duplicate();
+            src.position(start);
+            src.get(metabytes);
+            return new BusinessObjectMetadata(metabytes);
+        }
+    }
+
+    private static class Segment {
+        int number;
+        File file;
+        MappedByteBuffer buffer;
+        int writePos;
+        long numRecords;
+        /** Sparse index of records in this segment */
+        List<IndexEntry> index;
+
+        Segment(int number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+            this.writePos = 0;
+            this.numRecords = 0;
+            this.index = new ArrayList<IndexEntry>();
+        }
+
+        void addRecord(long seq, long time, int offset, int length) {
+            if (numRecords % INDEX_INTERVAL == 0) {
+                index.add(new IndexEntry(seq, time, offset));
+            }
+            numRecords++;
+        }
+    }
+
+    private static class IndexEntry {
+        long seq;
+        long time;
+        int offset;
+
+        IndexEntry(long seq, long time, int offset) {
+            this.seq = seq;
+            this.time = time;
+            this.offset = offset;
+        }
+    }
+
+    /** Decides which records are to be replayed, based on their metadata */
+    public interface Filter {
+        public boolean accept(BusinessObjectMetadata meta);
+    }
+
+    private static void log(String msg) {
+        Logger.info("ABBOEJournal: "+msg);
+    }
+
+    private static void warn(String msg) {
+        Logger.warning("ABBOEJournal: "+msg);
+    }
+}
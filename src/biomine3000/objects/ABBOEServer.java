@@ -1,1007 +1,1925 @@
-package biomine3000.objects;
-
-import static biomine3000.objects.BusinessObjectEventType.*;
-
-import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.text.DateFormat;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.List;
-import java.util.Map;
-
-import biomine3000.objects.ContentVaultProxy.InvalidStateException;
-
-
-
-import util.CmdLineArgs2;
-import util.DateUtils;
-import util.StringUtils;
-import util.dbg.ILogger;
-import util.dbg.Logger;
-import util.net.NonBlockingSender;
-
-/**
- * Advanced Business Objects Exchange Server.
- * 
- * Reads business objects from each client, broadcasting back everything it reads
- * to all clients.
- * 
- * Two dedicated threads will created for each client, one for sending and one for reading {@link
- * BusinessObject}s.  
- * 
- * Once a client closes its sockets outputstream (the inputstream of the server's socket),
- * the server stops sending to that client and closes the socket. 
- *
- */
-public class ABBOEServer {   
-   
-    private static ILogger log = new Logger.ILoggerAdapter(null, new DateUtils.BMZGenerator());
-    
-    public static final DateFormat DEFAULT_DATE_FORMAT = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.MEDIUM);
-        
-    private ServerSocket serverSocket;    
-    private int serverPort;
-   
-    /** For sending welcome images */
-    private ContentVaultProxy contentVaultProxy;
-    
-    /** all access to this client list should be synchronized on the ABBOEServer instance */
-    private List<Client> clients;
-    
-    /** Shortcuts for clients, to be used for interactive server management only */
-    private Map<Integer, Client> clientShortcuts;
-    
-    private State state;
-    
-    private synchronized List<String> clientReport(Client you) {
-        List<String> result = new ArrayList<String>();
-        for (Client client: clients) {
-            if (client == you) {
-                result.add(client.name+" (you)");
-            }
-            else {
-                result.add(client.name);
-            }
-        }
-        return result;
-    }
-    
-    /** Generates a map (small int) => (client) for later reference. */ 
-    private synchronized Map<Integer, Client> clientShortcuts() {
-        Map<Integer, Client> map = new HashMap<Integer, Client>();
-        int i=0;
-        for (Client client: clients) {
-            map.put(++i, client);            
-        }
-        return map;
-    }
-    
-    /** Create server data structures and start listening */
-    public ABBOEServer(int port) throws IOException {
-        state = State.NOT_RUNNING;
-        this.serverPort = port;
-        serverSocket = new ServerSocket(serverPort);        
-        clients = new ArrayList<Client>();
-        log("Listening.");
-        contentVaultProxy = new ContentVaultProxy();
-        contentVaultProxy.addListener(new ContentVaultListener());
-        contentVaultProxy.startLoading();
-    }                            
-    
-    /** Send some random image from the content vault to all clients */
-    private void sendImageToAllClients() {        
-        synchronized(clients) {
-            ImageObject image;
-            try {
-                image = contentVaultProxy.sampleImage();
-                for (Client client: clients) {
-                    client.send(image);
-                }
-            }
-            catch (InvalidStateException e) {
-                error("Content vault at invalid state after loading all images?");
-            }                
-        }
-                    
-    }
-    
-    private class ContentVaultListener implements biomine3000.objects.ContentVaultProxy.ContentVaultListener {
-
-        @Override
-        public void loadedImageList() {
-            // TODO Auto-generated method stub            
-        }
-
-        @Override
-        public void loadedImage(String image) {
-            // TODO Auto-generated method stub
-            
-        }
-
-        @Override
-        public void loadedAllImages() {
-            sendImageToAllClients();
-        }
-        
-    }
-    
-    /**
-     * Send an object to all applicable clients. Does not block, as sending is done
-     * using a dedicated thread for each client.
-     */
-    private synchronized void sendToAllClients(Client src, BusinessObject bo) {
-        // defer coming up with bytes to send until the time comes 
-        // to send to the first applicable client (there might be none) 
-        byte[] bytes = null;
-        for (Client client: clients) {            
-            if (client.shouldSend(src, bo)) {
-                if (bytes == null) {                    
-                    bytes = bo.bytes();
-                }
-                client.send(bytes);               
-            }
-        }
-    }          
-    
-    /** 
-     * Should never return. Only way to exit is through client request "stop",
-     * {@link UnrecoverableServerException}, or stop signal.
-     */
-    private void mainLoop() {         
-                         
-        state = State.ACCEPTING_CLIENTS;
-        
-        while (state == State.ACCEPTING_CLIENTS) {
-            log("Waiting for client...");
-            
-            try {
-                Socket clientSocket = serverSocket.accept();
-                if (state == State.ACCEPTING_CLIENTS) {
-                    log("Client connected from "+clientSocket.getRemoteSocketAddress());
-                    acceptSingleClient(clientSocket);                    
-                }
-                else {
-                    // while waiting, someone seems to have changed our policy to "not accepting clients any more"
-                    // TODO: more graceful way of rejecting this connection
-                    log("Not accepting client from: "+clientSocket.getRemoteSocketAddress());
-                    clientSocket.close();
-                }
-            } 
-            catch (IOException e) {
-                if (state == State.ACCEPTING_CLIENTS) {
-                    error("Accepting a client failed", e);
-                }
-                // else we are shutting down, and failure is to be expected to result from server socket having been closed 
-            }                                                            
-        }                                        
-        
-        log.info("Finished ABBOE main loop");
-    }
-            
-    /** Actually, a connection to a client */
-    private class Client implements NonBlockingSender.Listener {
-        boolean registered = false;
-        Socket socket;
-        BufferedInputStream is;
-        OutputStream os;    
-        /** Please do not call send of this sender directly, even within this class, except in the one dedicated place */
-        NonBlockingSender sender;
-        BusinessObjectReader reader;
-        ReaderListener readerListener;               
-        ClientReceiveMode receiveMode = ClientReceiveMode.ALL;
-        Subscriptions subscriptions = Subscriptions.ALL;
-        boolean closed;
-        /** actual name of client, not including user or addr */
-        String clientName;
-        String user;
-        String addr;
-        /** Derived from clientName, user and addr */
-        String name;
-        boolean senderFinished;
-        boolean receiverFinished;
-        /** services implemented by client */
-        LinkedHashSet<String> services = new LinkedHashSet<String>();         
-                
-        Client(Socket socket) throws IOException {
-            senderFinished = false;
-            receiverFinished = false;
-            this.socket = socket;
-            addr = socket.getRemoteSocketAddress().toString();
-            initName();
-            is = new BufferedInputStream(socket.getInputStream());
-            os = socket.getOutputStream();            
-            sender = new NonBlockingSender(socket, this, log);
-            sender.setName(name);
-            readerListener = new ReaderListener(this);
-            closed = false;
-            
-            log("Client connected");
-            synchronized(ABBOEServer.this) {
-                clients.add(this);
-            }            
-        }
-        
-        private void initName() {
-            StringBuffer buf = new StringBuffer();
-            if (clientName != null) {
-                buf.append(clientName+"-");
-            }
-            if (user != null) {
-                buf.append(user+"-");
-            }
-            buf.append(addr);
-            name = buf.toString();
-        }
-        
-        private synchronized void setName(String clientName) {
-            this.clientName = clientName;
-            initName();
-            sender.setName("sender-"+this.name);  
-            reader.setName("reader-"+this.name);
-        }
-        
-        private synchronized void setUser(String user) {
-            this.user = user;
-            initName();
-            sender.setName("sender-"+name);  
-            reader.setName("reader-"+name);
-        }
-        
-        /**
-         * Caller needs to first ensure that client is willing to receive such a packet 
-         * by calling {@link #shouldSend(Client, BusinessObject)} or {@link #receiveEvents()}.
-         * @param obj
-         */
-        private void send(BusinessObject obj) {
-            obj.setSender("ABBOE");
-            log.info("Sending: "+obj);
-            send(obj.bytes());
-        }
-        
-        private void send(String text) {
-            log("Sending plain text to client "+this+": "+text);
-            PlainTextObject reply = new PlainTextObject(text);
-            send(reply);        
-        }
-
-        /** Should events be sent to this client? */
-        public boolean receiveEvents() {
-            return receiveMode != ClientReceiveMode.NONE; 
-        }
-        
-        /** Should the object <bo> from client <source> be sent to this client? */ 
-        public boolean shouldSend(Client source, BusinessObject bo) {
-            
-            boolean result;
-            
-            if (receiveMode == ClientReceiveMode.ALL) {
-                result = true;
-            }
-            else if (receiveMode == ClientReceiveMode.NONE) {
-                result = false;
-            }
-            else if (receiveMode == ClientReceiveMode.EVENTS_ONLY) {
-                result = bo.isEvent();               
-            }
-            else if (receiveMode == ClientReceiveMode.NO_ECHO) {
-                result = (source != this);
-            }
-            else {
-                log.error("Unknown receive mode: "+receiveMode+"; not sending!");
-                result = false;
-            }
-            
-            if (result == true) {
-                result = subscriptions.shouldSend(bo);
-            }
-            
-            return result;
-        }
-        
-        
-       /**
-        * Put object to queue of messages to be sent (to this one client) and return immediately.        
-        * Assume send queue has unlimited capacity.
-        */
-        private void send(byte[] packet) {
-            if (senderFinished) {
-                warn("No more sending business");
-                return;
-            }
-            
-            try {                
-                sender.send(packet);
-            }
-            catch (IOException e) {
-                error("Failed sending to client "+this, e);
-                doSenderFinished();
-            }
-        }       
-        
-        private synchronized void registerServices(List<String> names) {
-            services.addAll(names);
-        }
-        
-        private void startReaderThread() {
-            reader = new BusinessObjectReader(is, readerListener, name, false, log);            
-            Thread readerThread = new Thread(reader);
-            readerThread.start();
-        }               
-        
-        /**
-         * Forcibly terminate a connection with a client (supposedly called when
-         * client steadfastly refuses to close the connection when requested)
-         */
-        private void forceClose() {
-            if (closed) {
-                error("Attempting to close a client multiple times", null);
-            }
-            log("Forcing closing of connection with client: "+this);
-                       
-            try {
-                // closing socket also closes streams if needed
-                socket.close();
-            }
-            catch (IOException e) {
-                error("Failed closing socket", e);
-            }
-            
-            synchronized(ABBOEServer.this) {
-                clients.remove(this);
-                closed = true;
-                if (state == State.SHUTTING_DOWN && clients.size() == 0) {
-                    // last client closed and we are shutting down, finalize shutdown sequence...
-                    log.info("No more clients, finalizing shutdown sequence...");
-                    finalizeShutdownSequence();
-                }
-            }
-            
-            PlainTextObject msg = new PlainTextObject("Client "+this+" disconnected", CLIENTS_PART_NOTIFY);
-            msg.getMetaData().setName(this.name);
-            msg.getMetaData().setSender("ABBOE");
-            sendToAllClients(this, msg);
-        }
-        
-        /**
-         * Gracefully dispose of a single client after ensuring both receiver and sender 
-         * have finished
-         */ 
-        private void doClose() {
-            if (closed) {
-                error("Attempting to close a client multiple times", null);
-            }
-            
-            log("Closing connection with client: "+this);
-
-            try {                                        
-                os.flush();
-            }
-            catch (IOException e) {
-                // let's not bother to even log the exception at this stage
-            }
-            
-            try {
-                // closing socket also closes streams if needed
-                socket.close();
-            }
-            catch (IOException e) {
-                // let's not bother to even log the exception at this stage
-            }
-            
-            synchronized(ABBOEServer.this) {
-                clients.remove(this);
-                closed = true;
-                if (state == State.SHUTTING_DOWN && clients.size() == 0) {
-                    // last client closed, no more clients, finalize shutdown sequence...
-                    log.info("No more clients, finalizing shutdown sequence...");
-                    finalizeShutdownSequence();
-                }
-            }
-            
-            PlainTextObject msg = new PlainTextObject("Client "+this+" disconnected", CLIENTS_PART_NOTIFY);
-            msg.getMetaData().setName(this.name);
-            msg.getMetaData().setSender("ABBOE");
-            sendToAllClients(this, msg);
-        }                
-        
-        @Override
-        public void senderFinished() {            
-            doSenderFinished();                     
-        }
-            
-        /** 
-         * Initiate shutting down of proceedings with this client. 
-         * 
-         * Actually, just initiate closing of output channel. On noticing this,
-         * client should close its socket, which will then be noticed on this server
-         * as a {@link BusinessObjectReader.Listener#noMoreObjects()} notification from the {@link #reader}.  
-         */
-        public void initiateClosingSequence(BusinessObject notification) {
-            log.info("Initiating closing sequence for client: "+this);
-            
-            if (receiveEvents()) {                           
-                log.info("Sending shutdown event to client: "+this);
-                send(notification);
-            }            
-            
-            sender.requestStop();
-        }
-        
-        private synchronized void doSenderFinished() {
-            log("doSenderFinished");
-            if (senderFinished) {
-                log("Already done");
-                return;
-            }
-            
-            senderFinished = true;
-                        
-            try {
-                socket.shutdownOutput();
-            }
-            catch (IOException e) {
-                log.error("Failed closing socket output after finishing sender", e);
-            }
-            
-            
-            if (receiverFinished) {
-                doClose();
-            }                                 
-        }
-
-        private synchronized void doReceiverFinished() {
-            log("doReceiverFinished");
-            if (receiverFinished) {
-                log("Already done");
-                return;
-            }
-            
-            // request stop of sender
-            sender.requestStop();
-            
-            receiverFinished = true;
-            
-            if (senderFinished) {
-                doClose();
-            }                         
-        }
-        
-        private void error(String msg, Exception e) {
-            log.error(name+": "+msg, e);
-        }
-        
-        private void log(String msg) {
-            log.info(name+": "+msg);
-        }
-        
-        public String toString() {
-            return name;
-        }
-
-    }
-                    
-    private void acceptSingleClient(Socket clientSocket) {
-        
-        Client client;
-         
-        try {
-            client = new Client(clientSocket);
-            String abboeUser = Biomine3000Utils.getUser();            
-            client.send("Welcome to this fully operational java-A.B.B.O.E., run by "+abboeUser);
-            if (Biomine3000Utils.isBMZTime()) {
-                client.send("For relaxing times, make it Zombie time");
-            }            
-            // suggest registration, if client has not done so within a second of its registration...
-            new RegisterSuggesterThread(client).start();
-            if (contentVaultProxy.getState() == ContentVaultProxy.State.INITIALIZED_SUCCESSFULLY) {
-                try {
-                    client.send(contentVaultProxy.sampleImage());
-                }
-                catch (InvalidStateException e) {
-                    error("Invalid state while getting content from vault", e); 
-                }
-            }
-        }
-        catch (IOException e) {
-            error("Failed creating streams on socket", e);
-            try {
-                clientSocket.close();
-            }
-            catch (IOException e2) {
-                // failed even this, no further action possible
-            }
-            return;
-        }        
-
-        client.startReaderThread();
-    }          
-        
-    private class SystemInReader extends Thread {
-        public void run() {
-            try {
-                stdInReadLoop();
-            }
-            catch (IOException e)  {
-                log.error("IOException in SystemInReader", e);
-                log.error("Terminating...");
-                shutdown();
-            }
-        }
-    }
-    
-    /**
-     * FOO: it does not seem to be possible to interrupt a thread waiting on system.in, even
-     * by closing System.in... Thread.interrupt does not work either...
-     * it seems that it is not possible to terminate completely cleanly, then.
-     */
-    private void stdInReadLoop() throws IOException {        
-        BufferedReader br = new BufferedReader(new InputStreamReader(System.in));            
-        String line = br.readLine();
-        boolean gotStopRequest = false;
-        while (line != null && !gotStopRequest) {   
-            if (line.equals("stop") || line.equals("s")) {
-                // this is the end
-                gotStopRequest = true;
-                break;
-            }
-            else if (line.equals("image") || line.equals("i")) {
-                sendImageToAllClients();
-            }
-            else if (line.equals("clients") || line.equals("c")) {
-                clientShortcuts = clientShortcuts();
-                for (Integer key: clientShortcuts.keySet()) {
-                    System.out.println(key+": "+clientShortcuts.get(key).name);
-                }
-            }
-            else if (line.startsWith("close ") || line.startsWith("c ")) {                 
-                // this is the end for one client
-                String shortcutStr;
-                if (line.startsWith("close ")) {                    
-                    shortcutStr = line.replace("close ", "");
-                }
-                else if (line.startsWith("c ")) {
-                    shortcutStr = line.replace("c ", "");
-                }
-                else {
-                    error("WhatWhatWhat");
-                    continue;
-                }
-                if (!(StringUtils.isIntegral(shortcutStr))) {
-                    error("Not a valid shortcut string: "+shortcutStr);
-                    continue;
-                }
-                if (clientShortcuts == null) {
-                    error("No client map!");
-                    continue;
-                }
-                int shortcut = Integer.parseInt(shortcutStr);
-                
-                Client client = clientShortcuts.get(shortcut);
-                if (client == null) {
-                    error("No such client shortcut: "+shortcut);
-                }
-                log("Closing connection to client: "+client);
-                String admin  = Biomine3000Utils.getUser();
-                BusinessObject closeNotification = new PlainTextObject("ABBOE IS GOING TO CLOSE THIS CONNECTION NOW (as requested by the ABBOE adminstrator, "+admin+")");            
-                closeNotification.setEvent(ABBOE_CLOSE_NOTIFY);
-                client.initiateClosingSequence(closeNotification);                                
-                
-                ClientShutdownThread cst = new ClientShutdownThread(client);
-                cst.start();
-                
-            }
-            else {
-                // just a message to be broadcast
-                BusinessObject message = new PlainTextObject(line);
-                String user = Biomine3000Utils.getUser();
-                String sender = user != null ? "ABBOE-"+user : "ABBOE";
-                message.getMetaData().setSender(sender);
-                // log.dbg("Sending object: "+sendObj );  
-                sendToAllClients(null, message);                
-            }
-            line = br.readLine();
-        }
-        
-        if (gotStopRequest) {
-            log.info("Got stop request");
-        }
-        else {
-            log.info("Tranquilly finished reading stdin");
-        }
-        
-        log.info("Harmoniously closing down server by closing output of all client sockets");        		 
-        shutdown();
-        
-    }
-            
-    
-    @SuppressWarnings("unused")
-    private synchronized void shutdown() {
-        state = State.SHUTTING_DOWN;
-        
-        // TODO: more delicate termination needed?
-        log("Initiating shutdown sequence");
-        
-        if (clients.size() > 0) {                   
-            for (Client client: clients) {                
-                BusinessObject shutdownNotification = new PlainTextObject("ABBOE IS GOING TO SHUTDOWN in 5 seconds");            
-                shutdownNotification.setEvent(ABBOE_SHUTDOWN_NOTIFY);
-                client.initiateClosingSequence(shutdownNotification);
-            }                           
-            
-            // start a thread to ensure shutdown in case some clients fail to close their connections
-            ShutdownThread shutdownThread = new ShutdownThread();
-            shutdownThread.start();
-        }
-        else {
-            // no clients to close!
-            finalizeShutdownSequence();
-        }
-        
-        // System.exit(pExitCode);
-    }
-    
-    /** Finalize shutdown sequence after closing all clients (if any) */
-    private void finalizeShutdownSequence() {
-        try {
-            log.info("Finalizing shutdown sequence by closing server socket");
-            serverSocket.close();
-        }
-        catch (IOException e) {
-            // foo
-        }
-        
-        log.info("Exiting");
-        System.exit(0);
-    }
-            
-    
-   /**
-    * Ensure shutdown in case some client(s) fail to close their connection properly 
-    * Note that tempting as it might be, it is not possible to send any "you fool" message
-    * to these clients at this stage, as any outgoing connections have already been shut down.
-    */
-    private class ShutdownThread extends Thread {
-        public void run() {
-            try {
-                Thread.sleep(5000);
-                log.error("Following clients have failed to close their connection properly: " +
-                           StringUtils.collectionToString(clients,", ")+
-                		  "; forcing shutdown...");
-                finalizeShutdownSequence();
-            }
-            catch (InterruptedException e) {
-                log.error("Shutdownthread interrupted");
-            }           
-        }
-    }
-    
-    private class ClientShutdownThread extends Thread {
-        Client client;
-        ClientShutdownThread(Client client) {
-            this.client = client;
-        }
-        public void run() {
-            try {
-                Thread.sleep(3000);
-                if (!client.closed) {
-                    log.error("Client "+client.name+" has failed to shut down properly, forcing shutdown...");                           
-                    client.forceClose();
-                }
-            }
-            catch (InterruptedException e) {
-                log.error("Shutdownthread for client: "+client.name+" interrupted, connection to client has not been shutdown");
-            }           
-        }
-    }
-    
-    private class RegisterSuggesterThread extends Thread {
-        Client client;
-        RegisterSuggesterThread(Client client) {
-            this.client = client;
-        }
-        
-        public void run() {
-            try {
-                Thread.sleep(1000);
-                if (state == ABBOEServer.State.SHUTTING_DOWN) return;
-                if (!client.registered) {
-                    client.send("Please register by sending a \""+CLIENTS_REGISTER+"\" event");
-                }                
-            }
-            catch (InterruptedException e) {
-                log.error("RegisterSuggesterThread interrupted");
-            }
-            
-        }
-    }
-    
-    private void handleServicesRegisterEvent(Client client, BusinessObject bo) {
-        BusinessObjectMetadata meta = bo.getMetaData();        
-        List<String> names = meta.getList("names");
-        String name = meta.getString("name");
-        if (name != null && names != null) {
-            // client has decided to generously provide both name and names; 
-            // let's as generously handle this admittably deranged request
-            names = new ArrayList<String>(names);
-            names.add(name);            
-        }
-        else if (name != null && names == null) { 
-            names = Collections.singletonList(name);
-        }
-        else if (name == null && names != null) { 
-            // no action
-        }
-        else {
-            // both null
-            sendErrorReply(client, "No name nor names in services/register event");
-            return;
-        }
-        
-        // names now contains the services to register
-        client.registerServices(names);        
-    }
-    
-    private void handleClientsListEvent(Client requestingClient) {
-        
-        BusinessObject clientReport;
-        
-        synchronized(ABBOEServer.this) {
-            clientReport = new PlainTextObject(StringUtils.colToStr(clientReport(requestingClient), "\n"));
-            List<String> clientNames = new ArrayList<String>();            
-            for (Client client: clients) {
-                if (client != requestingClient) {
-                    clientNames.add(client.name);
-                }
-            }
-            clientReport.getMetaData().put("you", requestingClient.name);
-            clientReport.getMetaData().setEvent(CLIENTS_LIST_REPLY);
-            clientReport.getMetaData().putStringList("others", clientNames);
-        }
-        
-        requestingClient.send(clientReport);
-    }
-    
-    
-    
-    private void handleClientRegisterEvent(Client client, BusinessObject bo) {
-        BusinessObjectMetadata meta = bo.getMetaData(); 
-        String name = meta.getName();
-        String user = meta.getUser();
-        String receiveModeName = meta.getString(ClientReceiveMode.KEY); 
-        if (name != null) {
-            client.setName(name);
-        }
-        else {
-            warn("No name in register packet from "+client);
-        }
-        if (user != null) {
-            client.setUser(user);
-        }     
-        else {
-            warn("No user in register packet from "+client);
-        }
-        
-        String msg = "Registered you as \""+name+"-"+user+"\".";
-        
-        if (receiveModeName != null) {
-            ClientReceiveMode recvMode = ClientReceiveMode.getMode(receiveModeName);
-            if (recvMode == null) {
-                sendErrorReply(client, "Unrecognized rcv mode in packet: "+recvMode+", using the default: "+client.receiveMode);
-            }
-            else {
-                client.receiveMode = recvMode;
-                msg+=" Your receive mode is set to: \""+recvMode+"\".";
-            }
-        }
-        else {
-            msg+=" No receive mode specified, using the default: "+client.receiveMode;
-        }                                                                       
-        
-        Subscriptions subscriptions = null;
-        try {
-            subscriptions = meta.getSubscriptions();
-        }
-        catch (InvalidJSONException e) {
-            sendErrorReply(client, "Unrecognized subscriptions in packet: "+e.getMessage());
-        }                                                                                    
-        
-        if (subscriptions != null) {
-            msg+=" Your subscriptions are set to: "+subscriptions+".";                            
-        }
-        else {
-            msg+=" You did not specify subscriptions; using the default: "+client.subscriptions;                            
-        }                        
-                     
-        BusinessObject replyObj = new PlainTextObject(msg);
-        replyObj.setEvent(CLIENTS_REGISTER_REPLY);
-        client.send(replyObj);
-
-        // only set after sending the plain text reply                        
-        if (subscriptions != null) {
-            client.subscriptions = subscriptions;                            
-        }               
-        
-        PlainTextObject registeredMsg = new PlainTextObject("Client "+client+" registered", CLIENTS_REGISTER_NOTIFY);
-        registeredMsg.getMetaData().setName(client.name);
-        registeredMsg.getMetaData().setSender("ABBOE");
-        client.registered = true; 
-        sendToAllClients(client, registeredMsg);
-    }
-    
-    /** Listens to a single dedicated reader thread reading objects from the input stream of a single client */
-    private class ReaderListener implements BusinessObjectReader.Listener {
-        Client client;
-        
-        ReaderListener(Client client) {
-            this.client = client;
-        }
-
-        @Override
-        public void objectReceived(BusinessObject bo) {                        
-            if (bo.isEvent()) {
-                BusinessObjectEventType et = bo.getMetaData().getKnownEvent();
-                // does this event need to be sent to other clients?
-                boolean forwardEvent = true;
-                if (et != null) {                    
-                    log("Received "+et+" event: "+bo);
-                    if (et == CLIENT_REGISTER) {
-                        sendErrorReply(client, "Using deprecated name for client registration; the " +
-                                       "present-day jargon defines that event type be \""+
-                                CLIENTS_REGISTER.toString()+"\"");
-                        handleClientRegisterEvent(client, bo);                        
-                        forwardEvent = false;
-                    }
-                    else if (et == CLIENTS_REGISTER) {
-                        // deprecated version
-                        handleClientRegisterEvent(client, bo);
-                        forwardEvent = false;
-                    }
-                    else if (et == CLIENTS_LIST) {
-                        handleClientsListEvent(client);
-                        forwardEvent = false;
-                    }
-                    else if (et == SERVICES_REGISTER) {
-                        handleServicesRegisterEvent(client, bo);
-                        forwardEvent = false;
-                    }
-                    else {
-                        log("Received known event which this ABBOE implementation does not handle: "+bo);
-                    }
-                }
-                else {
-                    log("Received unknown event: "+bo.getMetaData().getEvent());
-                }
-                
-                // send the event if needed 
-                if (forwardEvent) {
-                    log("Sending the very same event to all clients...");
-                    ABBOEServer.this.sendToAllClients(client, bo);
-                }
-            }
-            else {
-                // not an event, assume mythical "content"
-                
-                if (bo.hasPayload() && bo.getMetaData().getType().equals(Biomine3000Mimetype.PLAINTEXT.toString())) {
-                    PlainTextObject pto = new PlainTextObject(bo.getMetaData().clone(), bo.getPayload());
-                    log("Received content: "+Biomine3000Utils.formatBusinessObject(pto));
-                }
-                else {
-                    log("Received content: "+bo);
-                }
-                // log("Sending the very same content to all clients...");
-                ABBOEServer.this.sendToAllClients(client, bo);
-            }
-            
-        }
-               
-        
-
-        @Override
-        public void noMoreObjects() {
-            log("connectionClosed (client closed connection).");                                  
-            client.doReceiverFinished();            
-        }
-
-        private void handleException(Exception e) {
-            if (e.getMessage() != null && e.getMessage().equals("Connection reset")) {
-                log.info("Connection reset by client: "+this.client);
-            }
-            else {          
-                error("Exception while reading objects from client "+client, e);                                            
-                log.error(e);                
-            }
-            client.doReceiverFinished();
-        }
-        
-        @Override
-        public void handle(IOException e) {
-            handleException(e);
-        }
-
-        @Override
-        public void handle(InvalidBusinessObjectException e) {
-            handleException(e);
-            
-        }
-
-        @Override
-        public void handle(RuntimeException e) {
-            handleException(e);            
-        }
-        
-        public void connectionReset() {
-            error("Connection reset by client: "+this.client);
-            client.doReceiverFinished();
-        }
-    }
-        
-    private void sendErrorReply(Client client, String error) {
-        PlainTextObject reply = new PlainTextObject();
-        reply.getMetaData().setEvent(ERROR);
-        reply.setText(error);
-        log("Sending error reply to client "+client+": "+error);
-        client.send(reply);        
-    }
-           
-    private void startSystemInReadLoop() {           
-        SystemInReader systemInReader = new SystemInReader();
-        systemInReader.start();
-    }
-    
-    public static void main(String[] pArgs) throws Exception {
-        
-        CmdLineArgs2 args = new CmdLineArgs2(pArgs);
-                        
-        Integer port = args.getInt("port");
-        
-        if (port == null) {             
-            port = Biomine3000Utils.conjurePortByHostName();
-        }
-        
-        if (port == null) {
-            error("No -port");
-            System.exit(1);
-        }
-        
-        log("Starting ABBOE at port "+port);
-                       
-        try {
-            ABBOEServer server = new ABBOEServer(port);
-            // start separate thread for reading system.in
-            server.startSystemInReadLoop();
-            // the current thread will start executing the main loop
-            server.mainLoop();
-        }
-        catch (IOException e) {
-            error("Failed initializing ABBOE", e);
-        }
-    }
-    
-    private static void log(String msg) {
-        log.info(msg);
-    }    
-    
-    private static void warn(String msg) {
-        log.warning(msg);
-    }        
-    
-    private static void error(String msg) {
-        log.error(msg);
-    }
-    
-    private static void error(String msg, Exception e) {
-        log.error(msg, e);
-    }
-    
-    private enum State {
-        NOT_RUNNING,
-        ACCEPTING_CLIENTS,
-        SHUTTING_DOWN;
-    }
-          
+package biomine3000.objects;
+
+import static biomine3000.objects.BusinessObjectEventType.*;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import biomine3000.objects.ContentVaultProxy.InvalidStateException;
+
+
+
+import util.CmdLineArgs2;
+import util.DateUtils;
+import util.StringUtils;
+import util.dbg.ILogger;
+import util.dbg.Logger;
+
+/**
+ * Advanced Business Objects Exchange Server.
+ * 
+ * Reads business objects from each client, broadcasting back everything it reads
+ * to all clients.
+ * 
+ * Two dedicated threads will created for each client, one for sending and one for reading {@link
+ * BusinessObject}s.  
+ * 
+ * Once a client closes its sockets outputstream (the inputstream of the server's socket),
+ * the server stops sending to that client and closes the socket. 
+ * 
+ * Several servers may be federated by linking them as peers (see {@link #addPeer(IServerAddress)});
+ * a peer is just a special kind of client. Objects received from clients are given an id and a route 
+ * (list of ids of servers visited), and are forwarded to peers whose clients have subscribed to them. 
+ * An object is never forwarded to a server already on its route, and objects arriving via multiple 
+ * paths are only delivered once.  
+ * 
+ * Optionally, all routed objects are appended to an {@link ABBOEJournal}, from which registering 
+ * clients may request replaying recent objects (see {@link ClientParameters#replayLast} and 
+ * {@link ClientParameters#replaySince}).
+ * 
+ * The latest object of each (channel, type) is retained in a {@link RetainedFrameCache}, and 
+ * sent to each client right after registration, unless the client requests otherwise 
+ * (see {@link ClientParameters#retained}), or requests replaying the journal instead. 
+ * 
+ * Content published by clients may be rate limited by client name and type (see {@link RateLimits});
+ * an object exceeding the limits is delayed (by not reading further objects from the client) or, 
+ * if it would need to be delayed too long, rejected. Both are reported to the client as error events.
+ * In each client's send queue, content from different sources is interleaved fairly 
+ * (see {@link FrameSender}).
+ * 
+ * Images from the content vault are encoded only once, with the sender of the server already in, so that
+ * all clients share the same frame (see {@link EncodedFrame}).
+ * 
+ * Clients declaring the max dimensions of images they want (see {@link ClientParameters#maxImageWidth}) 
+ * are sent downscaled variants of vault images and of routed images (see {@link ImageVariants}) instead 
+ * of the originals. Replayed and retained objects are always sent as originals.
+ * 
+ * Optionally, payloads received from clients are interned by content (see {@link PayloadInterner}), 
+ * so that identical payloads posted over and over share a single buffer in send queues and in the 
+ * retained cache.
+ * 
+ * Clients requesting flow control (see {@link ClientParameters#flowControl}) may only send as many content 
+ * objects as they have been granted credits for (see {@link #CREDIT_WINDOW}). A credit is returned once the 
+ * object has been handled, but only while the content of the client queued for delivery to other clients 
+ * stays within {@link #MAX_QUEUED_BYTES_PER_SOURCE}, so that a publisher faster than the slowest of its 
+ * receivers slows down instead of its content piling up at the server.
+ *
+ */
+public class ABBOEServer {   
+   
+    private static ILogger log = new Logger.ILoggerAdapter(null, new DateUtils.BMZGenerator());
+    
+    public static final DateFormat DEFAULT_DATE_FORMAT = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.MEDIUM);
+    
+    /** Name used by ABBOE when registering to a peer ABBOE */
+    public static final String PEER_CLIENT_NAME = "ABBOE-peer";
+    
+    /** Key of server id in a register packet sent by a peer, and in peer subscription events */
+    public static final String PEER_KEY = "peer";
+    
+    /** Key of unique id of an object routed through a federation of servers */
+    public static final String ID_KEY = "id";
+    
+    /** Key of list of ids of the servers an object has visited, origin first */
+    public static final String ROUTE_KEY = "route";
+    
+    /** Key of number of objects granted in a credit event */
+    public static final String CREDIT_KEY = "credit";
+    
+    /** Objects having visited this many servers are not forwarded any further */
+    public static final int MAX_HOPS = 8;
+    
+    private static final int PEER_RETRY_INTERVAL_MILLIS = 5000;
+    private static final int NUM_RECENT_IDS = 10000;
+    
+    /** Min interval between rate limit error events sent to a single client */
+    private static final long RATE_LIMIT_REPORT_INTERVAL_MILLIS = 1000;
+    
+    /** Number of content objects a flow controlled client may have in flight */
+    public static final int CREDIT_WINDOW = 8;
+    /** Credits are withheld while more of a client's content is queued for delivery to any other client */
+    public static final long MAX_QUEUED_BYTES_PER_SOURCE = 4 * 1024 * 1024;
+    /** How often to check whether withheld credits can be granted */
+    private static final long CREDIT_CHECK_INTERVAL_MILLIS = 100;
+    
+    /** Stamped to the metadata of objects sent by the server itself; never modified */
+    private static final BusinessObjectMetadata SENDER_STAMP = new BusinessObjectMetadata();
+    static {
+        SENDER_STAMP.setSender("ABBOE");
+    }
+        
+    private ServerSocket serverSocket;    
+    private int serverPort;
+    
+    /** Identifies this server within a federation of peered servers */
+    private String serverId;
+    
+    /** For generating ids for objects entering the federation through this server */
+    private long messageCounter = 0;
+    
+    /** 
+     * Part of the ids of objects entering the federation through this server since it was started, so that
+     * a restarted server does not reuse ids its peers still remember.
+     */
+    private String startNonce;
+    
+    /** Ids of recently routed objects, to deliver objects arriving from multiple peers only once */
+    private Map<String, Boolean> recentIds;
+   
+    /** For sending welcome images */
+    private ContentVaultProxy contentVaultProxy;
+    
+    /** Null if not journaling */
+    private ABBOEJournal journal;
+    
+    /** Null if not retaining */
+    private RetainedFrameCache retainedFrames;
+    
+    /** Null if not producing image variants */
+    private ImageVariants imageVariants;
+    
+    /** Null if not interning payloads */
+    private PayloadInterner payloadInterner;
+    
+    /** Grants withheld credits; null until a client requests flow control */
+    private BroadcastScheduler.Schedule creditSchedule;
+    
+    /** Null if no rate limits */
+    private RateLimits rateLimits;
+    
+    /** Rate limiting stats over all clients, including disconnected ones */
+    private AtomicLong delayedObjects = new AtomicLong();
+    private AtomicLong rejectedObjects = new AtomicLong();
+    
+    /** all access to this client list should be synchronized on the ABBOEServer instance */
+    private List<Client> clients;
+    
+    /** Shortcuts for clients, to be used for interactive server management only */
+    private Map<Integer, Client> clientShortcuts;
+    
+    private State state;
+    
+    private synchronized List<String> clientReport(Client you) {
+        List<String> result = new ArrayList<String>();
+        for (Client client: clients) {
+            if (client == you) {
+                result.add(client.name+" (you)");
+            }
+            else {
+                result.add(client.name);
+            }
+        }
+        return result;
+    }
+    
+    /** Generates a map (small int) => (client) for later reference. */ 
+    private synchronized Map<Integer, Client> clientShortcuts() {
+        Map<Integer, Client> map = new HashMap<Integer, Client>();
+        int i=0;
+        for (Client client: clients) {
+            map.put(++i, client);            
+        }
+        return map;
+    }
+    
+    /** Create server data structures and start listening */
+    public ABBOEServer(int port) throws IOException {
+        this(port, defaultServerId(port), true);
+    }
+    
+    /**
+     * Create server data structures and start listening.
+     * @param serverId identifies this server to its peers; must be unique within a federation.
+     * @param useContentVault load the content vault for sending welcome images?   
+     */
+    public ABBOEServer(int port, String serverId, boolean useContentVault) throws IOException {
+        this(port, serverId, useContentVault ? new ContentVaultProxy() : null);
+    }
+    
+    /**
+     * @param contentVaultProxy uninitialized content vault for sending welcome images, or null for none.
+     *   Loading of the vault is started by this constructor.
+     */
+    public ABBOEServer(int port, String serverId, ContentVaultProxy contentVaultProxy) throws IOException {
+        state = State.NOT_RUNNING;
+        this.serverPort = port;
+        this.serverId = serverId;
+        this.recentIds = new RecentIds(NUM_RECENT_IDS);
+        this.startNonce = Long.toString(System.currentTimeMillis(), 36)+Integer.toString(new Random().nextInt(36*36*36), 36);
+        serverSocket = new ServerSocket(serverPort);        
+        clients = new ArrayList<Client>();
+        log("Listening.");
+        if (contentVaultProxy != null) {
+            this.contentVaultProxy = contentVaultProxy;
+            contentVaultProxy.setFrameMetadata(SENDER_STAMP);
+            contentVaultProxy.addListener(new ContentVaultListener());
+            contentVaultProxy.startLoading();
+        }
+    }                            
+    
+    /** Start journaling routed objects */
+    public void setJournal(ABBOEJournal journal) {
+        this.journal = journal;
+    }
+    
+    /** Start retaining latest objects for newly registered clients; null to stop retaining */
+    public void setRetainedFrameCache(RetainedFrameCache retainedFrames) {
+        this.retainedFrames = retainedFrames;
+    }
+    
+    /** Start interning payloads of clients connecting from now on */
+    public void setPayloadInterner(PayloadInterner payloadInterner) {
+        this.payloadInterner = payloadInterner;
+    }
+    
+    /** Start rate limiting content from clients; null to stop limiting */
+    public void setRateLimits(RateLimits rateLimits) {
+        this.rateLimits = rateLimits;
+    }
+    
+    /** 
+     * Start sending downscaled image variants to clients that want them, also preparing variants of 
+     * vault images as they are loaded; null to only send originals. 
+     */
+    public void setImageVariants(ImageVariants imageVariants) {
+        this.imageVariants = imageVariants;
+        if (contentVaultProxy != null) {
+            contentVaultProxy.setImageVariants(imageVariants);
+        }
+    }
+    
+    private static String defaultServerId(int port) {
+        String host = Biomine3000Utils.getHostName();
+        return (host != null ? host : "localhost")+":"+port;
+    }
+    
+    /** Send some random image from the content vault to all clients */
+    private void sendImageToAllClients() {
+        if (contentVaultProxy == null) {
+            error("No content vault");
+            return;
+        }
+        
+        synchronized(clients) {
+            try {
+                // one shared frame for all (or for all wanting the same variant)
+                sendImage(contentVaultProxy.nextFrame(), null, null, clients);
+            }
+            catch (InvalidStateException e) {
+                error("Content vault at invalid state after loading all images?");
+            }                
+        }
+                    
+    }
+    
+    private class ContentVaultListener implements biomine3000.objects.ContentVaultProxy.ContentVaultListener {
+
+        @Override
+        public void loadedImageList() {
+            // TODO Auto-generated method stub            
+        }
+
+        @Override
+        public void loadedImage(String image) {
+            // TODO Auto-generated method stub
+            
+        }
+
+        @Override
+        public void loadedAllImages() {
+            if (contentVaultProxy.getNumLoadedObjects() > 0) {
+                sendImageToAllClients();
+            }
+        }
+        
+        @Override
+        public void removedImage(String image) {
+            log("Image removed from vault: "+image);
+        }
+        
+    }
+    
+    /** Generate an id for an object entering the federation through this server */
+    private synchronized String generateMessageId() {
+        return serverId+"/"+startNonce+"/"+(++messageCounter);
+    }
+    
+    /**
+     * Route an object received from a local client or from a peer to all applicable clients 
+     * and peers. Objects from peers are dropped if they have already visited this server, have 
+     * travelled too far, or have already been received via another peer. Objects from local clients
+     * enter the federation here, with a new id and route, whatever they claim.
+     */
+    private void routeObject(Client src, BusinessObject bo) {
+        BusinessObjectMetadata meta = bo.getMetaData();
+        String id = meta.getString(ID_KEY);
+        List<String> route = meta.getList(ROUTE_KEY);
+        
+        if (src != null && src.peer) {
+            if (id == null || route == null) {
+                // something addressed to this server only, such as a welcome message
+                log("Not routing unrouted object from peer "+src+": "+bo);
+                return;
+            }
+            if (route.contains(serverId)) {
+                log.dbg("Dropping object "+id+" which has already visited this server");
+                return;
+            }
+            if (route.size() >= MAX_HOPS) {
+                warn("Dropping object "+id+" with too long route: "+route);
+                return;
+            }
+        }
+        else {
+            // lest a client get another object deduplicated away, or keep its own from reaching a peer
+            id = generateMessageId();
+            meta.put(ID_KEY, id);
+            route = null;
+        }
+        
+        synchronized(recentIds) {
+            if (recentIds.containsKey(id)) {
+                log.dbg("Dropping object "+id+" already received via another route");
+                return;
+            }
+            recentIds.put(id, Boolean.TRUE);
+        }
+        
+        List<String> newRoute = route != null ? new ArrayList<String>(route) : new ArrayList<String>();
+        newRoute.add(serverId);
+        meta.putStringList(ROUTE_KEY, newRoute);
+        
+        // with an interned payload, only the header is encoded, the payload being shared as is
+        PayloadInterner.SharedPayload payload = bo.getSharedPayload();
+        byte[] header = payload != null ? BusinessObject.encodeHeader(meta) : bo.bytes();
+        if (journal != null) {
+            try {
+                if (payload != null) {
+                    journal.append(header, payload.bytes());
+                }
+                else {
+                    journal.append(header);
+                }
+            }
+            catch (IOException e) {
+                error("Failed appending to journal", e);
+            }
+        }
+        if (retainedFrames != null) {
+            retainedFrames.put(meta, header, payload);
+        }
+        
+        sendToAllClients(src, bo, header, payload);
+    }
+    
+    /** Send retained objects to a newly registered client */
+    private void sendRetainedFrames(final Client client) {
+        List<RetainedFrameCache.Frame> frames = retainedFrames.get(new ABBOEJournal.Filter() {
+            @Override
+            public boolean accept(BusinessObjectMetadata meta) {
+                return client.shouldReplay(meta);
+            }
+        });
+        
+        log("Sending "+frames.size()+" retained objects to client "+client);
+        for (RetainedFrameCache.Frame frame: frames) {
+            client.send(FrameSender.Lane.forFrame(false, frame.length()), null, frame.getSharedPayload(), frame.parts());
+            frame.release();
+        }
+    }
+    
+    /** Send objects from the journal to a newly registered client */
+    private void replayJournal(final Client client, Integer replayLast, Long replaySince) {
+        if (journal == null) {
+            sendErrorReply(client, "Cannot replay: no journal at this server");
+            return;
+        }
+        
+        ABBOEJournal.Filter filter = new ABBOEJournal.Filter() {
+            @Override
+            public boolean accept(BusinessObjectMetadata meta) {
+                return client.shouldReplay(meta);
+            }
+        };
+        
+        List<ByteBuffer> frames;
+        if (replaySince != null) {
+            frames = journal.replaySince(replaySince, filter);
+        }
+        else {
+            frames = journal.replayLast(replayLast, filter);
+        }
+        
+        log("Replaying "+frames.size()+" objects from journal to client "+client);
+        for (ByteBuffer frame: frames) {
+            client.send(frame);
+        }
+    }
+    
+    /** 
+     * Aggregate subscriptions of all registered clients, and of all peers except the one 
+     * given (to which the aggregate will be advertised). 
+     */
+    private synchronized Subscriptions aggregateSubscriptions(Client excludedPeer) {
+        List<Subscriptions> subscriptionsList = new ArrayList<Subscriptions>();
+        for (Client client: clients) {
+            if (client == excludedPeer) {
+                continue;
+            }
+            else if (client.peer) {
+                subscriptionsList.add(client.subscriptions);
+            }
+            else if (client.registered) {
+                if (client.receiveMode == ClientReceiveMode.EVENTS_ONLY) {
+                    subscriptionsList.add(Subscriptions.NONE);
+                }
+                else if (client.receiveMode != ClientReceiveMode.NONE) {
+                    subscriptionsList.add(client.subscriptions);
+                }
+            }
+        }
+        return Subscriptions.union(subscriptionsList);
+    }
+    
+    /**
+     * Tell each peer which content should be forwarded to this server, if that has changed since
+     * last told. To be called whenever clients come, go or change their subscriptions. 
+     */
+    private synchronized void advertiseSubscriptionsToPeers() {
+        for (Client peer: clients) {
+            if (!peer.peer) {
+                continue;
+            }
+            Subscriptions aggregate = aggregateSubscriptions(peer);
+            if (peer.advertisedSubscriptions == null 
+                    || !peer.advertisedSubscriptions.toString().equals(aggregate.toString())) {
+                peer.advertisedSubscriptions = aggregate;
+                BusinessObject event = new BusinessObject(ABBOE_PEER_SUBSCRIPTIONS);
+                event.getMetaData().put(PEER_KEY, serverId);
+                try {
+                    event.getMetaData().setSubsciptions(aggregate);
+                }
+                catch (org.json.JSONException e) {
+                    throw new RuntimeException("Should not be possible");
+                }
+                log("Advertising subscriptions to peer "+peer+": "+aggregate);
+                peer.send(event);
+            }
+        }
+    }
+    
+    private void handlePeerSubscriptionsEvent(Client peer, BusinessObject bo) {
+        if (!peer.peer) {
+            sendErrorReply(peer, "Only peer servers may send "+ABBOE_PEER_SUBSCRIPTIONS+" events");
+            return;
+        }
+        
+        String peerId = bo.getMetaData().getString(PEER_KEY);
+        Subscriptions subscriptions;
+        try {
+            subscriptions = bo.getMetaData().getSubscriptions();
+        }
+        catch (InvalidJSONException e) {
+            error("Invalid subscriptions from peer "+peer, e);
+            return;
+        }
+        
+        synchronized(this) {
+            if (peerId != null) {
+                peer.peerId = peerId;
+            }
+            if (subscriptions != null) {
+                peer.subscriptions = subscriptions;
+            }
+        }
+        log("Peer "+peer+" ("+peer.peerId+") subscribed to: "+subscriptions);
+        
+        // our other peers might be interested in what this peer wants
+        advertiseSubscriptionsToPeers();
+    }
+    
+    /**
+     * Link to a peer server at given address. Connecting is retried until successful, and again 
+     * whenever the link is lost. Returns immediately.
+     */
+    public void addPeer(IServerAddress address) {
+        log("Adding peer: "+address);
+        new PeerConnectorThread(address).start();
+    }
+    
+    private synchronized boolean linkedToPeer(IServerAddress address) {
+        for (Client client: clients) {
+            if (client.peerAddress == address) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /** Register to a peer as a peer, and start reading objects from it */
+    private void startPeerLink(IServerAddress address, Socket socket) throws IOException {
+        Client peer = new Client(socket);
+        synchronized(this) {
+            peer.peer = true;
+            peer.peerAddress = address;
+            peer.registered = true;
+            peer.subscriptions = Subscriptions.NONE;
+        }
+        BusinessObject registerObj = Biomine3000Utils.makeRegisterPacket(PEER_CLIENT_NAME, ClientReceiveMode.ALL);
+        registerObj.getMetaData().put(PEER_KEY, serverId);
+        peer.send(FrameSender.Lane.CONTROL, null, registerObj.bytes());
+        peer.startReaderThread();
+        advertiseSubscriptionsToPeers();
+    }
+    
+    /** Maintains a link to a single peer server */ 
+    private class PeerConnectorThread extends Thread {
+        IServerAddress address;
+        
+        PeerConnectorThread(IServerAddress address) {
+            this.address = address;
+        }
+        
+        public void run() {
+            while (state != ABBOEServer.State.SHUTTING_DOWN) {
+                if (!linkedToPeer(address)) {
+                    try {
+                        Socket socket = Biomine3000Utils.connectToServer(address.getHost(), address.getPort(), log);
+                        log("Linked to peer: "+address);
+                        startPeerLink(address, socket);
+                    }
+                    catch (IOException e) {
+                        log.dbg("Failed linking to peer "+address+": "+e);
+                    }
+                }
+                
+                try {
+                    Thread.sleep(PEER_RETRY_INTERVAL_MILLIS);
+                }
+                catch (InterruptedException e) {
+                    // no action
+                }
+            }
+        }
+    }
+    
+    /** Bounded set of ids, forgetting the oldest ones first */
+    @SuppressWarnings("serial")
+    private static class RecentIds extends LinkedHashMap<String, Boolean> {
+        int capacity;
+        
+        RecentIds(int capacity) {
+            this.capacity = capacity;
+        }
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > capacity;
+        }
+    }
+    
+    /**
+     * Send an object to all applicable clients. Does not block, as sending is done
+     * using a dedicated thread for each client.
+     */
+    private void sendToAllClients(Client src, BusinessObject bo) {
+        // defer coming up with bytes to send until the time comes 
+        // to send to the first applicable client (there might be none) 
+        sendToAllClients(src, bo, null, null);
+    }
+    
+    /** 
+     * Images for clients wanting variants are encoded (and hashed, unless interned) only after releasing 
+     * the lock, as they may be large.
+     * 
+     * @param header bo as bytes, or null to compute them only if needed, or, if payload is given, 
+     *        the header to be sent before it.
+     * @param payload shared payload of bo, if any.
+     */
+    private void sendToAllClients(Client src, BusinessObject bo, byte[] header, 
+                                  PayloadInterner.SharedPayload payload) {
+        String source = src != null ? src.name : null;
+        String type = bo.getMetaData().getType();
+        boolean image = imageVariants != null && type != null && type.startsWith("image/");
+        List<Client> variantClients = null;
+        synchronized(this) {
+            for (Client client: clients) {            
+                if (client.shouldSend(src, bo)) {
+                    if (image && client.imageSize != null) {
+                        if (variantClients == null) {
+                            variantClients = new ArrayList<Client>();
+                        }
+                        variantClients.add(client);
+                        continue;
+                    }
+                    if (header == null) {                    
+                        header = bo.bytes();
+                    }
+                    if (payload != null) {
+                        int length = header.length + payload.bytes().length;
+                        client.send(FrameSender.Lane.forFrame(bo.isEvent(), length), source, payload, 
+                                    ByteBuffer.wrap(header), ByteBuffer.wrap(payload.bytes()));
+                    }
+                    else {
+                        client.send(FrameSender.Lane.forFrame(bo.isEvent(), header.length), source, header);
+                    }
+                }
+            }
+        }
+        if (variantClients != null) {
+            // the frame at hand is used as is, or with the shared payload appended; no metadata encoded again 
+            EncodedFrame frame = header != null ? EncodedFrame.fromParts(bo, header, payload != null ? payload.bytes() : null)
+                                                : EncodedFrame.encode(bo);
+            sendImage(frame, payload != null ? payload.getHash() : null, source, variantClients);
+        }
+    }          
+    
+    /**
+     * Send an image frame to given clients, each getting the variant for its max image size, or the
+     * original, if none. Variants not yet produced are sent once ready, from a worker thread of 
+     * {@link ImageVariants}, so they may overtake or be overtaken by objects sent later.  
+     * @param contentHash hash of the payload, if at hand (see {@link ImageVariants#get(EncodedFrame, String, 
+     *        ImageVariants.Size, ImageVariants.Listener)}); null to have it computed, if needed.  
+     */
+    private void sendImage(EncodedFrame frame, String contentHash, final String source, List<Client> recipients) {
+        Map<ImageVariants.Size, List<Client>> clientsBySize = new HashMap<ImageVariants.Size, List<Client>>();
+        for (Client client: recipients) {
+            if (imageVariants == null || client.imageSize == null) {
+                client.send(frame, source);
+                continue;
+            }
+            List<Client> sameSize = clientsBySize.get(client.imageSize);
+            if (sameSize == null) {
+                sameSize = new ArrayList<Client>();
+                clientsBySize.put(client.imageSize, sameSize);
+            }
+            sameSize.add(client);
+        }
+        for (ImageVariants.Size size: clientsBySize.keySet()) {
+            final List<Client> sameSize = clientsBySize.get(size);
+            imageVariants.get(frame, contentHash, size, new ImageVariants.Listener() {
+                @Override
+                public void variantReady(EncodedFrame variant) {
+                    for (Client client: sameSize) {
+                        client.send(variant, source);
+                    }
+                }
+            });
+        }
+    }
+    
+    /** 
+     * Should never return. Only way to exit is through client request "stop",
+     * {@link UnrecoverableServerException}, or stop signal.
+     */
+    private void mainLoop() {         
+                         
+        state = State.ACCEPTING_CLIENTS;
+        
+        while (state == State.ACCEPTING_CLIENTS) {
+            log("Waiting for client...");
+            
+            try {
+                Socket clientSocket = serverSocket.accept();
+                if (state == State.ACCEPTING_CLIENTS) {
+                    log("Client connected from "+clientSocket.getRemoteSocketAddress());
+                    acceptSingleClient(clientSocket);                    
+                }
+                else {
+                    // while waiting, someone seems to have changed our policy to "not accepting clients any more"
+                    // TODO: more graceful way of rejecting this connection
+                    log("Not accepting client from: "+clientSocket.getRemoteSocketAddress());
+                    clientSocket.close();
+                }
+            } 
+            catch (IOException e) {
+                if (state == State.ACCEPTING_CLIENTS) {
+                    error("Accepting a client failed", e);
+                }
+                // else we are shutting down, and failure is to be expected to result from server socket having been closed 
+            }                                                            
+        }                                        
+        
+        log.info("Finished ABBOE main loop");
+    }
+            
+    /** Run {@link #mainLoop()} in a thread of its own; for running several servers in a single JVM. */
+    void startMainLoopThread() {
+        new Thread("ABBOE-"+serverId) {
+            public void run() {
+                mainLoop();
+            }
+        }.start();
+    }
+    
+    /** Actually, a connection to a client */
+    private class Client implements FrameSender.Listener {
+        boolean registered = false;
+        Socket socket;
+        BufferedInputStream is;
+        OutputStream os;    
+        /** Please do not call send of this sender directly, even within this class, except in the dedicated places */
+        FrameSender sender;
+        BusinessObjectReader reader;
+        ReaderListener readerListener;               
+        ClientReceiveMode receiveMode = ClientReceiveMode.ALL;
+        Subscriptions subscriptions = Subscriptions.ALL;
+        boolean closed;
+        /** actual name of client, not including user or addr */
+        String clientName;
+        String user;
+        String addr;
+        /** Derived from clientName, user and addr */
+        String name;
+        boolean senderFinished;
+        boolean receiverFinished;
+        /** services implemented by client */
+        LinkedHashSet<String> services = new LinkedHashSet<String>();
+        /** Is this client actually a peer server? */
+        boolean peer = false;
+        /** Id of peer server, once known */
+        String peerId;
+        /** Address of peer, if the link to the peer was initiated by this server */
+        IServerAddress peerAddress;
+        /** Last subscriptions advertised to this peer */
+        Subscriptions advertisedSubscriptions;
+        /** Size of image variants wanted by client; null for originals */
+        ImageVariants.Size imageSize;
+        /** Token buckets of this client, created on demand after each change of name; null if not yet created */
+        RateLimits.Limiter limiter;
+        /** Content received from this client */
+        long receivedObjects = 0;
+        long receivedBytes = 0;
+        long delayedObjects = 0;
+        long rejectedObjects = 0;
+        /** Does client want credits for sending content? */
+        boolean flowControl;
+        /** Credits to be granted once the client's queued content has been delivered */
+        int withheldCredits = 0;
+        /** Rate limiting not yet reported to client */
+        int unreportedDelayed = 0;
+        int unreportedRejected = 0;
+        long lastRateLimitReport = 0;
+                
+        Client(Socket socket) throws IOException {
+            senderFinished = false;
+            receiverFinished = false;
+            this.socket = socket;
+            addr = socket.getRemoteSocketAddress().toString();
+            initName();
+            is = new BufferedInputStream(socket.getInputStream());
+            os = socket.getOutputStream();            
+            sender = new FrameSender(socket, this, log);
+            sender.setName(name);
+            readerListener = new ReaderListener(this);
+            closed = false;
+            
+            log("Client connected");
+            synchronized(ABBOEServer.this) {
+                clients.add(this);
+            }            
+        }
+        
+        private void initName() {
+            StringBuffer buf = new StringBuffer();
+            if (clientName != null) {
+                buf.append(clientName+"-");
+            }
+            if (user != null) {
+                buf.append(user+"-");
+            }
+            buf.append(addr);
+            name = buf.toString();
+        }
+        
+        private synchronized void setName(String clientName) {
+            this.clientName = clientName;
+            this.limiter = null;
+            initName();
+            sender.setName("sender-"+this.name);  
+            reader.setName("reader-"+this.name);
+        }
+        
+        private synchronized void setUser(String user) {
+            this.user = user;
+            initName();
+            sender.setName("sender-"+name);  
+            reader.setName("reader-"+name);
+        }
+        
+        /**
+         * Caller needs to first ensure that client is willing to receive such a packet 
+         * by calling {@link #shouldSend(Client, BusinessObject)} or {@link #receiveEvents()}.
+         * @param obj
+         */
+        private void send(BusinessObject obj) {
+            // the object may be shared with other threads, so stamp the sender to a copy only
+            log.info("Sending: "+obj);
+            byte[] bytes = obj.bytes(SENDER_STAMP);
+            send(FrameSender.Lane.forFrame(obj.isEvent(), bytes.length), null, bytes);
+        }
+        
+        /** Put a shared frame, such as one from the content vault, to queue of messages to be sent */
+        private void send(EncodedFrame frame, String source) {
+            send(FrameSender.Lane.forFrame(frame.isEvent(), frame.length()), source, frame.array());
+        }
+        
+        private void send(String text) {
+            log("Sending plain text to client "+this+": "+text);
+            PlainTextObject reply = new PlainTextObject(text);
+            send(reply);        
+        }
+
+        /** Should events be sent to this client? */
+        public boolean receiveEvents() {
+            return receiveMode != ClientReceiveMode.NONE; 
+        }
+        
+        /** Should the object <bo> from client <source> be sent to this client? */ 
+        public boolean shouldSend(Client source, BusinessObject bo) {
+            
+            boolean result;
+            
+            if (peer) {
+                // only routed objects cross links, and never towards servers they have already visited
+                List<String> route = bo.getMetaData().getList(ROUTE_KEY);
+                result = source != this && peerId != null && route != null && !route.contains(peerId);
+            }
+            else if (receiveMode == ClientReceiveMode.ALL) {
+                result = true;
+            }
+            else if (receiveMode == ClientReceiveMode.NONE) {
+                result = false;
+            }
+            else if (receiveMode == ClientReceiveMode.EVENTS_ONLY) {
+                result = bo.isEvent();               
+            }
+            else if (receiveMode == ClientReceiveMode.NO_ECHO) {
+                result = (source != this);
+            }
+            else {
+                log.error("Unknown receive mode: "+receiveMode+"; not sending!");
+                result = false;
+            }
+            
+            if (result == true) {
+                result = subscriptions.shouldSend(bo);
+            }
+            
+            return result;
+        }
+        
+        /** Should an object with given metadata be replayed from the journal to this client? */
+        public boolean shouldReplay(BusinessObjectMetadata meta) {
+            if (peer || receiveMode == ClientReceiveMode.NONE) {
+                return false;
+            }
+            else if (receiveMode == ClientReceiveMode.EVENTS_ONLY && !meta.isEvent()) {
+                return false;
+            }
+            else {
+                return subscriptions.shouldSend(meta);
+            }
+        }
+        
+        
+       /**
+        * Put object to queue of messages to be sent (to this one client) and return immediately.        
+        * Assume send queue has unlimited capacity.
+        */
+        private void send(FrameSender.Lane lane, String source, byte[] packet) {
+            if (senderFinished) {
+                warn("No more sending business");
+                return;
+            }
+            
+            try {                
+                sender.send(lane, source, packet);
+            }
+            catch (IOException e) {
+                error("Failed sending to client "+this, e);
+                doSenderFinished();
+            }
+        }       
+        
+        /** As above, for a frame in parts, with a shared payload (null if none) retained until sent */
+        private void send(FrameSender.Lane lane, String source, PayloadInterner.SharedPayload payload, ByteBuffer... parts) {
+            if (senderFinished) {
+                warn("No more sending business");
+                return;
+            }
+            
+            try {                
+                sender.send(lane, source, payload, parts);
+            }
+            catch (IOException e) {
+                error("Failed sending to client "+this, e);
+                doSenderFinished();
+            }
+        }
+        
+        /** Put a frame, such as one from the journal, to queue of messages to be sent (to this one client) */
+        private void send(ByteBuffer frame) {
+            if (senderFinished) {
+                warn("No more sending business");
+                return;
+            }
+            
+            try {                
+                sender.send(FrameSender.Lane.forFrame(false, frame.remaining()), frame);
+            }
+            catch (IOException e) {
+                error("Failed sending to client "+this, e);
+                doSenderFinished();
+            }
+        }
+        
+        private synchronized void registerServices(List<String> names) {
+            services.addAll(names);
+        }
+        
+        private void startReaderThread() {
+            reader = new BusinessObjectReader(is, readerListener, name, false, log);            
+            reader.setPayloadInterner(payloadInterner);
+            Thread readerThread = new Thread(reader);
+            readerThread.start();
+        }               
+        
+        /**
+         * Forcibly terminate a connection with a client (supposedly called when
+         * client steadfastly refuses to close the connection when requested)
+         */
+        private void forceClose() {
+            if (closed) {
+                error("Attempting to close a client multiple times", null);
+            }
+            log("Forcing closing of connection with client: "+this);
+                       
+            try {
+                // closing socket also closes streams if needed
+                socket.close();
+            }
+            catch (IOException e) {
+                error("Failed closing socket", e);
+            }
+            
+            synchronized(ABBOEServer.this) {
+                clients.remove(this);
+                closed = true;
+                if (state == State.SHUTTING_DOWN && clients.size() == 0) {
+                    // last client closed and we are shutting down, finalize shutdown sequence...
+                    log.info("No more clients, finalizing shutdown sequence...");
+                    finalizeShutdownSequence();
+                }
+            }
+            advertiseSubscriptionsToPeers();
+            
+            PlainTextObject msg = new PlainTextObject("Client "+this+" disconnected", CLIENTS_PART_NOTIFY);
+            msg.getMetaData().setName(this.name);
+            msg.getMetaData().setSender("ABBOE");
+            sendToAllClients(this, msg);
+        }
+        
+        /**
+         * Gracefully dispose of a single client after ensuring both receiver and sender 
+         * have finished
+         */ 
+        private void doClose() {
+            if (closed) {
+                error("Attempting to close a client multiple times", null);
+            }
+            
+            log("Closing connection with client: "+this);
+
+            try {                                        
+                os.flush();
+            }
+            catch (IOException e) {
+                // let's not bother to even log the exception at this stage
+            }
+            
+            try {
+                // closing socket also closes streams if needed
+                socket.close();
+            }
+            catch (IOException e) {
+                // let's not bother to even log the exception at this stage
+            }
+            
+            synchronized(ABBOEServer.this) {
+                clients.remove(this);
+                closed = true;
+                if (state == State.SHUTTING_DOWN && clients.size() == 0) {
+                    // last client closed, no more clients, finalize shutdown sequence...
+                    log.info("No more clients, finalizing shutdown sequence...");
+                    finalizeShutdownSequence();
+                }
+            }
+            advertiseSubscriptionsToPeers();
+            
+            PlainTextObject msg = new PlainTextObject("Client "+this+" disconnected", CLIENTS_PART_NOTIFY);
+            msg.getMetaData().setName(this.name);
+            msg.getMetaData().setSender("ABBOE");
+            sendToAllClients(this, msg);
+        }                
+        
+        @Override
+        public void senderFinished() {            
+            doSenderFinished();                     
+        }
+            
+        /** 
+         * Initiate shutting down of proceedings with this client. 
+         * 
+         * Actually, just initiate closing of output channel. On noticing this,
+         * client should close its socket, which will then be noticed on this server
+         * as a {@link BusinessObjectReader.Listener#noMoreObjects()} notification from the {@link #reader}.  
+         */
+        public void initiateClosingSequence(BusinessObject notification) {
+            log.info("Initiating closing sequence for client: "+this);
+            
+            if (receiveEvents()) {                           
+                log.info("Sending shutdown event to client: "+this);
+                send(notification);
+            }            
+            
+            sender.requestStop();
+        }
+        
+        private synchronized void doSenderFinished() {
+            log("doSenderFinished");
+            if (senderFinished) {
+                log("Already done");
+                return;
+            }
+            
+            senderFinished = true;
+                        
+            try {
+                socket.shutdownOutput();
+            }
+            catch (IOException e) {
+                log.error("Failed closing socket output after finishing sender", e);
+            }
+            
+            
+            if (receiverFinished) {
+                doClose();
+            }                                 
+        }
+
+        private synchronized void doReceiverFinished() {
+            log("doReceiverFinished");
+            if (receiverFinished) {
+                log("Already done");
+                return;
+            }
+            
+            // request stop of sender
+            sender.requestStop();
+            
+            receiverFinished = true;
+            
+            if (senderFinished) {
+                doClose();
+            }                         
+        }
+        
+        private void error(String msg, Exception e) {
+            log.error(name+": "+msg, e);
+        }
+        
+        private void log(String msg) {
+            log.info(name+": "+msg);
+        }
+        
+        public String toString() {
+            return name;
+        }
+
+    }
+                    
+    private void acceptSingleClient(Socket clientSocket) {
+        
+        Client client;
+         
+        try {
+            client = new Client(clientSocket);
+            String abboeUser = Biomine3000Utils.getUser();            
+            client.send("Welcome to this fully operational java-A.B.B.O.E., run by "+abboeUser);
+            if (Biomine3000Utils.isBMZTime()) {
+                client.send("For relaxing times, make it Zombie time");
+            }            
+            // suggest registration, if client has not done so within a second of its registration...
+            new RegisterSuggesterThread(client).start();
+            if (contentVaultProxy != null 
+                    && contentVaultProxy.getState() == ContentVaultProxy.State.INITIALIZED_SUCCESSFULLY) {
+                try {
+                    // not registered yet, so no variants wanted
+                    client.send(contentVaultProxy.sampleFrame(), null);
+                }
+                catch (InvalidStateException e) {
+                    error("Invalid state while getting content from vault", e); 
+                }
+            }
+        }
+        catch (IOException e) {
+            error("Failed creating streams on socket", e);
+            try {
+                clientSocket.close();
+            }
+            catch (IOException e2) {
+                // failed even this, no further action possible
+            }
+            return;
+        }        
+
+        client.startReaderThread();
+    }          
+        
+    private class SystemInReader extends Thread {
+        public void run() {
+            try {
+                stdInReadLoop();
+            }
+            catch (IOException e)  {
+                log.error("IOException in SystemInReader", e);
+                log.error("Terminating...");
+                shutdown();
+            }
+        }
+    }
+    
+    /**
+     * FOO: it does not seem to be possible to interrupt a thread waiting on system.in, even
+     * by closing System.in... Thread.interrupt does not work either...
+     * it seems that it is not possible to terminate completely cleanly, then.
+     */
+    private void stdInReadLoop() throws IOException {        
+        BufferedReader br = new BufferedReader(new InputStreamReader(System.in));            
+        String line = br.readLine();
+        boolean gotStopRequest = false;
+        while (line != null && !gotStopRequest) {   
+            if (line.equals("stop") || line.equals("s")) {
+                // this is the end
+                gotStopRequest = true;
+                break;
+            }
+            else if (line.equals("stats")) {
+                printStats();
+            }
+            else if (line.equals("image") || line.equals("i")) {
+                sendImageToAllClients();
+            }
+            else if (line.equals("clients") || line.equals("c")) {
+                clientShortcuts = clientShortcuts();
+                for (Integer key: clientShortcuts.keySet()) {
+                    System.out.println(key+": "+clientShortcuts.get(key).name);
+                }
+            }
+            else if (line.startsWith("close ") || line.startsWith("c ")) {                 
+                // this is the end for one client
+                String shortcutStr;
+                if (line.startsWith("close ")) {                    
+                    shortcutStr = line.replace("close ", "");
+                }
+                else if (line.startsWith("c ")) {
+                    shortcutStr = line.replace("c ", "");
+                }
+                else {
+                    error("WhatWhatWhat");
+                    continue;
+                }
+                if (!(StringUtils.isIntegral(shortcutStr))) {
+                    error("Not a valid shortcut string: "+shortcutStr);
+                    continue;
+                }
+                if (clientShortcuts == null) {
+                    error("No client map!");
+                    continue;
+                }
+                int shortcut = Integer.parseInt(shortcutStr);
+                
+                Client client = clientShortcuts.get(shortcut);
+                if (client == null) {
+                    error("No such client shortcut: "+shortcut);
+                }
+                log("Closing connection to client: "+client);
+                String admin  = Biomine3000Utils.getUser();
+                BusinessObject closeNotification = new PlainTextObject("ABBOE IS GOING TO CLOSE THIS CONNECTION NOW (as requested by the ABBOE adminstrator, "+admin+")");            
+                closeNotification.setEvent(ABBOE_CLOSE_NOTIFY);
+                client.initiateClosingSequence(closeNotification);                                
+                
+                ClientShutdownThread cst = new ClientShutdownThread(client);
+                cst.start();
+                
+            }
+            else {
+                // just a message to be broadcast
+                BusinessObject message = new PlainTextObject(line);
+                String user = Biomine3000Utils.getUser();
+                String sender = user != null ? "ABBOE-"+user : "ABBOE";
+                message.getMetaData().setSender(sender);
+                // log.dbg("Sending object: "+sendObj );  
+                sendToAllClients(null, message);                
+            }
+            line = br.readLine();
+        }
+        
+        if (gotStopRequest) {
+            log.info("Got stop request");
+        }
+        else {
+            log.info("Tranquilly finished reading stdin");
+        }
+        
+        log.info("Harmoniously closing down server by closing output of all client sockets");        		 
+        shutdown();
+        
+    }
+            
+    
+    @SuppressWarnings("unused")
+    private synchronized void shutdown() {
+        state = State.SHUTTING_DOWN;
+        
+        // TODO: more delicate termination needed?
+        log("Initiating shutdown sequence");
+        
+        if (clients.size() > 0) {                   
+            for (Client client: clients) {                
+                BusinessObject shutdownNotification = new PlainTextObject("ABBOE IS GOING TO SHUTDOWN in 5 seconds");            
+                shutdownNotification.setEvent(ABBOE_SHUTDOWN_NOTIFY);
+                client.initiateClosingSequence(shutdownNotification);
+            }                           
+            
+            // start a thread to ensure shutdown in case some clients fail to close their connections
+            ShutdownThread shutdownThread = new ShutdownThread();
+            shutdownThread.start();
+        }
+        else {
+            // no clients to close!
+            finalizeShutdownSequence();
+        }
+        
+        // System.exit(pExitCode);
+    }
+    
+    /** Finalize shutdown sequence after closing all clients (if any) */
+    private void finalizeShutdownSequence() {
+        synchronized(this) {
+            if (creditSchedule != null) {
+                creditSchedule.cancel();
+            }
+        }
+        
+        if (journal != null) {
+            journal.flush();
+        }
+        
+        try {
+            log.info("Finalizing shutdown sequence by closing server socket");
+            serverSocket.close();
+        }
+        catch (IOException e) {
+            // foo
+        }
+        
+        log.info("Exiting");
+        System.exit(0);
+    }
+            
+    
+   /**
+    * Ensure shutdown in case some client(s) fail to close their connection properly 
+    * Note that tempting as it might be, it is not possible to send any "you fool" message
+    * to these clients at this stage, as any outgoing connections have already been shut down.
+    */
+    private class ShutdownThread extends Thread {
+        public void run() {
+            try {
+                Thread.sleep(5000);
+                log.error("Following clients have failed to close their connection properly: " +
+                           StringUtils.collectionToString(clients,", ")+
+                		  "; forcing shutdown...");
+                finalizeShutdownSequence();
+            }
+            catch (InterruptedException e) {
+                log.error("Shutdownthread interrupted");
+            }           
+        }
+    }
+    
+    private class ClientShutdownThread extends Thread {
+        Client client;
+        ClientShutdownThread(Client client) {
+            this.client = client;
+        }
+        public void run() {
+            try {
+                Thread.sleep(3000);
+                if (!client.closed) {
+                    log.error("Client "+client.name+" has failed to shut down properly, forcing shutdown...");                           
+                    client.forceClose();
+                }
+            }
+            catch (InterruptedException e) {
+                log.error("Shutdownthread for client: "+client.name+" interrupted, connection to client has not been shutdown");
+            }           
+        }
+    }
+    
+    private class RegisterSuggesterThread extends Thread {
+        Client client;
+        RegisterSuggesterThread(Client client) {
+            this.client = client;
+        }
+        
+        public void run() {
+            try {
+                Thread.sleep(1000);
+                if (state == ABBOEServer.State.SHUTTING_DOWN) return;
+                if (!client.registered) {
+                    client.send("Please register by sending a \""+CLIENTS_REGISTER+"\" event");
+                }                
+            }
+            catch (InterruptedException e) {
+                log.error("RegisterSuggesterThread interrupted");
+            }
+            
+        }
+    }
+    
+    private void handleServicesRegisterEvent(Client client, BusinessObject bo) {
+        BusinessObjectMetadata meta = bo.getMetaData();        
+        List<String> names = meta.getList("names");
+        String name = meta.getString("name");
+        if (name != null && names != null) {
+            // client has decided to generously provide both name and names; 
+            // let's as generously handle this admittably deranged request
+            names = new ArrayList<String>(names);
+            names.add(name);            
+        }
+        else if (name != null && names == null) { 
+            names = Collections.singletonList(name);
+        }
+        else if (name == null && names != null) { 
+            // no action
+        }
+        else {
+            // both null
+            sendErrorReply(client, "No name nor names in services/register event");
+            return;
+        }
+        
+        // names now contains the services to register
+        client.registerServices(names);        
+    }
+    
+    private void handleClientsListEvent(Client requestingClient) {
+        
+        BusinessObject clientReport;
+        
+        synchronized(ABBOEServer.this) {
+            clientReport = new PlainTextObject(StringUtils.colToStr(clientReport(requestingClient), "\n"));
+            List<String> clientNames = new ArrayList<String>();            
+            for (Client client: clients) {
+                if (client != requestingClient) {
+                    clientNames.add(client.name);
+                }
+            }
+            clientReport.getMetaData().put("you", requestingClient.name);
+            clientReport.getMetaData().setEvent(CLIENTS_LIST_REPLY);
+            clientReport.getMetaData().putStringList("others", clientNames);
+        }
+        
+        requestingClient.send(clientReport);
+    }
+    
+    
+    
+    private void handleClientRegisterEvent(Client client, BusinessObject bo) {
+        BusinessObjectMetadata meta = bo.getMetaData(); 
+        String name = meta.getName();
+        String user = meta.getUser();
+        String receiveModeName = meta.getString(ClientReceiveMode.KEY);
+        String peerId = meta.getString(PEER_KEY);
+        if (peerId != null) {
+            log("Client "+client+" is peer server "+peerId);
+            synchronized(this) {
+                client.peer = true;
+                client.peerId = peerId;
+                // nothing forwarded to peer until it tells us what it wants
+                client.subscriptions = Subscriptions.NONE;
+            }
+        }
+        if (name != null) {
+            client.setName(name);
+        }
+        else {
+            warn("No name in register packet from "+client);
+        }
+        if (user != null) {
+            client.setUser(user);
+        }     
+        else {
+            warn("No user in register packet from "+client);
+        }
+        
+        String msg = "Registered you as \""+name+"-"+user+"\".";
+        
+        if (receiveModeName != null) {
+            ClientReceiveMode recvMode = ClientReceiveMode.getMode(receiveModeName);
+            if (recvMode == null) {
+                sendErrorReply(client, "Unrecognized rcv mode in packet: "+recvMode+", using the default: "+client.receiveMode);
+            }
+            else {
+                client.receiveMode = recvMode;
+                msg+=" Your receive mode is set to: \""+recvMode+"\".";
+            }
+        }
+        else {
+            msg+=" No receive mode specified, using the default: "+client.receiveMode;
+        }                                                                       
+        
+        Subscriptions subscriptions = null;
+        try {
+            subscriptions = meta.getSubscriptions();
+        }
+        catch (InvalidJSONException e) {
+            sendErrorReply(client, "Unrecognized subscriptions in packet: "+e.getMessage());
+        }                                                                                    
+        
+        if (subscriptions != null) {
+            msg+=" Your subscriptions are set to: "+subscriptions+".";                            
+        }
+        else {
+            msg+=" You did not specify subscriptions; using the default: "+client.subscriptions;                            
+        }                        
+                     
+        BusinessObject replyObj = new PlainTextObject(msg);
+        replyObj.setEvent(CLIENTS_REGISTER_REPLY);
+        client.send(replyObj);
+
+        // only set after sending the plain text reply                        
+        if (subscriptions != null && !client.peer) {
+            client.subscriptions = subscriptions;                            
+        }               
+        
+        if (meta.get(ClientParameters.FLOW_CONTROL_KEY) != null) {
+            try {
+                if (meta.getBoolean(ClientParameters.FLOW_CONTROL_KEY) && !client.peer) {
+                    startFlowControl(client);
+                }
+            }
+            catch (InvalidJSONException e) {
+                sendErrorReply(client, "Invalid flow control request: "+e.getMessage());
+            }
+        }
+        
+        String maxImageSize = meta.getString(ClientParameters.MAX_IMAGE_SIZE_KEY);
+        if (maxImageSize != null) {
+            String[] dims = maxImageSize.split("x");
+            try {
+                if (dims.length != 2) {
+                    throw new NumberFormatException();
+                }
+                client.imageSize = ImageVariants.Size.forScreen(Integer.parseInt(dims[0]), Integer.parseInt(dims[1]));
+                log("Sending "+(client.imageSize != null ? client.imageSize+" variants of images" : "original images")+
+                    " to client "+client);
+            }
+            catch (NumberFormatException e) {
+                sendErrorReply(client, "Invalid max image size (should be WIDTHxHEIGHT): "+maxImageSize);
+            }
+        }
+        
+        Integer replayLast = null;
+        Long replaySince = null;
+        Boolean retained = null;
+        try {
+            replayLast = meta.getInteger(ClientParameters.REPLAY_LAST_KEY);
+            replaySince = meta.getLong(ClientParameters.REPLAY_SINCE_KEY);
+            if (meta.get(ClientParameters.RETAINED_KEY) != null) {
+                retained = meta.getBoolean(ClientParameters.RETAINED_KEY);
+            }
+        }
+        catch (ClassCastException e) {
+            sendErrorReply(client, "Invalid replay request: "+e.getMessage());
+        }
+        catch (InvalidJSONException e) {
+            sendErrorReply(client, "Invalid retained request: "+e.getMessage());
+        }
+        if (replayLast != null || replaySince != null) {
+            replayJournal(client, replayLast, replaySince);
+        }
+        else if (retainedFrames != null && (retained == null || retained)) {
+            sendRetainedFrames(client);
+        }
+        
+        PlainTextObject registeredMsg = new PlainTextObject("Client "+client+" registered", CLIENTS_REGISTER_NOTIFY);
+        registeredMsg.getMetaData().setName(client.name);
+        registeredMsg.getMetaData().setSender("ABBOE");
+        client.registered = true; 
+        sendToAllClients(client, registeredMsg);
+        
+        advertiseSubscriptionsToPeers();
+    }
+    
+    /** Listens to a single dedicated reader thread reading objects from the input stream of a single client */
+    private class ReaderListener implements BusinessObjectReader.Listener {
+        Client client;
+        
+        ReaderListener(Client client) {
+            this.client = client;
+        }
+
+        @Override
+        public void objectReceived(BusinessObject bo) {                        
+            if (bo.isEvent()) {
+                BusinessObjectEventType et = bo.getMetaData().getKnownEvent();
+                // does this event need to be sent to other clients?
+                boolean forwardEvent = true;
+                if (et != null) {                    
+                    log("Received "+et+" event: "+bo);
+                    if (et == CLIENT_REGISTER) {
+                        sendErrorReply(client, "Using deprecated name for client registration; the " +
+                                       "present-day jargon defines that event type be \""+
+                                CLIENTS_REGISTER.toString()+"\"");
+                        handleClientRegisterEvent(client, bo);                        
+                        forwardEvent = false;
+                    }
+                    else if (et == CLIENTS_REGISTER) {
+                        // deprecated version
+                        handleClientRegisterEvent(client, bo);
+                        forwardEvent = false;
+                    }
+                    else if (et == CLIENTS_LIST) {
+                        handleClientsListEvent(client);
+                        forwardEvent = false;
+                    }
+                    else if (et == SERVICES_REGISTER) {
+                        handleServicesRegisterEvent(client, bo);
+                        forwardEvent = false;
+                    }
+                    else if (et == ABBOE_PEER_SUBSCRIPTIONS) {
+                        handlePeerSubscriptionsEvent(client, bo);
+                        forwardEvent = false;
+                    }
+                    else {
+                        log("Received known event which this ABBOE implementation does not handle: "+bo);
+                    }
+                }
+                else {
+                    log("Received unknown event: "+bo.getMetaData().getEvent());
+                }
+                
+                // send the event if needed 
+                if (forwardEvent) {
+                    log("Sending the very same event to all clients...");
+                    ABBOEServer.this.routeObject(client, bo);
+                }
+            }
+            else {
+                // not an event, assume mythical "content"
+                
+                if (bo.hasPayload() && bo.getMetaData().getType().equals(Biomine3000Mimetype.PLAINTEXT.toString())) {
+                    PlainTextObject pto = new PlainTextObject(bo.getMetaData().clone(), bo.getPayload());
+                    log("Received content: "+Biomine3000Utils.formatBusinessObject(pto));
+                }
+                else {
+                    log("Received content: "+bo);
+                }
+                // log("Sending the very same content to all clients...");
+                if (admit(client, bo)) {
+                    ABBOEServer.this.routeObject(client, bo);
+                }
+                if (client.flowControl) {
+                    returnCredit(client);
+                }
+            }
+            
+        }
+               
+        
+
+        @Override
+        public void noMoreObjects() {
+            log("connectionClosed (client closed connection).");                                  
+            client.doReceiverFinished();            
+        }
+
+        private void handleException(Exception e) {
+            if (e.getMessage() != null && e.getMessage().equals("Connection reset")) {
+                log.info("Connection reset by client: "+this.client);
+            }
+            else {          
+                error("Exception while reading objects from client "+client, e);                                            
+                log.error(e);                
+            }
+            client.doReceiverFinished();
+        }
+        
+        @Override
+        public void handle(IOException e) {
+            handleException(e);
+        }
+
+        @Override
+        public void handle(InvalidBusinessObjectException e) {
+            handleException(e);
+            
+        }
+
+        @Override
+        public void handle(RuntimeException e) {
+            handleException(e);            
+        }
+        
+        public void connectionReset() {
+            error("Connection reset by client: "+this.client);
+            client.doReceiverFinished();
+        }
+    }
+        
+    /**
+     * Count content received from a client and apply rate limits, by sleeping in the 
+     * reader thread of the client if the object is to be delayed.
+     * @return false if the object was rejected.
+     */
+    private boolean admit(Client client, BusinessObject bo) {
+        int size = bo.hasPayload() ? bo.getPayload().length : 0;
+        client.receivedObjects++;
+        client.receivedBytes += size;
+        
+        if (rateLimits == null || client.peer) {
+            return true;
+        }
+        
+        if (client.limiter == null) {
+            client.limiter = rateLimits.newLimiter(client.clientName);
+        }
+        long delay = client.limiter.admit(bo.getMetaData().getType(), size);
+        if (delay < 0) {
+            client.rejectedObjects++;
+            client.unreportedRejected++;
+            rejectedObjects.incrementAndGet();
+        }
+        else if (delay > 0) {
+            client.delayedObjects++;
+            client.unreportedDelayed++;
+            delayedObjects.incrementAndGet();
+        }
+        
+        long now = System.currentTimeMillis();
+        if ((client.unreportedDelayed > 0 || client.unreportedRejected > 0) 
+                && now - client.lastRateLimitReport >= RATE_LIMIT_REPORT_INTERVAL_MILLIS) {
+            sendErrorReply(client, "Rate limit exceeded: "+client.unreportedRejected+" objects rejected and "+
+                                   client.unreportedDelayed+" objects delayed since last report");
+            client.unreportedDelayed = 0;
+            client.unreportedRejected = 0;
+            client.lastRateLimitReport = now;
+        }
+        
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e) {
+                warn("Interrupted while delaying object from "+client);
+            }
+        }
+        return delay >= 0;
+    }
+    
+    /** Grant a full window of credits to a client, and keep granting it credits as it uses them */
+    private synchronized void startFlowControl(Client client) {
+        log("Granting credits for "+CREDIT_WINDOW+" objects at a time to client "+client);
+        client.flowControl = true;
+        client.withheldCredits = CREDIT_WINDOW;
+        grantCredits(client);
+        if (creditSchedule == null) {
+            creditSchedule = BroadcastScheduler.getShared().schedule("credits-"+serverId, CREDIT_CHECK_INTERVAL_MILLIS, 0, 
+                                                                     new Runnable() {
+                public void run() {
+                    grantWithheldCredits();
+                }
+            });
+        }
+    }
+    
+    /** Called once an object from a flow controlled client has been handled, whether routed or not */
+    private synchronized void returnCredit(Client client) {
+        client.withheldCredits++;
+        grantCredits(client);
+    }
+    
+    private synchronized void grantWithheldCredits() {
+        for (Client client: clients) {
+            if (client.withheldCredits > 0) {
+                grantCredits(client);
+            }
+        }
+    }
+    
+    /** Grant withheld credits to client, unless too much of its content is still waiting for delivery */
+    private synchronized void grantCredits(Client client) {
+        if (client.withheldCredits == 0 || client.senderFinished) {
+            return;
+        }
+        for (Client other: clients) {
+            if (other != client && other.sender.queuedBytes(client.name) > MAX_QUEUED_BYTES_PER_SOURCE) {
+                return;
+            }
+        }
+        BusinessObject credit = new BusinessObject(ABBOE_CREDIT);
+        credit.getMetaData().put(CREDIT_KEY, client.withheldCredits);
+        client.withheldCredits = 0;
+        client.send(credit);
+    }
+    
+    private synchronized void printStats() {
+        System.out.println("Clients: "+clients.size());
+        for (Client client: clients) {
+            System.out.println(client.name+": received "+client.receivedObjects+" objects ("+
+                               client.receivedBytes+" bytes), delayed "+client.delayedObjects+
+                               ", rejected "+client.rejectedObjects+", send queue "+client.sender.queueLength());
+        }
+        System.out.println("Total delayed: "+delayedObjects.get()+", total rejected: "+rejectedObjects.get());
+        if (rateLimits != null) {
+            System.out.println("Rate limits: "+rateLimits);
+        }
+        if (journal != null) {
+            System.out.println("Journal: "+journal.getNumRecords()+" records");
+        }
+        if (payloadInterner != null) {
+            System.out.println(payloadInterner);
+        }
+        if (retainedFrames != null) {
+            System.out.println(retainedFrames);
+        }
+        if (imageVariants != null) {
+            System.out.println(imageVariants);
+        }
+    }
+    
+    private void sendErrorReply(Client client, String error) {
+        PlainTextObject reply = new PlainTextObject();
+        reply.getMetaData().setEvent(ERROR);
+        reply.setText(error);
+        log("Sending error reply to client "+client+": "+error);
+        client.send(reply);        
+    }
+           
+    private void startSystemInReadLoop() {           
+        SystemInReader systemInReader = new SystemInReader();
+        systemInReader.start();
+    }
+    
+    public static void main(String[] pArgs) throws Exception {
+        
+        CmdLineArgs2 args = new CmdLineArgs2(pArgs);
+                        
+        Integer port = args.getInt("port");
+        String serverId = args.get("id");
+        String peers = args.get("peers");
+        String journalDir = args.get("journal");
+        int journalSegmentMB = args.getIntOpt("journal_segment_mb", ABBOEJournal.DEFAULT_SEGMENT_SIZE / (1024*1024));
+        int journalSegments = args.getIntOpt("journal_segments", ABBOEJournal.DEFAULT_MAX_SEGMENTS);
+        // negative to disable retaining, 0 for no limit
+        int retainMB = args.getIntOpt("retain_mb", (int)(RetainedFrameCache.DEFAULT_MAX_BYTES / (1024*1024)));
+        // min size of payloads to intern (bytes); negative to disable interning
+        int internMinSize = args.getIntOpt("intern_min_size", PayloadInterner.DEFAULT_MIN_SIZE);
+        // e.g. -client_rate_limits ContentVaultSender=500 -type_rate_limits image/*=2000 (KB/s)
+        String clientRateLimits = args.get("client_rate_limits");
+        String typeRateLimits = args.get("type_rate_limits");
+        Integer rateLimitMaxDelay = args.getInt("rate_limit_max_delay");
+        String vaultURL = args.get("vault_url");
+        if (vaultURL == null) {
+            vaultURL = ContentVaultProxy.LERONEN_IMAGE_VAULT_FILELIST_URL;
+        }
+        int vaultThreads = args.getIntOpt("vault_threads", ContentVaultProxy.DEFAULT_NUM_THREADS);
+        // 0 for loading the vault only once
+        int vaultRefreshSeconds = args.getIntOpt("vault_refresh_s", 0);
+        String vaultPack = args.get("vault_pack");
+        // 0 for no limit
+        int vaultCacheMB = args.getIntOpt("vault_cache_mb", 0);
+        // 0 for not producing image variants
+        int variantThreads = args.getIntOpt("image_variant_threads", ImageVariants.DEFAULT_NUM_THREADS);
+        int variantCacheMB = args.getIntOpt("image_variant_cache_mb", (int)(ImageVariants.DEFAULT_MAX_BYTES/1024/1024));
+        // uniform, shuffle or weighted
+        String playback = args.get("playback");
+        
+        if (port == null) {             
+            port = Biomine3000Utils.conjurePortByHostName();
+        }
+        
+        if (port == null) {
+            error("No -port");
+            System.exit(1);
+        }
+        
+        log("Starting ABBOE at port "+port);
+                       
+        if (serverId == null) {
+            serverId = defaultServerId(port);
+        }
+        
+        try {
+            ContentVaultProxy vault = new ContentVaultProxy(vaultURL, vaultThreads);
+            vault.setRefreshInterval(vaultRefreshSeconds*1000L);
+            if (vaultPack != null) {
+                vault.setPackFile(new File(vaultPack));
+            }
+            vault.setMaxCachedBytes(vaultCacheMB*1024L*1024L);
+            if (playback != null) {
+                VaultPlaylist.Mode mode = VaultPlaylist.Mode.parse(playback);
+                if (mode == null) {
+                    error("Unknown playback mode: "+playback);
+                    System.exit(1);
+                }
+                vault.setPlaybackMode(mode);
+            }
+            ABBOEServer server = new ABBOEServer(port, serverId, vault);
+            if (journalDir != null) {
+                server.setJournal(new ABBOEJournal(new File(journalDir), journalSegmentMB*1024*1024, journalSegments));
+            }
+            if (retainMB >= 0) {
+                server.setRetainedFrameCache(new RetainedFrameCache(retainMB*1024L*1024L));
+            }
+            if (internMinSize >= 0) {
+                server.setPayloadInterner(new PayloadInterner(internMinSize));
+            }
+            if (variantThreads > 0) {
+                server.setImageVariants(new ImageVariants(variantThreads, variantCacheMB*1024L*1024L));
+            }
+            if (clientRateLimits != null || typeRateLimits != null) {
+                RateLimits rateLimits = new RateLimits();
+                try {
+                    if (clientRateLimits != null) {
+                        rateLimits.parse(clientRateLimits, true);
+                    }
+                    if (typeRateLimits != null) {
+                        rateLimits.parse(typeRateLimits, false);
+                    }
+                }
+                catch (IllegalArgumentException e) {
+                    error(e.getMessage());
+                    System.exit(1);
+                }
+                if (rateLimitMaxDelay != null) {
+                    rateLimits.setMaxDelayMillis(rateLimitMaxDelay);
+                }
+                log("Using rate limits: "+rateLimits);
+                server.setRateLimits(rateLimits);
+            }
+            if (peers != null) {
+                // -peers host1:port1,host2:port2,...
+                for (String peer: peers.split(",")) {
+                    server.addPeer(Biomine3000Utils.parseServerAddress(peer));
+                }
+            }
+            // start separate thread for reading system.in
+            server.startSystemInReadLoop();
+            // the current thread will start executing the main loop
+            server.mainLoop();
+        }
+        catch (IOException e) {
+            error("Failed initializing ABBOE", e);
+        }
+    }
+    
+    private static void log(String msg) {
+        log.info(msg);
+    }    
+    
+    private static void warn(String msg) {
+        log.warning(msg);
+    }        
+    
+    private static void error(String msg) {
+        log.error(msg);
+    }
+    
+    private static void error(String msg, Exception e) {
+        log.error(msg, e);
+    }
+    
+    private enum State {
+        NOT_RUNNING,
+        ACCEPTING_CLIENTS,
+        SHUTTING_DOWN;
+    }
+          
 }
\ No newline at end of file
@@ -1,18 +1,77 @@
 package biomine3000.objects;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import biomine3000.objects.ContentVaultProxy.ContentVaultListener;
 
 import util.commandline.CommandLineTests;
 import util.dbg.StdErrLogger;
 
 public class ABBOETests extends CommandLineTests {
-	
+
 public static final String CMD_ADDRTEST = "addrtest";
+public static final String CMD_FEDERATION = "federation";
+public static final String CMD_FEDERATION_RESTART = "federationrestart";
+public static final String CMD_JOURNAL = "journal";
+public static final String CMD_RETAINED = "retained";
+public static final String CMD_RATE_LIMITS = "ratelimits";
+public static final String CMD_VAULT = "vault";
+public static final String CMD_VAULT_PACK = "vaultpack";
+public static final String CMD_VAULT_CACHE = "vaultcache";
+public static final String CMD_PLAYLIST = "playlist";
+public static final String CMD_VARIANTS = "variants";
+public static final String CMD_VAULT_REFRESH = "vaultrefresh";
+public static final String CMD_SCHEDULER = "scheduler";
+public static final String CMD_DEDUPE = "dedupe";
+public static final String CMD_CREDITS = "credits";
+public static final String CMD_IMAGE_RELEASE = "imagerelease";
+
+    /** Ports used by servers started by tests, all on loopback */
+    private static final int TEST_BASE_PORT = 61920;
+    /** How long to wait for something that should happen */
+    private static final long TIMEOUT_MILLIS = 10000;
+    /** How long to wait for objects that should not arrive, such as duplicates */
+    private static final long QUIET_MILLIS = 500;
 
     public ABBOETests(String[] args) {
         super(args);
     }
-    
+
     @Override
     public void run(String cmd) throws Exception {
         if (cmd.equals(CMD_ADDRTEST)) {
@@ -20,11 +79,1377 @@ public static final String CMD_ADDRTEST = "addrtest";
             log.info("Address: "+socket.getLocalSocketAddress().toString());
             socket.close();
         }
+        else if (cmd.equals(CMD_FEDERATION)) {
+            federationTest();
+        }
+        else if (cmd.equals(CMD_FEDERATION_RESTART)) {
+            federationRestartTest();
+        }
+        else if (cmd.equals(CMD_JOURNAL)) {
+            journalTest();
+        }
+        else if (cmd.equals(CMD_RETAINED)) {
+            retainedTest();
+        }
+        else if (cmd.equals(CMD_RATE_LIMITS)) {
+            rateLimitTest();
+        }
+        else if (cmd.equals(CMD_VAULT)) {
+            vaultTest();
+        }
+        else if (cmd.equals(CMD_VAULT_PACK)) {
+            vaultPackTest();
+        }
+        else if (cmd.equals(CMD_VAULT_CACHE)) {
+            vaultCacheTest();
+        }
+        else if (cmd.equals(CMD_PLAYLIST)) {
+            playlistTest();
+        }
+        else if (cmd.equals(CMD_VARIANTS)) {
+            variantsTest();
+        }
+        else if (cmd.equals(CMD_VAULT_REFRESH)) {
+            vaultRefreshTest();
+        }
+        else if (cmd.equals(CMD_SCHEDULER)) {
+            schedulerTest();
+        }
+        else if (cmd.equals(CMD_DEDUPE)) {
+            dedupeTest();
+        }
+        else if (cmd.equals(CMD_CREDITS)) {
+            creditsTest();
+        }
+        else if (cmd.equals(CMD_IMAGE_RELEASE)) {
+            imageReleaseTest();
+        }
+    }
+
+    /**
+     * Start three fully meshed servers on loopback, connect a client to each, send an object from
+     * the first client and check that the other clients receive it exactly once.
+     */
+    private void federationTest() throws Exception {
+        int n = 3;
+        TestServer[] servers = new TestServer[n];
+        for (int i=0; i<n; i++) {
+            servers[i] = new TestServer(i, ""+i).start();
+        }
+        for (int i=0; i<n; i++) {
+            for (int j=i+1; j<n; j++) {
+                servers[i].server.addPeer(servers[j].address);
+            }
+        }
+
+        String probe = "federation probe "+System.currentTimeMillis();
+        CountingHandler[] handlers = new CountingHandler[n];
+        ABBOEConnection[] connections = new ABBOEConnection[n];
+        for (int i=0; i<n; i++) {
+            ClientParameters params = new ClientParameters("FederationTest-"+i, ClientReceiveMode.NO_ECHO,
+                                                           Subscriptions.PLAINTEXT, true);
+            handlers[i] = new CountingHandler(probe);
+            connections[i] = servers[i].connect(params, handlers[i]);
+        }
+        
+        boolean linked = probe(connections[0], probe, Arrays.copyOfRange(handlers, 1, n));
+
+        String text = "federation test "+System.currentTimeMillis();
+        for (int i=0; i<n; i++) {
+            handlers[i].expect(text);
+        }
+        connections[0].send(new PlainTextObject(text));
+
+        boolean ok = linked;
+        for (int i=1; i<n; i++) {
+            ok &= handlers[i].settle(1) == 1;
+        }
+        ok &= handlers[0].count == 0;
+        for (int i=0; i<n; i++) {
+            log.info("Client "+i+" received the test object "+handlers[i].count+" times");
+        }
+
+        // ids and routes claimed by clients are replaced, so they can neither dedupe objects nor block peers
+        String forged = "forged route "+System.currentTimeMillis();
+        List<String> route = new ArrayList<String>();
+        for (int i=0; i<n; i++) {
+            handlers[i].expect(forged);
+            route.add(servers[i].id);
+        }
+        for (int i=0; i<2; i++) {
+            BusinessObject bo = new PlainTextObject(forged);
+            bo.getMetaData().put(ABBOEServer.ID_KEY, "forged");
+            bo.getMetaData().putStringList(ABBOEServer.ROUTE_KEY, route);
+            connections[0].send(bo);
+        }
+        for (int i=1; i<n; i++) {
+            ok &= handlers[i].settle(2) == 2;
+            log.info("Client "+i+" received the object with a forged id and route "+handlers[i].count+" times");
+        }
+        log.info(ok ? "Federation test OK" : "Federation test FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Links and subscriptions of peers are set up asynchronously, so send probes until one gets across
+     * to all given handlers, counting the probe text. 
+     * @return false on timeout
+     */
+    private static boolean probe(ABBOEConnection sender, String probe, CountingHandler... handlers) 
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        boolean linked = false;
+        while (!linked && System.currentTimeMillis() < deadline) {
+            sender.send(new PlainTextObject(probe));
+            linked = true;
+            for (CountingHandler handler: handlers) {
+                linked &= handler.await(1, 200) >= 1;
+            }
+        }
+        return linked;
+    }
+
+    /**
+     * Publish objects through a server to its peer, then start a server with the same id in its place,
+     * as if restarted, and check that objects published through it still reach the peer, instead of
+     * being taken for ones already received.
+     */
+    private void federationRestartTest() throws Exception {
+        TestServer peer = new TestServer(0, "peer").start();
+        TestServer server = new TestServer(1, "restarted").start();
+        peer.server.addPeer(server.address);
+
+        String probe = "restart probe "+System.currentTimeMillis();
+        ClientParameters params = new ClientParameters("FederationRestartTest-receiver", ClientReceiveMode.NO_ECHO,
+                                                       Subscriptions.PLAINTEXT, true);
+        CountingHandler handler = new CountingHandler(probe);
+        peer.connect(params, handler);
+        params = new ClientParameters("FederationRestartTest-sender", ClientReceiveMode.NONE,
+                                      Subscriptions.NONE, true);
+        ABBOEConnection sender = server.connect(params, new CountingHandler(""));
+        boolean ok = probe(sender, probe, handler);
+
+        // more objects than probes sent before timing out below
+        int n = 100;
+        String text = "before restart "+System.currentTimeMillis();
+        handler.expect(text);
+        for (int i=0; i<n; i++) {
+            sender.send(new PlainTextObject(text));
+        }
+        ok &= handler.settle(n) == n;
+        log.info("Peer received "+handler.count+"/"+n+" objects before the restart");
+
+        TestServer restarted = new TestServer(2, "restarted").start();
+        peer.server.addPeer(restarted.address);
+        sender = restarted.connect(params, new CountingHandler(""));
+        probe = "restarted probe "+System.currentTimeMillis();
+        handler.expect(probe);
+        boolean linked = probe(sender, probe, handler);
+        text = "after restart "+System.currentTimeMillis();
+        handler.expect(text);
+        sender.send(new PlainTextObject(text));
+        ok &= linked && handler.settle(1) == 1;
+        log.info("Peer received "+handler.count+" objects after the restart");
+
+        log.info(ok ? "Federation restart test OK" : "Federation restart test FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Start a journaling server, send some objects to it, and check that a client 
+     * registering afterwards with replay-last gets exactly the requested latest objects.
+     */
+    private void journalTest() throws Exception {
+        File dir = File.createTempFile("abboe-journal", "");
+        dir.delete();
+        boolean ok;
+        try {
+            TestServer server = new TestServer("journal");
+            server.server.setJournal(new ABBOEJournal(dir, 1024*1024, 4));
+            server.start();
+
+            String text = "journal test "+System.currentTimeMillis();
+            ClientParameters params = new ClientParameters("JournalTest-sender", ClientReceiveMode.NONE,
+                                                           Subscriptions.PLAINTEXT, true);
+            CountingHandler senderHandler = new CountingHandler(text);
+            ABBOEConnection sender = server.connect(params, senderHandler);
+            for (int i=0; i<5; i++) {
+                sender.send(new PlainTextObject(text));
+            }
+            ok = server.sync(sender, senderHandler);
+
+            params = new ClientParameters("JournalTest-receiver", ClientReceiveMode.ALL,
+                                          Subscriptions.PLAINTEXT, true);
+            params.replayLast = 3;
+            CountingHandler handler = new CountingHandler(text);
+            server.connect(params, handler);
+
+            ok &= handler.settle(3) == 3;
+            log.info("Replayed "+handler.count+" objects");
+        }
+        finally {
+            delete(dir);
+        }
+        log.info(ok ? "Journal test OK" : "Journal test FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Send some objects of same type to a server retaining latest objects, and check that 
+     * a client registering afterwards only gets the latest one.
+     */
+    private void retainedTest() throws Exception {
+        TestServer server = new TestServer("retained");
+        server.server.setRetainedFrameCache(new RetainedFrameCache(RetainedFrameCache.DEFAULT_MAX_BYTES));
+        server.start();
+
+        String text = "retained test "+System.currentTimeMillis();
+        ClientParameters params = new ClientParameters("RetainedTest-sender", ClientReceiveMode.NONE,
+                                                       Subscriptions.PLAINTEXT, true);
+        CountingHandler senderHandler = new CountingHandler(text);
+        ABBOEConnection sender = server.connect(params, senderHandler);
+        sender.send(new PlainTextObject("not the latest"));
+        sender.send(new PlainTextObject(text));
+        boolean ok = server.sync(sender, senderHandler);
+
+        params = new ClientParameters("RetainedTest-receiver", ClientReceiveMode.ALL,
+                                      Subscriptions.PLAINTEXT, true);
+        CountingHandler handler = new CountingHandler(text);
+        server.connect(params, handler);
+        ok &= handler.settle(1) == 1;
+
+        // a frame too large to retain still drops the earlier one, no longer the latest
+        RetainedFrameCache cache = new RetainedFrameCache(1024);
+        BusinessObject small = new PlainTextObject("small");
+        cache.put(small.getMetaData(), small.bytes());
+        BusinessObject large = new PlainTextObject(new String(new char[2048]).replace('\0', '.'));
+        cache.put(large.getMetaData(), large.bytes());
+        log.info("After an oversized frame: "+cache);
+        ok &= cache.size() == 0 && cache.getTotalBytes() == 0;
+
+        log.info(ok ? "Retained test OK" : "Retained test FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Send the same large text three times to a server interning payloads, and check that the receiver gets 
+     * all copies intact while the server keeps only one (retained) copy; then send another text, and check that
+     * the first one is released once no longer retained, and that the retained one reaches a late receiver.
+     */
+    private void dedupeTest() throws Exception {
+        PayloadInterner interner = new PayloadInterner(PayloadInterner.DEFAULT_MIN_SIZE);
+        TestServer server = new TestServer("dedupe");
+        server.server.setRetainedFrameCache(new RetainedFrameCache(RetainedFrameCache.DEFAULT_MAX_BYTES));
+        server.server.setPayloadInterner(interner);
+        server.start();
+
+        StringBuffer buf = new StringBuffer("dedupe test "+System.currentTimeMillis());
+        while (buf.length() < 16*1024) {
+            buf.append('.');
+        }
+        String text = buf.toString();
+        int length = text.getBytes("UTF-8").length;
+
+        ClientParameters params = new ClientParameters("DedupeTest-receiver", ClientReceiveMode.ALL,
+                                                       Subscriptions.PLAINTEXT, true);
+        CountingHandler handler = new CountingHandler(text);
+        server.connect(params, handler);
+
+        params = new ClientParameters("DedupeTest-sender", ClientReceiveMode.NONE, Subscriptions.NONE, true);
+        CountingHandler senderHandler = new CountingHandler(text);
+        ABBOEConnection sender = server.connect(params, senderHandler);
+        for (int i=0; i<3; i++) {
+            sender.send(new PlainTextObject(text));
+        }
+        handler.settle(3);
+        log.info("Received "+handler.count+"/3 copies; "+interner);
+        boolean ok = handler.count == 3 && interner.getNumHits() == 2 && interner.getBytesSaved() == 2*length;
+        ok &= interner.size() == 1 && interner.getSharedBytes() == length;
+
+        String latest = text.replace("dedupe", "DEDUPE");
+        sender.send(new PlainTextObject(latest));
+        ok &= server.sync(sender, senderHandler);
+        log.info("After replacing the retained text: "+interner);
+        ok &= interner.size() == 1 && interner.getNumHits() == 2;
+
+        // the retained frame, with its shared payload, is sent intact to a client registering later
+        params = new ClientParameters("DedupeTest-late-receiver", ClientReceiveMode.ALL, Subscriptions.PLAINTEXT, true);
+        handler = new CountingHandler(latest);
+        server.connect(params, handler);
+        handler.settle(1);
+        log.info("Late receiver got "+handler.count+" retained copies");
+        ok &= handler.count == 1 && interner.size() == 1;
+
+        log.info(ok ? "Dedupe test OK" : "Dedupe test FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Publish large objects with flow control to a server having a client that registers but does not read
+     * anything, and check that the publisher is held back instead of the content piling up at the server; 
+     * then start reading, and check that the rest of the objects get through.
+     */
+    private void creditsTest() throws Exception {
+        TestServer server = new TestServer("credits").start();
+
+        ClientParameters params = new ClientParameters("CreditsTest-stalled-receiver", ClientReceiveMode.ALL,
+                                                       Subscriptions.ALL, false);
+        final Socket stalled = Biomine3000Utils.connectToServer(server.address.getHost(), server.address.getPort());
+        stalled.getOutputStream().write(Biomine3000Utils.makeRegisterPacket(params).bytes());
+        stalled.getOutputStream().flush();
+
+        params = new ClientParameters("CreditsTest-publisher", ClientReceiveMode.NONE, Subscriptions.NONE, false);
+        params.flowControl = true;
+        CountingHandler publisherHandler = new CountingHandler("");
+        ABBOEConnection publisher = server.connect(params, publisherHandler);
+        boolean ok = server.awaitClient("CreditsTest-stalled-receiver", publisher, publisherHandler);
+        // credits are granted on registration, before the reply awaited by connect
+        log.info("Initial credits: "+publisher.getCredits());
+        ok &= publisher.getCredits() == ABBOEServer.CREDIT_WINDOW;
+
+        int n = 60;
+        int size = 512*1024;
+        byte[] payload = new byte[size];
+        new Random(1).nextBytes(payload);
+        int sent = 0;
+        while (sent < n) {
+            BusinessObjectMetadata meta = new BusinessObjectMetadata();
+            meta.setType(Biomine3000Mimetype.PNGIMAGE);
+            if (!publisher.send(new BusinessObject(meta, payload), 2000)) {
+                break;
+            }
+            sent++;
+        }
+        // besides the socket buffers, at most the allowed backlog and a window of objects in flight
+        long maxSent = (ABBOEServer.MAX_QUEUED_BYTES_PER_SOURCE + 8*1024*1024) / size + ABBOEServer.CREDIT_WINDOW;
+        log.info("Publisher held back after "+sent+"/"+n+" objects (at most "+maxSent+" expected)");
+        ok &= sent < n && sent <= maxSent;
+
+        final AtomicLong received = new AtomicLong();
+        new Thread() {
+            public void run() {
+                byte[] buf = new byte[64*1024];
+                try {
+                    int k;
+                    while ((k = stalled.getInputStream().read(buf)) > 0) {
+                        synchronized(received) {
+                            received.addAndGet(k);
+                            received.notifyAll();
+                        }
+                    }
+                }
+                catch (IOException e) {
+                    // no action
+                }
+            }
+        }.start();
+        while (sent < n) {
+            BusinessObjectMetadata meta = new BusinessObjectMetadata();
+            meta.setType(Biomine3000Mimetype.PNGIMAGE);
+            if (!publisher.send(new BusinessObject(meta, payload), 10000)) {
+                break;
+            }
+            sent++;
+        }
+        // all of the objects, along with their headers
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        synchronized(received) {
+            long left;
+            while (received.get() <= (long)n*size && (left = deadline - System.currentTimeMillis()) > 0) {
+                received.wait(left);
+            }
+        }
+        log.info("After draining: sent "+sent+"/"+n+" objects, receiver got "+received.get()+" bytes");
+        ok &= sent == n && received.get() > (long)n*size;
+
+        log.info(ok ? "Credits test OK" : "Credits test FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Flood a server having a rate limit for the sending client, and check that some of the 
+     * objects are rejected, the rest are delivered, and the sender is notified with an error event.
+     */
+    private void rateLimitTest() throws Exception {
+        RateLimits rateLimits = new RateLimits();
+        rateLimits.setClientLimit("RateLimitTest-sender", 16*1024);
+        int maxDelayMillis = 1000;
+        rateLimits.setMaxDelayMillis(maxDelayMillis);
+        TestServer server = new TestServer("ratelimits");
+        server.server.setRateLimits(rateLimits);
+        server.start();
+
+        StringBuffer buf = new StringBuffer("rate limit test "+System.currentTimeMillis());
+        String text = buf.toString();
+        while (buf.length() < 8*1024) {
+            buf.append('.');
+        }
+        String floodText = buf.toString();
+
+        ClientParameters params = new ClientParameters("RateLimitTest-receiver", ClientReceiveMode.ALL,
+                                                       Subscriptions.PLAINTEXT, true);
+        CountingHandler handler = new CountingHandler(floodText);
+        server.connect(params, handler);
+
+        params = new ClientParameters("RateLimitTest-sender", ClientReceiveMode.EVENTS_ONLY,
+                                      Subscriptions.ALL, true);
+        CountingHandler senderHandler = new CountingHandler(text);
+        ABBOEConnection sender = server.connect(params, senderHandler);
+
+        int n = 20;
+        for (int i=0; i<n; i++) {
+            sender.send(new PlainTextObject(floodText));
+        }
+        // objects not rejected are delayed by at most the max delay
+        handler.await(n, maxDelayMillis + QUIET_MILLIS);
+
+        log.info("Received "+handler.count+"/"+n+" objects, sender got "+senderHandler.errors+" error events");
+        boolean ok = handler.count > 0 && handler.count < n && senderHandler.errors > 0;
+
+        // an object larger than the capacity is admitted from a full bucket, its debt delaying later ones
+        TokenBucket bucket = new TokenBucket(1000, 2000);
+        long largeDelay = bucket.acquire(10000, 100);
+        long nextDelay = bucket.acquire(1000, 100);
+        log.info("Larger than capacity: delay "+largeDelay+" ms; next object: "+nextDelay);
+        ok &= largeDelay == 0 && nextDelay == -1;
+        log.info(ok ? "Rate limit test OK" : "Rate limit test FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Serve a vault of slowly loading images (and one missing image) over http on loopback,
+     * and load it sequentially and in parallel, checking that all available images get loaded 
+     * and that loadedAllImages fires despite the missing one.
+     */
+    private void vaultTest() throws Exception {
+        final int n = 16;
+        final int delayMillis = 200;
+        TestVault testVault = new TestVault(n, delayMillis);
+
+        boolean ok = true;
+        long sequentialTime = 0;
+        for (int numThreads: new int[] {1, 8}) {
+            ContentVaultProxy vault = new ContentVaultProxy(testVault.filelistURL, numThreads);
+            BusinessObjectMetadata stamp = new BusinessObjectMetadata();
+            stamp.setSender("vault-test");
+            vault.setFrameMetadata(stamp);
+            long time = loadVault(vault);
+            log.info("Loaded "+vault.getNumLoadedObjects()+"/"+vault.getTotalNumObjects()+" images using "+
+                     numThreads+" threads in "+time+" ms");
+            ok &= time >= 0 && vault.getNumLoadedObjects() == n && vault.getTotalNumObjects() == n+1;
+            if (numThreads == 1) {
+                sequentialTime = time;
+            }
+            else {
+                ok &= time < sequentialTime / 2;
+            }
+            
+            // frames are shared and stamped at load time; images handed out are private copies
+            String url = vault.getCache().sampleURL();
+            EncodedFrame frame = vault.getCache().getFrame(url);
+            ok &= frame == vault.getCache().getFrame(url) && "vault-test".equals(frame.getMetaData().getSender());
+            ImageObject image = vault.sampleImage();
+            ok &= image.getImage() != null && "vault-test".equals(image.getMetaData().getSender());
+            image.setSender("someone else");
+            for (String u: vault.getCache().urls()) {
+                ok &= "vault-test".equals(vault.getCache().getFrame(u).getMetaData().getSender());
+            }
+        }
+        testVault.httpServer.stop(0);
+        log.info(ok ? "Vault test OK" : "Vault test FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Serve n small png images at /vault/ on loopback, each response delayed by delayMillis.
+     * The file list also contains one image which does not exist. Images have ETags, which change
+     * when their versions are incremented, and conditional requests are supported. The file list
+     * may be changed to list only some of the images (see {@link #setFilelist(int, int)}).
+     */
+    private static class TestVault implements HttpHandler {
+        HttpServer httpServer;
+        String filelistURL;
+        int delayMillis;
+        byte[] png;
+        volatile byte[] filelist;
+        int[] versions;
+        /** Number of images actually sent */
+        AtomicInteger imagesSent = new AtomicInteger();
+
+        TestVault(int n, int delayMillis) throws IOException {
+            this.delayMillis = delayMillis;
+            this.png = testPNG();
+            this.versions = new int[n];
+            setFilelist(0, n);
+
+            httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            httpServer.createContext("/vault/", this);
+            httpServer.setExecutor(Executors.newCachedThreadPool());
+            httpServer.start();
+            filelistURL = "http://localhost:"+httpServer.getAddress().getPort()+"/vault/filelist.txt";
+        }
+
+        /** List images from (inclusive) to (exclusive), and the missing image */
+        void setFilelist(int from, int to) throws IOException {
+            StringBuffer buf = new StringBuffer();
+            for (int i=from; i<to; i++) {
+                buf.append("image"+i+".png\n");
+            }
+            buf.append("missing.png\n");
+            this.filelist = buf.toString().getBytes("UTF-8");
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            Matcher m = Pattern.compile(".*/image([0-9]+)\\.png").matcher(path);
+            if (path.endsWith("/filelist.txt")) {
+                respond(exchange, filelist);
+            }
+            else if (m.matches() && Integer.parseInt(m.group(1)) < versions.length) {
+                try {
+                    Thread.sleep(delayMillis);
+                }
+                catch (InterruptedException e) {
+                    // no action
+                }
+                String etag = "\"v"+versions[Integer.parseInt(m.group(1))]+"\"";
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                }
+                else {
+                    imagesSent.incrementAndGet();
+                    respond(exchange, png);
+                }
+            }
+            else {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+            }
+        }
+
+        private static void respond(HttpExchange exchange, byte[] response) throws IOException {
+            exchange.sendResponseHeaders(200, response.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(response);
+            os.close();
+        }
+    }
+
+    /**
+     * Decode a progressive jpeg, holding decoding after its first pass, and check that releasing 
+     * the image meanwhile does not wait for decoding, and that the image then decoded is returned 
+     * but not kept.
+     */
+    private void imageReleaseTest() throws Exception {
+        final ImageObject image = new ImageObject(Biomine3000Mimetype.JPGIMAGE, testProgressiveJPEG());
+        final CountDownLatch previewReady = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        final BufferedImage[] decoded = new BufferedImage[1];
+        Thread decoder = new Thread() {
+            public void run() {
+                decoded[0] = image.getImage(0, 0, new ImageObject.PreviewListener() {
+                    public void previewReady(BufferedImage preview) {
+                        previewReady.countDown();
+                        try {
+                            resume.await();
+                        }
+                        catch (InterruptedException e) {
+                            // decode the rest at once
+                        }
+                    }
+                });
+            }
+        };
+        decoder.start();
+        boolean ok = previewReady.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        
+        // released from another thread, so that a release waiting for decoding shows as a failure, not a hang
+        Thread releaser = new Thread() {
+            public void run() {
+                image.releaseImage();
+            }
+        };
+        releaser.start();
+        releaser.join(QUIET_MILLIS);
+        boolean releasedAtOnce = !releaser.isAlive();
+        resume.countDown();
+        decoder.join(TIMEOUT_MILLIS);
+        log.info("Released "+(releasedAtOnce ? "without" : "only after")+" waiting for decoding");
+        ok &= releasedAtOnce && decoded[0] != null && image.getSubsampling() == 0;
+        
+        // decoded again, and kept this time
+        ok &= image.getImage() != null && image.getSubsampling() == 1;
+        
+        log.info(ok ? "Image release test OK" : "Image release test FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static byte[] testProgressiveJPEG() throws IOException {
+        BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int x=0; x<image.getWidth(); x++) {
+            for (int y=0; y<image.getHeight(); y++) {
+                image.setRGB(x, y, random.nextInt(0xffffff));
+            }
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageOutputStream ios = ImageIO.createImageOutputStream(bos);
+        writer.setOutput(ios);
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        writer.write(null, new IIOImage(image, null, null), param);
+        writer.dispose();
+        ios.close();
+        return bos.toByteArray();
+    }
+
+    private static byte[] testPNG() throws IOException {
+        BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", bos);
+        return bos.toByteArray();
+    }
+
+    /** 
+     * Load a vault, waiting until loading of all images has been attempted. 
+     * @return time until loadedAllImages was called, in millis, or -1 on timeout. 
+     */
+    private static long loadVault(ContentVaultProxy vault) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        final CountDownLatch done = new CountDownLatch(1);
+        vault.addListener(new ContentVaultListener() {
+            public void loadedImageList() {}
+            public void loadedImage(String image) {}
+            public void loadedAllImages() {
+                done.countDown();
+            }
+            public void removedImage(String image) {}
+        });
+        vault.startLoading();
+        return done.await(60, TimeUnit.SECONDS) ? System.currentTimeMillis()-startTime : -1;
+    }
+
+    /**
+     * Load a vault listing some of the images of a http stand-in, change the file list, and check that the
+     * refreshing vault loads the added images and removes the dropped one, without refetching the others.
+     * Then do the same for a local directory vault, changed by adding and deleting files.
+     */
+    private void vaultRefreshTest() throws Exception {
+        boolean ok = true;
+        TestVault testVault = new TestVault(8, 0);
+        testVault.setFilelist(0, 6);
+        ContentVaultProxy vault = new ContentVaultProxy(testVault.filelistURL, 4);
+        vault.setRefreshInterval(500);
+        RefreshListener listener = new RefreshListener();
+        vault.addListener(listener);
+        ok &= loadVault(vault) >= 0 && vault.getNumLoadedObjects() == 6;
+        int sent = testVault.imagesSent.get();
+        listener.reset();
+        testVault.setFilelist(1, 8);
+        listener.await(2, 1, TIMEOUT_MILLIS);
+        log.info("Http vault: added "+listener.added+", removed "+listener.removed+", refetched "+
+                 (testVault.imagesSent.get()-sent)+" images");
+        ok &= listener.added.size() == 2 && listener.removed.size() == 1 && listener.removed.get(0).endsWith("/image0.png");
+        ok &= testVault.imagesSent.get()-sent == 2 && vault.getNumLoadedObjects() == 7;
+        ok &= !vault.getCache().contains(listener.removed.get(0));
+        vault.stop();
+        testVault.httpServer.stop(0);
+
+        File dir = File.createTempFile("abboetests-vault", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            byte[] png = testPNG();
+            for (int i=0; i<3; i++) {
+                writeFile(new File(dir, "image"+i+".png"), png);
+            }
+            vault = new ContentVaultProxy(dir.toURI().toString(), 2);
+            vault.setRefreshInterval(1000);
+            listener = new RefreshListener();
+            vault.addListener(listener);
+            ok &= loadVault(vault) >= 0 && vault.getNumLoadedObjects() == 3;
+            listener.reset();
+            writeFile(new File(dir, "image3.png"), png);
+            new File(dir, "image1.png").delete();
+            writeFile(new File(dir, "notes.txt"), png);
+            listener.await(1, 1, 15000);
+            log.info("Directory vault: added "+listener.added+", removed "+listener.removed);
+            ok &= listener.added.size() == 1 && listener.added.get(0).endsWith("/image3.png");
+            ok &= listener.removed.size() == 1 && listener.removed.get(0).endsWith("/image1.png");
+            ok &= vault.getNumLoadedObjects() == 3;
+            vault.stop();
+        }
+        finally {
+            delete(dir);
+        }
+
+        log.info(ok ? "Vault refresh test OK" : "Vault refresh test FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Run a fast jittered schedule, and a slow one with a task taking most of its interval, on two threads, 
+     * and check that both tick at their fixed rates; then change the interval of the fast one on the fly,
+     * and check that it ticks at the new rate, and not at all once cancelled.
+     */
+    private void schedulerTest() throws Exception {
+        boolean ok = true;
+        BroadcastScheduler scheduler = new BroadcastScheduler(2);
+        TickCounter fastTicks = new TickCounter();
+        BroadcastScheduler.Schedule fast = scheduler.schedule("fast", 50, 0.2, fastTicks);
+        BroadcastScheduler.Schedule slow = scheduler.schedule("slow", 250, 0, new Runnable() {
+            public void run() {
+                try {
+                    // a task taking most of its interval
+                    Thread.sleep(150);
+                }
+                catch (InterruptedException e) {
+                    // no action
+                }
+            }
+        });
+        long startTime = System.currentTimeMillis();
+        fastTicks.await(40, TIMEOUT_MILLIS);
+        long elapsed = System.currentTimeMillis() - startTime;
+        log.info("In "+elapsed+" ms: "+fast+" ticked "+fastTicks.get()+" times, "+slow+" "+slow.getNumTicks()+" times");
+        ok &= Math.abs(elapsed-2000) <= 150 && Math.abs(slow.getNumTicks()-Math.round(elapsed/250.0)) <= 1;
+
+        fast.setInterval(200);
+        int before = fastTicks.get();
+        startTime = System.currentTimeMillis();
+        int ticks = fastTicks.await(before+10, TIMEOUT_MILLIS) - before;
+        elapsed = System.currentTimeMillis() - startTime;
+        log.info("In "+elapsed+" ms: "+fast+" ticked "+ticks+" times");
+        ok &= ticks == 10 && Math.abs(elapsed-2000) <= 250;
+
+        fast.cancel();
+        slow.cancel();
+        // a tick already running when cancelled is finished, but no more are started
+        before = fastTicks.get();
+        ticks = fastTicks.await(before+2, QUIET_MILLIS) - before;
+        log.info("After cancel: ticked "+ticks+" times");
+        ok &= ticks <= 1;
+        scheduler.shutdown();
+
+        log.info(ok ? "Scheduler test OK" : "Scheduler test FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /** Counts ticks of a schedule, letting tests wait for them */
+    private static class TickCounter implements Runnable {
+        private int ticks = 0;
+
+        public synchronized void run() {
+            ticks++;
+            notifyAll();
+        }
+
+        synchronized int get() {
+            return ticks;
+        }
+
+        /** 
+         * Wait until ticked at least n times, or until timeout. 
+         * @return the number of ticks 
+         */
+        synchronized int await(int n, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long left;
+            while (ticks < n && (left = deadline - System.currentTimeMillis()) > 0) {
+                wait(left);
+            }
+            return ticks;
+        }
+    }
+
+    private static void writeFile(File file, byte[] contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /** Records images added and removed */
+    private static class RefreshListener implements ContentVaultListener {
+        List<String> added = Collections.synchronizedList(new ArrayList<String>());
+        List<String> removed = Collections.synchronizedList(new ArrayList<String>());
+
+        synchronized void reset() {
+            added.clear();
+            removed.clear();
+        }
+
+        /** Wait until at least given numbers of images have been added and removed, or until timeout */
+        synchronized void await(int numAdded, int numRemoved, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long left;
+            while ((added.size() < numAdded || removed.size() < numRemoved) 
+                    && (left = deadline - System.currentTimeMillis()) > 0) {
+                wait(left);
+            }
+        }
+
+        public void loadedImageList() {}
+        public synchronized void loadedImage(String image) {
+            added.add(image);
+            notifyAll();
+        }
+        public void loadedAllImages() {}
+        public synchronized void removedImage(String image) {
+            removed.add(image);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Load vault from a http stand-in using a local pack, then restart from the pack and check that 
+     * the vault is initialized at once, and that only changed images are refetched in the background,
+     * all images keeping the times they were first seen. Then do the same for a vault of file urls, where 
+     * changes are detected by Last-Modified. Finally check that a pack larger than a single mapping
+     * can be reopened.
+     */
+    private void vaultPackTest() throws Exception {
+        int n = 16;
+        TestVault testVault = new TestVault(n, 200);
+        File packFile = File.createTempFile("abboe-vault", ".pack");
+        packFile.delete();
+        File dir = File.createTempFile("abboe-vault", "");
+        dir.delete();
+
+        boolean ok = true;
+        Map<String, Long> firstSeen = null;
+        try {
+            for (int round=0; round<3; round++) {
+                if (round == 2) {
+                    testVault.versions[3]++;
+                }
+                int sentBefore = testVault.imagesSent.get();
+                ContentVaultProxy vault = new ContentVaultProxy(testVault.filelistURL, 8);
+                vault.setPackFile(packFile);
+                long time = loadVault(vault);
+                // wait for background revalidation to finish, and the pack to be saved
+                ok &= vault.awaitLoaded(TIMEOUT_MILLIS);
+                int fetched = testVault.imagesSent.get() - sentBefore;
+                log.info("Round "+round+": initialized with "+vault.getNumLoadedObjects()+" images in "+time+
+                         " ms, fetched "+fetched+" images");
+                ok &= time >= 0 && vault.getNumLoadedObjects() == n;
+                ok &= fetched == (round == 0 ? n : round == 1 ? 0 : 1);
+                if (round > 0) {
+                    ok &= time < 100;
+                }
+                // images are as new as when first seen, whether restored from the pack or refetched as changed
+                Map<String, Long> timesAdded = timesAdded(vault.getCache());
+                if (round == 0) {
+                    firstSeen = timesAdded;
+                }
+                else {
+                    ok &= timesAdded.equals(firstSeen);
+                }
+            }
+            testVault.httpServer.stop(0);
+
+            // the same with file urls
+            dir.mkdirs();
+            byte[] png = testPNG();
+            PrintWriter filelist = new PrintWriter(new File(dir, "filelist.txt"));
+            for (int i=0; i<n; i++) {
+                writeFile(new File(dir, "image"+i+".png"), png);
+                filelist.println("image"+i+".png");
+            }
+            filelist.close();
+            File dirPackFile = new File(dir, "vault.pack");
+            String filelistURL = new File(dir, "filelist.txt").toURI().toURL().toString();
+            for (int round=0; round<2; round++) {
+                if (round == 1) {
+                    new File(dir, "image5.png").setLastModified(System.currentTimeMillis()+60000);
+                }
+                ContentVaultProxy vault = new ContentVaultProxy(filelistURL, 4);
+                vault.setPackFile(dirPackFile);
+                long time = loadVault(vault);
+                ok &= vault.awaitLoaded(TIMEOUT_MILLIS);
+                log.info("File vault round "+round+": initialized with "+vault.getNumLoadedObjects()+" images in "+time+" ms");
+                ok &= time >= 0 && vault.getNumLoadedObjects() == n;
+                Map<String, Long> timesAdded = timesAdded(vault.getCache());
+                if (round == 0) {
+                    firstSeen = timesAdded;
+                }
+                else {
+                    ok &= timesAdded.equals(firstSeen);
+                }
+            }
+            ok &= new VaultPackFile(dirPackFile).size() == n;
+            ok &= largePackTest();
+        }
+        finally {
+            // the pack, along with its index
+            for (File file: packFile.getParentFile().listFiles()) {
+                if (file.getName().startsWith(packFile.getName())) {
+                    file.delete();
+                }
+            }
+            delete(dir);
+        }
+
+        log.info(ok ? "Vault pack test OK" : "Vault pack test FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /** 
+     * Append entries on both sides of a (sparse) gap taking the pack past 2 GiB, and one straddling 
+     * the boundary of the first mapped region, and check that all read back after reopening.
+     */
+    private boolean largePackTest() throws IOException {
+        File file = File.createTempFile("abboe-vault-large", ".pack");
+        File indexFile = new File(file.getPath()+".idx");
+        byte[][] contents = new byte[3][];
+        for (int i=0; i<contents.length; i++) {
+            contents[i] = ("large pack entry "+i).getBytes("UTF-8");
+        }
+        try {
+            file.delete();
+            VaultPackFile pack = new VaultPackFile(file);
+            pack.put("url0", "entry0", "text/plain", contents[0], null, 0);
+            // the pack object appends at the end of the file as it is now
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength((1L << 30) - 4);
+            pack.put("url1", "entry1", "text/plain", contents[1], null, 0);
+            raf.setLength((5L << 29));
+            raf.close();
+            pack.put("url2", "entry2", "text/plain", contents[2], null, 0);
+            pack.save();
+            pack.close();
+            
+            pack = new VaultPackFile(file);
+            boolean ok = pack.size() == contents.length;
+            for (int i=0; i<contents.length && ok; i++) {
+                ok &= Arrays.equals(pack.read(pack.get("url"+i)), contents[i]);
+            }
+            ok &= pack.get("url2").offset > Integer.MAX_VALUE;
+            pack.close();
+            log.info("Pack of "+file.length()+" bytes "+(ok ? "read back" : "NOT read back"));
+            return ok;
+        }
+        finally {
+            file.delete();
+            indexFile.delete();
+        }
+    }
+
+    private static Map<String, Long> timesAdded(VaultCache cache) {
+        Map<String, Long> result = new HashMap<String, Long>();
+        VaultCache.Index index = cache.getIndex();
+        for (int i=0; i<index.size(); i++) {
+            result.put(index.getURL(i), index.getTimeAdded(i));
+        }
+        return result;
+    }
+
+    /**
+     * Load a vault into a cache with room for only a few images, and check that the cache stays 
+     * within its budget, holding several images, and that sampling still works, reloading evicted 
+     * images from the vault about as often as images are sampled that are not cached. An image removed 
+     * from the vault while being reloaded is not added back.
+     */
+    private void vaultCacheTest() throws Exception {
+        int n = 16;
+        int numFit = 4;
+        TestVault testVault = new TestVault(n, 0);
+        
+        // frames include the metadata header, so measure them from a vault keeping them all
+        ContentVaultProxy vault = new ContentVaultProxy(testVault.filelistURL, 4);
+        boolean ok = loadVault(vault) >= 0 && vault.getNumLoadedObjects() == n;
+        long maxFrameLength = 0;
+        for (String url: vault.getCache().urls()) {
+            maxFrameLength = Math.max(maxFrameLength, vault.getCache().getFrame(url).length());
+        }
+        vault.stop();
+        
+        long budget = numFit * maxFrameLength;
+        vault = new ContentVaultProxy(testVault.filelistURL, 4);
+        vault.setMaxCachedBytes(budget);
+        ok &= loadVault(vault) >= 0 && vault.getNumLoadedObjects() == n;
+        ok &= vault.getCache().getCachedBytes() <= budget && vault.getCache().getNumCached() > 1;
+
+        int sentBefore = testVault.imagesSent.get();
+        int numSamples = 400;
+        int numCached = 0;
+        for (int i=0; i<numSamples; i++) {
+            ok &= vault.sampleImage().getImage() != null;
+            ok &= vault.getCache().getCachedBytes() <= budget;
+            numCached += vault.getCache().getNumCached();
+        }
+        int reloaded = testVault.imagesSent.get() - sentBefore;
+        // samples are uniform, so those of images not cached are about the share of images not cached
+        double expected = numSamples * (1 - (double)numCached / numSamples / n);
+        log.info(vault.getCache()+"; reloaded "+reloaded+" images while sampling "+numSamples+
+                 " times, "+Math.round(expected)+" expected");
+        ok &= (double)numCached / numSamples > 1 && Math.abs(reloaded - expected) < 0.15 * numSamples;
+
+        // an image reloaded after being removed from the vault is not added back
+        String url = vault.getCache().sampleURL();
+        EncodedFrame frame = vault.sampleFrame();
+        vault.getCache().remove(url);
+        ok &= !vault.getCache().putIfKnown(url, frame);
+        ok &= !vault.getCache().contains(url) && vault.getCache().size() == n-1;
+        vault.stop();
+        testVault.httpServer.stop(0);
+        log.info(ok ? "Vault cache test OK" : "Vault cache test FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Check that shuffled playlists play every image once per round without back-to-back repeats,
+     * and that alias tables sample according to their weights.
+     */
+    private void playlistTest() throws Exception {
+        int n = 10;
+        VaultCache cache = new VaultCache(0);
+        for (int i=0; i<n; i++) {
+            cache.put("image"+i+".png", null, 0);
+        }
+
+        boolean ok = true;
+        VaultPlaylist playlist = new VaultPlaylist(cache, VaultPlaylist.Mode.SHUFFLE);
+        String prev = null;
+        for (int round=0; round<100; round++) {
+            Set<String> played = new HashSet<String>();
+            for (int i=0; i<n; i++) {
+                String url = playlist.next();
+                ok &= !url.equals(prev);
+                played.add(url);
+                prev = url;
+            }
+            ok &= played.size() == n;
+        }
+        log.info("Shuffle: "+(ok ? "all images played once per round, no repeats" : "FAILED"));
+
+        double[] weights = {1, 2, 3, 4};
+        VaultPlaylist.AliasTable table = new VaultPlaylist.AliasTable(weights);
+        int[] counts = new int[weights.length];
+        int numSamples = 100000;
+        Random random = new Random(1);
+        for (int i=0; i<numSamples; i++) {
+            counts[table.sample(random)]++;
+        }
+        for (int i=0; i<weights.length; i++) {
+            double expected = numSamples * weights[i] / 10;
+            log.info("Alias table: index "+i+" sampled "+counts[i]+" times, expected "+expected);
+            ok &= Math.abs(counts[i]-expected) < 0.05 * expected;
+        }
+
+        playlist = new VaultPlaylist(cache, VaultPlaylist.Mode.WEIGHTED);
+        for (int i=0; i<1000; i++) {
+            ok &= cache.contains(playlist.next());
+        }
+
+        log.info(ok ? "Playlist test OK" : "Playlist test FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Publish a large image twice to a server producing image variants (and interning payloads), and check that 
+     * a client declaring a small screen gets a thumbnail, scaled only once, while a client declaring no screen 
+     * size gets the original. Then check that cached variants of a shared frame are reused as is, and that 
+     * entries for images needing no variant count against the budget.
+     */
+    private void variantsTest() throws Exception {
+        ImageVariants variants = new ImageVariants(ImageVariants.DEFAULT_NUM_THREADS, ImageVariants.DEFAULT_MAX_BYTES);
+        TestServer server = new TestServer("variants");
+        server.server.setImageVariants(variants);
+        // interned images are keyed by the hash by which they were interned 
+        server.server.setPayloadInterner(new PayloadInterner(PayloadInterner.DEFAULT_MIN_SIZE));
+        server.start();
+
+        ImageHandler[] handlers = new ImageHandler[2];
+        for (int i=0; i<handlers.length; i++) {
+            ClientParameters params = new ClientParameters("VariantsTest-receiver"+i, ClientReceiveMode.ALL,
+                                                           Subscriptions.ALL, true);
+            if (i == 0) {
+                params.maxImageWidth = 300;
+                params.maxImageHeight = 200;
+            }
+            handlers[i] = new ImageHandler();
+            server.connect(params, handlers[i]);
+        }
+
+        ClientParameters params = new ClientParameters("VariantsTest-sender", ClientReceiveMode.NONE,
+                                                       Subscriptions.NONE, true);
+        ABBOEConnection sender = server.connect(params, new CountingHandler(""));
+
+        BufferedImage large = new BufferedImage(2000, 1500, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(large, "png", bos);
+        long startTime = System.currentTimeMillis();
+        for (int i=0; i<2; i++) {
+            sender.send(new ImageObject(bos.toByteArray(), "large.png"));
+        }
+
+        boolean ok = true;
+        for (ImageHandler handler: handlers) {
+            handler.settle(2);
+            log.info("Received images of sizes "+handler.sizes+" with variants "+handler.variants);
+            ok &= handler.sizes.size() == 2;
+        }
+        ok &= handlers[0].sizes.contains("320x240") && handlers[0].variants.contains("thumbnail");
+        ok &= handlers[1].sizes.contains("2000x1500") && handlers[1].variants.isEmpty();
+        ok &= variants.getNumScaled() == 1;
+        log.info(variants+", "+(System.currentTimeMillis()-startTime)+" ms");
+
+        // a shared frame, as from the vault, gets the very same variant frame on a cache hit
+        ImageVariants shared = new ImageVariants(1, ImageVariants.DEFAULT_MAX_BYTES);
+        EncodedFrame frame = EncodedFrame.encode(new ImageObject(bos.toByteArray(), "large.png"));
+        EncodedFrame first = awaitVariant(shared, frame, ImageVariants.Size.THUMBNAIL);
+        EncodedFrame second = awaitVariant(shared, frame, ImageVariants.Size.THUMBNAIL);
+        log.info("Variant of a shared frame reused: "+(first == second));
+        ok &= first != frame && first == second && shared.getNumHits() == 1;
+
+        // images already fitting count against the budget, too
+        long budget = 10 * ImageVariants.ENTRY_OVERHEAD;
+        ImageVariants bounded = new ImageVariants(1, budget);
+        for (int i=0; i<50; i++) {
+            BufferedImage small = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+            small.setRGB(0, 0, i);
+            bos = new ByteArrayOutputStream();
+            ImageIO.write(small, "png", bos);
+            frame = EncodedFrame.encode(new ImageObject(bos.toByteArray(), "small"+i+".png"));
+            ok &= awaitVariant(bounded, frame, ImageVariants.Size.THUMBNAIL) == frame;
+        }
+        log.info("After 50 images fitting already: "+bounded);
+        ok &= bounded.getCachedBytes() <= budget;
+
+        log.info(ok ? "Variants test OK" : "Variants test FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static EncodedFrame awaitVariant(ImageVariants variants, EncodedFrame original, ImageVariants.Size size) 
+            throws InterruptedException {
+        final EncodedFrame[] result = new EncodedFrame[1];
+        final CountDownLatch ready = new CountDownLatch(1);
+        variants.get(original, size, new ImageVariants.Listener() {
+            public void variantReady(EncodedFrame variant) {
+                result[0] = variant;
+                ready.countDown();
+            }
+        });
+        ready.await(10, TimeUnit.SECONDS);
+        return result[0];
+    }
+
+    /** 
+     * A server on loopback for a test, and clients registered to it. The server socket is bound on construction,
+     * so clients may connect as soon as the server has been configured and started.
+     */
+    private static class TestServer {
+        ABBOEServer server;
+        String id;
+        IServerAddress address;
+
+        TestServer(String name) throws IOException {
+            this(0, name);
+        }
+
+        /** @param index of the port to use, counting from {@link ABBOETests#TEST_BASE_PORT} */
+        TestServer(int index, String name) throws IOException {
+            id = "test-abboe-"+name;
+            server = new ABBOEServer(TEST_BASE_PORT+index, id, false);
+            address = Biomine3000Utils.parseServerAddress("localhost:"+(TEST_BASE_PORT+index));
+        }
+
+        TestServer start() {
+            server.startMainLoopThread();
+            return this;
+        }
+
+        /** Connect a client, returning once the server has registered it */
+        ABBOEConnection connect(ClientParameters params, TestHandler handler) throws IOException, InterruptedException {
+            Socket socket = Biomine3000Utils.connectToServer(address.getHost(), address.getPort());
+            ABBOEConnection connection = new ABBOEConnection(params, socket, new StdErrLogger());
+            connection.init(handler);
+            if (!sync(connection, handler)) {
+                throw new IOException("Client "+params.name+" not registered to "+address);
+            }
+            return connection;
+        }
+
+        /** 
+         * Wait until the server has handled everything sent so far by a client, by requesting the list of clients
+         * and awaiting the reply. Objects delayed by rate limits are not waited for. 
+         * @return false on timeout
+         */
+        boolean sync(ABBOEConnection connection, TestHandler handler) throws IOException, InterruptedException {
+            int numReplies = handler.getNumListReplies();
+            connection.sendClientListRequest();
+            return handler.awaitListReplies(numReplies+1, TIMEOUT_MILLIS);
+        }
+
+        /** 
+         * Wait until a client of given name has registered, as seen in the lists of clients requested by 
+         * another client, such as one not reading anything. 
+         * @return false on timeout
+         */
+        boolean awaitClient(String name, ABBOEConnection connection, TestHandler handler) 
+                throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (sync(connection, handler) && System.currentTimeMillis() < deadline) {
+                for (String other: handler.getOthers()) {
+                    if (other.startsWith(name)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /** 
+     * Handler of a test client, letting tests wait for objects to arrive instead of sleeping. 
+     * Replies to requests for the list of clients, as made by {@link TestServer#sync}, are not 
+     * passed to subclasses. Subclasses count objects with the lock held.
+     */
+    private abstract static class TestHandler implements ABBOEConnection.BusinessObjectHandler {
+        private int numListReplies = 0;
+        /** Other clients, as of the latest list of clients */
+        private List<String> others = Collections.emptyList();
+
+        @Override
+        public synchronized void handleObject(BusinessObject bo) {
+            if (bo.isEvent() && bo.getMetaData().getKnownEvent() == BusinessObjectEventType.CLIENTS_LIST_REPLY) {
+                numListReplies++;
+                others = bo.getMetaData().getList("others");
+            }
+            else {
+                handle(bo);
+            }
+            notifyAll();
+        }
+
+        abstract void handle(BusinessObject bo);
+
+        /** Number of objects of interest received so far */
+        abstract int count();
+
+        synchronized List<String> getOthers() {
+            return others;
+        }
+
+        synchronized int getNumListReplies() {
+            return numListReplies;
+        }
+
+        synchronized boolean awaitListReplies(int n, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long left;
+            while (numListReplies < n && (left = deadline - System.currentTimeMillis()) > 0) {
+                wait(left);
+            }
+            return numListReplies >= n;
+        }
+
+        /** 
+         * Wait until at least n objects of interest have been received, or until timeout.
+         * @return the number received 
+         */
+        synchronized int await(int n, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long left;
+            while (count() < n && (left = deadline - System.currentTimeMillis()) > 0) {
+                wait(left);
+            }
+            return count();
+        }
+
+        /** 
+         * Wait until n objects of interest have been received, and a while longer for any extra ones,
+         * which should not arrive.
+         * @return the number received 
+         */
+        int settle(int n) throws InterruptedException {
+            await(n, TIMEOUT_MILLIS);
+            return await(n+1, QUIET_MILLIS);
+        }
+
+        @Override
+        public void connectionTerminated() {
+            // no action
+        }
+
+        @Override
+        public void connectionTerminated(Exception e) {
+            // no action
+        }
+    }
+
+    /** Collects dimensions and variants of received images */
+    private static class ImageHandler extends TestHandler {
+        List<String> sizes = new ArrayList<String>();
+        List<String> variants = new ArrayList<String>();
+
+        void handle(BusinessObject bo) {
+            if (bo instanceof ImageObject) {
+                BufferedImage image = ((ImageObject)bo).getImage();
+                sizes.add(image != null ? image.getWidth()+"x"+image.getHeight() : "undecodable");
+                String variant = bo.getMetaData().getString(ImageVariants.VARIANT_KEY);
+                if (variant != null) {
+                    variants.add(variant);
+                }
+            }
+        }
+
+        int count() {
+            return sizes.size();
+        }
+    }
+
+    /** Counts plain texts equal to the one expected, and error events */
+    private static class CountingHandler extends TestHandler {
+        String text;
+        int count = 0;
+        int errors = 0;
+
+        CountingHandler(String text) {
+            this.text = text;
+        }
+
+        /** Count another text from now on */
+        synchronized void expect(String text) {
+            this.text = text;
+            this.count = 0;
+        }
+
+        void handle(BusinessObject bo) {
+            if (bo instanceof PlainTextObject && !bo.isEvent() && text.equals(((PlainTextObject)bo).getText())) {
+                count++;
+            }
+            else if (bo.isEvent() && BusinessObjectEventType.ERROR.toString().equals(bo.getMetaData().getEvent())) {
+                errors++;
+            }
+        }
+
+        int count() {
+            return count;
+        }
+    }
+
+    /** Delete a file, or a directory along with its contents */
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f: files) {
+                delete(f);
+            }
+        }
+        file.delete();
     }
 
     public static void main(String[] args) {
         ABBOETests tests = new ABBOETests(args);
         tests.run();
     }
-    
-}
\ No newline at end of file
+
+}
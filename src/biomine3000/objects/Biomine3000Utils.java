@@ -171,6 +171,41 @@ public class Biomine3000Utils {
         throw lastEx;
     }
     
+    /**
+     * Parse a server address of form "host:port". If no port is given,
+     * {@link Biomine3000Constants#DEFAULT_ABBOE_PORT} is used.
+     */
+    public static IServerAddress parseServerAddress(String hostAndPort) {
+        final String host;
+        final int port;
+        int i = hostAndPort.lastIndexOf(':');
+        if (i >= 0) {
+            host = hostAndPort.substring(0, i);
+            port = Integer.parseInt(hostAndPort.substring(i+1));
+        }
+        else {
+            host = hostAndPort;
+            port = DEFAULT_ABBOE_PORT;
+        }
+
+        return new IServerAddress() {
+            @Override
+            public int getPort() {
+                return port;
+            }
+
+            @Override
+            public String getHost() {
+                return host;
+            }
+
+            @Override
+            public String toString() {
+                return host+":"+port;
+            }
+        };
+    }
+
     /** Trivially get USER from env */
     public static String getUser() {
         return System.getenv("USER");
@@ -281,7 +316,24 @@ public class Biomine3000Utils {
     }
     
     public static BusinessObject makeRegisterPacket(ClientParameters clientParams) {
-        return makeRegisterPacket(clientParams.name, clientParams.receiveMode, clientParams.subscriptions);
+        BusinessObject registerObj = makeRegisterPacket(clientParams.name, clientParams.receiveMode, clientParams.subscriptions);
+        if (clientParams.replayLast != null) {
+            registerObj.getMetaData().put(ClientParameters.REPLAY_LAST_KEY, clientParams.replayLast);
+        }
+        if (clientParams.replaySince != null) {
+            registerObj.getMetaData().put(ClientParameters.REPLAY_SINCE_KEY, clientParams.replaySince);
+        }
+        if (clientParams.retained != null) {
+            registerObj.getMetaData().setBoolean(ClientParameters.RETAINED_KEY, clientParams.retained);
+        }
+        if (clientParams.maxImageWidth != null && clientParams.maxImageHeight != null) {
+            registerObj.getMetaData().put(ClientParameters.MAX_IMAGE_SIZE_KEY, 
+                                          clientParams.maxImageWidth+"x"+clientParams.maxImageHeight);
+        }
+        if (clientParams.flowControl) {
+            registerObj.getMetaData().setBoolean(ClientParameters.FLOW_CONTROL_KEY, true);
+        }
+        return registerObj;
     }
     
     
@@ -0,0 +1,173 @@
+package biomine3000.objects;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import util.dbg.Logger;
+
+/**
+ * Runs periodic broadcasts, such as images from a content vault every few seconds, or announcements
+ * every minute, on a small shared pool of threads, instead of a sleeping thread per broadcast.
+ *
+ * Each {@link Schedule} ticks at a fixed rate: ticks are due at multiples of the interval from the start,
+ * however long the task takes, so the schedule does not drift. A tick may be moved randomly by up to a given
+ * fraction of the interval (jitter), so that schedules started together do not stay in lockstep, without
+ * affecting the times at which later ticks are due. Should a schedule fall behind by more than an interval,
+ * the missed ticks are skipped rather than run in a burst. The interval may be changed on the fly.
+ *
+ * A single task is never run concurrently with itself, but tasks of different schedules may be run
+ * concurrently, so tasks should not block for long.
+ */
+public class BroadcastScheduler {
+
+    public static final int DEFAULT_NUM_THREADS = 2;
+
+    private static BroadcastScheduler shared;
+
+    private ScheduledExecutorService executor;
+    private Random random;
+
+    public BroadcastScheduler(int numThreads) {
+        this.executor = Executors.newScheduledThreadPool(Math.max(1, numThreads), new ThreadFactory() {
+            private int n = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "broadcast-scheduler-"+(++n));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.random = new Random();
+    }
+
+    /** Scheduler shared by all users not needing one of their own; created on first use */
+    public static synchronized BroadcastScheduler getShared() {
+        if (shared == null) {
+            shared = new BroadcastScheduler(DEFAULT_NUM_THREADS);
+        }
+        return shared;
+    }
+
+    /**
+     * Start running a task periodically, the first time right away.
+     * @param name for logging.
+     * @param jitter max random offset of each tick, as a fraction of the interval (0 for none, at most 0.5).
+     */
+    public Schedule schedule(String name, long intervalMillis, double jitter, Runnable task) {
+        Schedule schedule = new Schedule(name, intervalMillis, jitter, task);
+        schedule.start();
+        return schedule;
+    }
+
+    /** Cancel all schedules */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private synchronized long jitterNanos(long intervalNanos, double jitter) {
+        return jitter > 0 ? (long)((2*random.nextDouble()-1) * jitter * intervalNanos) : 0;
+    }
+
+    public class Schedule implements Runnable {
+        private String name;
+        private Runnable task;
+        private double jitter;
+        private long intervalNanos;
+        /** When the next tick is due, without jitter (System.nanoTime) */
+        private long due;
+        private ScheduledFuture<?> next;
+        private boolean running;
+        private boolean cancelled;
+        private long numTicks;
+
+        private Schedule(String name, long intervalMillis, double jitter, Runnable task) {
+            this.name = name;
+            this.task = task;
+            this.jitter = Math.max(0, Math.min(0.5, jitter));
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+        }
+
+        private synchronized void start() {
+            due = System.nanoTime();
+            next = executor.schedule(this, 0, TimeUnit.NANOSECONDS);
+        }
+
+        public void run() {
+            synchronized(this) {
+                if (cancelled) {
+                    return;
+                }
+                running = true;
+            }
+            try {
+                task.run();
+            }
+            catch (RuntimeException e) {
+                Logger.error("Broadcast "+name+" failed", e);
+            }
+            synchronized(this) {
+                running = false;
+                numTicks++;
+                if (!cancelled) {
+                    due += intervalNanos;
+                    scheduleNext();
+                }
+            }
+        }
+
+        /** Schedule the tick that is due next; to be called with the lock held */
+        private void scheduleNext() {
+            long now = System.nanoTime();
+            if (now - due > intervalNanos) {
+                // fell behind; skip missed ticks
+                due = now;
+            }
+            long delay = Math.max(0, due + jitterNanos(intervalNanos, jitter) - now);
+            next = executor.schedule(this, delay, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Change the interval, effective from the next tick: it is now due one new interval after
+         * the previous tick was due.
+         */
+        public synchronized void setInterval(long intervalMillis) {
+            long newIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+            if (newIntervalNanos == intervalNanos) {
+                return;
+            }
+            long oldIntervalNanos = intervalNanos;
+            intervalNanos = newIntervalNanos;
+            // a running tick schedules the next one using the new interval when done
+            if (!running && !cancelled && next.cancel(false)) {
+                if (numTicks > 0) {
+                    due += newIntervalNanos - oldIntervalNanos;
+                }
+                scheduleNext();
+            }
+        }
+
+        public synchronized long getInterval() {
+            return TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+        }
+
+        /** Number of ticks run so far */
+        public synchronized long getNumTicks() {
+            return numTicks;
+        }
+
+        /** Stop ticking; a tick already running is finished */
+        public synchronized void cancel() {
+            cancelled = true;
+            if (next != null) {
+                next.cancel(false);
+            }
+        }
+
+        public String toString() {
+            return "Schedule "+name+" (every "+getInterval()+" ms)";
+        }
+    }
+}
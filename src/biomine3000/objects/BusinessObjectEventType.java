@@ -10,6 +10,17 @@ public enum BusinessObjectEventType {
     ABBOE_CLOSE_NOTIFY("abboe/close/notify"),
     /** Sent to clients when ABBOE is about to shut down */
     ABBOE_SHUTDOWN_NOTIFY("abboe/shutdown/notify"),
+    /** 
+     * Sent by an ABBOE to its peer ABBOEs to tell which content its clients (and its other peers)
+     * have subscribed to; fields "peer" (the id of the sending ABBOE, see {@link ABBOEServer#PEER_KEY})
+     * and "subscriptions".
+     */
+    ABBOE_PEER_SUBSCRIPTIONS("abboe/peer/subscriptions"),
+    /**
+     * Sent by ABBOE to a client having requested flow control (see {@link ClientParameters#flowControl}),
+     * granting it credit for sending field "credit" more content objects.
+     */
+    ABBOE_CREDIT("abboe/credit"),
     
     SERVICES_REQUEST("services/request"),
     SERVICES_REPLY("services/reply"),
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.security.MessageDigest;
 
 
 import util.collections.Pair;
@@ -21,6 +22,11 @@ import util.dbg.StdErrLogger;
  * input stream once done (one of handle(XXXexception) methods called, or noMoreObjects() called.
  * noMoreObjects() WILL NOT be called if execution ends to an exception!
  * 
+ * If given a {@link PayloadInterner}, payloads are hashed while being read and interned, so that the 
+ * objects passed to the listener have shared payloads (see {@link BusinessObject#getSharedPayload()}). 
+ * The reader holds a reference to each such payload only until the listener returns; a listener 
+ * keeping hold of the payload beyond that needs to retain it.
+ * 
  * TODO: generalize this to obtain a generic PacketReader.
  */
 public class BusinessObjectReader implements Runnable {
@@ -33,6 +39,8 @@ public class BusinessObjectReader implements Runnable {
     private Listener listener;
     private String name;
     private boolean constructDedicatedImplementations;
+    /** Null if not interning payloads */
+    private PayloadInterner interner;
     
     public BusinessObjectReader(InputStream is, Listener listener, String name, boolean constructDedicatedImplementations) {
         this(is, listener, name, constructDedicatedImplementations, null);
@@ -56,6 +64,11 @@ public class BusinessObjectReader implements Runnable {
         this.name = name;
     }
     
+    /** To be called before starting to read */
+    public void setPayloadInterner(PayloadInterner interner) {
+        this.interner = interner;
+    }
+    
     public void run() {
         
         dbg("Starting run()");        
@@ -63,9 +76,16 @@ public class BusinessObjectReader implements Runnable {
         try {
             // log("Reading packet...");
             this.state = State.READING_PACKET;
-            Pair<BusinessObjectMetadata, byte[]> packet = BusinessObject.readPacket(is);            
+            MessageDigest digest = interner != null ? PayloadInterner.newDigest() : null;
+            Pair<BusinessObjectMetadata, byte[]> packet = readPacket(digest);            
         
             while (packet != null) {                
+                PayloadInterner.SharedPayload shared = null;
+                if (digest != null && packet.getObj2() != null) {
+                    shared = interner.intern(packet.getObj2(), digest.digest());
+                    packet = new Pair<BusinessObjectMetadata, byte[]>(packet.getObj1(), shared.bytes());
+                }
+                
                 BusinessObject bo;
                 if (constructDedicatedImplementations) {
                     bo = BusinessObject.makeObject(packet);
@@ -75,11 +95,22 @@ public class BusinessObjectReader implements Runnable {
                 }
                 
                 this.state = State.EXECUTING_LISTENER_OBJECT_RECEIVED;
-                listener.objectReceived(bo);                                        
+                if (shared != null) {
+                    bo.setSharedPayload(shared);
+                    try {
+                        listener.objectReceived(bo);
+                    }
+                    finally {
+                        shared.release();
+                    }
+                }
+                else {
+                    listener.objectReceived(bo);
+                }
                 
                 // log("Reading packet...");
                 this.state = State.READING_PACKET;
-                packet = BusinessObject.readPacket(is);
+                packet = readPacket(digest);
             }
                         
             listener.noMoreObjects();
@@ -107,6 +138,16 @@ public class BusinessObjectReader implements Runnable {
         dbg("Finished.");
     }
     
+    private Pair<BusinessObjectMetadata, byte[]> readPacket(MessageDigest digest) throws IOException, InvalidBusinessObjectException {
+        if (digest != null) {
+            digest.reset();
+            return BusinessObject.readPacket(is, digest);
+        }
+        else {
+            return BusinessObject.readPacket(is);
+        }
+    }
+    
     /**
      * Note that trivially it is not guaranteed that a thread getting the state can operate assuming 
      * the state will remain the same.
@@ -11,15 +11,40 @@ import java.util.List;
  *   <li>receive mode (affects what is sent to client by server; see {@link ClientReceiveMode})</li>
  *   <li>subscriptions (what content types are sent to client by server; see {@link Subscriptions})</li>
  *   <li>construct dedicated implementations for business objects?</li> 
+ *   <li>replayLast / replaySince: request the server to replay objects from its journal on registration 
+ *       (see {@link ABBOEJournal}); both are optional</li> 
+ *   <li>retained: should the server send its retained latest objects on registration (see 
+ *       {@link RetainedFrameCache})? Null to use server default (yes)</li> 
+ *   <li>maxImageWidth / maxImageHeight: dimensions of the screen of the client, so that the server may
+ *       send downscaled variants of large images (see {@link ImageVariants}); null for originals</li> 
+ *   <li>flowControl: should the server grant credits for sending content, so that {@link ABBOEConnection} 
+ *       blocks instead of piling up content the server cannot deliver (see {@link ABBOEServer#CREDIT_WINDOW})?</li> 
  * </ul> 
  */
 public class ClientParameters {
+    /** Register packet key: number of latest objects to replay */
+    public static final String REPLAY_LAST_KEY = "replay-last";
+    /** Register packet key: replay all objects since this time (millis since epoch) */
+    public static final String REPLAY_SINCE_KEY = "replay-since";
+    /** Register packet key: send retained objects? */
+    public static final String RETAINED_KEY = "retained";
+    /** Register packet key: max dimensions of images, as "WIDTHxHEIGHT" */
+    public static final String MAX_IMAGE_SIZE_KEY = "max-image-size";
+    /** Register packet key: grant credits for sending content? */
+    public static final String FLOW_CONTROL_KEY = "flow-control";
+    
     public String name;
     public String sender;
     public ClientReceiveMode receiveMode;
     public Subscriptions subscriptions;
     public boolean constructDedicatedImplementationsForBusineses;
     public List<String> services;
+    public Integer replayLast;
+    public Long replaySince;
+    public Boolean retained;
+    public Integer maxImageWidth;
+    public Integer maxImageHeight;
+    public boolean flowControl;
     
     public ClientParameters(String name,
                             ClientReceiveMode receiveMode,
@@ -44,6 +69,12 @@ public class ClientParameters {
     /** Copy constructor */
     public ClientParameters(ClientParameters original) {
          this(original.name, original.sender, original.receiveMode, original.subscriptions, original.constructDedicatedImplementationsForBusineses);
+         this.replayLast = original.replayLast;
+         this.replaySince = original.replaySince;
+         this.retained = original.retained;
+         this.maxImageWidth = original.maxImageWidth;
+         this.maxImageHeight = original.maxImageHeight;
+         this.flowControl = original.flowControl;
     }
     
     public void addServices(Biomine3000ServiceName... services) {
@@ -11,34 +11,56 @@ import biomine3000.objects.ContentVaultProxy.InvalidStateException;
 
 /**
  * Adapts an arbitraty {@link IBusinessObjectHandler} to receive periodic
- * updates from an content vault.  
+ * updates from an content vault. The updates are sent by a {@link BroadcastScheduler}, 
+ * by default the shared one, so that adapters do not need threads of their own. 
+ * 
+ * Handlers implementing {@link FrameHandler} receive the shared, pre-encoded frames of the vault
+ * instead of images decoded for each send.
  */
 public class ContentVaultAdapter {
 
     private static boolean log = false;    
     
+    /** Ticks are moved randomly by up to this fraction of the send interval */
+    private static final double SEND_JITTER = 0.05;
+    
     private IBusinessObjectHandler handler;
     private boolean firstImageLoaded;
     private ContentVaultProxy contentVaultProxy;
     private ContentListener contentListener;
-    private Sender sender;
+    private BroadcastScheduler scheduler;
+    /** Null until the first image has been loaded */
+    private BroadcastScheduler.Schedule schedule;
+    private boolean stopped;
     /** Time between sends (in millis) */
     private int sendInterval;
     
     /**
      * Creates a content vault and starts listening to it. Caller needs to call startLoading 
      * to instruct content vault to start loading content; this shall later trigger
-     * a sender thread to actually push content to the handler periodically, as dictated by 
+     * a schedule to actually push content to the handler periodically, as dictated by 
      * sendInterval.
      * 
      * @param sendInterval interval between sent objects (in milliseconds).
      */
     public ContentVaultAdapter(IBusinessObjectHandler handler, int sendInterval) {
+        this(handler, sendInterval, new ContentVaultProxy());
+    }
+    
+    /** As above, with a given uninitialized vault proxy */
+    public ContentVaultAdapter(IBusinessObjectHandler handler, int sendInterval, ContentVaultProxy contentVaultProxy) {
+        this(handler, sendInterval, contentVaultProxy, BroadcastScheduler.getShared());
+    }
+    
+    /** As above, sending using a given scheduler */
+    public ContentVaultAdapter(IBusinessObjectHandler handler, int sendInterval, ContentVaultProxy contentVaultProxy,
+                               BroadcastScheduler scheduler) {
         this.handler = handler;
+        this.scheduler = scheduler;
         this.sendInterval = sendInterval;
         // init communications with the server
         firstImageLoaded = false;
-        contentVaultProxy = new ContentVaultProxy();
+        this.contentVaultProxy = contentVaultProxy;
         contentListener = new ContentListener();
         contentVaultProxy.addListener(contentListener);        
     }
@@ -47,10 +69,22 @@ public class ContentVaultAdapter {
         contentVaultProxy.startLoading();
     }
     
-    /** Stop your business (instruct sender thread to stop sending content). */
-    public void stop() {
+    /** Stop your business (stop sending content, and stop refreshing the vault). */
+    public synchronized void stop() {
         log("stop requested");
-       sender.stop(); 
+        stopped = true;
+        if (schedule != null) {
+            schedule.cancel();
+        }
+        contentVaultProxy.stop();
+    }
+    
+    /** Change the interval between sent objects (in millis), effective from the next object */
+    public synchronized void setSendInterval(int sendInterval) {
+        this.sendInterval = sendInterval;
+        if (schedule != null) {
+            schedule.setInterval(sendInterval);
+        }
     }
     
     /** Sends event text as a PlainText "service/state-changed" event */
@@ -70,14 +104,13 @@ public class ContentVaultAdapter {
         }
 
         @Override
-        public void loadedImage(String image) {
+        public synchronized void loadedImage(String image) {
             String msg = "Loaded "+contentVaultProxy.getNumLoadedObjects()+"/"+contentVaultProxy.getTotalNumObjects()+" business objects";            
             sendEvent(msg);            
             if (firstImageLoaded == false) { 
-                log("First image loaded, starting sender thread to push content to handler");    
+                log("First image loaded, starting to push content to handler");    
                 firstImageLoaded = true;
-                sender = new Sender();
-                new Thread(sender).start();
+                startSending();
             }
         }
 
@@ -86,48 +119,46 @@ public class ContentVaultAdapter {
             log("All images have been loaded");
             
         }       
+        
+        @Override
+        public void removedImage(String image) {
+            sendEvent("Removed business object: "+image+", "+contentVaultProxy.getNumLoadedObjects()+" remaining");
+        }
     }
     
-    /** Sends random content from vault every 3 seconds to handler */
-    private class Sender implements Runnable {
-        private boolean stop = false;
-        
-        private void stop() {
-            log("stop requested");
-            stop = true;
+    private synchronized void startSending() {
+        if (!stopped) {
+            schedule = scheduler.schedule("vault-adapter", sendInterval, SEND_JITTER, new Sender());
         }
-                       
+    }
+    
+    /** Sends content from vault to handler on each tick of the schedule, in the playback order of the vault */
+    private class Sender implements Runnable {
         public void run() {
-            log("Sender running");
-            
-            while (!stop) {
-                try {                    
-                    ImageObject randomContent = contentVaultProxy.sampleImage();
-                    handler.handleObject(randomContent);
-                    Thread.sleep(sendInterval);
+            try {                    
+                if (handler instanceof FrameHandler) {
+                    ((FrameHandler)handler).handleFrame(contentVaultProxy.nextFrame());
                 }
-                catch (InvalidStateException e) {
-                    handler.handleObject(new ErrorObject(ExceptionUtils.format(e,"; ")));
-                    try {
-                        Thread.sleep(sendInterval);
-                    }
-                    catch (InterruptedException ie) {
-                        // no action
-                    }
-                }
-                catch (InterruptedException e) {
-                    // no action
+                else {
+                    ImageObject randomContent = contentVaultProxy.nextImage();
+                    handler.handleObject(randomContent);
                 }
-            }                        
-            
-            log("stopped");
-        }
-        
-        private void log(String msg) {
-            if (log) Logger.info("ContentVaultAdapter.Sender: "+msg);
+            }
+            catch (InvalidStateException e) {
+                handler.handleObject(new ErrorObject(ExceptionUtils.format(e,"; ")));
+            }
         }
     }      
       
+    /** 
+     * A handler able to send frames of the vault as such. Events of the adapter are still
+     * passed to {@link #handleObject(BusinessObject)}.
+     */
+    public interface FrameHandler extends IBusinessObjectHandler {
+        /** The frame is shared, and must not be modified */
+        public void handleFrame(EncodedFrame frame);
+    }
+    
     /** Unit testing */
     public static void main(String[] args) {
         ContentVaultAdapter adapter = new ContentVaultAdapter(
@@ -1,230 +1,923 @@
-package biomine3000.objects;
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.util.*;
- 
-import util.IOUtils;
-import util.RandUtils;
-import util.dbg.Logger;
-
-
-/**
- * A proxy to a remote content vault accessible via the web. This trivial version loads all content, and notifies listeners 
- * after each piece of content has been loaded.
- */
-public class ContentVaultProxy {
-    
-    private static boolean log = false;
-    public static String LERONEN_IMAGE_VAULT_URL = "http://www.cs.helsinki.fi/u/leronen/biomine3000/biomine_tv_image_vault";
-    public static String LERONEN_IMAGE_VAULT_FILELIST_URL = LERONEN_IMAGE_VAULT_URL+"/filelist.txt";
-    
-    /** only contains successfully loaded images */
-    private State state;
-    private List<String> urls; 
-    private Map<String, ImageObject> loadedImagesByURL;
-    private List<ContentVaultListener> listeners;
-    
-    /**
-     * Create and uninitialized vault proxy with no images. Do not start loading images yet
-     * until called for.
-     *
-     */
-    public ContentVaultProxy() {        
-        state = State.UNINITIALIZED;
-        // loadedImagesByURL = new TreeMap<String,BufferedImage>();
-        loadedImagesByURL = new TreeMap<String,ImageObject>();
-        listeners = new ArrayList<ContentVaultListener>();
-    }
-        
-    public int getNumLoadedObjects() {
-        return loadedImagesByURL.keySet().size();
-    }
-    
-    public int getTotalNumObjects() {
-        return urls.size(); 
-    }
-    
-    public void addListener(ContentVaultListener vaultListener) {
-        listeners.add(vaultListener);
-    }
-    
-    public void removeListener(ContentVaultListener vaultListener) {
-        listeners.remove(vaultListener);
-    }
-    
-    /** 
-     * Start loading images from the vault. Listeners shall be listened upon completion 
-     * of each image. Returns immediately. Remember to add listeners before calling this (?)
-     */
-    public void startLoading() {
-        new Thread(new Loader()).start();        
-    }
-    
-    /**
-     * Should only be called if called is certain that images have been loaded.
-     * Never return null.
-     */
-    public ImageObject sampleImage() throws InvalidStateException {
-        synchronized(loadedImagesByURL) {    
-            if (loadedImagesByURL == null || loadedImagesByURL.size() == 0) {
-                throw new InvalidStateException("No images to sample from");
-            }
-            
-            String url = RandUtils.sampleOne(loadedImagesByURL.keySet());
-            ImageObject image = loadedImagesByURL.get(url);
-            return image;
-        }            
-    }
-    
-    /** Load list of available images from a remote file. */
-    private static List<String> loadImageList(String filelistURLString) throws IOException {
-        List<String> result = new ArrayList<String>();
-        URL url= new URL(filelistURLString);
-        String protocol = url.getProtocol();
-        String hostName = url.getHost();               
-        File path = new File(url.getPath());
-        String dir = path.getParent().replace('\\', '/'); // windows...        
-        String baseName = protocol+"://"+hostName+dir;
-                        
-        try {     
-            // Create a URL for the desired page                   
-            BufferedReader in = new BufferedReader(new InputStreamReader(url.openStream()));            
-            String name;
-            while ((name = in.readLine()) != null) {     
-                String imageURL = baseName+"/"+name;
-                result.add(imageURL);
-            }   
-            return result;
-   
-        } catch (IOException e) {
-            Logger.error("Could now read file list from image vault", e);
-            return result;
-        }
-            
-    }
-       
-               
-    private class Loader implements Runnable {
-        public void run() {
-            if (state != State.UNINITIALIZED) {
-                throw new RuntimeException("Should only be called when state is "+State.UNINITIALIZED);
-            }
-            
-            state = State.LOADING_FILELIST;
-                        
-            try {
-                urls = loadImageList(LERONEN_IMAGE_VAULT_FILELIST_URL);
-                state = State.LOADING_IMAGES;
-                log("Filelist loaded");
-                for (ContentVaultListener listener: listeners) {
-                    listener.loadedImageList();
-                }
-            }
-            catch (IOException e) {
-                state = State.FAILED_LOADING_FILELIST;
-                Logger.warning("Failed loading filelist", e);
-                return;
-            }
-            
-            for (String url: urls) {
-                log("Loading image: "+url);
-                try {
-                   
-                    InputStream is = new URL(url).openStream();
-                    byte[] bytes = IOUtils.readBytes(is);                    
-                    ImageObject img = new ImageObject(bytes, url);
-                    
-                    log("Loaded image: "+url);
-                    synchronized(loadedImagesByURL) {                    
-                        loadedImagesByURL.put(url,  img);
-                    }
-                    for (ContentVaultListener listener: listeners) {
-                        listener.loadedImage(url);
-                        if (loadedImagesByURL.size() == urls.size()) {
-                            listener.loadedAllImages();
-                        }
-                    }
-                }
-                catch (IOException e) {
-                    Logger.warning("Failed loading image: "+url, e);                
-                }
-                catch (UnknownImageTypeException e) {
-                    Logger.warning("Failed loading image: "+url, e);                
-                }   
-            }
-                                                  
-            if (loadedImagesByURL.size() == 0) {
-                state = State.FAILED_LOADING_IMAGES;
-                Logger.error("Failed to load any images");
-            }
-            else {            
-                state = State.INITIALIZED_SUCCESSFULLY;
-                log("Loaded "+loadedImagesByURL.keySet().size()+"/"+urls.size()+" images");
-            }
-        }
-    }
-            
-    public interface ContentVaultListener {
-        /**
-         * Called after vault has loaded the list of images. Note that caller is reponsible 
-         * for doing the actual responding in a synchronized way (more spefifically, this 
-         * will not be called from the event dispatch thread)
-         */
-        public void loadedImageList();
-        
-       /** Called after vault has loaded each image.
-         * Note that caller is reponsible for doing the actual responding in a synchronized way (more spefifically, this 
-         * will not be called from the event dispatch thread)
-         */
-        public void loadedImage(String image);
-        
-        /**
-         * Called after all images have been loaded. Note that loading the last image
-         * has event has already been notified through {@link #loadedImage(String)}
-         * when this is called.
-         */
-        public void loadedAllImages();
-                    
-    }
-    
-    public static void main(String[] args) throws IOException {
-        List<String> urls = loadImageList(LERONEN_IMAGE_VAULT_FILELIST_URL);
-        for (String url: urls) {
-            System.out.println(url);
-        }
-        
-        ContentVaultProxy content = new ContentVaultProxy();
-        content.startLoading();
-    }    
-    
-    public State getState() {
-        return state;
-    }
-    
-    /** State of vault */
-    public enum State {
-        UNINITIALIZED,
-        LOADING_FILELIST,
-        LOADING_IMAGES,
-        FAILED_LOADING_FILELIST,
-        FAILED_LOADING_IMAGES,
-        INITIALIZED_SUCCESSFULLY;
-        
-    }
-    
-    public class InvalidStateException extends Exception {
-        public InvalidStateException(String msg) {
-            super(msg);
-        }
-    }
-    
-    private static void log(String msg) {
-        if (log) Logger.info("ContentVaultProxy: "+msg);
-    }    
-    
-}
+package biomine3000.objects;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+ 
+import util.IOUtils;
+import util.dbg.Logger;
+
+
+/**
+ * A proxy to a remote content vault accessible via the web. This trivial version loads all content, and notifies listeners 
+ * after each piece of content has been loaded.
+ * 
+ * Images are loaded by a pool of numThreads loader threads; urls are handed to the pool as soon as they are read from
+ * the file list, and at most a few urls per thread are kept waiting, so that reading the file list does not run ahead
+ * of the loaders.
+ * 
+ * Optionally, the vault is kept in a local {@link VaultPackFile}, which allows initializing at once 
+ * on startup; the images are then revalidated in the background, refetching only those changed in
+ * the vault. Works with http and file urls.
+ * 
+ * Images are held in a {@link VaultCache}, optionally bounded by a byte budget 
+ * (see {@link #setMaxCachedBytes(long)}); images evicted from the cache are reloaded from the local pack, 
+ * if any, or else from the vault, when next sampled.
+ * 
+ * Each image is encoded only once, when loaded, into an immutable {@link EncodedFrame} with the metadata 
+ * of the user of the vault (see {@link #setFrameMetadata(BusinessObjectMetadata)}) already stamped in, 
+ * so that sending an image to any number of receivers just means queueing the same shared frame.
+ * 
+ * Instead of a file list, the url may also denote a local directory, in which case the vault consists 
+ * of the image files in that directory. 
+ * 
+ * Optionally, the vault is refreshed after the initial load (see {@link #setRefreshInterval(long)}): 
+ * the file list is polled and compared to the images in the vault, or a local directory is watched 
+ * for changes. New images are loaded, and removed ones removed, one by one, notifying listeners of each.
+ */
+public class ContentVaultProxy {
+    
+    private static boolean log = false;
+    public static String LERONEN_IMAGE_VAULT_URL = "http://www.cs.helsinki.fi/u/leronen/biomine3000/biomine_tv_image_vault";
+    public static String LERONEN_IMAGE_VAULT_FILELIST_URL = LERONEN_IMAGE_VAULT_URL+"/filelist.txt";
+    
+    public static final int DEFAULT_NUM_THREADS = 8;
+    /** Max number of urls waiting for a loader thread, per thread */
+    private static final int MAX_PENDING_PER_THREAD = 2;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    /** Time to let files in a watched directory settle before loading them, so as not to load half-written files */
+    private static final int WATCH_SETTLE_MILLIS = 500;
+    /** Prefix of validators based on Last-Modified, rather than ETag */
+    private static final String LAST_MODIFIED_PREFIX = "lm:";
+    /** Number of images to try reloading when sampling evicted images, before giving up */
+    private static final int MAX_RELOAD_ATTEMPTS = 3;
+    
+    private String filelistURL;
+    /** Non-null if the vault is a local directory, rather than a file list */
+    private File directory;
+    private int numThreads;
+    /** 0 for no refreshing */
+    private long refreshIntervalMillis;
+    private volatile boolean stopped;
+    /** Local copy of the vault; null if none */
+    private VaultPackFile pack;
+    
+    /** only contains successfully loaded images */
+    private State state;
+    /** All urls read from the file list so far. Access to be synchronized on the list. */
+    private List<String> urls; 
+    /** Only contains successfully loaded images */
+    private VaultCache cache;
+    private VaultPlaylist.Mode playbackMode;
+    /** Stamped to the metadata of each frame */
+    private BusinessObjectMetadata frameMetadata;
+    /** Null if not preparing image variants */
+    private volatile ImageVariants imageVariants;
+    /** Created on demand, for the current cache */
+    private VaultPlaylist playlist;
+    private List<ContentVaultListener> listeners;
+    /** Counted down once the loader is done, including revalidation of images loaded from the local pack */
+    private CountDownLatch loaded;
+    
+    /**
+     * Create and uninitialized vault proxy with no images. Do not start loading images yet
+     * until called for.
+     *
+     */
+    public ContentVaultProxy() {        
+        this(LERONEN_IMAGE_VAULT_FILELIST_URL, DEFAULT_NUM_THREADS);
+    }
+    
+    /**
+     * Create an uninitialized proxy to a vault with a given file list, listing image files relative 
+     * to the directory of the file list. 
+     * @param numThreads number of images to load in parallel.
+     */
+    public ContentVaultProxy(String filelistURL, int numThreads) {
+        this.filelistURL = filelistURL;
+        this.numThreads = Math.max(1, numThreads);
+        try {
+            URL url = new URL(filelistURL);
+            if (url.getProtocol().equals("file") && new File(url.getPath()).isDirectory()) {
+                directory = new File(url.getPath());
+            }
+        }
+        catch (MalformedURLException e) {
+            // reported when loading
+        }
+        state = State.UNINITIALIZED;
+        cache = new VaultCache(0);
+        playbackMode = VaultPlaylist.Mode.UNIFORM;
+        frameMetadata = new BusinessObjectMetadata();
+        urls = new ArrayList<String>();
+        listeners = new CopyOnWriteArrayList<ContentVaultListener>();
+        loaded = new CountDownLatch(1);
+    }
+        
+    /** Number of images loaded, including ones since evicted from memory */
+    public int getNumLoadedObjects() {
+        return cache.size();
+    }
+    
+    /** Number of urls read from the file list so far */
+    public int getTotalNumObjects() {
+        synchronized(urls) {
+            return urls.size();
+        }
+    }
+    
+    /**
+     * Use a local pack file, loading images from it at startup, and keeping it up to date with the vault
+     * in the background. To be called before {@link #startLoading()}.
+     */
+    public void setPackFile(File file) throws IOException {
+        pack = new VaultPackFile(file);
+    }
+    
+    /**
+     * Bound the total size of image payloads kept in memory; 0 for no limit (the default).
+     * To be called before {@link #startLoading()}.
+     */
+    public synchronized void setMaxCachedBytes(long maxBytes) {
+        cache = new VaultCache(maxBytes);
+        playlist = null;
+    }
+    
+    /** How to choose images returned by {@link #nextImage()}; UNIFORM by default */
+    public synchronized void setPlaybackMode(VaultPlaylist.Mode mode) {
+        playbackMode = mode;
+        playlist = null;
+    }
+    
+    /**
+     * Metadata to be put to the frames of all images, such as the sender; none by default. 
+     * To be called before {@link #startLoading()}.
+     */
+    public void setFrameMetadata(BusinessObjectMetadata stamp) {
+        frameMetadata = stamp.clone();
+    }
+    
+    /** 
+     * Prepare downscaled variants of each image as it is loaded (as long as the variant cache has room), 
+     * so that they are ready when first sent; null to stop preparing. 
+     */
+    public void setImageVariants(ImageVariants imageVariants) {
+        this.imageVariants = imageVariants;
+    }
+    
+    /**
+     * Keep the vault up to date after the initial load, by polling the file list at given interval, 
+     * or, for a local directory, by watching it for changes (in which case the interval just needs 
+     * to be positive). 0 for no refreshing (the default). To be called before {@link #startLoading()}.
+     */
+    public void setRefreshInterval(long millis) {
+        refreshIntervalMillis = millis;
+    }
+    
+    /** Stop refreshing the vault */
+    public void stop() {
+        stopped = true;
+    }
+    
+    public VaultCache getCache() {
+        return cache;
+    }
+    
+    public void addListener(ContentVaultListener vaultListener) {
+        listeners.add(vaultListener);
+    }
+    
+    public void removeListener(ContentVaultListener vaultListener) {
+        listeners.remove(vaultListener);
+    }
+    
+    /** 
+     * Start loading images from the vault. Listeners shall be listened upon completion 
+     * of each image. Returns immediately. Remember to add listeners before calling this (?)
+     */
+    public void startLoading() {
+        new Thread(new Loader()).start();        
+    }
+    
+    /** 
+     * Wait until loading has finished, whether successfully or not. Unlike loadedAllImages, which is 
+     * notified at once when starting from a local pack, this also waits for the images to be revalidated
+     * and the pack to be saved, so that changed images are known to be in it. 
+     * @return false on timeout
+     */
+    public boolean awaitLoaded(long timeoutMillis) throws InterruptedException {
+        return loaded.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Should only be called if called is certain that images have been loaded.
+     * Never return null. The returned frame is shared, and must not be modified.
+     * 
+     * If the sampled image has been evicted from memory, it is reloaded from the local pack or the
+     * vault before returning; this may take a while in the latter case.
+     * 
+     * Samples uniformly at random; see {@link #nextFrame()} for other modes.
+     */
+    public EncodedFrame sampleFrame() throws InvalidStateException {
+        return frame(null);
+    }
+    
+    /**
+     * Next image to play according to the playback mode (see {@link #setPlaybackMode}). 
+     * Otherwise as {@link #sampleFrame()}.
+     */
+    public EncodedFrame nextFrame() throws InvalidStateException {
+        VaultPlaylist list;
+        synchronized(this) {
+            if (playlist == null) {
+                playlist = new VaultPlaylist(cache, playbackMode);
+            }
+            list = playlist;
+        }
+        return frame(list);
+    }
+    
+    /**
+     * As {@link #sampleFrame()}, decoded into an image object. A new object is returned on each call, 
+     * so that decoding the image does not make the vault hold on to the decoded image.
+     */
+    public ImageObject sampleImage() throws InvalidStateException {
+        return toImage(sampleFrame());
+    }
+    
+    /** As {@link #nextFrame()}, decoded into an image object; see {@link #sampleImage()}. */
+    public ImageObject nextImage() throws InvalidStateException {
+        return toImage(nextFrame());
+    }
+    
+    private static ImageObject toImage(EncodedFrame frame) {
+        ImageObject image = new ImageObject();
+        image.setMetadata(frame.getMetaData());
+        image.setPayload(frame.getPayload());
+        return image;
+    }
+    
+    /** Get frame of image chosen by given playlist, or uniformly at random, if null */
+    private EncodedFrame frame(VaultPlaylist list) throws InvalidStateException {
+        for (int attempt=0; attempt<MAX_RELOAD_ATTEMPTS; attempt++) {
+            String url = list != null ? list.next() : cache.sampleURL();
+            if (url == null) {
+                throw new InvalidStateException("No images to sample from");
+            }
+            
+            EncodedFrame frame = cache.getFrame(url);
+            if (frame == null) {
+                frame = reload(url);
+                if (frame == null || !cache.putIfKnown(url, frame)) {
+                    // failed, or removed from the vault while reloading
+                    continue;
+                }
+            }
+            return frame;
+        }
+        throw new InvalidStateException("Failed reloading evicted images");
+    }
+    
+    /** Encode an image loaded from given url */
+    private EncodedFrame encode(byte[] bytes, String url) throws UnknownImageTypeException {
+        return EncodedFrame.encode(new ImageObject(bytes, url), frameMetadata);
+    }
+    
+    /** Reload an evicted image from the local pack or from the vault; null on failure */
+    private EncodedFrame reload(String url) {
+        log("Reloading evicted image: "+url);
+        try {
+            VaultPackFile.Entry entry = pack != null ? pack.get(url) : null;
+            if (entry != null) {
+                return encode(pack.read(entry), url);
+            }
+            InputStream is = openStream(new URL(url));
+            try {
+                return encode(IOUtils.readBytes(is), url);
+            }
+            finally {
+                is.close();
+            }
+        }
+        catch (IOException e) {
+            Logger.warning("Failed reloading image: "+url, e);
+            return null;
+        }
+        catch (UnknownImageTypeException e) {
+            // only images of known types are ever loaded
+            throw new RuntimeException("Impossible: "+e);
+        }
+    }
+    
+    /** Base url of images listed in the file list at given url */
+    private static String baseURL(URL filelistURL) {
+        String protocol = filelistURL.getProtocol();
+        String hostName = filelistURL.getHost();
+        String port = filelistURL.getPort() != -1 ? ":"+filelistURL.getPort() : "";
+        File path = new File(filelistURL.getPath());
+        String dir = path.getParent().replace('\\', '/'); // windows...        
+        return protocol+"://"+hostName+port+dir;
+    }
+    
+    private static InputStream openStream(URL url) throws IOException {
+        URLConnection conn = url.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+        return conn.getInputStream();
+    }
+    
+    /** Base url of images of this vault */
+    private String imageBaseURL() throws MalformedURLException {
+        return directory != null ? "file://"+directory.getAbsolutePath().replace('\\', '/') : baseURL(new URL(filelistURL));
+    }
+    
+    /** Names of images in the vault: the lines of the file list, or image files in the local directory */
+    private BufferedReader openImageList() throws IOException {
+        if (directory == null) {
+            return new BufferedReader(new InputStreamReader(openStream(new URL(filelistURL))));
+        }
+        String[] names = directory.list();
+        if (names == null) {
+            throw new IOException("Cannot list directory "+directory);
+        }
+        Arrays.sort(names);
+        StringBuffer buf = new StringBuffer();
+        for (String name: names) {
+            if (Biomine3000Mimetype.getImageTypeByFileName(name) != null) {
+                buf.append(name+"\n");
+            }
+        }
+        return new BufferedReader(new StringReader(buf.toString()));
+    }
+    
+    /** Load list of urls of available images */
+    private List<String> loadImageList() throws IOException {
+        List<String> result = new ArrayList<String>();
+        String baseName = imageBaseURL();
+        BufferedReader in = openImageList();
+        try {
+            String name;
+            while ((name = in.readLine()) != null) {     
+                if (name.trim().length() > 0) {
+                    result.add(baseName+"/"+name);
+                }
+            }   
+            return result;
+        }
+        finally {
+            in.close();
+        }
+    }
+       
+    /**
+     * Load all images from the local pack, if any. Once the cache is full, only index entries
+     * are created, and the images are read from the pack only if sampled.
+     * @return true if any images were loaded.
+     */
+    private boolean loadFromPack() {
+        long startTime = System.currentTimeMillis();
+        for (VaultPackFile.Entry entry: pack.entries()) {
+            try {
+                cache.put(entry.url, cache.isFull() ? null : encode(pack.read(entry), entry.url), entry.added);
+                synchronized(urls) {
+                    urls.add(entry.url);
+                }
+            }
+            catch (IOException e) {
+                Logger.warning("Failed reading image from pack: "+entry.url, e);
+            }
+            catch (UnknownImageTypeException e) {
+                Logger.warning("Failed reading image from pack: "+entry.url, e);
+            }
+        }
+        
+        if (getNumLoadedObjects() == 0) {
+            return false;
+        }
+        
+        Logger.info("Loaded "+getNumLoadedObjects()+" images from local pack in "+
+                    (System.currentTimeMillis()-startTime)+" ms");
+        state = State.INITIALIZED_SUCCESSFULLY;
+        for (ContentVaultListener listener: listeners) {
+            listener.loadedImageList();
+        }
+        List<String> loadedURLs;
+        synchronized(urls) {
+            loadedURLs = new ArrayList<String>(urls);
+        }
+        for (String url: loadedURLs) {
+            for (ContentVaultListener listener: listeners) {
+                listener.loadedImage(url);
+            }
+        }
+        for (ContentVaultListener listener: listeners) {
+            listener.loadedAllImages();
+        }
+        return true;
+    }
+    
+    /**
+     * First loads any images in the local pack. Then reads the file list, handing each url to the 
+     * pool of image loaders as soon as it has been read, and waits for the loaders to finish.
+     * After that, loadedAllImages is notified (unless already done after loading from the pack),
+     * whether or not all images could be loaded.
+     */
+    private class Loader implements Runnable {
+        public void run() {
+            try {
+                load();
+            }
+            finally {
+                loaded.countDown();
+            }
+        }
+        
+        private void load() {
+            if (state != State.UNINITIALIZED) {
+                throw new RuntimeException("Should only be called when state is "+State.UNINITIALIZED);
+            }
+            
+            state = State.LOADING_FILELIST;
+            
+            // with a warm pack, the vault is initialized at once, and just revalidated in the background
+            boolean warm = pack != null && loadFromPack();
+            
+            ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+            Semaphore pending = new Semaphore(numThreads * (1+MAX_PENDING_PER_THREAD));
+            List<String> listedURLs = new ArrayList<String>();
+            boolean completeList = false;
+            try {
+                String baseName = imageBaseURL();
+                BufferedReader in = openImageList();
+                try {
+                    String name;
+                    while ((name = in.readLine()) != null) {
+                        if (name.trim().length() == 0) {
+                            continue;
+                        }
+                        String imageURL = baseName+"/"+name;
+                        listedURLs.add(imageURL);
+                        if (!warm) {
+                            synchronized(urls) {
+                                urls.add(imageURL);
+                            }
+                        }
+                        pending.acquireUninterruptibly();
+                        pool.execute(new ImageLoader(imageURL, pending));
+                    }
+                    completeList = true;
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch (IOException e) {
+                Logger.warning("Failed loading filelist", e);
+                if (listedURLs.size() == 0 && !warm) {
+                    state = State.FAILED_LOADING_FILELIST;
+                    pool.shutdownNow();
+                    return;
+                }
+                // otherwise, make do with the urls read so far
+            }
+            
+            if (!warm) {
+                state = State.LOADING_IMAGES;
+                log("Filelist loaded");
+                for (ContentVaultListener listener: listeners) {
+                    listener.loadedImageList();
+                }
+            }
+            
+            pool.shutdown();
+            try {
+                while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log("Still loading images: "+getNumLoadedObjects()+"/"+getTotalNumObjects());
+                }
+            }
+            catch (InterruptedException e) {
+                Logger.warning("Interrupted while waiting for images to load");
+            }
+            
+            if (pack != null) {
+                if (completeList) {
+                    // forget images no longer in the vault
+                    pack.retainOnly(listedURLs);
+                    cache.retainOnly(new HashSet<String>(listedURLs));
+                    synchronized(urls) {
+                        urls.clear();
+                        urls.addAll(listedURLs);
+                    }
+                }
+                try {
+                    pack.save();
+                }
+                catch (IOException e) {
+                    Logger.warning("Failed saving local pack", e);
+                }
+            }
+            
+            if (warm) {
+                log("Revalidated local pack: "+getNumLoadedObjects()+"/"+getTotalNumObjects()+" images");
+                startRefreshing();
+                return;
+            }
+                                                  
+            if (getNumLoadedObjects() == 0) {
+                state = State.FAILED_LOADING_IMAGES;
+                Logger.error("Failed to load any images");
+            }
+            else {            
+                state = State.INITIALIZED_SUCCESSFULLY;
+                log("Loaded "+getNumLoadedObjects()+"/"+getTotalNumObjects()+" images");
+            }
+            
+            for (ContentVaultListener listener: listeners) {
+                listener.loadedAllImages();
+            }
+            startRefreshing();
+        }
+    }
+    
+    private void startRefreshing() {
+        if (refreshIntervalMillis > 0 && !stopped) {
+            Thread thread = new Thread(new Refresher(), "vault-refresher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+    
+    /**
+     * Compare the current list of images to the images in the vault, loading new ones and removing 
+     * those no longer listed. Images that failed to load earlier are retried.
+     */
+    private void refresh() {
+        List<String> listed;
+        try {
+            listed = loadImageList();
+        }
+        catch (IOException e) {
+            Logger.warning("Failed refreshing vault: "+e.getMessage());
+            return;
+        }
+        Set<String> listedSet = new HashSet<String>(listed);
+        Set<String> loaded = new HashSet<String>(cache.urls());
+        for (String url: loaded) {
+            if (!listedSet.contains(url)) {
+                removeImage(url);
+            }
+        }
+        List<String> added = new ArrayList<String>();
+        for (String url: listed) {
+            if (!loaded.contains(url)) {
+                added.add(url);
+            }
+        }
+        loadImages(added);
+    }
+    
+    /** Load (or reload) given images in parallel, and wait for them to be loaded */
+    private void loadImages(Collection<String> imageURLs) {
+        if (imageURLs.isEmpty()) {
+            return;
+        }
+        log("Loading "+imageURLs.size()+" new or changed images");
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(numThreads, imageURLs.size()));
+        Semaphore pending = new Semaphore(0);
+        for (String url: imageURLs) {
+            synchronized(urls) {
+                if (!urls.contains(url)) {
+                    urls.add(url);
+                }
+            }
+            pool.execute(new ImageLoader(url, pending));
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Logger.warning("Interrupted while waiting for images to load");
+        }
+        if (state == State.FAILED_LOADING_IMAGES && getNumLoadedObjects() > 0) {
+            state = State.INITIALIZED_SUCCESSFULLY;
+        }
+        savePack();
+    }
+    
+    /** Remove an image no longer in the vault, notifying listeners */
+    private void removeImage(String url) {
+        log("Removing image: "+url);
+        synchronized(urls) {
+            urls.remove(url);
+        }
+        if (pack != null) {
+            pack.remove(url);
+        }
+        if (cache.remove(url)) {
+            for (ContentVaultListener listener: listeners) {
+                listener.removedImage(url);
+            }
+        }
+    }
+    
+    private void savePack() {
+        if (pack != null) {
+            try {
+                pack.save();
+            }
+            catch (IOException e) {
+                Logger.warning("Failed saving local pack", e);
+            }
+        }
+    }
+    
+    /** Polls the file list, or watches the local directory */
+    private class Refresher implements Runnable {
+        public void run() {
+            try {
+                if (directory != null) {
+                    watch();
+                }
+                else {
+                    while (!stopped) {
+                        Thread.sleep(refreshIntervalMillis);
+                        if (!stopped) {
+                            refresh();
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Logger.warning("Vault refresher interrupted");
+            }
+            catch (IOException e) {
+                Logger.error("Failed watching vault directory "+directory, e);
+            }
+        }
+        
+        private void watch() throws IOException, InterruptedException {
+            WatchService watcher = FileSystems.getDefault().newWatchService();
+            try {
+                directory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, 
+                                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                // catch up with changes made before starting to watch
+                refresh();
+                String baseName = imageBaseURL();
+                while (!stopped) {
+                    WatchKey key = watcher.poll(1, TimeUnit.SECONDS);
+                    if (key == null) {
+                        continue;
+                    }
+                    Thread.sleep(WATCH_SETTLE_MILLIS);
+                    boolean overflow = false;
+                    Set<String> changed = new LinkedHashSet<String>();
+                    for (WatchEvent<?> event: key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                            continue;
+                        }
+                        String name = ((Path)event.context()).toString();
+                        if (Biomine3000Mimetype.getImageTypeByFileName(name) != null) {
+                            changed.add(name);
+                        }
+                    }
+                    if (!key.reset()) {
+                        Logger.error("Vault directory "+directory+" no longer accessible");
+                        return;
+                    }
+                    
+                    if (overflow) {
+                        // lost track of events
+                        refresh();
+                        continue;
+                    }
+                    List<String> loadable = new ArrayList<String>();
+                    for (String name: changed) {
+                        if (new File(directory, name).exists()) {
+                            loadable.add(baseName+"/"+name);
+                        }
+                        else {
+                            removeImage(baseName+"/"+name);
+                        }
+                    }
+                    loadImages(loadable);
+                }
+            }
+            finally {
+                watcher.close();
+            }
+        }
+    }
+    
+    /** ETag, or Last-Modified as "lm:millis", or null if neither is known */
+    private static String getValidator(URLConnection conn) {
+        String etag = conn.getHeaderField("ETag");
+        if (etag != null) {
+            return etag;
+        }
+        long lastModified = conn.getLastModified();
+        return lastModified > 0 ? LAST_MODIFIED_PREFIX+lastModified : null;
+    }
+    
+    /** 
+     * Time an image not in the local pack was first seen: its Last-Modified (the mtime of a file), so that 
+     * it stays the same across restarts even without a pack, or the current time if not known.
+     */
+    private static long firstSeen(URLConnection conn) {
+        long lastModified = conn.getLastModified();
+        return lastModified > 0 ? Math.min(lastModified, System.currentTimeMillis()) : System.currentTimeMillis();
+    }
+    
+    /** 
+     * Loads a single image, run by the loader pool. If the image is in the local pack, the 
+     * image is only refetched if changed, as indicated by its ETag or Last-Modified. 
+     */
+    private class ImageLoader implements Runnable {
+        String url;
+        Semaphore pending;
+        
+        ImageLoader(String url, Semaphore pending) {
+            this.url = url;
+            this.pending = pending;
+        }
+        
+        public void run() {
+            log("Loading image: "+url);
+            try {
+                VaultPackFile.Entry cached = pack != null ? pack.get(url) : null;
+                URLConnection conn = new URL(url).openConnection();
+                conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+                conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+                if (cached != null && cached.validator != null) {
+                    if (cached.validator.startsWith(LAST_MODIFIED_PREFIX)) {
+                        conn.setIfModifiedSince(Long.parseLong(cached.validator.substring(LAST_MODIFIED_PREFIX.length())));
+                    }
+                    else {
+                        conn.setRequestProperty("If-None-Match", cached.validator);
+                    }
+                }
+                conn.connect();
+                
+                String validator = null;
+                if (cached != null) {
+                    boolean notModified = conn instanceof HttpURLConnection 
+                            && ((HttpURLConnection)conn).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+                    validator = getValidator(conn);
+                    if (notModified || (validator != null && validator.equals(cached.validator))) {
+                        // works also for file urls and servers not supporting conditional requests
+                        log("Not modified: "+url);
+                        if (conn instanceof HttpURLConnection) {
+                            ((HttpURLConnection)conn).disconnect();
+                        }
+                        else {
+                            conn.getInputStream().close();
+                        }
+                        return;
+                    }
+                }
+                
+                InputStream is = conn.getInputStream();
+                byte[] bytes;
+                try {
+                    bytes = IOUtils.readBytes(is);
+                }
+                finally {
+                    is.close();
+                }
+                ImageObject img = new ImageObject(bytes, url);
+                // as first seen by the pack, so that restarting does not make the whole vault new 
+                long added = cached != null && cached.added > 0 ? cached.added : firstSeen(conn);
+                if (pack != null) {
+                    pack.put(url, new File(new URL(url).getPath()).getName(), img.getMetaData().getType(), 
+                             bytes, getValidator(conn), added);
+                }
+                
+                log("Loaded image: "+url);
+                EncodedFrame frame = EncodedFrame.encode(img, frameMetadata);
+                cache.put(url, frame, added);
+                ImageVariants variants = imageVariants;
+                if (variants != null) {
+                    variants.prepare(frame);
+                }
+                for (ContentVaultListener listener: listeners) {
+                    listener.loadedImage(url);
+                }
+            }
+            catch (IOException e) {
+                Logger.warning("Failed loading image: "+url, e);                
+            }
+            catch (UnknownImageTypeException e) {
+                Logger.warning("Failed loading image: "+url, e);                
+            }
+            catch (RuntimeException e) {
+                Logger.warning("Failed loading image: "+url, e);
+            }
+            finally {
+                pending.release();
+            }
+        }
+    }
+            
+    public interface ContentVaultListener {
+        /**
+         * Called after vault has loaded the list of images. Note that caller is reponsible 
+         * for doing the actual responding in a synchronized way (more spefifically, this 
+         * will not be called from the event dispatch thread). Some images may already have 
+         * been loaded when this is called.
+         */
+        public void loadedImageList();
+        
+       /** Called after vault has loaded each image, including images added or changed after the initial load.
+         * Called again for an image if it is changed and reloaded.
+         * Note that caller is reponsible for doing the actual responding in a synchronized way (more spefifically, this 
+         * will not be called from the event dispatch thread, and may be called from multiple loader threads 
+         * concurrently)
+         */
+        public void loadedImage(String image);
+        
+        /**
+         * Called once after loading of all images has been attempted, even if some (or all) of them 
+         * failed to load; see {@link ContentVaultProxy#getState()}. Note that loading the last image
+         * has event has already been notified through {@link #loadedImage(String)}
+         * when this is called.
+         */
+        public void loadedAllImages();
+        
+        /** 
+         * Called after an image has been removed from the vault, when refreshing. Called from the refresher 
+         * thread, so the same notes apply as for {@link #loadedImage(String)}.
+         */
+        public void removedImage(String image);
+                    
+    }
+    
+    public static void main(String[] args) throws IOException {
+        String filelistURL = args.length > 0 ? args[0] : LERONEN_IMAGE_VAULT_FILELIST_URL;
+        int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_NUM_THREADS;
+        final ContentVaultProxy content = new ContentVaultProxy(filelistURL, numThreads);
+        List<String> urls = content.loadImageList();
+        for (String url: urls) {
+            System.out.println(url);
+        }
+        
+        final long startTime = System.currentTimeMillis();
+        content.addListener(new ContentVaultListener() {
+            public void loadedImageList() {}
+            public void loadedImage(String image) {}
+            public void loadedAllImages() {
+                System.out.println("Loaded "+content.getNumLoadedObjects()+"/"+content.getTotalNumObjects()+
+                                   " images in "+(System.currentTimeMillis()-startTime)+" ms");
+            }
+            public void removedImage(String image) {}
+        });
+        content.startLoading();
+    }    
+    
+    public State getState() {
+        return state;
+    }
+    
+    /** State of vault */
+    public enum State {
+        UNINITIALIZED,
+        LOADING_FILELIST,
+        LOADING_IMAGES,
+        FAILED_LOADING_FILELIST,
+        FAILED_LOADING_IMAGES,
+        INITIALIZED_SUCCESSFULLY;
+        
+    }
+    
+    public class InvalidStateException extends Exception {
+        public InvalidStateException(String msg) {
+            super(msg);
+        }
+    }
+    
+    private static void log(String msg) {
+        if (log) Logger.info("ContentVaultProxy: "+msg);
+    }    
+    
+}
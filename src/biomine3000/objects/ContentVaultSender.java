@@ -1,6 +1,7 @@
 package biomine3000.objects;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
@@ -13,12 +14,19 @@ import biomine3000.objects.ContentVaultProxy;
  * Sends objects from the notorious content vault with a constant interval
  * to provide a tuning image for BiomineTV®.
  * 
- * Note that sending is synchronous, that is we do not want to accumulate content which 
- * will not be read by the server anyway.
+ * We do not want to accumulate content which will not be read by the server anyway, so the 
+ * connection uses flow control (see {@link ClientParameters#flowControl}): should the server not have
+ * granted a credit by the time of sending the next object, that object is skipped.
  * 
- * Use a {@link ContentVaultProxy} for loading the stuff over the web.
+ * Use a {@link ContentVaultProxy} for loading the stuff over the web. The channel is stamped 
+ * to the frames of the vault when loading, so that sent frames need not be re-encoded. 
+ * 
+ * Optionally also sends a plain text announcement to the same channel at a (longer) interval of its own;
+ * both are scheduled by the shared {@link BroadcastScheduler}.
  */
-public class ContentVaultSender implements IBusinessObjectHandler {
+public class ContentVaultSender implements ContentVaultAdapter.FrameHandler {
+
+    private static final String CHANNEL = "virityskuva";
 
     private static final ClientParameters CLIENT_PARAMS = 
             new ClientParameters("ContentVaultSender", ClientReceiveMode.NONE, 
@@ -26,6 +34,8 @@ public class ContentVaultSender implements IBusinessObjectHandler {
     
     private boolean stopped;
     private ContentVaultAdapter vaultAdapter;
+    /** Null if no announcements */
+    private BroadcastScheduler.Schedule announcer;
     private int nSent;
     private Integer nToSend;
         
@@ -37,7 +47,8 @@ public class ContentVaultSender implements IBusinessObjectHandler {
      * @param nToSend number of objects to send, null for no limit. 
      * @param sendInterval send interval in milliseconds.
      */
-    private ContentVaultSender(Socket socket, Integer nToSend, Integer sendInterval, ILogger log) throws UnknownHostException, IOException {
+    private ContentVaultSender(Socket socket, Integer nToSend, Integer sendInterval, ContentVaultProxy vault, 
+                               ILogger log) throws UnknownHostException, IOException {
         this.log = log;
         
         // init state information
@@ -46,12 +57,17 @@ public class ContentVaultSender implements IBusinessObjectHandler {
         this.stopped = false;
         ClientParameters clientParams = new ClientParameters(CLIENT_PARAMS);
         clientParams.sender = "ContentVaultSender-"+Biomine3000Utils.getUser();
+        clientParams.flowControl = true;
         
-        this.connection = new ABBOEConnection(CLIENT_PARAMS, socket, log);
+        this.connection = new ABBOEConnection(clientParams, socket, log);
         this.connection.init(new ObjectHandler());
                        
+        BusinessObjectMetadata stamp = new BusinessObjectMetadata();
+        stamp.put("channel", CHANNEL);
+        vault.setFrameMetadata(stamp);
+        
         // init adapter which we will use to periodically receive business objects from the content vault proxy
-        this.vaultAdapter = new ContentVaultAdapter(this, sendInterval);                            
+        this.vaultAdapter = new ContentVaultAdapter(this, sendInterval, vault);                            
     }
     
     /** Start your business */
@@ -59,10 +75,40 @@ public class ContentVaultSender implements IBusinessObjectHandler {
         vaultAdapter.startLoading();
     }
     
+    /** Send given text to the channel every intervalMillis, starting right away */
+    public synchronized void startAnnouncing(final String text, long intervalMillis) {
+        if (stopped) {
+            return;
+        }
+        final BusinessObject announcement = new PlainTextObject(text);
+        announcement.getMetaData().put("channel", CHANNEL);
+        announcer = BroadcastScheduler.getShared().schedule("announcement", intervalMillis, 0, new Runnable() {
+            public void run() {
+                log.info("Sending announcement: "+text);
+                try {
+                    if (!connection.send(announcement, 0)) {
+                        log.info("No credit from server, skipping announcement");
+                    }
+                }
+                catch (IOException e) {
+                    log.error("Failed sending announcement, stopping", e);
+                    stopAnnouncing();
+                }
+            }
+        });
+    }
+    
+    private synchronized void stopAnnouncing() {
+        if (announcer != null) {
+            announcer.cancel();
+        }
+    }
+    
     /** Stop your business */
     public void stopSending() {
         log.info("stopSending requested");
         stopped = true;
+        stopAnnouncing();
         vaultAdapter.stop();
         connection.initiateShutdown();        
     }
@@ -71,6 +117,7 @@ public class ContentVaultSender implements IBusinessObjectHandler {
     public void serverClosedConnection() {
         log.info("server closed connection");
         stopped = true;
+        stopAnnouncing();
         vaultAdapter.stop();            
     }
                
@@ -88,11 +135,14 @@ public class ContentVaultSender implements IBusinessObjectHandler {
             return;
         }
         
-        obj.getMetaData().put("channel", "virityskuva");        
+        obj.getMetaData().put("channel", CHANNEL);        
         log.info("Writing an object with following metadata: "+obj.getMetaData());
         
         try {
-            connection.send(obj);
+            if (!connection.send(obj, 0)) {
+                log.info("No credit from server, skipping object");
+                return;
+            }
             nSent++;
             if (nToSend != null && nSent >= nToSend) {
                 stopSending();
@@ -101,6 +151,32 @@ public class ContentVaultSender implements IBusinessObjectHandler {
             log.error("Failed sending business object, stopping", e);
             vaultAdapter.stop();
         }         
+    }
+    
+    /** Handle shared frame from the vault adapter, already stamped with the channel */
+    @Override
+    public void handleFrame(EncodedFrame frame) {
+        if (stopped) {
+            // no more buizness
+            log.info("No more buizness");
+            return;
+        }
+        
+        log.info("Writing a frame: "+frame);
+        
+        try {
+            if (!connection.send(frame, 0)) {
+                log.info("No credit from server, skipping frame");
+                return;
+            }
+            nSent++;
+            if (nToSend != null && nSent >= nToSend) {
+                stopSending();
+            }
+        } catch (IOException e) {
+            log.error("Failed sending frame, stopping", e);
+            vaultAdapter.stop();
+        }         
     }    
             
     public static void main(String[] pArgs) throws Exception {                
@@ -117,17 +193,46 @@ public class ContentVaultSender implements IBusinessObjectHandler {
             log.info("Only sending "+nToSend+" objects");
         }          
                     
+        String vaultURL = args.get("vault_url");
+        if (vaultURL == null) {
+            vaultURL = ContentVaultProxy.LERONEN_IMAGE_VAULT_FILELIST_URL;
+        }
+        int vaultThreads = args.getIntOpt("vault_threads", ContentVaultProxy.DEFAULT_NUM_THREADS);
+        ContentVaultProxy vault = new ContentVaultProxy(vaultURL, vaultThreads);
+        // 0 for loading the vault only once
+        vault.setRefreshInterval(args.getIntOpt("vault_refresh_s", 0)*1000L);
+        String vaultPack = args.get("vault_pack");
+        if (vaultPack != null) {
+            vault.setPackFile(new File(vaultPack));
+        }
+        vault.setMaxCachedBytes(args.getIntOpt("vault_cache_mb", 0)*1024L*1024L);
+        // uniform, shuffle or weighted
+        String playback = args.get("playback");
+        if (playback != null) {
+            VaultPlaylist.Mode mode = VaultPlaylist.Mode.parse(playback);
+            if (mode == null) {
+                log.error("Unknown playback mode: "+playback);
+                System.exit(1);
+            }
+            vault.setPlaybackMode(mode);
+        }
+        
         ContentVaultSender sender = null;
         
         try {
             Socket socket = Biomine3000Utils.connectToServer(args);            
-            sender = new ContentVaultSender(socket, nToSend, sendInterval, log);
+            sender = new ContentVaultSender(socket, nToSend, sendInterval, vault, log);
         }
         catch (IOException e) {
             log.error("Could not find a server");
             System.exit(1);
         }                       
                         
+        String announcement = args.get("announcement");
+        if (announcement != null) {
+            sender.startAnnouncing(announcement, args.getIntOpt("announce_interval_s", 60)*1000L);
+        }
+        
         log.info("Request startLoadingContent");
         sender.startLoadingContent();
         log.info("Exiting main thread");        
@@ -0,0 +1,169 @@
+package biomine3000.objects;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A business object encoded once into its wire format (see {@link BusinessObject}), to be sent
+ * as is to any number of receivers, possibly by many threads at once.
+ *
+ * Immutable: the frame is never modified after encoding, and only read-only views of it are handed
+ * out (except to senders within this package, which are trusted not to write to it).
+ */
+public final class EncodedFrame {
+
+    private final byte[] frame;
+    private final int payloadOffset;
+    /** Private copy, as encoded */
+    private final BusinessObjectMetadata metadata;
+    /** Computed on demand */
+    private volatile String contentHash;
+
+    private EncodedFrame(byte[] frame, int payloadOffset, BusinessObjectMetadata metadata) {
+        this.frame = frame;
+        this.payloadOffset = payloadOffset;
+        this.metadata = metadata;
+    }
+
+    /** Encode an object as is */
+    public static EncodedFrame encode(BusinessObject obj) {
+        return encode(obj, new BusinessObjectMetadata());
+    }
+
+    /**
+     * Encode an object with the keys of given metadata stamped over its own
+     * (see {@link BusinessObject#stampedMetaData(BusinessObjectMetadata)}). The object is not modified.
+     */
+    public static EncodedFrame encode(BusinessObject obj, BusinessObjectMetadata stamp) {
+        BusinessObjectMetadata meta = obj.stampedMetaData(stamp);
+        byte[] frame = obj.encode(meta);
+        int payloadOffset = meta.hasPayload() ? frame.length - obj.getPayload().length : frame.length;
+        return new EncodedFrame(frame, payloadOffset, meta);
+    }
+
+    /**
+     * An object already encoded, either as a whole (see {@link BusinessObject#bytes()}), or as a header 
+     * (see {@link BusinessObject#encodeHeader(BusinessObjectMetadata)}) to be followed by given payload, 
+     * such as a shared one; the metadata is not encoded again. For senders in this package only, as the 
+     * frame is not copied, if whole.
+     * @param payload null if the header is the whole frame.
+     */
+    static EncodedFrame fromParts(BusinessObject obj, byte[] header, byte[] payload) {
+        BusinessObjectMetadata meta = obj.stampedMetaData(new BusinessObjectMetadata());
+        if (payload == null) {
+            int payloadLength = meta.hasPayload() ? obj.getPayload().length : 0;
+            return new EncodedFrame(header, header.length-payloadLength, meta);
+        }
+        byte[] frame = Arrays.copyOf(header, header.length+payload.length);
+        System.arraycopy(payload, 0, frame, header.length, payload.length);
+        return new EncodedFrame(frame, header.length, meta);
+    }
+
+    /**
+     * The payload of this frame with other metadata, the payload size of which is set accordingly. 
+     * Only the metadata is encoded; the payload is copied as is.
+     */
+    EncodedFrame withMetaData(BusinessObjectMetadata meta) {
+        meta = meta.clone();
+        int payloadLength = frame.length-payloadOffset;
+        meta.put("size", payloadLength);
+        byte[] header = BusinessObject.encodeHeader(meta);
+        byte[] newFrame = Arrays.copyOf(header, header.length+payloadLength);
+        System.arraycopy(frame, payloadOffset, newFrame, header.length, payloadLength);
+        return new EncodedFrame(newFrame, header.length, meta);
+    }
+
+    /** All of the frame but the payload; a copy */
+    byte[] header() {
+        return Arrays.copyOf(frame, payloadOffset);
+    }
+
+    /** Whether all of the frame but the payload equals given header */
+    boolean hasHeader(byte[] header) {
+        if (header.length != payloadOffset) {
+            return false;
+        }
+        for (int i = 0; i < payloadOffset; i++) {
+            if (frame[i] != header[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Length of the whole frame, in bytes */
+    public int length() {
+        return frame.length;
+    }
+
+    /** A read-only view of the whole frame */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+    }
+
+    /** The frame itself, for senders in this package only; never to be modified */
+    byte[] array() {
+        return frame;
+    }
+
+    public boolean isEvent() {
+        return metadata.isEvent();
+    }
+
+    /** Null if no payload */
+    public String getType() {
+        return metadata.getType();
+    }
+
+    /** A copy of the metadata, as encoded */
+    public BusinessObjectMetadata getMetaData() {
+        return metadata.clone();
+    }
+
+    /** A copy of the payload; null if none */
+    public byte[] getPayload() {
+        if (!metadata.hasPayload()) {
+            return null;
+        }
+        byte[] payload = new byte[frame.length-payloadOffset];
+        System.arraycopy(frame, payloadOffset, payload, 0, payload.length);
+        return payload;
+    }
+
+    /**
+     * SHA-1 of the payload (of the empty payload, if none), as a hex string. Frames with equal 
+     * payloads have equal hashes, whatever their metadata.
+     */
+    public String getContentHash() {
+        String hash = contentHash;
+        if (hash == null) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            }
+            catch (NoSuchAlgorithmException e) {
+                // required of all java platforms
+                throw new RuntimeException("No SHA-1 available", e);
+            }
+            digest.update(frame, payloadOffset, frame.length-payloadOffset);
+            StringBuilder buf = new StringBuilder();
+            for (byte b: digest.digest()) {
+                buf.append(String.format("%02x", b & 0xff));
+            }
+            hash = buf.toString();
+            contentHash = hash;
+        }
+        return hash;
+    }
+
+    /** Decode into a new business object, which may be freely modified by the caller */
+    public BusinessObject toBusinessObject() {
+        return BusinessObject.makeObject(getMetaData(), getPayload());
+    }
+
+    public String toString() {
+        return "EncodedFrame ("+frame.length+" bytes): "+metadata.formatWithoutPayload();
+    }
+}
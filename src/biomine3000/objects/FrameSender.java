@@ -0,0 +1,351 @@
+package biomine3000.objects;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import util.dbg.DevNullLogger;
+import util.dbg.ILogger;
+
+/**
+ * Sends frames (business objects as transmittable bytes) to a single socket in a dedicated thread,
+ * in the spirit of {@link util.net.NonBlockingSender}. Frames are given as byte buffers,
+ * which may also be slices of memory-mapped files (see {@link ABBOEJournal}); such frames are
+ * written in chunks, without ever copying a whole frame to the heap.
+ *
+ * A frame may consist of multiple parts (e.g. metadata and payload), which are always written
+ * back-to-back. A frame with a payload shared with other frames (see {@link PayloadInterner})
+ * holds a reference to it until written.
+ *
+ * Frames are queued in two lanes (see {@link Lane}): control frames (events and small texts)
+ * are sent before bulk frames (images, mp3s, replayed frames...), so that e.g. a register reply
+ * does not have to wait behind megabytes of queued media. To avoid starving bulk frames, one bulk
+ * frame is sent after every {@link #MAX_CONTROL_BURST} consecutive control frames. A frame is
+ * never interrupted once its writing has begun.
+ *
+ * Within the bulk lane, frames are queued per source (publishing client) and served by deficit
+ * round robin, in quanta of {@link #BULK_QUANTUM} bytes, so that a flood from one source cannot
+ * monopolize the link: each source with frames waiting gets an equal share of the bytes sent.
+ *
+ * The number of bytes queued from each source is tracked (see {@link #queuedBytes(String)}), so that
+ * the server may slow down sources whose content piles up (see {@link ABBOEServer#CREDIT_WINDOW}).
+ *
+ * After {@link #requestStop()}, frames already queued are still sent, after which the
+ * listener is notified.
+ */
+public class FrameSender implements Runnable {
+
+    /** Max number of bytes copied at a time from a buffer not backed by an array */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Non-event frames up to this size go to the control lane */
+    public static final int SMALL_FRAME_SIZE = 4 * 1024;
+
+    /** Max number of control frames sent in a row while bulk frames are waiting */
+    public static final int MAX_CONTROL_BURST = 8;
+
+    /** Bytes added to a bulk source's deficit on each round */
+    public static final int BULK_QUANTUM = 64 * 1024;
+
+    private ILogger log;
+    private String name;
+    private OutputStream os;
+    private Listener listener;
+
+    /** Access to these should be synchronized on this sender */
+    private LinkedList<Frame> controlQueue;
+    /** Sources with bulk frames waiting, in round robin order */
+    private LinkedList<SourceQueue> bulkQueues;
+    private Map<String, SourceQueue> bulkQueueBySource;
+    /** Bytes queued in either lane, by source; sources with nothing queued are not present */
+    private Map<String, Long> queuedBytesBySource;
+    private int bulkLength;
+    private int controlBurst;
+    private boolean stopRequested;
+    private boolean finished;
+
+    /** Starts a thread for sending right away. */
+    public FrameSender(Socket socket, Listener listener, ILogger log) throws IOException {
+        this.os = socket.getOutputStream();
+        this.listener = listener;
+        this.log = log != null ? log : DevNullLogger.SINGLETON;
+        this.name = "sender-"+socket.getRemoteSocketAddress();
+        this.controlQueue = new LinkedList<Frame>();
+        this.bulkQueues = new LinkedList<SourceQueue>();
+        this.bulkQueueBySource = new HashMap<String, SourceQueue>();
+        this.queuedBytesBySource = new HashMap<String, Long>();
+        this.bulkLength = 0;
+        this.controlBurst = 0;
+        this.stopRequested = false;
+        this.finished = false;
+        new Thread(this).start();
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /** Put a frame to queue of frames to be sent and return immediately. Lane is chosen by size. */
+    public void send(byte[] frame) throws IOException {
+        send(Lane.forFrame(false, frame.length), ByteBuffer.wrap(frame));
+    }
+
+    /** Put a frame to given lane and return immediately. */
+    public void send(Lane lane, byte[] frame) throws IOException {
+        send(lane, ByteBuffer.wrap(frame));
+    }
+
+    /** Put a frame from given source (null if not known) to given lane and return immediately. */
+    public void send(Lane lane, String source, byte[] frame) throws IOException {
+        send(lane, source, ByteBuffer.wrap(frame));
+    }
+
+    /** As {@link #send(Lane, String, ByteBuffer...)}, with an unknown source */
+    public void send(Lane lane, ByteBuffer... parts) throws IOException {
+        send(lane, null, parts);
+    }
+
+    /**
+     * Put a frame consisting of one or more parts to queue of frames to be sent and return immediately.
+     * The buffers must not be modified by the caller afterwards; their positions will not be changed
+     * by this sender.
+     */
+    public void send(Lane lane, String source, ByteBuffer... parts) throws IOException {
+        send(lane, source, null, parts);
+    }
+    
+    /**
+     * As {@link #send(Lane, String, ByteBuffer...)}, for a frame having a shared payload (wrapped by one of
+     * the parts). The payload is retained until the frame has been written; the caller keeps its own reference. 
+     */
+    public synchronized void send(Lane lane, String source, PayloadInterner.SharedPayload payload, 
+                                  ByteBuffer... parts) throws IOException {
+        if (finished || stopRequested) {
+            throw new IOException("No more sending business for "+name);
+        }
+        ByteBuffer[] buffers = new ByteBuffer[parts.length];
+        for (int i=0; i<parts.length; i++) {
+            buffers[i] = parts[i].duplicate();
+        }
+        if (source == null) {
+            source = "";
+        }
+        Frame frame = new Frame(buffers, source, payload != null ? payload.retain() : null);
+        addQueuedBytes(source, frame.length);
+        if (lane == Lane.CONTROL) {
+            controlQueue.add(frame);
+        }
+        else {
+            SourceQueue queue = bulkQueueBySource.get(source);
+            if (queue == null) {
+                queue = new SourceQueue(source);
+                bulkQueueBySource.put(source, queue);
+                bulkQueues.add(queue);
+            }
+            queue.frames.add(frame);
+            bulkLength++;
+        }
+        notifyAll();
+    }
+
+    /** Number of frames waiting to be sent */
+    public synchronized int queueLength() {
+        return controlQueue.size() + bulkLength;
+    }
+
+    /** Number of bytes waiting to be sent from given source (null if not known) */
+    public synchronized long queuedBytes(String source) {
+        Long bytes = queuedBytesBySource.get(source != null ? source : "");
+        return bytes != null ? bytes : 0;
+    }
+
+    private void addQueuedBytes(String source, long bytes) {
+        Long old = queuedBytesBySource.get(source);
+        long total = (old != null ? old : 0) + bytes;
+        if (total > 0) {
+            queuedBytesBySource.put(source, total);
+        }
+        else {
+            queuedBytesBySource.remove(source);
+        }
+    }
+
+    /** Stop after sending all frames already in queue. */
+    public synchronized void requestStop() {
+        stopRequested = true;
+        notifyAll();
+    }
+
+    /** @return null when stopped and nothing more to send */
+    private synchronized Frame take() throws InterruptedException {
+        while (queueLength() == 0 && !stopRequested) {
+            wait();
+        }
+        Frame frame;
+        if (!controlQueue.isEmpty() && (bulkLength == 0 || controlBurst < MAX_CONTROL_BURST)) {
+            controlBurst++;
+            frame = controlQueue.removeFirst();
+        }
+        else if (bulkLength > 0) {
+            controlBurst = 0;
+            frame = takeBulk();
+        }
+        else {
+            return null;
+        }
+        addQueuedBytes(frame.source, -frame.length);
+        return frame;
+    }
+
+    /** Deficit round robin over sources. Only to be called when there are bulk frames. */
+    private Frame takeBulk() {
+        while (true) {
+            SourceQueue queue = bulkQueues.getFirst();
+            Frame frame = queue.frames.getFirst();
+            int length = frame.length;
+            if (queue.deficit < length) {
+                // not enough credit this round, move on to next source
+                queue.deficit += BULK_QUANTUM;
+                if (bulkQueues.size() > 1) {
+                    bulkQueues.addLast(bulkQueues.removeFirst());
+                }
+                continue;
+            }
+            queue.deficit -= length;
+            queue.frames.removeFirst();
+            bulkLength--;
+            if (queue.frames.isEmpty()) {
+                bulkQueues.removeFirst();
+                bulkQueueBySource.remove(queue.source);
+            }
+            return frame;
+        }
+    }
+
+    private static int length(ByteBuffer[] frame) {
+        int length = 0;
+        for (ByteBuffer part: frame) {
+            length += part.remaining();
+        }
+        return length;
+    }
+
+    private void write(ByteBuffer buf, byte[] chunk) throws IOException {
+        if (buf.hasArray()) {
+            os.write(buf.array(), buf.arrayOffset()+buf.position(), buf.remaining());
+        }
+        else {
+            while (buf.hasRemaining()) {
+                int n = Math.min(chunk.length, buf.remaining());
+                buf.get(chunk, 0, n);
+                os.write(chunk, 0, n);
+            }
+        }
+    }
+
+    public void run() {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try {
+            Frame frame = take();
+            while (frame != null) {
+                try {
+                    for (ByteBuffer part: frame.parts) {
+                        write(part, chunk);
+                    }
+                }
+                finally {
+                    frame.release();
+                }
+                if (queueLength() == 0) {
+                    os.flush();
+                }
+                frame = take();
+            }
+            os.flush();
+        }
+        catch (IOException e) {
+            log.error(name+": failed sending", e);
+        }
+        catch (InterruptedException e) {
+            log.error(name+": interrupted");
+        }
+
+        synchronized(this) {
+            finished = true;
+            for (Frame frame: controlQueue) {
+                frame.release();
+            }
+            controlQueue.clear();
+            for (SourceQueue queue: bulkQueues) {
+                for (Frame frame: queue.frames) {
+                    frame.release();
+                }
+            }
+            bulkQueues.clear();
+            bulkQueueBySource.clear();
+            queuedBytesBySource.clear();
+            bulkLength = 0;
+        }
+        listener.senderFinished();
+    }
+
+    public String toString() {
+        return name;
+    }
+
+    /** A queued frame */
+    private static class Frame {
+        ByteBuffer[] parts;
+        int length;
+        String source;
+        /** Null if none */
+        PayloadInterner.SharedPayload payload;
+
+        Frame(ByteBuffer[] parts, String source, PayloadInterner.SharedPayload payload) {
+            this.parts = parts;
+            this.length = length(parts);
+            this.source = source;
+            this.payload = payload;
+        }
+
+        void release() {
+            if (payload != null) {
+                payload.release();
+                payload = null;
+            }
+        }
+    }
+
+    /** Bulk frames of a single source */
+    private static class SourceQueue {
+        String source;
+        LinkedList<Frame> frames = new LinkedList<Frame>();
+        /** Bytes this source may still send in the current round */
+        int deficit = 0;
+
+        SourceQueue(String source) {
+            this.source = source;
+        }
+    }
+
+    /** Priority class of a frame */
+    public enum Lane {
+        /** Events and small texts */
+        CONTROL,
+        /** Everything else */
+        BULK;
+
+        public static Lane forFrame(boolean isEvent, int length) {
+            return isEvent || length <= SMALL_FRAME_SIZE ? CONTROL : BULK;
+        }
+    }
+
+    public interface Listener {
+        /** Called once, after sending the last frame (or after failing to send) */
+        public void senderFinished();
+    }
+}
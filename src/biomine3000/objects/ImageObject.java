@@ -1,100 +1,255 @@
-package biomine3000.objects;
-
-import java.awt.image.BufferedImage;
-
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import javax.imageio.ImageIO;
-
-
-import util.StringUtils;
-
-
-/**
- * Represent image both as java-decoded BufferedImage and the original bytes
- * (bytes managed by superclass). An image usually has property "name".
- * 
- * Initialize the BufferedImage from payload on demand. 
- * 
- * Unfortunately this means that any errors in decoding are deferred until image access.
- */ 
-public class ImageObject extends BusinessObject {
-            
-    
-    /** Created on demand */
-    private BufferedImage image;
-    
-    /** Exception caught during decoding image, if any. Not raised, but instead stored for later reference */
-    private IOException imageDecodingException;
-    
-    /** Create unitialized instance. */
-    public ImageObject() {
-        super();
-    }
-                       
-    /** Create a new business object to be sent; payload length will be set to metadata automatically */
-    public ImageObject(Biomine3000Mimetype type, byte[] payload) {
-        super(type, payload);
-    }
-    
-    /** Create a new business object to be sent; payload length will be set to metadata automatically */
-    public ImageObject(byte[] payload, String fileName) throws UnknownImageTypeException {
-        super();
-        String extension = StringUtils.getExtension(fileName);
-        if (extension == null) {
-            throw new UnknownImageTypeException(fileName);
-        }
-        
-        Biomine3000Mimetype type = Biomine3000Mimetype.getByExtension(extension);
-        if (type == null) {
-            throw new UnknownImageTypeException(fileName);
-        }
-            
-        BusinessObjectMetadata meta = new BusinessObjectMetadata(type);
-        meta.put("name", fileName);
-        setMetadata(meta);
-        
-        setPayload(payload);
-        
-    }
-        
-    private void initImage() throws IOException {        
-        byte[] payload = getPayload();
-        ByteArrayInputStream bais = new ByteArrayInputStream(payload);
-        image = ImageIO.read(bais);
-    }
-    
-    /**
-     * KOVA PÄÄTÖS: return null on failure to load bytes. Caller may obtain 
-     * exception by method getException to alleviate wondering about receiving a null.
-     */
-    public BufferedImage getImage() {
-        if (imageDecodingException != null) {
-            // already failed decoding
-            return null;
-        }
-            
-        if (image == null) {
-            // not yet decoded        
-            try {
-                initImage();
-            }
-            catch (IOException e) {
-                imageDecodingException = e; 
-            }
-        }
-        
-        return image;
-    }
-    
-    public String toString() {
-        String name = getMetaData().getString("name");
-        if (name == null) {
-            name = "(no name)";
-        }
-        return getMetaData().getType()+": "+name;
-    }
-            
-
-
-}
+package biomine3000.objects;
+
+import java.awt.image.BufferedImage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+
+
+import util.StringUtils;
+
+
+/**
+ * Represent image both as java-decoded BufferedImage and the original bytes
+ * (bytes managed by superclass). An image usually has property "name".
+ * 
+ * Initialize the BufferedImage from payload on demand. 
+ * 
+ * Unfortunately this means that any errors in decoding are deferred until image access.
+ * 
+ * An image to be shown at a smaller size may be decoded at reduced resolution, by skipping
+ * pixels while decoding (see {@link #getImage(int, int, PreviewListener)}); then only the reduced
+ * image is kept.
+ * 
+ * Decoding is done holding the lock of the object, but the decoded image is guarded by a lock of
+ * its own, so that releasing it (see {@link #releaseImage()}) never waits for decoding to finish.
+ */ 
+public class ImageObject extends BusinessObject {
+            
+    
+    /** Created on demand */
+    private BufferedImage image;
+    /** Factor by which the image was subsampled when decoded; 1 if decoded at full resolution */
+    private int subsampling;
+    /** Whether released since decoding started, so that the image being decoded is not kept */
+    private boolean released;
+    /** Guards image, subsampling and released */
+    private final Object imageLock = new Object();
+    /** Size of the image at full resolution; known once decoded */
+    private int fullWidth;
+    private int fullHeight;
+    
+    /** Exception caught during decoding image, if any. Not raised, but instead stored for later reference */
+    private IOException imageDecodingException;
+    
+    /** Create unitialized instance. */
+    public ImageObject() {
+        super();
+    }
+                       
+    /** Create a new business object to be sent; payload length will be set to metadata automatically */
+    public ImageObject(Biomine3000Mimetype type, byte[] payload) {
+        super(type, payload);
+    }
+    
+    /** Create a new business object to be sent; payload length will be set to metadata automatically */
+    public ImageObject(byte[] payload, String fileName) throws UnknownImageTypeException {
+        super();
+        String extension = StringUtils.getExtension(fileName);
+        if (extension == null) {
+            throw new UnknownImageTypeException(fileName);
+        }
+        
+        Biomine3000Mimetype type = Biomine3000Mimetype.getByExtension(extension);
+        if (type == null) {
+            throw new UnknownImageTypeException(fileName);
+        }
+            
+        BusinessObjectMetadata meta = new BusinessObjectMetadata(type);
+        meta.put("name", fileName);
+        setMetadata(meta);
+        
+        setPayload(payload);
+        
+    }
+        
+    /**
+     * Decode the image, subsampled to be at least given size, if possible, and at most twice as large.
+     * @param width 0 for full resolution. 
+     * @return the decoded image, kept unless released meanwhile
+     */
+    private BufferedImage initImage(int width, int height, final PreviewListener listener) throws IOException {        
+        ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(getPayload()));
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            iis.close();
+            throw new IOException("No image reader for "+getMetaData().getType());
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(iis, true, true);
+            fullWidth = reader.getWidth(0);
+            fullHeight = reader.getHeight(0);
+            int factor = subsamplingFor(width, height);
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (factor > 1) {
+                param.setSourceSubsampling(factor, factor, 0, 0);
+            }
+            if (listener != null) {
+                reader.addIIOReadUpdateListener(new PassAdapter(listener));
+            }
+            BufferedImage decoded = reader.read(0, param);
+            synchronized(imageLock) {
+                if (!released) {
+                    image = decoded;
+                    subsampling = factor;
+                }
+            }
+            return decoded;
+        }
+        finally {
+            reader.dispose();
+            iis.close();
+        }
+    }
+    
+    /** Largest factor leaving the image at least given size; to be called only once full size is known */
+    private int subsamplingFor(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return 1;
+        }
+        return Math.max(1, Math.min(fullWidth / width, fullHeight / height));
+    }
+    
+    /**
+     * KOVA PÄÄTÖS: return null on failure to load bytes. Caller may obtain 
+     * exception by method getException to alleviate wondering about receiving a null.
+     */
+    public BufferedImage getImage() {
+        return getImage(0, 0, null);
+    }
+    
+    /**
+     * The image, at a resolution sufficient for showing it in given size: subsampled by the largest 
+     * integer factor leaving it at least that size (or full size, if smaller). The image is decoded 
+     * again only if the image already decoded (if any) is not large enough.
+     * 
+     * As {@link #getImage()}, return null on failure.
+     * 
+     * @param width 0 for full resolution.
+     * @param listener to be given a coarse preview, should the image be progressive, such as a 
+     *        progressive jpeg; null for none. 
+     */
+    public synchronized BufferedImage getImage(int width, int height, PreviewListener listener) {
+        if (imageDecodingException != null) {
+            // already failed decoding
+            return null;
+        }
+        
+        synchronized(imageLock) {
+            if (image != null && subsampling <= subsamplingFor(width, height)) {
+                return image;
+            }
+            // not yet decoded, or not at sufficient resolution
+            image = null;
+            subsampling = 0;
+            released = false;
+        }
+        
+        try {
+            return initImage(width, height, listener);
+        }
+        catch (IOException e) {
+            imageDecodingException = e;
+            return null;
+        }
+    }
+    
+    /** Factor by which the image was subsampled when decoded; 1 if at full resolution, 0 if not decoded */ 
+    public int getSubsampling() {
+        synchronized(imageLock) {
+            return subsampling;
+        }
+    }
+    
+    /** 
+     * Drop the decoded image, keeping only the payload, to be decoded again should the image be needed; 
+     * for keeping images around without the memory of decoded ones. Does not wait for an image being 
+     * decoded; that one is returned to the caller decoding it, but not kept.
+     */
+    public void releaseImage() {
+        synchronized(imageLock) {
+            image = null;
+            subsampling = 0;
+            released = true;
+        }
+    }
+    
+    /** Receives a coarse preview of a progressive image being decoded */
+    public interface PreviewListener {
+        /** @param preview the image as decoded by the first pass; to be copied, as decoding goes on */
+        public void previewReady(BufferedImage preview);
+    }
+    
+    /** Hands the image over as a preview once the first pass is complete, if more passes follow */
+    private static class PassAdapter implements IIOReadUpdateListener {
+        private PreviewListener listener;
+        
+        PassAdapter(PreviewListener listener) {
+            this.listener = listener;
+        }
+        
+        public void passStarted(ImageReader source, BufferedImage theImage, int pass, int minPass, int maxPass,
+                                int minX, int minY, int periodX, int periodY, int[] bands) {
+            if (pass == 1) {
+                listener.previewReady(theImage);
+            }
+        }
+        
+        public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY, int width, int height,
+                                int periodX, int periodY, int[] bands) {
+            // no action
+        }
+        
+        public void passComplete(ImageReader source, BufferedImage theImage) {
+            // no action
+        }
+        
+        public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass, int minPass,
+                                         int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+            // no action
+        }
+        
+        public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX, int minY, int width,
+                                    int height, int periodX, int periodY, int[] bands) {
+            // no action
+        }
+        
+        public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {
+            // no action
+        }
+    }
+    
+    /** Exception caught while decoding the image, if any (see {@link #getImage()}) */
+    public IOException getException() {
+        return imageDecodingException;
+    }
+    
+    public String toString() {
+        String name = getMetaData().getString("name");
+        if (name == null) {
+            name = "(no name)";
+        }
+        return getMetaData().getType()+": "+name;
+    }
+            
+
+
+}
@@ -0,0 +1,336 @@
+package biomine3000.objects;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageIO;
+
+import util.dbg.Logger;
+
+/**
+ * Produces downscaled variants of images (see {@link Size}) for clients which do not want images
+ * at full resolution, such as TVs with small screens (see {@link ClientParameters#maxImageWidth}).
+ *
+ * Variants are produced by a pool of worker threads, and cached by the content hash of the original
+ * payload (see {@link EncodedFrame#getContentHash()}), so that an image sent to many clients, or
+ * sent repeatedly, is scaled only once per size. The cache holds variants as encoded frames, within a
+ * byte budget, each entry costing {@link #ENTRY_OVERHEAD} besides its frame; the least recently used
+ * ones are evicted first. The frame of a variant carries the metadata of the original frame, with type
+ * and size of the variant, and {@link #VARIANT_KEY} set to the name of the size. The cached frame is
+ * sent as is for an original with the same metadata, such as a shared vault frame; for others, only
+ * the metadata is encoded anew.
+ *
+ * Images already fitting within a size are not scaled; the original frame is used instead. So is the
+ * original, should decoding or scaling fail.
+ */
+public class ImageVariants {
+
+    public static final int DEFAULT_NUM_THREADS = 2;
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    /** Metadata key for the size of a variant; not present in originals */
+    public static final String VARIANT_KEY = "variant";
+
+    /** 
+     * Nominal cost of a cached variant besides its frame, so that entries telling to use the original,
+     * which have no frame, count against the budget as well 
+     */
+    public static final int ENTRY_OVERHEAD = 512;
+
+    private ExecutorService pool;
+    private long maxBytes;
+    private long cachedBytes;
+    /** Keyed by content hash and size, in access order */
+    private LinkedHashMap<String, Variant> cache;
+    /** Requests waiting for a variant being produced, by key */
+    private Map<String, List<Request>> pending;
+    private int numScaled;
+    private int numHits;
+
+    public ImageVariants(int numThreads, long maxBytes) {
+        this.pool = Executors.newFixedThreadPool(Math.max(1, numThreads), new ThreadFactory() {
+            private int n = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "image-variants-"+(++n));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.maxBytes = maxBytes;
+        this.cachedBytes = 0;
+        this.cache = new LinkedHashMap<String, Variant>(16, 0.75f, true);
+        this.pending = new HashMap<String, List<Request>>();
+    }
+
+    /**
+     * Get the variant of given size of an image frame. The listener is called with the variant
+     * once available, which may happen in this very call, if cached, or later, from a worker thread.
+     */
+    public void get(EncodedFrame original, Size size, Listener listener) {
+        get(original, null, size, listener);
+    }
+
+    /**
+     * As {@link #get(EncodedFrame, Size, Listener)}, given a hash of the payload of the original
+     * already at hand, so that it need not be computed again.
+     * @param contentHash hex hash of the payload, such as the hash by which it was interned (see 
+     *        {@link PayloadInterner.SharedPayload#getHash()}); null to use the content hash of the frame 
+     *        (see {@link EncodedFrame#getContentHash()}). Hashes of different lengths never collide. 
+     */
+    public void get(EncodedFrame original, String contentHash, Size size, Listener listener) {
+        String key = (contentHash != null ? contentHash : original.getContentHash())+"/"+size;
+        Variant variant;
+        synchronized(this) {
+            variant = cache.get(key);
+            if (variant == null) {
+                List<Request> waiting = pending.get(key);
+                if (waiting == null) {
+                    waiting = new ArrayList<Request>();
+                    pending.put(key, waiting);
+                    pool.execute(new Scaler(key, original, size));
+                }
+                waiting.add(new Request(original, listener));
+                return;
+            }
+            numHits++;
+        }
+        if (listener != null) {
+            listener.variantReady(variant.frame(original, size));
+        }
+    }
+
+    /** Start producing all variants of an image in the background, unless the cache is already full */
+    public void prepare(EncodedFrame original) {
+        synchronized(this) {
+            if (maxBytes > 0 && cachedBytes >= maxBytes) {
+                return;
+            }
+        }
+        for (Size size: Size.values()) {
+            get(original, size, null);
+        }
+    }
+
+    public synchronized int getNumScaled() {
+        return numScaled;
+    }
+
+    public synchronized int getNumHits() {
+        return numHits;
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    public synchronized String toString() {
+        return "ImageVariants ("+cache.size()+" variants cached, "+cachedBytes+"/"+maxBytes+" bytes, "+
+               numScaled+" scaled, "+numHits+" cache hits)";
+    }
+
+    private synchronized void put(String key, Variant variant) {
+        cache.put(key, variant);
+        cachedBytes += variant.length();
+        if (variant.frame != null) {
+            numScaled++;
+        }
+        if (maxBytes <= 0) {
+            return;
+        }
+        Iterator<Variant> iter = cache.values().iterator();
+        while (cachedBytes > maxBytes && iter.hasNext()) {
+            Variant eldest = iter.next();
+            if (eldest == variant) {
+                break;
+            }
+            cachedBytes -= eldest.length();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Scale an image to fit within given size.
+     * @return null if the image already fits.
+     * @throws IOException if the image cannot be decoded or encoded.
+     */
+    static Variant scale(EncodedFrame original, Size size) throws IOException {
+        String type = original.getType();
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(original.getPayload()));
+        if (image == null) {
+            throw new IOException("Unable to decode image of type "+type);
+        }
+        double scale = Math.min((double)size.width / image.getWidth(), (double)size.height / image.getHeight());
+        if (scale >= 1) {
+            return null;
+        }
+        int width = Math.max(1, (int)Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int)Math.round(image.getHeight() * scale));
+
+        // jpegs stay jpegs; everything else, possibly transparent, becomes png
+        boolean jpeg = Biomine3000Mimetype.getByName(type) == Biomine3000Mimetype.JPGIMAGE || "image/jpeg".equals(type);
+        int imageType = jpeg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+
+        // halve step by step, as a single bilinear step from far away loses most of the detail
+        BufferedImage scaled = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        do {
+            w = Math.max(width, w/2);
+            h = Math.max(height, h/2);
+            BufferedImage step = new BufferedImage(w, h, imageType);
+            Graphics2D g = step.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(scaled, 0, 0, w, h, null);
+            g.dispose();
+            scaled = step;
+        }
+        while (w != width || h != height);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(scaled, jpeg ? "jpg" : "png", out)) {
+            throw new IOException("No image writer for "+(jpeg ? "jpg" : "png"));
+        }
+        BusinessObjectMetadata meta = variantMetaData(original, (jpeg ? Biomine3000Mimetype.JPGIMAGE : Biomine3000Mimetype.PNGIMAGE).toString(), size);
+        return new Variant(EncodedFrame.encode(new BusinessObject(meta, out.toByteArray())), original.header());
+    }
+
+    /** Metadata of the original, with type and size of a variant */
+    private static BusinessObjectMetadata variantMetaData(EncodedFrame original, String type, Size size) {
+        BusinessObjectMetadata meta = original.getMetaData();
+        meta.setType(type);
+        meta.put(VARIANT_KEY, size.toString());
+        return meta;
+    }
+
+    /** Standard sizes of variants, as bounding boxes */
+    public enum Size {
+        THUMBNAIL(320, 240),
+        HD(1920, 1080);
+
+        public final int width;
+        public final int height;
+
+        private Size(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Smallest size covering a screen (or window) of given dimensions, so that the variant is no
+         * worse than the original on that screen; null if no size is large enough, in which case
+         * originals are to be used.
+         */
+        public static Size forScreen(int width, int height) {
+            for (Size size: values()) {
+                if (size.width >= width && size.height >= height) {
+                    return size;
+                }
+            }
+            return null;
+        }
+
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    public interface Listener {
+        /** @param variant the original frame, if no variant is needed */
+        public void variantReady(EncodedFrame variant);
+    }
+
+    /** Encoded variant, or null frame if the original is to be used */
+    static class Variant {
+        final EncodedFrame frame;
+        /** All of the original frame but the payload, as the frame was encoded for; null if no frame */
+        final byte[] originalHeader;
+
+        Variant(EncodedFrame frame, byte[] originalHeader) {
+            this.frame = frame;
+            this.originalHeader = originalHeader;
+        }
+
+        int length() {
+            return ENTRY_OVERHEAD + (frame != null ? frame.length() + originalHeader.length : 0);
+        }
+
+        /** The frame as is, if encoded for an original with same metadata; else with the metadata of given original */
+        EncodedFrame frame(EncodedFrame original, Size size) {
+            if (frame == null) {
+                return original;
+            }
+            if (original.hasHeader(originalHeader)) {
+                return frame;
+            }
+            return frame.withMetaData(variantMetaData(original, frame.getType(), size));
+        }
+    }
+
+    private static class Request {
+        EncodedFrame original;
+        Listener listener;
+
+        Request(EncodedFrame original, Listener listener) {
+            this.original = original;
+            this.listener = listener;
+        }
+    }
+
+    private class Scaler implements Runnable {
+        String key;
+        EncodedFrame original;
+        Size size;
+
+        Scaler(String key, EncodedFrame original, Size size) {
+            this.key = key;
+            this.original = original;
+            this.size = size;
+        }
+
+        public void run() {
+            Variant variant;
+            try {
+                variant = scale(original, size);
+                if (variant == null) {
+                    variant = new Variant(null, null);
+                }
+            }
+            catch (IOException e) {
+                Logger.warning("Failed producing "+size+" variant of "+original+", using original: "+e.getMessage());
+                variant = new Variant(null, null);
+            }
+            catch (RuntimeException e) {
+                Logger.warning("Failed producing "+size+" variant of "+original+", using original", e);
+                variant = new Variant(null, null);
+            }
+
+            List<Request> waiting;
+            synchronized(ImageVariants.this) {
+                put(key, variant);
+                waiting = pending.remove(key);
+            }
+            for (Request request: waiting) {
+                if (request.listener != null) {
+                    request.listener.variantReady(variant.frame(request.original, size));
+                }
+            }
+        }
+    }
+}
@@ -1,27 +1,27 @@
-package biomine3000.objects;
-
-/**
- * Do not use JSONException directly, as we do not want to expose clients to the gory details of the JSON package,
- * which might get replaced with some better json library at some point. 
- *
- * In practice, InvalidInvalidJSONException will probably contain a JSONException as cause, though, at least initially.
- */
-public class InvalidJSONException extends InvalidBusinessObjectException {               
-    
-    private Throwable cause;
-        
-    public InvalidJSONException(String message) {
-        super(message);
-    }
-
-    public InvalidJSONException(Throwable cause) {
-        super(cause);
-        this.cause = cause;
-    }
-
-    public Throwable getCause() {
-        return this.cause;
-    }
-}
-
-
+package biomine3000.objects;
+
+/**
+ * Do not use JSONException directly, as we do not want to expose clients to the gory details of the JSON package,
+ * which might get replaced with some better json library at some point. 
+ *
+ * In practice, InvalidInvalidJSONException will probably contain a JSONException as cause, though, at least initially.
+ */
+public class InvalidJSONException extends InvalidBusinessObjectException {               
+    
+    private Throwable cause;
+        
+    public InvalidJSONException(String message) {
+        super(message);
+    }
+
+    public InvalidJSONException(Throwable cause) {
+        super(cause);
+        this.cause = cause;
+    }
+
+    public Throwable getCause() {
+        return this.cause;
+    }
+}
+
+
@@ -0,0 +1,159 @@
+package biomine3000.objects;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed table of payloads, so that identical payloads received by {@link ABBOEServer},
+ * such as the same meme posted over and over, share a single buffer in send queues, in the
+ * {@link RetainedFrameCache} and wherever else they are held, instead of each copy taking its own.
+ *
+ * Payloads are identified by their SHA-256, computed while reading them (see
+ * {@link BusinessObject#readPacket(java.io.InputStream, MessageDigest)}). Each {@link SharedPayload}
+ * is reference counted: whoever keeps hold of one calls {@link SharedPayload#retain()}, and
+ * {@link SharedPayload#release()} once done; a payload is dropped from the table once no longer held
+ * by anyone. A released payload stays valid for anyone still having it, it just no longer takes part
+ * in deduplication.
+ *
+ * Payloads smaller than a given minimum size are not worth the bookkeeping, and are not interned.
+ */
+public class PayloadInterner {
+
+    public static final int DEFAULT_MIN_SIZE = 4 * 1024;
+
+    private int minSize;
+    /** Keyed by hash. Access to be synchronized on the interner. */
+    private Map<String, SharedPayload> table;
+    private long sharedBytes;
+    private long numHits;
+    private long bytesSaved;
+
+    public PayloadInterner(int minSize) {
+        this.minSize = minSize;
+        this.table = new HashMap<String, SharedPayload>();
+    }
+
+    /** A new digest for computing the hash of a payload to be interned */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // required of all java platforms
+            throw new RuntimeException("No SHA-256 available", e);
+        }
+    }
+
+    /**
+     * Intern a payload, given its digest as computed by a digest from {@link #newDigest()}.
+     * @return a payload with an identical content, retained once for the caller, who is to release it.
+     *         Its bytes are the given ones, if no identical payload was interned, and must not be modified.
+     */
+    public SharedPayload intern(byte[] payload, byte[] digest) {
+        if (payload.length < minSize) {
+            return new SharedPayload(null, payload, null);
+        }
+        String hash = toHex(digest);
+        synchronized(this) {
+            SharedPayload shared = table.get(hash);
+            if (shared != null && shared.bytes.length == payload.length) {
+                numHits++;
+                bytesSaved += payload.length;
+                return shared.retain();
+            }
+            shared = new SharedPayload(this, payload, hash);
+            table.put(hash, shared);
+            sharedBytes += payload.length;
+            return shared;
+        }
+    }
+
+    private synchronized void remove(SharedPayload shared) {
+        if (table.get(shared.hash) == shared) {
+            table.remove(shared.hash);
+            sharedBytes -= shared.bytes.length;
+        }
+    }
+
+    /** Number of payloads currently interned */
+    public synchronized int size() {
+        return table.size();
+    }
+
+    /** Total size of payloads currently interned */
+    public synchronized long getSharedBytes() {
+        return sharedBytes;
+    }
+
+    /** Number of payloads found to be identical to one already interned */
+    public synchronized long getNumHits() {
+        return numHits;
+    }
+
+    /** Total size of payloads found to be identical to one already interned */
+    public synchronized long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    public synchronized String toString() {
+        return "PayloadInterner ("+table.size()+" payloads, "+sharedBytes+" bytes, "+numHits+" hits, "+
+               bytesSaved+" bytes saved)";
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder buf = new StringBuilder();
+        for (byte b: digest) {
+            buf.append(String.format("%02x", b & 0xff));
+        }
+        return buf.toString();
+    }
+
+    /** A reference counted payload, possibly shared by many frames */
+    public static class SharedPayload {
+        private PayloadInterner interner;
+        private byte[] bytes;
+        private String hash;
+        private int refCount;
+
+        private SharedPayload(PayloadInterner interner, byte[] bytes, String hash) {
+            this.interner = interner;
+            this.bytes = bytes;
+            this.hash = hash;
+            this.refCount = 1;
+        }
+
+        /** The payload itself; never to be modified */
+        public byte[] bytes() {
+            return bytes;
+        }
+
+        /** Hex SHA-256 of the payload; null if not interned */
+        public String getHash() {
+            return hash;
+        }
+
+        public SharedPayload retain() {
+            synchronized(this) {
+                refCount++;
+            }
+            return this;
+        }
+
+        public void release() {
+            synchronized(this) {
+                if (--refCount > 0) {
+                    return;
+                }
+            }
+            if (interner != null) {
+                interner.remove(this);
+            }
+        }
+
+        public String toString() {
+            return "SharedPayload ("+bytes.length+" bytes, "+refCount+" references)";
+        }
+    }
+}
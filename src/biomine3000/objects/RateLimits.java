@@ -0,0 +1,154 @@
+package biomine3000.objects;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Configuration of rate limits for content published by clients of {@link ABBOEServer},
+ * by client name and by mimetype (in bytes per second). A type limit given for e.g. "image/*"
+ * applies to all image types without a limit of their own.
+ *
+ * Each publishing client has its own token buckets (see {@link Limiter}), so that the limits apply
+ * separately to each client: a limit for "image/jpeg" means that no single client may publish
+ * jpegs faster than that.
+ *
+ * Each object costs its payload size plus {@link #OBJECT_OVERHEAD} bytes, so that floods of
+ * tiny objects are limited as well.
+ */
+public class RateLimits {
+
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 5000;
+
+    /** Bucket capacity, in seconds of traffic at the limited rate */
+    public static final int BURST_SECONDS = 2;
+
+    /** Nominal cost of an object in addition to its payload */
+    public static final int OBJECT_OVERHEAD = 1024;
+
+    /** Bytes per second */
+    private Map<String, Long> clientLimits;
+    private Map<String, Long> typeLimits;
+    private long maxDelayMillis;
+
+    public RateLimits() {
+        this.clientLimits = new HashMap<String, Long>();
+        this.typeLimits = new HashMap<String, Long>();
+        this.maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+    }
+
+    public void setClientLimit(String clientName, long bytesPerSecond) {
+        clientLimits.put(clientName, bytesPerSecond);
+    }
+
+    public void setTypeLimit(String type, long bytesPerSecond) {
+        typeLimits.put(type, bytesPerSecond);
+    }
+
+    /** Objects which would need to be delayed longer than this are rejected */
+    public void setMaxDelayMillis(long maxDelayMillis) {
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public boolean isEmpty() {
+        return clientLimits.isEmpty() && typeLimits.isEmpty();
+    }
+
+    /**
+     * Parse limits of form "key1=kbps1,key2=kbps2,...", rates being in kilobytes per second.
+     * @param clientLimits true to parse client limits, false for type limits.
+     */
+    public void parse(String spec, boolean clientLimits) throws IllegalArgumentException {
+        for (String limit: spec.split(",")) {
+            int i = limit.lastIndexOf('=');
+            if (i <= 0) {
+                throw new IllegalArgumentException("Invalid rate limit: "+limit);
+            }
+            String key = limit.substring(0, i);
+            long bytesPerSecond;
+            try {
+                bytesPerSecond = Long.parseLong(limit.substring(i+1)) * 1024;
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid rate in rate limit: "+limit);
+            }
+            if (clientLimits) {
+                setClientLimit(key, bytesPerSecond);
+            }
+            else {
+                setTypeLimit(key, bytesPerSecond);
+            }
+        }
+    }
+
+    private Long getTypeLimit(String type) {
+        Long limit = typeLimits.get(type);
+        if (limit == null) {
+            int i = type.indexOf('/');
+            if (i > 0) {
+                limit = typeLimits.get(type.substring(0, i)+"/*");
+            }
+        }
+        return limit;
+    }
+
+    private static TokenBucket bucket(long bytesPerSecond) {
+        return new TokenBucket(bytesPerSecond, bytesPerSecond * BURST_SECONDS);
+    }
+
+    /** Token buckets for a single client */
+    public Limiter newLimiter(String clientName) {
+        return new Limiter(clientName);
+    }
+
+    public String toString() {
+        return "clients: "+clientLimits+", types: "+typeLimits+" (bytes/s)";
+    }
+
+    public class Limiter {
+        /** Null if no limit for client */
+        private TokenBucket clientBucket;
+        /** Null values for types without limits */
+        private Map<String, TokenBucket> typeBuckets;
+
+        private Limiter(String clientName) {
+            Long limit = clientName != null ? clientLimits.get(clientName) : null;
+            this.clientBucket = limit != null ? bucket(limit) : null;
+            this.typeBuckets = new HashMap<String, TokenBucket>();
+        }
+
+        /**
+         * Decide whether an object of given type and payload size may be published now.
+         * @return number of millis to delay the object (0 if none), or -1 to reject it.
+         */
+        public synchronized long admit(String type, int payloadSize) {
+            long cost = payloadSize + OBJECT_OVERHEAD;
+            long delay = 0;
+            if (clientBucket != null) {
+                delay = clientBucket.acquire(cost, maxDelayMillis);
+                if (delay < 0) {
+                    return -1;
+                }
+            }
+
+            TokenBucket typeBucket = null;
+            if (type != null) {
+                if (!typeBuckets.containsKey(type)) {
+                    Long limit = getTypeLimit(type);
+                    typeBuckets.put(type, limit != null ? bucket(limit) : null);
+                }
+                typeBucket = typeBuckets.get(type);
+            }
+            if (typeBucket != null) {
+                long typeDelay = typeBucket.acquire(cost, maxDelayMillis);
+                if (typeDelay < 0) {
+                    if (clientBucket != null) {
+                        clientBucket.giveBack(cost);
+                    }
+                    return -1;
+                }
+                delay = Math.max(delay, typeDelay);
+            }
+            return delay;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package biomine3000.objects;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps the most recent frame (see {@link BusinessObject#bytes()}) for each (channel, mimetype)
+ * combination seen by {@link ABBOEServer}, to be delivered to clients right after they register,
+ * so that e.g. a freshly started BiomineTV has something to show without waiting for new content.
+ *
+ * Unlike {@link ABBOEJournal}, only one frame is kept per key, in memory. Events are not retained.
+ * When a total size bound is given, least recently updated frames are evicted as needed to keep
+ * within it.
+ *
+ * A frame may be given as a header and a payload shared with other frames (see {@link PayloadInterner}),
+ * in which case the payload is retained while the frame is, and released once the frame is replaced
+ * or evicted.
+ */
+public class RetainedFrameCache {
+
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    /** Max total size of retained frames; 0 for no limit */
+    private long maxBytes;
+    private long totalBytes;
+
+    /** Ordered by time of update, oldest first. Access to be synchronized on the cache. */
+    private LinkedHashMap<String, Entry> entries;
+
+    public RetainedFrameCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.totalBytes = 0;
+        this.entries = new LinkedHashMap<String, Entry>();
+    }
+
+    /**
+     * Retain given frame, replacing any earlier frame with same channel and type.
+     * Events and objects without a type are ignored. A frame larger than the bound is not retained,
+     * but still drops the earlier frame, no longer being the latest.
+     */
+    public void put(BusinessObjectMetadata meta, byte[] frame) {
+        put(meta, frame, null);
+    }
+
+    /**
+     * As {@link #put(BusinessObjectMetadata, byte[])}, for a frame consisting of a header
+     * (see {@link BusinessObject#encodeHeader(BusinessObjectMetadata)}) and a shared payload,
+     * which is retained by this cache.
+     */
+    public synchronized void put(BusinessObjectMetadata meta, byte[] header, PayloadInterner.SharedPayload payload) {
+        if (meta.isEvent() || meta.getType() == null) {
+            return;
+        }
+        String key = key(meta.getChannel(), meta.getType());
+        // remove first to move key to the end of the update order
+        Entry old = entries.remove(key);
+        if (old != null) {
+            totalBytes -= old.length();
+            old.release();
+        }
+        
+        Entry entry = new Entry(meta.clone(), header, payload);
+        if (maxBytes > 0 && entry.length() > maxBytes) {
+            return;
+        }
+        if (payload != null) {
+            payload.retain();
+        }
+        entries.put(key, entry);
+        totalBytes += entry.length();
+
+        if (maxBytes > 0) {
+            Iterator<Entry> iter = entries.values().iterator();
+            while (totalBytes > maxBytes && iter.hasNext()) {
+                Entry eldest = iter.next();
+                totalBytes -= eldest.length();
+                eldest.release();
+                iter.remove();
+            }
+        }
+    }
+
+    /** 
+     * Retained frames accepted by filter, oldest first. Shared payloads of the frames are retained 
+     * for the caller, who is to release them once done (see {@link Frame#release()}). 
+     */
+    public synchronized List<Frame> get(ABBOEJournal.Filter filter) {
+        List<Frame> result = new ArrayList<Frame>();
+        for (Entry entry: entries.values()) {
+            if (filter.accept(entry.meta)) {
+                result.add(new Frame(entry.header, entry.payload != null ? entry.payload.retain() : null));
+            }
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private static String key(String channel, String type) {
+        return (channel != null ? channel : "") + "\t" + type;
+    }
+
+    public String toString() {
+        return "RetainedFrameCache ("+size()+" frames, "+getTotalBytes()+" bytes)";
+    }
+
+    /** A retained frame */
+    public static class Frame {
+        /** The whole frame, or the part preceding the payload, if shared */
+        byte[] header;
+        /** Null if payload not shared */
+        PayloadInterner.SharedPayload payload;
+
+        private Frame(byte[] header, PayloadInterner.SharedPayload payload) {
+            this.header = header;
+            this.payload = payload;
+        }
+
+        public int length() {
+            return header.length + (payload != null ? payload.bytes().length : 0);
+        }
+
+        /** Null if not shared */
+        public PayloadInterner.SharedPayload getSharedPayload() {
+            return payload;
+        }
+
+        /** The frame as buffers to be written back-to-back */
+        public ByteBuffer[] parts() {
+            if (payload != null) {
+                return new ByteBuffer[] { ByteBuffer.wrap(header), ByteBuffer.wrap(payload.bytes()) };
+            }
+            else {
+                return new ByteBuffer[] { ByteBuffer.wrap(header) };
+            }
+        }
+
+        public void release() {
+            if (payload != null) {
+                payload.release();
+            }
+        }
+    }
+
+    private static class Entry extends Frame {
+        BusinessObjectMetadata meta;
+
+        Entry(BusinessObjectMetadata meta, byte[] header, PayloadInterner.SharedPayload payload) {
+            super(header, payload);
+            this.meta = meta;
+        }
+    }
+}
@@ -19,7 +19,16 @@ public abstract class Subscriptions {
     public static final Subscriptions PLAINTEXT = make(Biomine3000Mimetype.PLAINTEXT);
         
     
-    public abstract boolean shouldSend(BusinessObject bo);
+    /** 
+     * Decide based on metadata only; this allows filtering objects whose payload has not 
+     * been read into memory (such as those in {@link ABBOEJournal}).  
+     */
+    public abstract boolean shouldSend(BusinessObjectMetadata meta);
+    
+    public boolean shouldSend(BusinessObject bo) {
+        return shouldSend(bo.getMetaData());
+    }
+    
     public abstract Object toJSON();
     @Override
     public String toString() {            
@@ -57,6 +66,32 @@ public abstract class Subscriptions {
         return null;
     }
     
+    /**
+     * Aggregate of several subscriptions: content accepted by any of the given subscriptions 
+     * is accepted by the aggregate. Used by ABBOE to tell its peers what its clients are
+     * interested in. Note that an aggregate of include lists does not accept pure events (ones with 
+     * no type), even if some of the aggregated subscriptions would. 
+     */
+    public static Subscriptions union(Collection<Subscriptions> subscriptionsList) {
+        IncludeList result = new IncludeList();
+        for (Subscriptions subscriptions: subscriptionsList) {
+            if (subscriptions instanceof All) {
+                return ALL;
+            }
+            else if (subscriptions instanceof IncludeList) {
+                result.types.addAll(((IncludeList)subscriptions).types);
+            }
+            // else None, which contributes no content types
+        }
+        
+        if (result.types.size() == 0) {
+            return NONE;
+        }
+        else {
+            return result;
+        }
+    }
+    
     public static Subscriptions make(Object o) throws JSONException {
         if (o instanceof String) {
             return make((String)o);
@@ -78,7 +113,7 @@ public abstract class Subscriptions {
     private static class All extends Subscriptions {
         
         @Override
-        public boolean shouldSend(BusinessObject bo) {
+        public boolean shouldSend(BusinessObjectMetadata meta) {
             return true;
         }
         
@@ -92,9 +127,9 @@ public abstract class Subscriptions {
     
     private static class None extends Subscriptions {
         @Override
-        public boolean shouldSend(BusinessObject bo) {
+        public boolean shouldSend(BusinessObjectMetadata meta) {
             // only send events
-            return bo.isEvent(); 
+            return meta.isEvent(); 
         }
         
         @Override
@@ -131,8 +166,8 @@ public abstract class Subscriptions {
         }
         
         @Override
-        public boolean shouldSend(BusinessObject bo) {
-            String type = bo.getMetaData().getType();
+        public boolean shouldSend(BusinessObjectMetadata meta) {
+            String type = meta.getType();
             return (type != null && types.contains(type));            
         }
                 
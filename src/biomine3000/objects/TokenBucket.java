@@ -0,0 +1,61 @@
+package biomine3000.objects;
+
+/**
+ * Token bucket for rate limiting, with tokens (typically bytes) refilled at a constant
+ * rate up to a given capacity (the allowed burst).
+ *
+ * Unlike a textbook token bucket, tokens may be borrowed: an amount larger than the tokens at
+ * hand is admitted if the caller is willing to wait long enough for the bucket to refill, and
+ * the balance goes negative for that time. An amount larger than the capacity would never be
+ * admitted within a bounded delay, so it is only required to wait for a full bucket; the debt it
+ * leaves then delays the amounts following it. This way, objects larger than the capacity are
+ * still admitted, just at the configured average rate.
+ */
+public class TokenBucket {
+
+    /** Tokens per second */
+    private double rate;
+    private double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double rate, double capacity) {
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + rate * (now-lastRefill) / 1e9);
+        lastRefill = now;
+    }
+
+    /**
+     * Take given amount of tokens, if they will be available within maxDelayMillis; for an amount
+     * larger than the capacity, if the bucket will be full by then.
+     *
+     * @return number of millis the caller should wait before proceeding (0 if none),
+     *   or -1 if the amount was not admitted, in which case no tokens were taken.
+     */
+    public synchronized long acquire(long amount, long maxDelayMillis) {
+        refill();
+        double needed = Math.min(amount, capacity);
+        long delayMillis = tokens >= needed ? 0 : (long)Math.ceil((needed-tokens) * 1000 / rate);
+        if (delayMillis > maxDelayMillis) {
+            return -1;
+        }
+        tokens -= amount;
+        return delayMillis;
+    }
+
+    /** Return tokens taken by an earlier {@link #acquire}, e.g. when the object was rejected for other reasons */
+    public synchronized void giveBack(long amount) {
+        tokens = Math.min(capacity, tokens + amount);
+    }
+
+    public String toString() {
+        return "TokenBucket(rate="+rate+", capacity="+capacity+")";
+    }
+}
@@ -0,0 +1,306 @@
+package biomine3000.objects;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Index of the images of a {@link ContentVaultProxy}, holding the encoded frames of as many images as fit
+ * within a byte budget. Every image known to the vault has a small entry here; when the budget is
+ * exceeded, frames are evicted using the CLOCK algorithm (an approximation of LRU, where each
+ * access just sets a reference bit), and need to be reloaded by the vault if sampled again.
+ *
+ * Only frames ready to be sent are cached; decoded images are never retained here.
+ *
+ * The urls of all images are also kept in an array-backed {@link Index}, which is replaced (or, when
+ * adding, extended in place) on each change, so that sampling and playlists (see {@link VaultPlaylist})
+ * can read it in constant time without locking. The index is kept in the same order as the clock.
+ */
+public class VaultCache {
+
+    /** Max total size of cached frames; 0 for no limit */
+    private long maxBytes;
+    private long cachedBytes;
+    private int numCached;
+
+    private Map<String, Entry> entriesByURL;
+    /** All entries in a ring, swept by the clock hand */
+    private ArrayList<Entry> clock;
+    private int hand;
+
+    /** Snapshot of urls of all images, in order of addition */
+    private volatile Index index;
+    private Random random;
+
+    public VaultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.cachedBytes = 0;
+        this.numCached = 0;
+        this.entriesByURL = new TreeMap<String, Entry>();
+        this.clock = new ArrayList<Entry>();
+        this.hand = 0;
+        this.index = new Index(new String[16], new long[16], 0);
+        this.random = new Random();
+    }
+
+    /** Number of images, whether cached or not */
+    public synchronized int size() {
+        return entriesByURL.size();
+    }
+
+    public synchronized int getNumCached() {
+        return numCached;
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /** Would adding more frames cause eviction? */
+    public synchronized boolean isFull() {
+        return maxBytes > 0 && cachedBytes >= maxBytes;
+    }
+
+    public synchronized boolean contains(String url) {
+        return entriesByURL.containsKey(url);
+    }
+
+    public synchronized List<String> urls() {
+        return new ArrayList<String>(entriesByURL.keySet());
+    }
+
+    /**
+     * Add or replace an image.
+     * @param frame null to only add an index entry for an image not (yet) loaded.
+     * @param added time the image was first seen, such as kept by the local pack; ignored when replacing,
+     *   the time of the existing entry being kept.
+     */
+    public synchronized void put(String url, EncodedFrame frame, long added) {
+        Entry entry = entriesByURL.get(url);
+        if (entry == null) {
+            entry = new Entry(url, added);
+            entriesByURL.put(url, entry);
+            clock.add(entry);
+            appendToIndex(entry);
+        }
+        else if (frame == null) {
+            // keep what we have
+            return;
+        }
+        else {
+            uncache(entry);
+        }
+
+        if (frame != null) {
+            cache(entry, frame);
+        }
+    }
+
+    /**
+     * Cache the frame of an image reloaded after eviction, unless the image has been removed while reloading.
+     * @return false if the image is no longer known
+     */
+    public synchronized boolean putIfKnown(String url, EncodedFrame frame) {
+        Entry entry = entriesByURL.get(url);
+        if (entry == null) {
+            return false;
+        }
+        uncache(entry);
+        cache(entry, frame);
+        return true;
+    }
+
+    private void cache(Entry entry, EncodedFrame frame) {
+        entry.frame = frame;
+        entry.referenced = true;
+        cachedBytes += frame.length();
+        numCached++;
+        evict(entry);
+    }
+
+    /** @return frame of an image, or null if the image is not cached (or not known at all) */
+    public synchronized EncodedFrame getFrame(String url) {
+        Entry entry = entriesByURL.get(url);
+        if (entry == null || entry.frame == null) {
+            return null;
+        }
+        entry.referenced = true;
+        return entry.frame;
+    }
+
+    /** Url of a random image, cached or not; null if no images. Does not lock. */
+    public String sampleURL() {
+        Index idx = index;
+        if (idx.size == 0) {
+            return null;
+        }
+        return idx.urls[random.nextInt(idx.size)];
+    }
+
+    /** Current snapshot of all urls. Does not lock. */
+    public Index getIndex() {
+        return index;
+    }
+
+    /**
+     * Slots beyond the size of the current index are never read by anyone, so entries can be
+     * appended in place, only publishing a new index (of greater size) afterwards.
+     */
+    private void appendToIndex(Entry entry) {
+        Index idx = index;
+        String[] urls = idx.urls;
+        long[] added = idx.added;
+        if (idx.size == urls.length) {
+            String[] newURLs = new String[urls.length*2];
+            long[] newAdded = new long[urls.length*2];
+            System.arraycopy(urls, 0, newURLs, 0, idx.size);
+            System.arraycopy(added, 0, newAdded, 0, idx.size);
+            urls = newURLs;
+            added = newAdded;
+        }
+        urls[idx.size] = entry.url;
+        added[idx.size] = entry.added;
+        index = new Index(urls, added, idx.size+1);
+    }
+
+    private void rebuildIndex() {
+        int capacity = Math.max(16, clock.size());
+        String[] urls = new String[capacity];
+        long[] added = new long[capacity];
+        for (int i=0; i<clock.size(); i++) {
+            urls[i] = clock.get(i).url;
+            added[i] = clock.get(i).added;
+        }
+        index = new Index(urls, added, clock.size());
+    }
+
+    /**
+     * Remove a single image, in time linear in the number of images but without rebuilding the map:
+     * the last image takes the place of the removed one, in the clock as well as in the index.
+     * @return false if no such image.
+     */
+    public synchronized boolean remove(String url) {
+        Entry entry = entriesByURL.remove(url);
+        if (entry == null) {
+            return false;
+        }
+        uncache(entry);
+        int i = clock.indexOf(entry);
+        Entry last = clock.remove(clock.size()-1);
+        if (last != entry) {
+            clock.set(i, last);
+        }
+        if (hand > clock.size()) {
+            hand = 0;
+        }
+
+        // readers may be using the current index, so publish a modified copy
+        Index idx = index;
+        String[] urls = new String[idx.urls.length];
+        long[] added = new long[idx.added.length];
+        System.arraycopy(idx.urls, 0, urls, 0, idx.size);
+        System.arraycopy(idx.added, 0, added, 0, idx.size);
+        urls[i] = urls[idx.size-1];
+        added[i] = added[idx.size-1];
+        urls[idx.size-1] = null;
+        index = new Index(urls, added, idx.size-1);
+        return true;
+    }
+
+    /** Remove images whose urls are not in given set */
+    public synchronized void retainOnly(Set<String> urls) {
+        Iterator<Entry> iter = clock.iterator();
+        while (iter.hasNext()) {
+            Entry entry = iter.next();
+            if (!urls.contains(entry.url)) {
+                uncache(entry);
+                entriesByURL.remove(entry.url);
+                iter.remove();
+            }
+        }
+        hand = 0;
+        rebuildIndex();
+    }
+
+    private void uncache(Entry entry) {
+        if (entry.frame != null) {
+            cachedBytes -= entry.frame.length();
+            numCached--;
+            entry.frame = null;
+        }
+    }
+
+    /** Sweep the clock until within budget, never evicting the given entry. */
+    private void evict(Entry keep) {
+        if (maxBytes <= 0) {
+            return;
+        }
+        // two rounds suffice to clear all reference bits and evict
+        int steps = 0;
+        while (cachedBytes > maxBytes && steps < 2 * clock.size()) {
+            if (hand >= clock.size()) {
+                hand = 0;
+            }
+            Entry entry = clock.get(hand++);
+            steps++;
+            if (entry == keep || entry.frame == null) {
+                continue;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+            }
+            else {
+                uncache(entry);
+            }
+        }
+    }
+
+    public String toString() {
+        return "VaultCache ("+getNumCached()+"/"+size()+" images cached, "+getCachedBytes()+"/"+maxBytes+" bytes)";
+    }
+
+    private static class Entry {
+        String url;
+        /** Time the image was first seen */
+        long added;
+        /** Null if evicted */
+        EncodedFrame frame;
+        /** CLOCK reference bit */
+        boolean referenced;
+
+        Entry(String url, long added) {
+            this.url = url;
+            this.added = added;
+        }
+    }
+
+    /** Immutable (as far as readers are concerned) snapshot of the urls of all images */
+    public static class Index {
+        private final String[] urls;
+        private final long[] added;
+        private final int size;
+
+        private Index(String[] urls, long[] added, int size) {
+            this.urls = urls;
+            this.added = added;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public String getURL(int i) {
+            return urls[i];
+        }
+
+        /** Time when image i was first seen, as given when adding it; 0 if not known */
+        public long getTimeAdded(int i) {
+            return added[i];
+        }
+    }
+}
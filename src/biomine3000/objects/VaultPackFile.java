@@ -0,0 +1,374 @@
+package biomine3000.objects;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import util.dbg.Logger;
+
+/**
+ * Persistent local copy of the contents of a content vault (see {@link ContentVaultProxy}), so that
+ * restarting a server or a vault sender does not require downloading the whole vault again.
+ *
+ * Consists of a pack file, to which the contents of vault entries are appended, and an index file
+ * (named as the pack file, with suffix ".idx"), with one line per entry: <pre>
+ *     url \t name \t type \t offset \t length \t validator \t added
+ * </pre>
+ * where validator is the ETag or Last-Modified time of the entry, as given by the vault, or "-" if none,
+ * and added is the time the entry was first seen, kept when the entry is replaced (missing in indices 
+ * written by earlier versions, taken as not known).
+ *
+ * The pack file starts with a header of {@link #MAGIC} and a generation number, which is also
+ * written to the first line of the index; should the two ever be out of sync, the pack is discarded
+ * and the vault reloaded from scratch. The index is always rewritten as a whole, by renaming a temporary
+ * file. When the pack contains more replaced or removed entries than live ones, it is compacted
+ * on {@link #save()}.
+ *
+ * The pack file is memory-mapped on opening, so reading entries present at that time never touches
+ * the heap except for the returned copies. As a single mapping cannot exceed 2 GiB, the pack is mapped
+ * in regions of {@link #REGION_SIZE}; the few entries crossing a region boundary are read from the file.
+ */
+public class VaultPackFile {
+
+    public static final String MAGIC = "BMVPACK1";
+    private static final int HEADER_SIZE = 16;
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String INDEX_HEADER = "# biomine3000 vault pack index, generation ";
+    private static final String NO_VALIDATOR = "-";
+    /** Do not bother compacting packs with less garbage than this */
+    private static final long MIN_GARBAGE_TO_COMPACT = 1024 * 1024;
+    /** Size of the regions the pack is mapped in */
+    private static final long REGION_SIZE = 1L << 30;
+
+    private File file;
+    private File indexFile;
+    private long generation;
+    private RandomAccessFile raf;
+    /** Mappings of consecutive regions of the pack as it was when opened (or compacted); null if empty */
+    private MappedByteBuffer[] regions;
+    /** Length of the pack covered by regions */
+    private long mappedLength;
+    /** Keyed by url */
+    private LinkedHashMap<String, Entry> entries;
+    /** Bytes of replaced or removed entries */
+    private long garbageBytes;
+    private boolean modified;
+
+    /** Open pack file, creating a new one if the file does not exist or cannot be used. */
+    public VaultPackFile(File file) throws IOException {
+        this.file = file;
+        this.indexFile = new File(file.getPath()+INDEX_SUFFIX);
+        this.entries = new LinkedHashMap<String, Entry>();
+        this.garbageBytes = 0;
+        this.modified = false;
+
+        if (file.exists() && indexFile.exists()) {
+            try {
+                open();
+                log("Opened pack "+file+" with "+entries.size()+" entries");
+                return;
+            }
+            catch (IOException e) {
+                warn("Discarding unusable pack "+file+": "+e.getMessage());
+                close();
+                entries.clear();
+            }
+        }
+        generation = System.currentTimeMillis();
+        create(file, generation);
+        raf = new RandomAccessFile(file, "rw");
+        modified = true;
+    }
+
+    /** Open existing pack and its index */
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        long length = raf.length();
+        if (length < HEADER_SIZE) {
+            throw new IOException("Truncated pack file");
+        }
+        byte[] magic = new byte[MAGIC.length()];
+        raf.readFully(magic);
+        if (!MAGIC.equals(new String(magic, "US-ASCII"))) {
+            throw new IOException("Not a vault pack file");
+        }
+        generation = raf.readLong();
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+        try {
+            String header = in.readLine();
+            if (header == null || !header.equals(INDEX_HEADER+generation)) {
+                throw new IOException("Index does not match pack");
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 6 && fields.length != 7) {
+                    throw new IOException("Invalid index line: "+line);
+                }
+                Entry entry = new Entry(fields[0], fields[1], fields[2], Long.parseLong(fields[3]),
+                                        Integer.parseInt(fields[4]),
+                                        fields[5].equals(NO_VALIDATOR) ? null : fields[5],
+                                        fields.length > 6 ? Long.parseLong(fields[6]) : 0);
+                if (entry.offset < HEADER_SIZE || entry.offset + entry.length > length) {
+                    throw new IOException("Index entry out of pack bounds: "+line);
+                }
+                entries.put(entry.url, entry);
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Invalid index: "+e.getMessage());
+        }
+        finally {
+            in.close();
+        }
+
+        map();
+        long live = 0;
+        for (Entry entry: entries.values()) {
+            live += entry.length;
+        }
+        garbageBytes = length - HEADER_SIZE - live;
+    }
+
+    private void map() throws IOException {
+        long length = raf.length();
+        if (length <= HEADER_SIZE) {
+            regions = null;
+            mappedLength = 0;
+            return;
+        }
+        FileChannel channel = raf.getChannel();
+        regions = new MappedByteBuffer[(int)((length + REGION_SIZE - 1) / REGION_SIZE)];
+        for (int i = 0; i < regions.length; i++) {
+            long start = i * REGION_SIZE;
+            regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, length - start));
+        }
+        mappedLength = length;
+    }
+
+    /** Write an empty pack with given generation */
+    private static void create(File file, long generation) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(MAGIC.getBytes("US-ASCII"));
+            raf.writeLong(generation);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized List<Entry> entries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /** Null if no such entry */
+    public synchronized Entry get(String url) {
+        return entries.get(url);
+    }
+
+    /** Read contents of an entry */
+    public synchronized byte[] read(Entry entry) throws IOException {
+        byte[] bytes = new byte[entry.length];
+        int region = (int)(entry.offset / REGION_SIZE);
+        long start = region * REGION_SIZE;
+        long end = entry.offset + entry.length;
+        if (regions != null && end <= mappedLength && end <= start + REGION_SIZE) {
+            ByteBuffer src = regions[region].duplicate();
+            src.position((int)(entry.offset - start));
+            src.get(bytes);
+        }
+        else {
+            // appended after mapping, or crossing a region boundary
+            raf.seek(entry.offset);
+            raf.readFully(bytes);
+        }
+        return bytes;
+    }
+
+    /** 
+     * Append contents for given url, replacing any earlier entry. Index is not written until {@link #save()}. 
+     * @param added time the entry was first seen; the time of an earlier entry, if known, is kept instead
+     */
+    public synchronized Entry put(String url, String name, String type, byte[] bytes, String validator, 
+                                  long added) throws IOException {
+        long offset = raf.length();
+        raf.seek(offset);
+        raf.write(bytes);
+        Entry old = entries.get(url);
+        if (old != null && old.added > 0) {
+            added = old.added;
+        }
+        Entry entry = new Entry(url, name, type, offset, bytes.length, validator, added);
+        entries.put(url, entry);
+        if (old != null) {
+            garbageBytes += old.length;
+        }
+        modified = true;
+        return entry;
+    }
+
+    /** Remove entry for given url, if any. Index is not written until {@link #save()}. */
+    public synchronized void remove(String url) {
+        Entry entry = entries.remove(url);
+        if (entry != null) {
+            garbageBytes += entry.length;
+            modified = true;
+        }
+    }
+
+    /** Remove entries whose urls are not in given collection */
+    public synchronized void retainOnly(Collection<String> urls) {
+        Set<String> keep = new HashSet<String>(urls);
+        Iterator<Entry> iter = entries.values().iterator();
+        while (iter.hasNext()) {
+            Entry entry = iter.next();
+            if (!keep.contains(entry.url)) {
+                garbageBytes += entry.length;
+                iter.remove();
+                modified = true;
+            }
+        }
+    }
+
+    /** Write index to disk, if modified; compact the pack first, if it consists mostly of garbage. */
+    public synchronized void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+        if (garbageBytes > MIN_GARBAGE_TO_COMPACT && garbageBytes > raf.length() - HEADER_SIZE - garbageBytes) {
+            compact();
+        }
+        else {
+            raf.getFD().sync();
+        }
+        writeIndex();
+        modified = false;
+    }
+
+    /** Copy live entries to a new pack with a new generation, replacing the current one */
+    private void compact() throws IOException {
+        log("Compacting pack "+file+" ("+garbageBytes+" bytes of garbage)");
+        File tmp = new File(file.getPath()+".tmp");
+        long newGeneration = generation + 1;
+        create(tmp, newGeneration);
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        LinkedHashMap<String, Entry> newEntries = new LinkedHashMap<String, Entry>();
+        try {
+            out.seek(HEADER_SIZE);
+            for (Entry entry: entries.values()) {
+                long offset = out.getFilePointer();
+                out.write(read(entry));
+                newEntries.put(entry.url, new Entry(entry.url, entry.name, entry.type, offset, entry.length, entry.validator,
+                                                        entry.added));
+            }
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+
+        close();
+        if (!file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("Failed replacing pack "+file+" with compacted one");
+        }
+        raf = new RandomAccessFile(file, "rw");
+        generation = newGeneration;
+        entries = newEntries;
+        garbageBytes = 0;
+        map();
+    }
+
+    private void writeIndex() throws IOException {
+        File tmp = new File(indexFile.getPath()+".tmp");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            out.print(INDEX_HEADER+generation+"\n");
+            for (Entry entry: entries.values()) {
+                out.print(entry.url+"\t"+entry.name+"\t"+entry.type+"\t"+entry.offset+"\t"+entry.length+"\t"+
+                          (entry.validator != null ? entry.validator : NO_VALIDATOR)+"\t"+entry.added+"\n");
+            }
+        }
+        finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Failed writing index "+tmp);
+        }
+        // renameTo does not replace existing files on all platforms
+        if (!tmp.renameTo(indexFile) && !(indexFile.delete() && tmp.renameTo(indexFile))) {
+            throw new IOException("Failed replacing index "+indexFile);
+        }
+    }
+
+    public synchronized void close() {
+        regions = null;
+        mappedLength = 0;
+        if (raf != null) {
+            try {
+                raf.close();
+            }
+            catch (IOException e) {
+                warn("Failed closing pack "+file+": "+e.getMessage());
+            }
+            raf = null;
+        }
+    }
+
+    public String toString() {
+        return "VaultPackFile "+file;
+    }
+
+    /** Index entry of the pack */
+    public static class Entry {
+        public final String url;
+        public final String name;
+        public final String type;
+        public final long offset;
+        public final int length;
+        /** ETag or Last-Modified of the vault entry, null if not known */
+        public final String validator;
+        /** Time the vault entry was first seen, in millis; 0 if not known */
+        public final long added;
+
+        Entry(String url, String name, String type, long offset, int length, String validator, long added) {
+            this.url = url;
+            this.name = name;
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+            this.validator = validator;
+            this.added = added;
+        }
+    }
+
+    private static void log(String msg) {
+        Logger.info("VaultPackFile: "+msg);
+    }
+
+    private static void warn(String msg) {
+        Logger.warning("VaultPackFile: "+msg);
+    }
+}
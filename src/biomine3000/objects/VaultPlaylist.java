@@ -0,0 +1,199 @@
+package biomine3000.objects;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Decides which image of a {@link VaultCache} to play next, according to a {@link Mode}.
+ * All modes take constant (amortized) time per image:
+ * <ul>
+ *   <li>UNIFORM samples uniformly at random, images possibly repeating back-to-back.</li>
+ *   <li>SHUFFLE plays all images in a random order before playing any image again, and never
+ *       plays the same image twice in a row when starting a new round.</li>
+ *   <li>WEIGHTED samples using an alias table (Vose's method), favouring images added to the
+ *       vault recently (see {@link #weight(long, long)}).</li>
+ * </ul>
+ * Images added to the vault while a shuffle round or an alias table is in use are taken into
+ * account when the next round starts, or when the table is rebuilt, respectively.
+ */
+public class VaultPlaylist {
+
+    /** Relative weight of a brand new image, compared to an old one, in WEIGHTED mode */
+    public static final double NEW_IMAGE_WEIGHT = 5;
+    /** Time after which the extra weight of a new image has halved */
+    public static final long NEW_IMAGE_HALF_LIFE_MILLIS = 24 * 60 * 60 * 1000;
+    /** Weights change over time, so alias table is rebuilt at least this often */
+    private static final long ALIAS_TABLE_MAX_AGE_MILLIS = 60 * 1000;
+
+    private VaultCache cache;
+    private Mode mode;
+    private Random random;
+
+    /** State of SHUFFLE mode */
+    private String[] order;
+    private int pos;
+    private String last;
+
+    /** State of WEIGHTED mode */
+    private VaultCache.Index tableIndex;
+    private AliasTable table;
+    private long tableTime;
+
+    public VaultPlaylist(VaultCache cache, Mode mode) {
+        this.cache = cache;
+        this.mode = mode;
+        this.random = new Random();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /** Url of the image to play next, or null if there are no images */
+    public synchronized String next() {
+        switch (mode) {
+            case SHUFFLE:
+                return nextShuffled();
+            case WEIGHTED:
+                return nextWeighted();
+            default:
+                return cache.sampleURL();
+        }
+    }
+
+    private String nextShuffled() {
+        // skip images removed from the vault since starting the round
+        while (order != null && pos < order.length) {
+            String url = order[pos++];
+            if (cache.contains(url)) {
+                last = url;
+                return url;
+            }
+        }
+
+        VaultCache.Index index = cache.getIndex();
+        if (index.size() == 0) {
+            return null;
+        }
+        // new round: Fisher-Yates
+        order = new String[index.size()];
+        for (int i=0; i<order.length; i++) {
+            order[i] = index.getURL(i);
+        }
+        for (int i=order.length-1; i>0; i--) {
+            int j = random.nextInt(i+1);
+            String tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        if (order.length > 1 && order[0].equals(last)) {
+            int j = 1 + random.nextInt(order.length-1);
+            order[0] = order[j];
+            order[j] = last;
+        }
+        pos = 0;
+        last = order[pos++];
+        return last;
+    }
+
+    private String nextWeighted() {
+        VaultCache.Index index = cache.getIndex();
+        if (index.size() == 0) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (index != tableIndex || now - tableTime > ALIAS_TABLE_MAX_AGE_MILLIS) {
+            double[] weights = new double[index.size()];
+            for (int i=0; i<weights.length; i++) {
+                weights[i] = weight(index.getTimeAdded(i), now);
+            }
+            table = new AliasTable(weights);
+            tableIndex = index;
+            tableTime = now;
+        }
+        return tableIndex.getURL(table.sample(random));
+    }
+
+    /** Weight of an image added at given time: 1 for old images, up to NEW_IMAGE_WEIGHT for new ones */
+    public static double weight(long timeAdded, long now) {
+        double age = Math.max(0, now-timeAdded);
+        return 1 + (NEW_IMAGE_WEIGHT-1) * Math.pow(0.5, age / NEW_IMAGE_HALF_LIFE_MILLIS);
+    }
+
+    public String toString() {
+        return "VaultPlaylist ("+mode+")";
+    }
+
+    public enum Mode {
+        UNIFORM,
+        SHUFFLE,
+        WEIGHTED;
+
+        /** Case-insensitive; null if no such mode */
+        public static Mode parse(String name) {
+            for (Mode mode: values()) {
+                if (mode.name().equalsIgnoreCase(name)) {
+                    return mode;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Walker's alias table, constructed by Vose's method in linear time, for sampling
+     * indices with given (non-negative, not all zero) weights in constant time.
+     */
+    public static class AliasTable {
+        private double[] prob;
+        private int[] alias;
+
+        public AliasTable(double[] weights) {
+            int n = weights.length;
+            prob = new double[n];
+            alias = new int[n];
+            double sum = 0;
+            for (double w: weights) {
+                sum += w;
+            }
+
+            double[] scaled = new double[n];
+            ArrayList<Integer> small = new ArrayList<Integer>();
+            ArrayList<Integer> large = new ArrayList<Integer>();
+            for (int i=0; i<n; i++) {
+                scaled[i] = weights[i] * n / sum;
+                if (scaled[i] < 1) {
+                    small.add(i);
+                }
+                else {
+                    large.add(i);
+                }
+            }
+            while (!small.isEmpty() && !large.isEmpty()) {
+                int s = small.remove(small.size()-1);
+                int l = large.remove(large.size()-1);
+                prob[s] = scaled[s];
+                alias[s] = l;
+                scaled[l] = scaled[l] + scaled[s] - 1;
+                if (scaled[l] < 1) {
+                    small.add(l);
+                }
+                else {
+                    large.add(l);
+                }
+            }
+            // remaining ones have probability 1, up to rounding errors
+            for (int i: large) {
+                prob[i] = 1;
+            }
+            for (int i: small) {
+                prob[i] = 1;
+            }
+        }
+
+        public int sample(Random random) {
+            int i = random.nextInt(prob.length);
+            return random.nextDouble() < prob[i] ? i : alias[i];
+        }
+    }
+}
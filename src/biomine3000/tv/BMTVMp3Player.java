@@ -1,62 +1,273 @@
 package biomine3000.tv;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
 import util.dbg.Logger;
 
-import javazoom.jl.player.Player;
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.JavaLayerException;
+import javazoom.jl.decoder.SampleBuffer;
+import javazoom.jl.player.AudioDevice;
+import javazoom.jl.player.AudioDeviceFactory;
+import javazoom.jl.player.FactoryRegistry;
+
+/**
+ * Plays MP3s one after another, from a queue of tracks, as they arrive.
+ *
+ * Tracks are decoded by a decoder thread, and played by an audio thread, which keeps the audio device
+ * open from one track to the next. Each track is decoded at most {@link #MAX_DECODED_FRAMES} frames
+ * (somewhat over a second of audio) ahead of playback, so that the decoder moves on to the next track
+ * while the previous one is still playing, and the next track starts without a gap.
+ *
+ * Tracks are read from streams as they are decoded (see {@link #enqueue(String, InputStream)}); at most
+ * {@link #MAX_QUEUED_TRACKS} are queued, and of each, at most the frames above are kept decoded.
+ * A stream that arrives bit by bit, such as a file or an http response, thus starts playing before
+ * it has been read in full, and takes bounded memory.
+ *
+ * MP3s received from the server, however, are only played once received in full: the server forwards
+ * an object only once it has it all, and the payload is read whole off the connection shared by all
+ * objects (see {@link biomine3000.objects.BusinessObjectReader}). Decoding a payload while it is
+ * still being read would either stall that connection for as long as the tracks ahead take to play,
+ * or buffer the whole payload anyway.
+ *
+ * Both threads are started on first use, and live until {@link #close()}.
+ */
+public class BMTVMp3Player {
+
+    /** Max tracks waiting to be played, excluding the one playing */
+    public static final int MAX_QUEUED_TRACKS = 8;
+    /** Max decoded frames of a track waiting to be played; about 1.5 seconds at 44.1 kHz */
+    public static final int MAX_DECODED_FRAMES = 64;
+
+    /** Marks the end of the frames of a track */
+    private static final short[] END = new short[0];
 
-public class BMTVMp3Player {    
-    private Player player; 
-    
-    public void close() { 
-        if (player != null) { 
-            player.close();        
-            player = null;
-        }           
+    private AudioDeviceFactory audioDeviceFactory;
+    /** Tracks waiting to be decoded */
+    private BlockingQueue<Track> decodeQueue;
+    /** 
+     * The track to be played next, once its decoding starts; thus the decoder is at most one track
+     * ahead of the audio thread.
+     */
+    private BlockingQueue<Track> playQueue;
+    private Thread decoderThread;
+    private Thread audioThread;
+    /** Track playing, if any */
+    private volatile Track current;
+    private volatile boolean closed;
+
+    public BMTVMp3Player() {
+        this(FactoryRegistry.systemRegistry());
+    }
+
+    /** Play to devices created by given factory */
+    public BMTVMp3Player(AudioDeviceFactory audioDeviceFactory) {
+        this.audioDeviceFactory = audioDeviceFactory;
+        this.decodeQueue = new ArrayBlockingQueue<Track>(MAX_QUEUED_TRACKS);
+        this.playQueue = new ArrayBlockingQueue<Track>(1);
     }
 
-    // play a MP3 to the sound card
+    /** Stop playing, and forget all queued tracks; the player cannot be used anymore */
+    public synchronized void close() {
+        closed = true;
+        if (decoderThread != null) {
+            decoderThread.interrupt();
+            audioThread.interrupt();
+        }
+    }
+
+    /** Queue a MP3 to be played to the sound card once all tracks before it have been played */
     public void play(byte[] data) {
-        close();
-        
-        try {            
-            ByteArrayInputStream bais = new ByteArrayInputStream(data);            
-            player = new Player(bais);            
-        }
-        catch (Exception e) {
-            error("Failed creating player", e);
-            return;
+        enqueue("MP3 of "+data.length+" bytes", new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Queue a MP3 to be played, read from a stream as it is decoded; the stream is closed once played.
+     * @return false if the queue is full, in which case the track is dropped.
+     */
+    public synchronized boolean enqueue(String name, InputStream in) {
+        if (closed) {
+            return false;
+        }
+        startThreads();
+        if (!decodeQueue.offer(new Track(name, in))) {
+            warn("Too many tracks queued, dropping "+name);
+            close(in);
+            return false;
         }
+        log("Queued: "+name);
+        return true;
+    }
 
-        // run in new thread to play in background
-        log("Creating thread to play");
-        new Thread() {
+    /** Stop playing the current track, moving on to the next one */
+    public void skip() {
+        Track track = current;
+        if (track != null) {
+            log("Skipping: "+track.name);
+            track.skip();
+        }
+    }
+
+    /** Number of tracks queued, excluding the one playing */
+    public int getQueueLength() {
+        return decodeQueue.size() + playQueue.size();
+    }
+
+    private void startThreads() {
+        if (decoderThread != null) {
+            return;
+        }
+        decoderThread = new Thread("tv-mp3-decoder") {
             public void run() {
-                try { 
-                    player.play();
-                    log("Returned from player.play");
+                try {
+                    while (!closed) {
+                        decode(decodeQueue.take());
+                    }
                 }
-                catch (Exception e) {
-                    error("Failed playing", e);
+                catch (InterruptedException e) {
+                    // closed
                 }
+                log("Decoder stopped");
             }
-        }.start();
+        };
+        audioThread = new Thread("tv-mp3-audio") {
+            public void run() {
+                playTracks();
+                log("Audio stopped");
+            }
+        };
+        decoderThread.setDaemon(true);
+        audioThread.setDaemon(true);
+        // keep the audio device fed while busy decoding images
+        audioThread.setPriority(Thread.MAX_PRIORITY);
+        decoderThread.start();
+        audioThread.start();
     }
-    
+
+    /** Decode a track into its frame queue, which blocks once enough frames are waiting to be played */
+    private void decode(Track track) throws InterruptedException {
+        playQueue.put(track);
+        Bitstream bitstream = new Bitstream(track.in);
+        try {
+            Header header;
+            while (!track.skipped && (header = bitstream.readFrame()) != null) {
+                SampleBuffer output = (SampleBuffer)track.decoder.decodeFrame(header, bitstream);
+                short[] samples = new short[output.getBufferLength()];
+                System.arraycopy(output.getBuffer(), 0, samples, 0, samples.length);
+                bitstream.closeFrame();
+                track.frames.put(samples);
+            }
+        }
+        catch (JavaLayerException e) {
+            error("Failed decoding "+track.name+", skipping rest of it", e);
+        }
+        finally {
+            try {
+                bitstream.close();
+            }
+            catch (JavaLayerException e) {
+                // no problem
+            }
+            close(track.in);
+            // never blocks for long: the audio thread either plays or discards the frames
+            track.frames.put(END);
+        }
+    }
+
+    /** Play tracks in order, reopening the audio device only when the format changes */
+    private void playTracks() {
+        AudioDevice device = null;
+        int frequency = 0;
+        int channels = 0;
+        try {
+            while (!closed) {
+                Track track = playQueue.take();
+                current = track;
+                log("Playing: "+track.name);
+                short[] samples;
+                while ((samples = track.frames.take()) != END) {
+                    if (track.skipped) {
+                        continue;
+                    }
+                    if (device == null || track.decoder.getOutputFrequency() != frequency ||
+                            track.decoder.getOutputChannels() != channels) {
+                        if (device != null) {
+                            device.flush();
+                            device.close();
+                        }
+                        frequency = track.decoder.getOutputFrequency();
+                        channels = track.decoder.getOutputChannels();
+                        device = audioDeviceFactory.createAudioDevice();
+                        device.open(track.decoder);
+                    }
+                    device.write(samples, 0, samples.length);
+                }
+                current = null;
+                log("Finished: "+track.name);
+            }
+        }
+        catch (InterruptedException e) {
+            // closed
+        }
+        catch (JavaLayerException e) {
+            error("Failed playing, no more MP3s will be played", e);
+            closed = true;
+            decoderThread.interrupt();
+        }
+        finally {
+            if (device != null) {
+                device.close();
+            }
+        }
+    }
+
+    private static void close(InputStream in) {
+        try {
+            in.close();
+        }
+        catch (IOException e) {
+            // no problem
+        }
+    }
+
+    private static class Track {
+        String name;
+        InputStream in;
+        Decoder decoder;
+        BlockingQueue<short[]> frames;
+        volatile boolean skipped;
+
+        Track(String name, InputStream in) {
+            this.name = name;
+            this.in = in;
+            this.decoder = new Decoder();
+            this.frames = new ArrayBlockingQueue<short[]>(MAX_DECODED_FRAMES);
+        }
+
+        /** The decoder stops, and the audio thread discards frames already decoded */
+        void skip() {
+            skipped = true;
+        }
+    }
+
     @SuppressWarnings("unused")
     private static void log(String msg) {
         Logger.info("BMTVMp3Player: "+msg);
     }
-    
+
     @SuppressWarnings("unused")
     private static void warn(String msg) {
         Logger.warning("BMTVMp3Player: "+msg);
-    }        
-    
+    }
+
     @SuppressWarnings("unused")
     private static void error(String msg, Exception e) {
         Logger.error("BMTVMp3Player: "+msg, e);
     }
 }
-
-
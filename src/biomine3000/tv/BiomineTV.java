@@ -1,421 +1,728 @@
-package biomine3000.tv;
-
-import java.awt.BorderLayout;
-import java.awt.Dimension;
-import java.awt.GridLayout;
-
-
-import java.awt.event.KeyEvent;
-import java.awt.event.KeyListener;
-import java.awt.event.WindowAdapter;
-import java.awt.event.WindowEvent;
-
-import javax.swing.*;
-
-import java.io.IOException;
-import java.net.ConnectException;
-import java.net.Socket;
-import java.util.*;
-
-import biomine3000.objects.*;
-
-import util.StringUtils;
-import util.collections.OneToOneBidirectionalMap;
-import util.dbg.ILogger;
-import util.dbg.Logger;
-
-public class BiomineTV extends JFrame {
-
-    //////////////////////////////
-    // CONSTANTS
-    private static final double RETRY_INTERVAL_SEC = 1.0;
-    private static final ClientParameters CLIENT_PARAMS = 
-            new ClientParameters("BiomineTV", ClientReceiveMode.NO_ECHO, Subscriptions.ALL, true);
-    
-    private ILogger log;
-    
-    ////////////////////////////////
-    // GUI
-	private JLabel zombiLabel;
-	private LogPanel logPanel;
-	private JTextArea logArea;
-	private JPanel contentPanels;
-	/** Only non-null when no connections */
-	private JLabel notConnectedLabel;
-	
-	private LinkedList<String> logLines;
-	// private BiomineTVImagePanel contentPanel;
-	private BMTVMp3Player mp3Player;
-	
-	
-	////////////////////////////////
-	// Damagement of server connections
-	/** Active connections. Access to this should naturally be synchronized */
-	private OneToOneBidirectionalMap<IServerAddress, ABBOEConnection> connectionsByAddress = new OneToOneBidirectionalMap<IServerAddress, ABBOEConnection>();
-	
-	private Map<ABBOEConnection, BiomineTVImagePanel> imagePanelByConnection = new LinkedHashMap<ABBOEConnection, BiomineTVImagePanel>();
-
-	/** Thread for initiating and retrying connections */
-	private ConnectionThread monitorThread;
-	
-    public BiomineTV(ILogger log) {
-        this.log = log;
-	    init();
-    }
-
-    static int LOG_SIZE = 10;
-          
-    /** TODO: support playing in a streaming fashion */     
-    private void playMP3(BusinessObject bo) {
-        log("Playing: "+bo.getMetaData().get("name"));
-        mp3Player.play(bo.getPayload());
-    }
-    
-    private void init()  {
-
-        mp3Player = new BMTVMp3Player();
-                               
-	    setTitle("Biomine TV®");
-	    zombiLabel = new JLabel("For relaxing times, make it zombie time");
-	    contentPanels = new JPanel();
-	    contentPanels.setLayout(new GridLayout(1,1));
-	    notConnectedLabel = new JLabel("Not connected to any server");
-	    contentPanels.add(notConnectedLabel);
-	    logArea = new JTextArea();
-	    logArea.setSize(400, 400);
-	    logPanel = new LogPanel(log);
-	    logPanel.setPreferredSize(new Dimension(400, 400));
-	    logLines = new LinkedList<String>();	    
-	    setLayout(new BorderLayout());
-	    add(zombiLabel, BorderLayout.NORTH);
-	    add(logArea, BorderLayout.EAST);
-	    add(contentPanels, BorderLayout.CENTER);
-	    add(logPanel, BorderLayout.SOUTH);
-	    
-	    logArea.setFocusable(false);
-	    addKeyListener(new BMTVKeyListener());
-	    
-	    addWindowListener(new WindowAdapter() {
-	 	  	public void windowClosing(WindowEvent e) {
-	 		    close();
-	 	  	}
-	 	});	    	    	    	    	    
-    } 
-
-    private void startConnectionMonitorThread(List<IServerAddress> serverAddresses) {
-        monitorThread = new ConnectionThread(serverAddresses);
-        monitorThread.start();
-    }
-    
-    private synchronized void stopMonitorThread() {        
-        if (monitorThread != null) {
-            monitorThread.stop = true;
-            monitorThread = null;
-        }
-    }    
-    
-    public synchronized boolean connected() {
-        return connectionsByAddress.size() > 0; 
-    }
-    
-    private int numConnections() {
-        return imagePanelByConnection.size();
-    }
-    
-   /**
-    * Start receiving content from an already established TCP connection. 
-    * Note that multiple connections can be received from simultaneously!
-    */
-    public synchronized void startReceivingContentFromServer(IServerAddress address, Socket socket) throws IOException {
-                                            
-        if (connectionsByAddress.containsSrcKey(address)) {
-            throw new RuntimeException("Already receiving content from: "+address);
-        }
-               
-        ClientParameters clientParams = new ClientParameters(CLIENT_PARAMS);
-        clientParams.sender = Biomine3000Utils.getUser();
-        ABBOEConnection connection = new ABBOEConnection(CLIENT_PARAMS, socket, log);
-        BiomineTVImagePanel imagePanel = new BiomineTVImagePanel(this);
-        imagePanelByConnection.put(connection, imagePanel);
-        if (notConnectedLabel != null) {
-            contentPanels.remove(notConnectedLabel);
-        }
-        contentPanels.add(imagePanel);
-        contentPanels.setLayout(new GridLayout(1, numConnections()));
-        contentPanels.revalidate();
-        log("Connected to server: "+address);
-        imagePanel.setMessage("Receiving content from server: "+address);
-        connectionsByAddress.put(address, connection);
-        connection.init(new ConnectionListener(connection, imagePanel));
-        connection.sendClientListRequest();
-    }
-               
-
-    /** some attempt at more manual cyclic log buffer utilization */
-    @SuppressWarnings("unused")
-    private void logToGUI(String s) {
-    	logLines.addLast(s);
-    	if (logLines.size() > LOG_SIZE) {
-    		logLines.removeFirst();
-    	}
-    	logArea.setText("");
-    	for (String l: logLines) {
-    		logArea.append(l+"\n");
-    	}    	
-    }    
-    
-    public static void main(String[] pArgs) throws Exception {
-        @SuppressWarnings("unused")
-        Biomine3000Args args = new Biomine3000Args(pArgs, true);
-        ILogger log = new Logger.ILoggerAdapter("BiomineTV: ");        
-        BiomineTV tv = new BiomineTV(log);
-        tv.setSize(800,600);
-        tv.setLocation(300,300);
-        tv.setVisible(true);
-
-        // Handle possible command line arguments
-        List<IServerAddress> serverAddresses;
-        if (args.getHost() != null) {
-            if (args.getPort() == null)
-                serverAddresses = getServerAddressList(args.getHost(), Biomine3000Constants.DEFAULT_ABBOE_PORT);
-            else
-                serverAddresses = getServerAddressList(args.getHost(), args.getPort());
-        } else
-            serverAddresses = ServerAddress.LIST;
-        
-        // will connect to the server, and keep trying every second until successful
-        tv.startConnectionMonitorThread(serverAddresses);
-    }
-  
-    /** Tries to maintain connections to all servers at given addresses at all times. Retries connections persistently */
-    private class ConnectionThread extends Thread {
-        private boolean stop = false;
-        List<? extends IServerAddress> addresses;
-        ConnectionThread(List<? extends IServerAddress> addresses) {
-            this.addresses = addresses;
-        }
-        
-        public void run() {
-            int i = 0;
-            // cyclicly loop through addresses until requested to stop 
-            while (!stop) {
-                if (i==addresses.size()) {
-                    i = 0;
-                }
-                IServerAddress address = addresses.get(i++);                
-                try {                                        
-                    synchronized(BiomineTV.this) {                        
-                        if  (!(connectionsByAddress.containsSrcKey(address))) {
-                            // not connected to server at this particular address
-                            try {
-                                Socket socket = Biomine3000Utils.connectToServer(address.getHost(), address.getPort());
-                                // successfully connected, start receiving content...
-                                startReceivingContentFromServer(address, socket);
-                            }
-                            catch (ConnectException e) {                                
-                                // no action 
-                            }
-                            catch (IOException e) {
-                                error("Failed connecting to server "+address, e);
-                            }
-                        }
-                    }
-                    
-                    if (connectionsByAddress.size() == addresses.size()) {
-                        // nothing to connect to
-                    }
-                    Thread.sleep((long)(RETRY_INTERVAL_SEC*1000));                    
-                }
-                catch (InterruptedException e) {
-                    // no action 
-                }
-            }
-            
-        }
-    }
-        
-    public synchronized void close() {
-        log.info("Starting BiomineTV.close");
-        stopMonitorThread();
-        
-        if (connectionsByAddress.size() > 0) {
-            // exiting will be postponed to the closing down of the last connection!
-            for (ABBOEConnection con: connectionsByAddress.getTgtValues()) {
-                log.info("Initiating shutdown of connection: "+con);            
-                con.initiateShutdown();
-            }
-        }
-        else {
-            // no connections, can exit right away
-            System.exit(0);
-        }
-    }
-     
-    private boolean shuttingDown() {
-        return monitorThread == null; 
-    }
-    
-    private synchronized void connectionTerminated(ABBOEConnection con) {
-        log("Connection terminated: "+con);
-        this.connectionsByAddress.removeTgt(con);
-        
-        BiomineTVImagePanel imagePanel = imagePanelByConnection.get(con);
-        contentPanels.remove(imagePanel);
-        if (numConnections() == 0) {
-            contentPanels.setLayout(new GridLayout(1, 1));
-            contentPanels.add(new JLabel("Not connected to any server"));
-        }
-        else {
-            contentPanels.setLayout(new GridLayout(1, numConnections()));
-        }
-        contentPanels.revalidate();
-        
-        if (shuttingDown()) {
-            if (connectionsByAddress.size() == 0) {
-                // no more connections, we can finally die
-                log("Last connection terminated, exiting");
-                System.exit(0);
-            }
-        }
-    }
-    
-    private class ConnectionListener implements ABBOEConnection.BusinessObjectHandler {
-
-        ABBOEConnection connection;
-        BiomineTVImagePanel imagePanel;
-        
-        ConnectionListener(ABBOEConnection connection, BiomineTVImagePanel imagePanel) {
-            this.connection = connection;
-            this.imagePanel = imagePanel;
-        }
-        
-        @Override
-        public void handleObject(BusinessObject bo) {
-            
-            if (bo.isEvent()) {                
-                BusinessObjectEventType et = bo.getMetaData().getKnownEvent();
-                if (et == BusinessObjectEventType.CLIENTS_LIST_REPLY) {
-                    String registeredAs = bo.getMetaData().getString("you");
-                    log("This client registered on the server as: "+registeredAs);
-                    List<String> clients = bo.getMetaData().getList("others");
-                    if (clients.size() == 0) {
-                        log("No other clients");
-                    }
-                    else {
-                        log("Other clients:");
-                        log("\t"+StringUtils.collectionToString(clients, "\n\t"));
-                    }
-                    
-                }
-                else if (et == BusinessObjectEventType.CLIENTS_REGISTER_REPLY) {
-                    log("Registered successfully to the server");
-                }
-                else if (et == BusinessObjectEventType.CLIENTS_REGISTER_NOTIFY) {
-                    String name = bo.getMetaData().getName();
-                    log("Client "+name+" registered to ABBOE");
-                }
-                else if (et == BusinessObjectEventType.CLIENTS_PART_NOTIFY) {
-                    String name = bo.getMetaData().getName();
-                    log("Client "+name+" parted from ABBOE");
-                }
-                else {
-                    // unknown event
-                    log(Biomine3000Utils.formatBusinessObject(bo));
-                }
-            }
-            else if (bo instanceof ImageObject) {
-                imagePanel.setImage((ImageObject)bo);
-                String oldMsg = imagePanel.getMessage();
-                if (oldMsg != null && oldMsg.equals("Awaiting content from server...")) {
-                    imagePanel.setMessage(null);
-                }
-            }
-            else if (bo instanceof PlainTextObject) {
-//                PlainTextObject to = (PlainTextObject)bo;
-                logPanel.appendText(Biomine3000Utils.formatBusinessObject(bo)+"\n");
-            }
-            else if (bo.getMetaData().getOfficialType() == Biomine3000Mimetype.MP3) {
-                playMP3(bo);
-            }        
-            else {
-                // plain object with no or unsupported official type 
-                log("Unable to display content:" +bo);            
-            }
-        }
-
-        @Override
-        public void connectionTerminated() {
-           BiomineTV.this.connectionTerminated(connection);
-        }
-
-        @Override
-        public void connectionTerminated(Exception e) {
-            log.error("Connection to "+connection+" terminated");
-            BiomineTV.this.connectionTerminated(connection);
-        }
-        
-    }
-
-    private static List<IServerAddress> getServerAddressList(final String host, final int port) {
-        List<IServerAddress> ret = new ArrayList<IServerAddress>(1);
-
-        ret.add(new IServerAddress() {
-            @Override
-            public int getPort() {
-                return port;
-            }
-
-            @Override
-            public String getHost() {
-                return host;
-            }
-        });
-
-        return ret;
-    }
-
-    /**
-     * For now, the sole purpose of this listener is to enable closing the 
-     * tv using ctrl+q instead of the abodominable ALT+F4.
-     */
-    private class BMTVKeyListener implements KeyListener {
-
-	    @Override
-	    public void keyTyped(KeyEvent e) {
-	        // no action
-		}
-	
-		@Override
-		public void keyPressed(KeyEvent e) {
-			int keyCode = e.getKeyCode();			
-	    	if (keyCode == KeyEvent.VK_W && e.isControlDown()) {
-	    		close();
-	    	}
-	    	else if (keyCode == KeyEvent.VK_Q && e.isControlDown()) {	    		
-	    		close();
-	    	}	    	
-		}
-	
-		@Override
-		public void keyReleased(KeyEvent e) {
-			// no action
-		}					
-	}    
-        
-    private void log(String msg) {
-        logPanel.appendText(msg+"\n");
-        log.info("BiomineTV: "+msg);
-    }    
-    
-    @SuppressWarnings("unused")
-    private void warn(String msg) {
-        log.warning("BiomineTV: "+msg);
-    }        
-    
-    @SuppressWarnings("unused")
-    private void error(String msg, Exception e) {
-        log.error("BiomineTV: "+msg, e);
-    }
-    
-
+package biomine3000.tv;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.GraphicsEnvironment;
+import java.awt.GridLayout;
+import java.awt.Toolkit;
+
+
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+import javax.swing.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import biomine3000.objects.*;
+
+import util.StringUtils;
+import util.collections.OneToOneBidirectionalMap;
+import util.dbg.ILogger;
+import util.dbg.Logger;
+
+public class BiomineTV {
+
+    //////////////////////////////
+    // CONSTANTS
+    /** Delay before the first retry of a failed connection attempt */
+    private static final long INITIAL_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 60000;
+    /** Retry delays are moved randomly by up to this fraction */
+    private static final double RETRY_JITTER = 0.2;
+    private static final ClientParameters CLIENT_PARAMS = 
+            new ClientParameters("BiomineTV", ClientReceiveMode.NO_ECHO, Subscriptions.ALL, true);
+    /** Tile of objects with no channel, in tile mode */
+    private static final String NO_CHANNEL = "(no channel)";
+    
+    private ILogger log;
+    
+    ////////////////////////////////
+    // GUI
+	/** Null if headless */
+	private JFrame frame;
+	/** All there is to show */
+	private JPanel root;
+	private JLabel zombiLabel;
+	private LogPanel logPanel;
+	private JTextArea logArea;
+	private JPanel contentPanels;
+	/** Only non-null when no connections */
+	private JLabel notConnectedLabel;
+	
+	private LinkedList<String> logLines;
+	// private BiomineTVImagePanel contentPanel;
+	private BMTVMp3Player mp3Player;
+	/** Decodes images for all image panels */
+	private ImageDecodePipeline imagePipeline;
+	/** Repaints all image panels, at most once per frame */
+	private RenderLoop renderLoop;
+	/** Recent images of all image panels, to be paged through by the left and right keys */
+	private MediaCache mediaCache;
+	
+	////////////////////////////////
+	// Tile mode
+	/** Number of tiles, each showing a channel of any server; 0 for a panel per server connection */
+	private int numTiles;
+	/** Tiles not showing any channel yet */
+	private LinkedList<BiomineTVImagePanel> freeTiles;
+	/** Tiles by channel shown, least recently updated first. Access to be synchronized on the map. */
+	private LinkedHashMap<String, BiomineTVImagePanel> tileByChannel;
+	
+	
+	////////////////////////////////
+	// Damagement of server connections
+	/** Active connections. Access to this should naturally be synchronized */
+	private OneToOneBidirectionalMap<IServerAddress, ABBOEConnection> connectionsByAddress = new OneToOneBidirectionalMap<IServerAddress, ABBOEConnection>();
+	
+	private Map<ABBOEConnection, BiomineTVImagePanel> imagePanelByConnection = new LinkedHashMap<ABBOEConnection, BiomineTVImagePanel>();
+
+	/** Initiates and retries connections; null once closing */
+	private ConnectionManager connectionManager;
+	
+    public BiomineTV(ILogger log) {
+        this(log, 0);
+    }
+    
+    /** 
+     * @param numTiles number of tiles to show images of different channels in (4 for the 
+     *        four-panel mode); 0 to show images of each server connection in a panel of its own.
+     */
+    public BiomineTV(ILogger log, int numTiles) {
+        this(log, numTiles, false);
+    }
+    
+    /** 
+     * @param headless true to only lay out the TV, to be painted by the caller (see {@link #getRoot()}), 
+     *        instead of showing it in a window. 
+     */
+    public BiomineTV(ILogger log, int numTiles, boolean headless) {
+        this.log = log;
+        this.numTiles = numTiles;
+	    init(headless);
+    }
+
+    static int LOG_SIZE = 10;
+          
+    /** Queue a MP3 to be played after those received before it */     
+    private void playMP3(BusinessObject bo) {
+        String name = bo.getMetaData().getName();
+        log("Queueing: "+name);
+        mp3Player.enqueue(name != null ? name : "MP3", new ByteArrayInputStream(bo.getPayload()));
+    }
+    
+    private void init(boolean headless)  {
+
+        mp3Player = new BMTVMp3Player();
+        imagePipeline = new ImageDecodePipeline(ImageDecodePipeline.DEFAULT_NUM_THREADS);
+        mediaCache = new MediaCache(MediaCache.DEFAULT_MAX_BYTES, MediaCache.DEFAULT_MAX_ITEMS);
+                               
+	    zombiLabel = new JLabel("For relaxing times, make it zombie time");
+	    contentPanels = new JPanel();
+	    renderLoop = new RenderLoop(contentPanels, RenderLoop.DEFAULT_FPS);
+	    if (numTiles > 0) {
+	        initTiles();
+	    }
+	    else {
+	        contentPanels.setLayout(new GridLayout(1,1));
+	        notConnectedLabel = new JLabel("Not connected to any server");
+	        contentPanels.add(notConnectedLabel);
+	    }
+	    logArea = new JTextArea();
+	    logArea.setSize(400, 400);
+	    logPanel = new LogPanel(log);
+	    logPanel.setPreferredSize(new Dimension(400, 400));
+	    logLines = new LinkedList<String>();	    
+	    root = new JPanel();
+	    root.setLayout(new BorderLayout());
+	    root.add(zombiLabel, BorderLayout.NORTH);
+	    root.add(logArea, BorderLayout.EAST);
+	    root.add(contentPanels, BorderLayout.CENTER);
+	    root.add(logPanel, BorderLayout.SOUTH);
+	    
+	    logArea.setFocusable(false);
+	    
+	    if (!headless) {
+	        frame = new JFrame("Biomine TV®");
+	        frame.setContentPane(root);
+	        frame.addKeyListener(new BMTVKeyListener());
+	        frame.addWindowListener(new WindowAdapter() {
+	            public void windowClosing(WindowEvent e) {
+	                close();
+	            }
+	        });
+	        renderLoop.start();
+	    }
+    } 
+    
+    /** Window showing the TV; null if headless */
+    public JFrame getFrame() {
+        return frame;
+    }
+    
+    /** Component showing all of the TV, to be painted by the caller if headless */
+    public JComponent getRoot() {
+        return root;
+    }
+    
+    /** Stats of decoding images */
+    public ImageDecodePipeline getImagePipeline() {
+        return imagePipeline;
+    }
+    
+    /** Recent images, kept within a budget that may be changed */
+    public MediaCache getMediaCache() {
+        return mediaCache;
+    }
+    
+    /** Page all image panels back in their history, where possible */
+    public void pageBack() {
+        for (BiomineTVImagePanel panel: getImagePanels()) {
+            panel.back();
+        }
+    }
+    
+    /** Page all image panels forward in their history, where possible; eventually back to live content */
+    public void pageForward() {
+        for (BiomineTVImagePanel panel: getImagePanels()) {
+            panel.forward();
+        }
+    }
+    
+    /** Image panels, for stats */
+    public synchronized List<BiomineTVImagePanel> getImagePanels() {
+        if (numTiles > 0) {
+            List<BiomineTVImagePanel> tiles = new ArrayList<BiomineTVImagePanel>();
+            for (Component c: contentPanels.getComponents()) {
+                tiles.add((BiomineTVImagePanel)c);
+            }
+            return tiles;
+        }
+        return new ArrayList<BiomineTVImagePanel>(imagePanelByConnection.values());
+    }
+    
+    /**
+     * Handler for objects not received from any server, such as a recorded stream, handled just
+     * like those received from a server. Only supported in tile mode.
+     */
+    public ABBOEConnection.BusinessObjectHandler openFeed() {
+        if (numTiles == 0) {
+            throw new IllegalStateException("Feeds only supported in tile mode");
+        }
+        return new ConnectionListener(null, null, null);
+    }
+    
+    /** Lay out tiles as evenly as possible, columns first, never to be laid out again */
+    private void initTiles() {
+        int cols = (int)Math.ceil(Math.sqrt(numTiles));
+        int rows = (numTiles + cols - 1) / cols;
+        contentPanels.setLayout(new GridLayout(rows, cols));
+        freeTiles = new LinkedList<BiomineTVImagePanel>();
+        tileByChannel = new LinkedHashMap<String, BiomineTVImagePanel>(16, 0.75f, true);
+        for (int i = 0; i < numTiles; i++) {
+            BiomineTVImagePanel tile = new BiomineTVImagePanel(this, imagePipeline, renderLoop, mediaCache.newHistory());
+            tile.setMessage("Awaiting content from server...");
+            freeTiles.add(tile);
+            contentPanels.add(tile);
+        }
+    }
+    
+    /** 
+     * Tile to show a channel in: the tile already showing it, a free tile, or failing those, 
+     * the tile of the channel least recently updated. 
+     */
+    private BiomineTVImagePanel tileForChannel(String channel) {
+        if (channel == null) {
+            channel = NO_CHANNEL;
+        }
+        synchronized(tileByChannel) {
+            BiomineTVImagePanel tile = tileByChannel.get(channel);
+            if (tile != null) {
+                return tile;
+            }
+            if (freeTiles.size() > 0) {
+                tile = freeTiles.removeFirst();
+            }
+            else {
+                Iterator<BiomineTVImagePanel> iter = tileByChannel.values().iterator();
+                tile = iter.next();
+                iter.remove();
+            }
+            tileByChannel.put(channel, tile);
+            tile.setTitle(channel);
+            return tile;
+        }
+    }
+
+    private synchronized void startConnectionManager(List<IServerAddress> serverAddresses) {
+        connectionManager = new ConnectionManager(serverAddresses);
+    }
+    
+    private synchronized void stopConnectionManager() {        
+        if (connectionManager != null) {
+            connectionManager.stop();
+            connectionManager = null;
+        }
+    }    
+    
+    public synchronized boolean connected() {
+        return connectionsByAddress.size() > 0; 
+    }
+    
+    private int numConnections() {
+        return imagePanelByConnection.size();
+    }
+    
+   /**
+    * Start receiving content from an already established TCP connection. 
+    * Note that multiple connections can be received from simultaneously!
+    * Should initializing the connection fail, it is forgotten along with its panel; closing the 
+    * socket is left to the caller.
+    */
+    public synchronized void startReceivingContentFromServer(IServerAddress address, Socket socket) throws IOException {
+                                            
+        if (connectionsByAddress.containsSrcKey(address)) {
+            throw new RuntimeException("Already receiving content from: "+address);
+        }
+               
+        ClientParameters clientParams = new ClientParameters(CLIENT_PARAMS);
+        clientParams.sender = Biomine3000Utils.getUser();
+        if (!GraphicsEnvironment.isHeadless()) {
+            // no use receiving images larger than the screen
+            Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
+            clientParams.maxImageWidth = screenSize.width;
+            clientParams.maxImageHeight = screenSize.height;
+        }
+        ABBOEConnection connection = new ABBOEConnection(clientParams, socket, log);
+        BiomineTVImagePanel imagePanel = null;
+        if (numTiles == 0) {
+            imagePanel = new BiomineTVImagePanel(this, imagePipeline, renderLoop, mediaCache.newHistory());
+            imagePanelByConnection.put(connection, imagePanel);
+            if (notConnectedLabel != null) {
+                contentPanels.remove(notConnectedLabel);
+                notConnectedLabel = null;
+            }
+            contentPanels.add(imagePanel);
+            contentPanels.setLayout(new GridLayout(1, numConnections()));
+            contentPanels.revalidate();
+            imagePanel.setMessage("Receiving content from server: "+address);
+        }
+        log("Connected to server: "+address);
+        connectionsByAddress.put(address, connection);
+        boolean initialized = false;
+        try {
+            connection.init(new ConnectionListener(address, connection, imagePanel));
+            connection.sendClientListRequest();
+            initialized = true;
+        }
+        finally {
+            if (!initialized) {
+                // the reader, if already started, will find the connection gone once the socket is closed
+                removeConnection(connection);
+            }
+        }
+    }
+               
+
+    /** some attempt at more manual cyclic log buffer utilization */
+    @SuppressWarnings("unused")
+    private void logToGUI(String s) {
+    	logLines.addLast(s);
+    	if (logLines.size() > LOG_SIZE) {
+    		logLines.removeFirst();
+    	}
+    	logArea.setText("");
+    	for (String l: logLines) {
+    		logArea.append(l+"\n");
+    	}    	
+    }    
+    
+    public static void main(String[] pArgs) throws Exception {
+        Biomine3000Args args = new Biomine3000Args(pArgs, true);
+        ILogger log = new Logger.ILoggerAdapter("BiomineTV: ");        
+        // -tiles 4 for the four-panel mode
+        BiomineTV tv = new BiomineTV(log, args.getIntOpt("tiles", 0));
+        // size of payloads of recent images to keep, in megabytes, and number of images per panel
+        tv.getMediaCache().setMaxBytes(args.getIntOpt("cache_mb", (int)(MediaCache.DEFAULT_MAX_BYTES >> 20)) * 1024L * 1024L);
+        tv.getMediaCache().setMaxItems(args.getIntOpt("history", MediaCache.DEFAULT_MAX_ITEMS));
+        tv.getFrame().setSize(800,600);
+        tv.getFrame().setLocation(300,300);
+        tv.getFrame().setVisible(true);
+
+        // Handle possible command line arguments
+        List<IServerAddress> serverAddresses;
+        if (args.getHost() != null) {
+            if (args.getPort() == null)
+                serverAddresses = getServerAddressList(args.getHost(), Biomine3000Constants.DEFAULT_ABBOE_PORT);
+            else
+                serverAddresses = getServerAddressList(args.getHost(), args.getPort());
+        } else
+            serverAddresses = ServerAddress.LIST;
+        
+        // will connect to the servers, and keep retrying until successful
+        tv.startConnectionManager(serverAddresses);
+    }
+  
+    /** 
+     * Keeps connected to servers at given addresses at all times, connecting to each independently of 
+     * the others. After a failed attempt, an address is retried after a delay doubling on each failure, 
+     * up to {@link #MAX_RETRY_MILLIS}, and randomized by {@link #RETRY_JITTER}, so that TVs do not all 
+     * reconnect at once when a server comes back. Once connected, an address is retried only after 
+     * the connection has terminated. Connecting is done without holding the lock of the TV. At most 
+     * one attempt per address is pending at a time.
+     */
+    private class ConnectionManager {
+        private ScheduledExecutorService executor;
+        private Random random;
+        /** Delay before the next retry, by address. Access to be synchronized on the manager. */
+        private Map<IServerAddress, Long> retryDelays;
+        /** Addresses with an attempt scheduled or under way. Access to be synchronized on the manager. */
+        private Set<IServerAddress> pending;
+        private volatile boolean stop = false;
+        
+        ConnectionManager(List<? extends IServerAddress> addresses) {
+            executor = Executors.newScheduledThreadPool(Math.max(1, addresses.size()), new ThreadFactory() {
+                private int n = 0;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "tv-connect-"+(++n));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            random = new Random();
+            retryDelays = new HashMap<IServerAddress, Long>();
+            pending = new HashSet<IServerAddress>();
+            for (IServerAddress address: addresses) {
+                retryDelays.put(address, INITIAL_RETRY_MILLIS);
+                schedule(address, 0);
+            }
+        }
+        
+        private void schedule(final IServerAddress address, long delayMillis) {
+            if (stop) {
+                return;
+            }
+            synchronized(this) {
+                if (!pending.add(address)) {
+                    // already to be retried
+                    return;
+                }
+            }
+            executor.schedule(new Runnable() {
+                public void run() {
+                    connect(address);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+        
+        private void connect(IServerAddress address) {
+            synchronized(this) {
+                pending.remove(address);
+            }
+            if (stop) {
+                return;
+            }
+            Socket socket;
+            try {
+                socket = Biomine3000Utils.connectToServer(address.getHost(), address.getPort());
+            }
+            catch (ConnectException e) {
+                // no action
+                retry(address);
+                return;
+            }
+            catch (IOException e) {
+                error("Failed connecting to server "+address, e);
+                retry(address);
+                return;
+            }
+            
+            // successfully connected, start receiving content...
+            try {
+                synchronized(BiomineTV.this) {
+                    if (stop || connectionsByAddress.containsSrcKey(address)) {
+                        // stopped, or connected already; the latter will be retried once terminated
+                        closeQuietly(socket);
+                        return;
+                    }
+                    startReceivingContentFromServer(address, socket);
+                }
+                synchronized(this) {
+                    retryDelays.put(address, INITIAL_RETRY_MILLIS);
+                }
+            }
+            catch (IOException e) {
+                failed(address, socket, e);
+            }
+            catch (RuntimeException e) {
+                failed(address, socket, e);
+            }
+        }
+        
+        /** Initializing a connection failed; the TV has forgotten it already */
+        private void failed(IServerAddress address, Socket socket, Exception e) {
+            error("Failed initializing connection to server "+address, e);
+            closeQuietly(socket);
+            retry(address);
+        }
+        
+        private void closeQuietly(Socket socket) {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // no action
+            }
+        }
+        
+        private void retry(IServerAddress address) {
+            long delay;
+            synchronized(this) {
+                delay = retryDelays.get(address);
+                retryDelays.put(address, Math.min(MAX_RETRY_MILLIS, 2*delay));
+            }
+            schedule(address, (long)(delay * (1 + RETRY_JITTER * (2*random.nextDouble()-1))));
+        }
+        
+        /** To be called once the connection to an address has terminated */
+        void disconnected(IServerAddress address) {
+            retry(address);
+        }
+        
+        /** Make no more attempts; connections already made are not affected */
+        void stop() {
+            stop = true;
+            executor.shutdownNow();
+        }
+    }
+        
+    public synchronized void close() {
+        log.info("Starting BiomineTV.close");
+        stopConnectionManager();
+        
+        if (connectionsByAddress.size() > 0) {
+            // exiting will be postponed to the closing down of the last connection!
+            for (ABBOEConnection con: connectionsByAddress.getTgtValues()) {
+                log.info("Initiating shutdown of connection: "+con);            
+                con.initiateShutdown();
+            }
+        }
+        else {
+            // no connections, can exit right away
+            System.exit(0);
+        }
+    }
+     
+    private boolean shuttingDown() {
+        return connectionManager == null; 
+    }
+    
+    private synchronized void connectionTerminated(IServerAddress address, ABBOEConnection con) {
+        log("Connection terminated: "+con);
+        // not known if never successfully initialized; that failure has been retried already
+        if (removeConnection(con) && connectionManager != null) {
+            connectionManager.disconnected(address);
+        }
+        
+        if (shuttingDown()) {
+            if (connectionsByAddress.size() == 0) {
+                // no more connections, we can finally die
+                log("Last connection terminated, exiting");
+                System.exit(0);
+            }
+        }
+    }
+    
+    /** 
+     * Forget a connection along with its panel, if any. To be called with the lock held.
+     * @return false if the connection was not known
+     */
+    private boolean removeConnection(ABBOEConnection con) {
+        boolean known = connectionsByAddress.getTgtValues().contains(con);
+        connectionsByAddress.removeTgt(con);
+        
+        BiomineTVImagePanel imagePanel = imagePanelByConnection.remove(con);
+        if (imagePanel != null) {
+            contentPanels.remove(imagePanel);
+            if (numConnections() == 0) {
+                contentPanels.setLayout(new GridLayout(1, 1));
+                notConnectedLabel = new JLabel("Not connected to any server");
+                contentPanels.add(notConnectedLabel);
+            }
+            else {
+                contentPanels.setLayout(new GridLayout(1, numConnections()));
+            }
+            contentPanels.revalidate();
+        }
+        return known;
+    }
+    
+    private class ConnectionListener implements ABBOEConnection.BusinessObjectHandler {
+
+        IServerAddress address;
+        ABBOEConnection connection;
+        /** Null in tile mode */
+        BiomineTVImagePanel imagePanel;
+        
+        ConnectionListener(IServerAddress address, ABBOEConnection connection, BiomineTVImagePanel imagePanel) {
+            this.address = address;
+            this.connection = connection;
+            this.imagePanel = imagePanel;
+        }
+        
+        @Override
+        public void handleObject(BusinessObject bo) {
+            
+            if (bo.isEvent()) {                
+                BusinessObjectEventType et = bo.getMetaData().getKnownEvent();
+                if (et == BusinessObjectEventType.CLIENTS_LIST_REPLY) {
+                    String registeredAs = bo.getMetaData().getString("you");
+                    log("This client registered on the server as: "+registeredAs);
+                    List<String> clients = bo.getMetaData().getList("others");
+                    if (clients.size() == 0) {
+                        log("No other clients");
+                    }
+                    else {
+                        log("Other clients:");
+                        log("\t"+StringUtils.collectionToString(clients, "\n\t"));
+                    }
+                    
+                }
+                else if (et == BusinessObjectEventType.CLIENTS_REGISTER_REPLY) {
+                    log("Registered successfully to the server");
+                }
+                else if (et == BusinessObjectEventType.CLIENTS_REGISTER_NOTIFY) {
+                    String name = bo.getMetaData().getName();
+                    log("Client "+name+" registered to ABBOE");
+                }
+                else if (et == BusinessObjectEventType.CLIENTS_PART_NOTIFY) {
+                    String name = bo.getMetaData().getName();
+                    log("Client "+name+" parted from ABBOE");
+                }
+                else {
+                    // unknown event
+                    log(Biomine3000Utils.formatBusinessObject(bo));
+                }
+            }
+            else if (bo instanceof ImageObject) {
+                BiomineTVImagePanel imagePanel = this.imagePanel != null ? this.imagePanel 
+                                                 : tileForChannel(bo.getMetaData().getChannel());
+                imagePanel.setImage((ImageObject)bo);
+                String oldMsg = imagePanel.getMessage();
+                if (oldMsg != null && oldMsg.equals("Awaiting content from server...")) {
+                    imagePanel.setMessage(null);
+                }
+            }
+            else if (bo instanceof PlainTextObject) {
+//                PlainTextObject to = (PlainTextObject)bo;
+                logPanel.appendText(Biomine3000Utils.formatBusinessObject(bo)+"\n");
+            }
+            else if (bo.getMetaData().getOfficialType() == Biomine3000Mimetype.MP3) {
+                playMP3(bo);
+            }        
+            else {
+                // plain object with no or unsupported official type 
+                log("Unable to display content:" +bo);            
+            }
+        }
+
+        @Override
+        public void connectionTerminated() {
+            if (connection == null) {
+                // feed ended
+                return;
+            }
+           BiomineTV.this.connectionTerminated(address, connection);
+        }
+
+        @Override
+        public void connectionTerminated(Exception e) {
+            if (connection == null) {
+                return;
+            }
+            log.error("Connection to "+connection+" terminated");
+            BiomineTV.this.connectionTerminated(address, connection);
+        }
+        
+    }
+
+    private static List<IServerAddress> getServerAddressList(final String host, final int port) {
+        List<IServerAddress> ret = new ArrayList<IServerAddress>(1);
+
+        ret.add(new IServerAddress() {
+            @Override
+            public int getPort() {
+                return port;
+            }
+
+            @Override
+            public String getHost() {
+                return host;
+            }
+        });
+
+        return ret;
+    }
+
+    /**
+     * Enables closing the tv using ctrl+q instead of the abodominable ALT+F4,
+     * and paging through recent images by the left and right keys.
+     */
+    private class BMTVKeyListener implements KeyListener {
+
+	    @Override
+	    public void keyTyped(KeyEvent e) {
+	        // no action
+		}
+	
+		@Override
+		public void keyPressed(KeyEvent e) {
+			int keyCode = e.getKeyCode();			
+	    	if (keyCode == KeyEvent.VK_W && e.isControlDown()) {
+	    		close();
+	    	}
+	    	else if (keyCode == KeyEvent.VK_Q && e.isControlDown()) {	    		
+	    		close();
+	    	}
+	    	else if (keyCode == KeyEvent.VK_LEFT) {
+	    	    pageBack();
+	    	}
+	    	else if (keyCode == KeyEvent.VK_RIGHT) {
+	    	    pageForward();
+	    	}	    	
+		}
+	
+		@Override
+		public void keyReleased(KeyEvent e) {
+			// no action
+		}					
+	}    
+        
+    private void log(String msg) {
+        logPanel.appendText(msg+"\n");
+        log.info("BiomineTV: "+msg);
+    }    
+    
+    @SuppressWarnings("unused")
+    private void warn(String msg) {
+        log.warning("BiomineTV: "+msg);
+    }        
+    
+    @SuppressWarnings("unused")
+    private void error(String msg, Exception e) {
+        log.error("BiomineTV: "+msg, e);
+    }
+    
+
 }
\ No newline at end of file
@@ -1,197 +1,340 @@
-package biomine3000.tv;
-
-import gui.image.Edge;
-import gui.image.ImageUtils;
-
-import java.awt.Color;
-import java.awt.Dimension;
-import java.awt.Font;
-import java.awt.FontMetrics;
-import java.awt.Graphics;
-import java.awt.image.BufferedImage;
-import javax.swing.JPanel;
-
-import biomine3000.objects.ImageObject;
-
-import util.dbg.Logger;
-
-public class BiomineTVImagePanel extends JPanel implements
-        java.awt.image.ImageObserver {
-
-    private BiomineTV tv;
-    
-    String msg;
-    BufferedImage img;
-
-    int xoff = 0;
-    int yoff = 0;
-
-    public BiomineTVImagePanel(BiomineTV tv) {
-        this.tv = tv;        
-        img = null;
-        Font font = new Font("Dialog", Font.PLAIN, 20);
-        this.setFont(font);
-        // setContent(urlStr);
-    }        
-    
-    public String getMessage() {
-        return msg;
-    }
-    
-    public void setMessage(String msg) {
-        if (this.msg != null) {
-            synchronized(this.msg) {
-                this.msg = msg;
-                log("Message set to: "+msg);
-            }
-        }
-        else {
-            this.msg = msg;
-        }
-        
-        repaint();
-    }
-    
-    public void setImage(ImageObject img) {
-        if (this.img != null) {
-            synchronized(this.img) {
-                // synchronization needed, otherwise we could change the image
-                // while it is being painted
-                // TODO: do not defer getting buffered image so far                
-                this.img = img.getImage();                               
-            }
-        }
-        else {
-            // no image yet, nothing to synchronize
-            this.img = img.getImage();
-        }
-        repaint();
-        
-    }        
-
-    private void paintMessage(Graphics g) {
-        if (msg == null) {
-            return;
-        }
-        
-        int w = getWidth();
-        int h = getHeight();        
-        synchronized(msg) {
-            FontMetrics fm = g.getFontMetrics();
-            int msgWidth = fm.stringWidth(msg);
-            int msgHeight = fm.getHeight();
-            int x = (w - msgWidth) / 2;
-            int y = h/2 + msgHeight / 2;
-            g.drawString(msg, x, y);
-        }
-    }
-
-    
-    
-    public void paintComponent(Graphics g) {
-        
-        
-        if (img != null) {
-            paintImage(g);
-        }
-        else {
-            // if no image, let's go for an opaque background
-            super.paintComponent(g);
-        }
-        
-        if (msg != null) {
-            paintMessage(g);
-        }
-    }
-        
-    
-    public void paintImage(Graphics g) {        
-        int w = getWidth();
-        int h = getHeight();
-        int iw = img.getWidth();
-        int ih = img.getHeight();                    
-        
-        double imageAspectRatio = ((double)iw)/ih;
-        double panelAspectRatio = ((double)w)/h;       
-        
-        int x1 = 0;
-        int x2 = w;
-        int y1 = 0;
-        int y2 = h;
-        
-        if ( imageAspectRatio > panelAspectRatio) {
-            // by which factor the image would have to be made taller to make it suitable for the tv:            
-            double yFactor = imageAspectRatio / panelAspectRatio;
-            int iHeightOnPanel= (int)(h / yFactor);
-            int extraHeight = h - iHeightOnPanel;
-            
-            y1 = extraHeight/2;
-            y2 = h - extraHeight/2;
-            
-            // render top and bottom rectangles with uniform color that is average of colors on the corresponding edges of the image
-            try {
-                
-                
-                Color topColor = ImageUtils.getEdgeColor(img, Edge.TOP);
-                g.setColor(topColor);
-                g.fillRect(0, 0, w, extraHeight/2);
-                                
-                Color bottomColor = ImageUtils.getEdgeColor(img, Edge.BOTTOM);
-                g.setColor(bottomColor);
-                g.fillRect(0, y2, w, extraHeight/2);
-            }
-            catch (RuntimeException e) {
-                e.printStackTrace();
-                tv.close();
-            }
-        }
-        else if (imageAspectRatio < panelAspectRatio) {
-            // by which factor the image would have to be made wider to make it suitable for the tv:            
-            double xFactor = panelAspectRatio / imageAspectRatio;
-            int iWidthOnPanel= (int)(w / xFactor);
-            int extraWidth = w - iWidthOnPanel;
-            
-            x1 = extraWidth/2;
-            x2 = w - extraWidth/2;
-            
-           // render left and right rectangles with uniform color that is average of colors on the corresponding edges of the image
-            Color leftColor = ImageUtils.getEdgeColor(img, Edge.LEFT);
-            g.setColor(leftColor);
-            g.fillRect(0, 0, extraWidth/2, h);
-            
-            Color rightColor = ImageUtils.getEdgeColor(img, Edge.RIGHT);
-            g.setColor(rightColor);
-            g.fillRect(x2, 0, extraWidth/2, h);
-        }
-        else {
-            Logger.warning("WOOT?");
-        }
-                 
-        g.drawImage(img,
-                    x1, y1, x2, y2,
-                    0, 0, iw, ih,
-                    this);
-        
-        
-    }
-
-    public Dimension getPreferredSize() {
-        return new Dimension(100, 100);
-    }
-
-       
-    private static void log(String msg) {
-        Logger.info("BiomineTVImagePanel: "+msg);
-    }    
-    
-    @SuppressWarnings("unused")
-    private static void warn(String msg) {
-        Logger.warning("BiomineTVImagePanel: "+msg);
-    }        
-    
-    @SuppressWarnings("unused")
-    private static void error(String msg, Exception e) {
-        Logger.error("BiomineTVImagePanel: "+msg, e);
-    }
-
-}
+package biomine3000.tv;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import javax.swing.JPanel;
+
+import biomine3000.objects.ImageObject;
+import biomine3000.tv.ImageDecodePipeline.DecodedImage;
+
+import util.dbg.Logger;
+
+/**
+ * Shows the latest image received, fitted to the panel, with the rest of the panel filled with
+ * the colors of the corresponding edges of the image.
+ * 
+ * Images are decoded and scaled to the size of the panel by an {@link ImageDecodePipeline}, off both 
+ * the thread receiving them and the event dispatch thread, and swapped in as a whole once ready. 
+ * When the panel is resized, the image is scaled again; meanwhile, the old scaled image is stretched. 
+ * Should images arrive faster than they can be decoded, only the newest one is decoded once the 
+ * one under way is done, the others being skipped (see {@link #getNumSkipped()}). 
+ * 
+ * Given a {@link RenderLoop}, the panel leaves repainting due to new content to the loop, to be 
+ * done along with the other panels of the loop, once per frame.
+ * 
+ * Given a {@link MediaCache.History}, images received are kept there, to be paged through by 
+ * {@link #back()} and {@link #forward()}; the images next to the one shown are decoded ahead, so 
+ * that paging to them is instant. While paged back, images received are only added to the history.
+ */
+public class BiomineTVImagePanel extends JPanel implements
+        java.awt.image.ImageObserver {
+
+    private BiomineTV tv;
+    private ImageDecodePipeline pipeline;
+    /** Null to repaint on its own */
+    private RenderLoop renderLoop;
+    /** Null for none */
+    private MediaCache.History history;
+    
+    String msg;
+    /** Shown small in the corner, such as the channel shown; null for none */
+    private volatile String title;
+    
+    /** Image shown, null if none yet */
+    private volatile DecodedImage image;
+    /** Generation of the latest image passed to the pipeline */
+    private long latestGeneration = 0;
+    /** Newest image received but not yet being decoded, if any; older ones are dropped */
+    private ImageObject pendingImage;
+    /** Whether the pipeline is decoding images of this panel */
+    private boolean decoding;
+    /** Number of images dropped without being decoded */
+    private long numSkipped;
+
+    int xoff = 0;
+    int yoff = 0;
+
+    /** @param renderLoop null to repaint on its own */ 
+    public BiomineTVImagePanel(BiomineTV tv, ImageDecodePipeline pipeline, RenderLoop renderLoop) {
+        this(tv, pipeline, renderLoop, null);
+    }
+    
+    /** 
+     * @param renderLoop null to repaint on its own
+     * @param history null to keep no history
+     */ 
+    public BiomineTVImagePanel(BiomineTV tv, ImageDecodePipeline pipeline, RenderLoop renderLoop, 
+                               MediaCache.History history) {
+        this.tv = tv;        
+        this.pipeline = pipeline;
+        this.renderLoop = renderLoop;
+        this.history = history;
+        Font font = new Font("Dialog", Font.PLAIN, 20);
+        this.setFont(font);
+        addComponentListener(new ComponentAdapter() {
+            public void componentResized(ComponentEvent e) {
+                DecodedImage current = image;
+                // previews are not worth scaling again, the rest being on its way
+                if (current != null && !current.preview && !current.fits(getWidth(), getHeight())) {
+                    BiomineTVImagePanel.this.pipeline.rescale(current, BiomineTVImagePanel.this);
+                }
+            }
+        });
+        // setContent(urlStr);
+    }        
+    
+    public String getMessage() {
+        return msg;
+    }
+    
+    public void setMessage(String msg) {
+        if (this.msg != null) {
+            synchronized(this.msg) {
+                this.msg = msg;
+                log("Message set to: "+msg);
+            }
+        }
+        else {
+            this.msg = msg;
+        }
+        
+        requestRepaint();
+    }
+    
+    public String getTitle() {
+        return title;
+    }
+    
+    public void setTitle(String title) {
+        this.title = title;
+        requestRepaint();
+    }
+    
+    private void requestRepaint() {
+        if (renderLoop != null) {
+            renderLoop.invalidate();
+        }
+        else {
+            repaint();
+        }
+    }
+    
+    /** 
+     * Have an image decoded, to be shown once ready, unless an even newer image is set before its 
+     * decoding starts; returns immediately. While paged back in the history, the image is only 
+     * added to the history.
+     */
+    public void setImage(ImageObject img) {
+        if (history != null) {
+            img = history.add(img);
+            if (img == null) {
+                // for the count of images in the history to be updated
+                requestRepaint();
+                return;
+            }
+        }
+        show(img);
+    }
+    
+    /** Page back to the previous image in the history; false if none */
+    public boolean back() {
+        return page(history != null ? history.back() : null);
+    }
+    
+    /** Page forward to the next image in the history, if any; false if none */
+    public boolean forward() {
+        return page(history != null ? history.forward() : null);
+    }
+    
+    private boolean page(ImageObject img) {
+        if (img == null) {
+            return false;
+        }
+        show(img);
+        for (ImageObject adjacent: history.getAdjacent()) {
+            pipeline.prefetch(adjacent, history, this);
+        }
+        return true;
+    }
+    
+    private void show(ImageObject img) {
+        synchronized(this) {
+            if (pendingImage != null) {
+                numSkipped++;
+            }
+            pendingImage = img;
+            if (decoding) {
+                // to be taken once the image under way is done
+                return;
+            }
+            decoding = true;
+        }
+        pipeline.decodePending(this);
+    }        
+    
+    /** Called by the pipeline to take the next image to decode; null once none pending */
+    synchronized ImageDecodePipeline.PendingImage takePendingImage() {
+        if (pendingImage == null) {
+            decoding = false;
+            return null;
+        }
+        ImageDecodePipeline.PendingImage pending = new ImageDecodePipeline.PendingImage(pendingImage, ++latestGeneration);
+        pendingImage = null;
+        return pending;
+    }
+    
+    /** Number of images received but never decoded, as newer ones arrived first */
+    public synchronized long getNumSkipped() {
+        return numSkipped;
+    }
+    
+    /** 
+     * Called by the pipeline once an image has been decoded, scaled again, or previewed. Images older 
+     * than the one shown, previews of the image already shown in full, and images scaled for a size 
+     * the panel no longer has, are ignored.
+     */
+    void imageReady(DecodedImage decoded) {
+        synchronized(this) {
+            DecodedImage current = image;
+            if (current != null) {
+                if (decoded.generation < current.generation) {
+                    return;
+                }
+                if (decoded.generation == current.generation) {
+                    if (decoded.preview && !current.preview) {
+                        return;
+                    }
+                    if (!current.preview && !decoded.fits(getWidth(), getHeight())) {
+                        return;
+                    }
+                }
+            }
+            image = decoded;
+        }
+        if (!decoded.preview && !decoded.fits(getWidth(), getHeight())) {
+            // resized while scaling
+            pipeline.rescale(decoded, this);
+        }
+        requestRepaint();
+    }
+
+    /** True if the latest image set is shown, prepared for the current size of the panel */
+    synchronized boolean isImageReady() {
+        DecodedImage current = image;
+        return pendingImage == null && current != null && current.generation == latestGeneration && !current.preview
+               && current.frame != null
+               && current.fits(getWidth(), getHeight());
+    }
+
+    private void paintMessage(Graphics g) {
+        if (msg == null) {
+            return;
+        }
+        
+        int w = getWidth();
+        int h = getHeight();        
+        synchronized(msg) {
+            FontMetrics fm = g.getFontMetrics();
+            int msgWidth = fm.stringWidth(msg);
+            int msgHeight = fm.getHeight();
+            int x = (w - msgWidth) / 2;
+            int y = h/2 + msgHeight / 2;
+            g.drawString(msg, x, y);
+        }
+    }
+
+    
+    
+    public void paintComponent(Graphics g) {
+        
+        DecodedImage current = image;
+        if (current != null) {
+            paintImage((Graphics2D)g, current);
+        }
+        else {
+            // if no image, let's go for an opaque background
+            super.paintComponent(g);
+        }
+        
+        if (msg != null) {
+            paintMessage(g);
+        }
+        
+        String title = this.title;
+        if (title != null) {
+            paintTitle(g, title, false);
+        }
+        
+        if (history != null && !history.isLive()) {
+            paintTitle(g, "History "+history.getPosition()+"/"+history.size(), true);
+        }
+    }
+    
+    /** @param right true to paint in the top right corner, instead of the top left one */ 
+    private void paintTitle(Graphics g, String title, boolean right) {
+        Font font = g.getFont();
+        g.setFont(font.deriveFont(font.getSize2D() * 0.6f));
+        FontMetrics fm = g.getFontMetrics();
+        int pad = fm.getDescent();
+        int width = fm.stringWidth(title) + 2*pad;
+        int x = right ? getWidth() - width : 0;
+        g.setColor(Color.BLACK);
+        g.fillRect(x, 0, width, fm.getHeight());
+        g.setColor(Color.WHITE);
+        g.drawString(title, x + pad, fm.getAscent());
+        g.setFont(font);
+    }
+        
+    /** 
+     * A single copy of the frame composited by the pipeline, unless the panel has been resized since; 
+     * in that case, the image is stretched until scaled again. 
+     */
+    public void paintImage(Graphics2D g, DecodedImage decoded) {        
+        int w = getWidth();
+        int h = getHeight();
+        if (decoded.frame != null && decoded.fits(w, h)) {
+            g.drawImage(decoded.frame, 0, 0, this);
+            return;
+        }
+        
+        Rectangle bounds = ImageDecodePipeline.letterbox(decoded.original.getWidth(), decoded.original.getHeight(), w, h);
+        ImageDecodePipeline.paintLetterbox(g, bounds, decoded.edgeColors, w, h);
+        if (decoded.frame != null) {
+            Rectangle src = decoded.bounds;
+            g.drawImage(decoded.frame,
+                        bounds.x, bounds.y, bounds.x + bounds.width, bounds.y + bounds.height,
+                        src.x, src.y, src.x + src.width, src.y + src.height,
+                        this);
+        }
+        else {
+            g.drawImage(decoded.original, bounds.x, bounds.y, bounds.width, bounds.height, this);
+        }
+    }
+
+    public Dimension getPreferredSize() {
+        return new Dimension(100, 100);
+    }
+
+       
+    private static void log(String msg) {
+        Logger.info("BiomineTVImagePanel: "+msg);
+    }    
+    
+    @SuppressWarnings("unused")
+    private static void warn(String msg) {
+        Logger.warning("BiomineTVImagePanel: "+msg);
+    }        
+    
+    @SuppressWarnings("unused")
+    private static void error(String msg, Exception e) {
+        Logger.error("BiomineTVImagePanel: "+msg, e);
+    }
+
+}
@@ -0,0 +1,351 @@
+package biomine3000.tv;
+
+import gui.image.Edge;
+import gui.image.ImageUtils;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import biomine3000.objects.ImageObject;
+
+import util.dbg.Logger;
+
+/**
+ * Decodes images for {@link BiomineTVImagePanel}s on a pool of worker threads, so that neither the
+ * thread reading objects from the server nor the event dispatch thread has to wait for decoding
+ * large images.
+ *
+ * Each image is scaled, once, to fit the panel it is to be shown in, as of the time of scaling, and
+ * composited, letterbox and all, into a frame of the size of the panel, compatible with the display,
+ * so that painting it is a single copy. The colors of the letterbox are those of the edges of the image,
+ * computed once per image. The panel keeps the original, to be scaled again (by {@link #rescale})
+ * should the panel be resized.
+ *
+ * Images much larger than the panel are decoded at reduced resolution (see
+ * {@link ImageObject#getImage(int, int, ImageObject.PreviewListener)}), and decoded again should
+ * the panel be enlarged beyond what the reduced image suffices for. Progressive images are first
+ * shown as a preview of the first pass, while the rest is being decoded.
+ *
+ * As images are decoded concurrently, they may be finished out of order; each is tagged with a
+ * generation, by which the panel tells a stale result from the latest one.
+ */
+public class ImageDecodePipeline {
+
+    public static final int DEFAULT_NUM_THREADS = 2;
+
+    private static final int EDGE_TOP = 0;
+    private static final int EDGE_BOTTOM = 1;
+    private static final int EDGE_LEFT = 2;
+    private static final int EDGE_RIGHT = 3;
+
+    private static boolean log = false;
+
+    private ExecutorService pool;
+    private long numDecoded;
+    private long numFailed;
+    private long numPreviews;
+    private long decodeNanos;
+    private long scaleNanos;
+
+    public ImageDecodePipeline(int numThreads) {
+        this.pool = Executors.newFixedThreadPool(Math.max(1, numThreads), new ThreadFactory() {
+            private int n = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "tv-image-decoder-"+(++n));
+                thread.setDaemon(true);
+                // keep painting responsive
+                thread.setPriority(Thread.NORM_PRIORITY-1);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Decode the images pending in the mailbox of a panel, newest first, handing each to the panel once
+     * scaled to the size of the panel, until none is pending. The panel is to call this only when
+     * no decoding for it is under way, so that its images are decoded one at a time.
+     */
+    public void decodePending(final BiomineTVImagePanel panel) {
+        pool.execute(new Runnable() {
+            public void run() {
+                PendingImage pending;
+                while ((pending = panel.takePendingImage()) != null) {
+                    decode(pending.image, panel, pending.generation);
+                }
+            }
+        });
+    }
+
+    private void decode(final ImageObject image, final BiomineTVImagePanel panel, final long generation) {
+        long startTime = System.nanoTime();
+        ImageObject.PreviewListener previewListener = new ImageObject.PreviewListener() {
+            public void previewReady(BufferedImage preview) {
+                synchronized(ImageDecodePipeline.this) {
+                    numPreviews++;
+                }
+                panel.imageReady(scale(image, preview, null, panel, generation, true));
+            }
+        };
+        BufferedImage original = image.getImage(panel.getWidth(), panel.getHeight(), previewListener);
+        if (original == null) {
+            Logger.warning("Failed decoding image "+image+
+                           (image.getException() != null ? ": "+image.getException().getMessage() : ""));
+            synchronized(this) {
+                numFailed++;
+            }
+            return;
+        }
+        long decodeTime = System.nanoTime();
+        DecodedImage decoded = scale(image, original, null, panel, generation, false);
+        long endTime = System.nanoTime();
+        synchronized(this) {
+            numDecoded++;
+            decodeNanos += decodeTime - startTime;
+            scaleNanos += endTime - decodeTime;
+        }
+        if (log) {
+            Logger.info("Decoded "+image+" ("+original.getWidth()+"x"+original.getHeight()+", subsampled by "+
+                        image.getSubsampling()+") in "+
+                        (decodeTime-startTime)/1000000+" ms, scaled in "+(endTime-decodeTime)/1000000+" ms");
+        }
+        panel.imageReady(decoded);
+    }
+
+    /** 
+     * Scale an already decoded image again, to the current size of the panel, decoding it again 
+     * at a higher resolution if needed.
+     */
+    public void rescale(final DecodedImage decoded, final BiomineTVImagePanel panel) {
+        pool.execute(new Runnable() {
+            public void run() {
+                BufferedImage original = decoded.source.getImage(panel.getWidth(), panel.getHeight(), null);
+                if (original == null) {
+                    original = decoded.original;
+                }
+                panel.imageReady(scale(decoded.source, original, decoded.edgeColors, panel, decoded.generation, false));
+            }
+        });
+    }
+
+    /**
+     * Decode an image ahead of it being shown in a panel, such as when paging through its history,
+     * so that it can be shown without waiting for decoding; the image is released once decoded,
+     * should it no longer be about to be shown.
+     */
+    public void prefetch(final ImageObject image, final MediaCache.History history, final BiomineTVImagePanel panel) {
+        pool.execute(new Runnable() {
+            public void run() {
+                if (history.isNear(image)) {
+                    image.getImage(panel.getWidth(), panel.getHeight(), null);
+                    if (!history.isNear(image)) {
+                        image.releaseImage();
+                    }
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /** Number of images decoded (and scaled) so far */
+    public synchronized long getNumDecoded() {
+        return numDecoded;
+    }
+
+    /** Number of images failed to decode so far */
+    public synchronized long getNumFailed() {
+        return numFailed;
+    }
+
+    /** Number of previews of progressive images passed to panels so far */
+    public synchronized long getNumPreviews() {
+        return numPreviews;
+    }
+
+    /** Total time spent decoding images so far, excluding scaling */
+    public synchronized long getDecodeMillis() {
+        return decodeNanos / 1000000;
+    }
+
+    /** Total time spent scaling (and compositing) decoded images so far */
+    public synchronized long getScaleMillis() {
+        return scaleNanos / 1000000;
+    }
+
+    public synchronized String toString() {
+        return "ImageDecodePipeline ("+numDecoded+" decoded, "+numFailed+" failed, "+numPreviews+" previews, "+
+               (decodeNanos / 1000000)+" ms decoding, "+(scaleNanos / 1000000)+" ms scaling)";
+    }
+
+    /**
+     * @param edgeColors colors of the edges of the image, if already known; computed otherwise.
+     */
+    private static DecodedImage scale(ImageObject source, BufferedImage original, Color[] edgeColors,
+                                      BiomineTVImagePanel panel, long generation, boolean preview) {
+        int panelWidth = panel.getWidth();
+        int panelHeight = panel.getHeight();
+        if (panelWidth <= 0 || panelHeight <= 0) {
+            // not laid out yet; scaled once resized
+            if (edgeColors == null) {
+                edgeColors = edgeColors(original);
+            }
+            return new DecodedImage(source, original, null, null, edgeColors, panelWidth, panelHeight, generation, preview);
+        }
+        Rectangle bounds = letterbox(original.getWidth(), original.getHeight(), panelWidth, panelHeight);
+        BufferedImage scaled = scaleTo(original, bounds.width, bounds.height, null);
+        if (edgeColors == null) {
+            // as good as from the original, and cheaper
+            edgeColors = edgeColors(scaled);
+        }
+        BufferedImage frame = createImage(panelWidth, panelHeight, Transparency.OPAQUE, panel.getGraphicsConfiguration());
+        Graphics2D g = frame.createGraphics();
+        paintLetterbox(g, bounds, edgeColors, panelWidth, panelHeight);
+        g.drawImage(scaled, bounds.x, bounds.y, null);
+        g.dispose();
+        return new DecodedImage(source, original, frame, bounds, edgeColors, panelWidth, panelHeight, generation, preview);
+    }
+
+    /** Bounds of an image of given size, fitted to the middle of a panel of given size */
+    static Rectangle letterbox(int imageWidth, int imageHeight, int panelWidth, int panelHeight) {
+        double scale = Math.min((double)panelWidth / imageWidth, (double)panelHeight / imageHeight);
+        int width = Math.max(1, Math.min(panelWidth, (int)Math.round(imageWidth * scale)));
+        int height = Math.max(1, Math.min(panelHeight, (int)Math.round(imageHeight * scale)));
+        return new Rectangle((panelWidth - width) / 2, (panelHeight - height) / 2, width, height);
+    }
+
+    /**
+     * Fill the parts of a panel outside given bounds of the image with the colors of the corresponding
+     * edges of the image.
+     */
+    static void paintLetterbox(Graphics2D g, Rectangle bounds, Color[] edgeColors, int panelWidth, int panelHeight) {
+        if (bounds.y > 0) {
+            g.setColor(edgeColors[EDGE_TOP]);
+            g.fillRect(0, 0, panelWidth, bounds.y);
+            g.setColor(edgeColors[EDGE_BOTTOM]);
+            g.fillRect(0, bounds.y + bounds.height, panelWidth, panelHeight - bounds.y - bounds.height);
+        }
+        if (bounds.x > 0) {
+            g.setColor(edgeColors[EDGE_LEFT]);
+            g.fillRect(0, 0, bounds.x, panelHeight);
+            g.setColor(edgeColors[EDGE_RIGHT]);
+            g.fillRect(bounds.x + bounds.width, 0, panelWidth - bounds.x - bounds.width, panelHeight);
+        }
+    }
+
+    /** Average colors of the edges of an image, indexed by the EDGE_ constants; black if unknown */
+    private static Color[] edgeColors(BufferedImage image) {
+        Edge[] edges = { Edge.TOP, Edge.BOTTOM, Edge.LEFT, Edge.RIGHT };
+        Color[] colors = new Color[edges.length];
+        for (int i = 0; i < edges.length; i++) {
+            try {
+                colors[i] = ImageUtils.getEdgeColor(image, edges[i]);
+            }
+            catch (RuntimeException e) {
+                Logger.warning("Failed computing color of "+edges[i]+" edge of image", e);
+            }
+            if (colors[i] == null) {
+                colors[i] = Color.BLACK;
+            }
+        }
+        return colors;
+    }
+
+    /**
+     * Scale an image to given size, into an image compatible with given graphics configuration (if any).
+     * Downscaling is done by halving step by step, as a single bilinear step from far away loses most
+     * of the detail.
+     */
+    static BufferedImage scaleTo(BufferedImage image, int width, int height, GraphicsConfiguration gc) {
+        BufferedImage scaled = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        do {
+            w = w > width ? Math.max(width, w/2) : width;
+            h = h > height ? Math.max(height, h/2) : height;
+            BufferedImage step;
+            if (w == width && h == height) {
+                step = createImage(width, height, image.getTransparency(), gc);
+            }
+            else {
+                step = new BufferedImage(w, h, image.getTransparency() == Transparency.OPAQUE ?
+                                               BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+            }
+            Graphics2D g = step.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(scaled, 0, 0, w, h, null);
+            g.dispose();
+            scaled = step;
+        }
+        while (w != width || h != height);
+        return scaled;
+    }
+
+    private static BufferedImage createImage(int width, int height, int transparency, GraphicsConfiguration gc) {
+        if (gc == null && !GraphicsEnvironment.isHeadless()) {
+            gc = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+        }
+        if (gc != null) {
+            return gc.createCompatibleImage(width, height, transparency);
+        }
+        return new BufferedImage(width, height, transparency == Transparency.OPAQUE ?
+                                                BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /** An image to be decoded for a panel */
+    static class PendingImage {
+        final ImageObject image;
+        final long generation;
+
+        PendingImage(ImageObject image, long generation) {
+            this.image = image;
+            this.generation = generation;
+        }
+    }
+
+    /** An image ready for display; immutable */
+    public static class DecodedImage {
+        /** For decoding again, at a higher resolution */
+        final ImageObject source;
+        /** As decoded, possibly at reduced resolution, for scaling again */
+        final BufferedImage original;
+        /** Image and letterbox composited for the panel size below; null if the panel had no size yet */
+        final BufferedImage frame;
+        /** Bounds of the image within the frame; null if no frame */
+        final Rectangle bounds;
+        /** Indexed by the EDGE_ constants */
+        final Color[] edgeColors;
+        final int panelWidth;
+        final int panelHeight;
+        final long generation;
+        /** Whether only a preview of the image, the rest of it still being decoded */
+        final boolean preview;
+
+        DecodedImage(ImageObject source, BufferedImage original, BufferedImage frame, Rectangle bounds,
+                     Color[] edgeColors, int panelWidth, int panelHeight, long generation, boolean preview) {
+            this.source = source;
+            this.original = original;
+            this.frame = frame;
+            this.bounds = bounds;
+            this.edgeColors = edgeColors;
+            this.panelWidth = panelWidth;
+            this.panelHeight = panelHeight;
+            this.generation = generation;
+            this.preview = preview;
+        }
+
+        boolean fits(int width, int height) {
+            return panelWidth == width && panelHeight == height;
+        }
+    }
+}
@@ -1,56 +1,135 @@
 package biomine3000.tv;
 
 import java.awt.BorderLayout;
-import java.awt.Dimension;
-import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
-import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 
 
 import util.dbg.ILogger;
 
+/**
+ * Shows the latest lines of text appended, at most {@link #DEFAULT_MAX_LINES} (or as given), older ones
+ * being dropped. Lines are kept in a ring buffer, and may be appended from any thread; the text area is
+ * updated once per frame (see {@link RenderLoop#DEFAULT_FPS}), with all lines appended since the previous
+ * update, so the cost of a line stays the same however many lines have been shown, and however fast
+ * they are appended.
+ */
 public class LogPanel extends JPanel {
-    
+
+    public static final int DEFAULT_MAX_LINES = 500;
+    /** Longer lines are truncated */
+    public static final int MAX_LINE_LENGTH = 1000;
+
     ILogger log;
     JTextArea textArea;
     JScrollPane scrollPane;
-        
-    /** Should only be called from the event dispatch thread */
+
+    /** Latest lines, oldest first from index first. Access to be synchronized on the panel. */
+    private String[] lines;
+    private int first;
+    private int numLines;
+    /** Number of latest lines not yet in the text area */
+    private int numNew;
+    /** Text after the last newline, waiting for the rest of the line */
+    private StringBuilder partial;
+
+    private Timer timer;
+
+    /** May be called from any thread */
     public void appendText(String text) {
-        if (!SwingUtilities.isEventDispatchThread()) {
-            // log.warning("appendText called from outside event dispatch thread");
-            SwingUtilities.invokeLater(new Appender(text));            
+        synchronized(this) {
+            int start = 0;
+            int end;
+            while ((end = text.indexOf('\n', start)) >= 0) {
+                partial.append(text, start, end);
+                addLine(partial.toString());
+                partial.setLength(0);
+                start = end + 1;
+            }
+            if (start < text.length() && partial.length() < MAX_LINE_LENGTH) {
+                partial.append(text, start, Math.min(text.length(), start + MAX_LINE_LENGTH - partial.length()));
+            }
+        }
+    }
+
+    /** To be called with the lock held */
+    private void addLine(String line) {
+        if (line.length() > MAX_LINE_LENGTH) {
+            line = line.substring(0, MAX_LINE_LENGTH);
+        }
+        if (numLines < lines.length) {
+            lines[(first + numLines++) % lines.length] = line;
         }
         else {
-            // in event dispatch thread
-            textArea.append(text);        
-            Dimension d = textArea.getSize();
-            log.info("Text area dimensions: "+d);
-            Rectangle r = new Rectangle(0, d.height-10, d.width, 10);
-            log.info("Rectangle to make visible: "+r);
-            textArea.scrollRectToVisible(r);
-        }                              
+            lines[first] = line;
+            first = (first + 1) % lines.length;
+        }
+        numNew = Math.min(numNew + 1, lines.length);
     }
-    
-    private class Appender implements Runnable {
-        String text;
-        Appender(String text) {
-            this.text = text;
+
+    /** Bring the text area up to date with the lines; in the event dispatch thread */
+    private void update() {
+        StringBuilder buf;
+        boolean replace;
+        synchronized(this) {
+            if (numNew == 0) {
+                return;
+            }
+            replace = numNew == lines.length;
+            buf = new StringBuilder();
+            for (int i = numLines - numNew; i < numLines; i++) {
+                buf.append(lines[(first + i) % lines.length]).append('\n');
+            }
+            numNew = 0;
         }
-        public void run() {
-            appendText(text);
+
+        if (replace) {
+            textArea.setText(buf.toString());
         }
+        else {
+            textArea.append(buf.toString());
+            int excess = textArea.getLineCount() - 1 - lines.length;
+            if (excess > 0) {
+                try {
+                    Document doc = textArea.getDocument();
+                    doc.remove(0, textArea.getLineStartOffset(excess));
+                }
+                catch (BadLocationException e) {
+                    // not possible, as there are more lines
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        textArea.setCaretPosition(textArea.getDocument().getLength());
     }
-    
+
     public LogPanel(ILogger log) {
+        this(log, DEFAULT_MAX_LINES);
+    }
+
+    public LogPanel(ILogger log, int maxLines) {
         this.log = log;
+        this.lines = new String[Math.max(1, maxLines)];
+        this.partial = new StringBuilder();
         textArea = new JTextArea();
         scrollPane = new JScrollPane(textArea);
-        
+
         setLayout(new BorderLayout());
         add(scrollPane, BorderLayout.CENTER);
+
+        timer = new Timer(1000 / RenderLoop.DEFAULT_FPS, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                update();
+            }
+        });
+        timer.setCoalesce(true);
+        timer.start();
     }
 }
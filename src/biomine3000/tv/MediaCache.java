@@ -0,0 +1,253 @@
+package biomine3000.tv;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import biomine3000.objects.ImageObject;
+
+/**
+ * Keeps recent images shown by the TV, so that they can be paged through (see {@link History})
+ * without fetching them again.
+ *
+ * The payloads of images are kept within a byte budget shared by all histories, and the number
+ * of images kept by each history is limited; the oldest images are evicted first. Decoded images
+ * take far more memory than payloads, so they are kept only for the image shown by each history,
+ * and the ones next to it; others are released (see {@link ImageObject#releaseImage()}), to be
+ * decoded again should they be shown.
+ *
+ * All access is synchronized on the cache; decoded images are released outside the lock.
+ */
+public class MediaCache {
+
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    public static final int DEFAULT_MAX_ITEMS = 100;
+
+    private long maxBytes;
+    private int maxItems;
+    private long cachedBytes;
+    /** Items of all histories, oldest first */
+    private LinkedList<Item> items;
+
+    public MediaCache(long maxBytes, int maxItems) {
+        this.maxBytes = maxBytes;
+        this.maxItems = Math.max(1, maxItems);
+        this.items = new LinkedList<Item>();
+    }
+
+    /** A new history, such as for an image panel */
+    public History newHistory() {
+        return new History();
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        List<ImageObject> released = new ArrayList<ImageObject>();
+        synchronized(this) {
+            this.maxBytes = maxBytes;
+            evict(released);
+        }
+        release(released);
+    }
+
+    /** Max number of images kept by each history; applies to images added from now on */
+    public synchronized void setMaxItems(int maxItems) {
+        this.maxItems = Math.max(1, maxItems);
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public synchronized int size() {
+        return items.size();
+    }
+
+    public synchronized String toString() {
+        return "MediaCache ("+items.size()+" images, "+cachedBytes+"/"+maxBytes+" bytes)";
+    }
+
+    /** 
+     * Evict oldest items until within budget; never evicts the item shown by a history. 
+     * To be called with the lock held.
+     */
+    private void evict(List<ImageObject> released) {
+        Iterator<Item> iter = items.iterator();
+        while ((cachedBytes > maxBytes) && iter.hasNext()) {
+            Item item = iter.next();
+            if (item.history.remove(item, released)) {
+                iter.remove();
+                cachedBytes -= item.bytes;
+            }
+        }
+    }
+
+    /** 
+     * Release decoded images; done without the lock held. Returns at once even for images being 
+     * decoded, which are dropped once done.
+     */
+    private static void release(List<ImageObject> released) {
+        for (ImageObject image: released) {
+            image.releaseImage();
+        }
+    }
+
+    private static class Item {
+        ImageObject image;
+        long bytes;
+        History history;
+
+        Item(ImageObject image, History history) {
+            this.image = image;
+            this.bytes = image.getPayload() != null ? image.getPayload().length : 0;
+            this.history = history;
+        }
+    }
+
+    /**
+     * Images added, oldest first, with a position: the image shown. While live (the usual case),
+     * the position follows the newest image; after paging back, new images are added without
+     * moving the position, until paged forward to the newest one.
+     */
+    public class History {
+        private ArrayList<Item> history;
+        /** Index of the image shown; -1 if none */
+        private int position;
+
+        private History() {
+            this.history = new ArrayList<Item>();
+            this.position = -1;
+        }
+
+        /**
+         * Add a newly received image.
+         * @return the image to show, if live; null otherwise.
+         */
+        public ImageObject add(ImageObject image) {
+            List<ImageObject> released = new ArrayList<ImageObject>();
+            boolean live;
+            synchronized(MediaCache.this) {
+                live = isLive();
+                Item item = new Item(image, this);
+                history.add(item);
+                items.add(item);
+                cachedBytes += item.bytes;
+                if (history.size() > maxItems) {
+                    Item oldest = history.get(0);
+                    if (remove(oldest, released)) {
+                        items.remove(oldest);
+                        cachedBytes -= oldest.bytes;
+                    }
+                }
+                if (live) {
+                    move(history.size()-1, released);
+                }
+                evict(released);
+            }
+            release(released);
+            return live ? image : null;
+        }
+
+        /** Page back to the previous image; null if none */
+        public ImageObject back() {
+            return page(-1);
+        }
+
+        /** Page forward to the next image; null if none */
+        public ImageObject forward() {
+            return page(1);
+        }
+
+        private ImageObject page(int step) {
+            List<ImageObject> released = new ArrayList<ImageObject>();
+            ImageObject image;
+            synchronized(MediaCache.this) {
+                int newPosition = position + step;
+                if (position < 0 || newPosition < 0 || newPosition >= history.size()) {
+                    return null;
+                }
+                move(newPosition, released);
+                image = history.get(position).image;
+            }
+            release(released);
+            return image;
+        }
+
+        /** Whether showing the newest image (or none) */
+        public boolean isLive() {
+            synchronized(MediaCache.this) {
+                return position == history.size()-1;
+            }
+        }
+
+        /** Images next to the one shown, to be decoded ahead of paging to them */
+        public List<ImageObject> getAdjacent() {
+            synchronized(MediaCache.this) {
+                List<ImageObject> adjacent = new ArrayList<ImageObject>(2);
+                if (position > 0) {
+                    adjacent.add(history.get(position-1).image);
+                }
+                if (position >= 0 && position < history.size()-1) {
+                    adjacent.add(history.get(position+1).image);
+                }
+                return adjacent;
+            }
+        }
+
+        /** 
+         * Whether an image is shown or next to the one shown, thus worth keeping decoded; 
+         * false once evicted.
+         */
+        public boolean isNear(ImageObject image) {
+            synchronized(MediaCache.this) {
+                for (int i = Math.max(0, position-1); i <= position+1 && i < history.size(); i++) {
+                    if (history.get(i).image == image) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        /** Index of the image shown, counting from 1; 0 if none */
+        public int getPosition() {
+            synchronized(MediaCache.this) {
+                return position+1;
+            }
+        }
+
+        public int size() {
+            synchronized(MediaCache.this) {
+                return history.size();
+            }
+        }
+
+        /** 
+         * Move to given index, collecting decoded images no longer next to the one shown to be released. 
+         * To be called with the lock held.
+         */
+        private void move(int newPosition, List<ImageObject> released) {
+            int oldPosition = position;
+            position = newPosition;
+            for (int i = oldPosition-1; i <= oldPosition+1; i++) {
+                if (i >= 0 && i < history.size() && Math.abs(i - newPosition) > 1) {
+                    released.add(history.get(i).image);
+                }
+            }
+        }
+
+        /** Remove an item, unless shown; to be called with the lock held */
+        private boolean remove(Item item, List<ImageObject> released) {
+            int index = history.indexOf(item);
+            if (index == position) {
+                return false;
+            }
+            history.remove(index);
+            released.add(item.image);
+            if (index < position) {
+                position--;
+            }
+            return true;
+        }
+    }
+}
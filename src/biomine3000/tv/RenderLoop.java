@@ -0,0 +1,76 @@
+package biomine3000.tv;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.JComponent;
+import javax.swing.Timer;
+
+/**
+ * Repaints a component, and thus all of its children, at most once per frame, however many of the
+ * children have changed, and however often. Children request a repaint by {@link #invalidate()}, from
+ * any thread; at each frame, the component is repainted if any requests were made since the previous
+ * frame. Frames are paced by a Swing timer, so painting stays on the event dispatch thread.
+ */
+public class RenderLoop {
+
+    public static final int DEFAULT_FPS = 30;
+
+    private JComponent target;
+    private Timer timer;
+    private AtomicBoolean dirty;
+    private long numRequests;
+    private long numFrames;
+
+    public RenderLoop(JComponent target, int fps) {
+        this.target = target;
+        this.dirty = new AtomicBoolean(false);
+        this.timer = new Timer(1000 / Math.max(1, fps), new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                frame();
+            }
+        });
+        // a late frame is not to be followed by a burst of frames
+        timer.setCoalesce(true);
+    }
+
+    public void start() {
+        timer.start();
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+
+    /** Request the target to be repainted at the next frame */
+    public void invalidate() {
+        dirty.set(true);
+        synchronized(this) {
+            numRequests++;
+        }
+    }
+
+    private void frame() {
+        if (dirty.getAndSet(false)) {
+            synchronized(this) {
+                numFrames++;
+            }
+            target.repaint();
+        }
+    }
+
+    /** Number of repaints requested so far */
+    public synchronized long getNumRequests() {
+        return numRequests;
+    }
+
+    /** Number of frames actually repainted so far */
+    public synchronized long getNumFrames() {
+        return numFrames;
+    }
+
+    public synchronized String toString() {
+        return "RenderLoop ("+numRequests+" requests, "+numFrames+" frames)";
+    }
+}
@@ -0,0 +1,161 @@
+package biomine3000.tv;
+
+import gui.image.Edge;
+import gui.image.ImageUtils;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import biomine3000.objects.Biomine3000Args;
+import biomine3000.objects.Biomine3000Mimetype;
+import biomine3000.objects.ImageObject;
+
+import util.dbg.ILogger;
+import util.dbg.Logger;
+
+/**
+ * Measures how fast {@link BiomineTVImagePanel} paints large images, without a display
+ * (run with -Djava.awt.headless=true). The panel paints into an offscreen image, as fast as it can,
+ * both at the size the image was prepared for (the usual case), and at another size, as while being resized.
+ * For comparison, painting is also measured as done before images were prepared: scaling the full image,
+ * and computing the colors of its edges, on every paint. Finally, a burst of images is sent to the panel,
+ * to see how many of them it skips.
+ *
+ * Options: -image_w, -image_h (default 4000x3000), -panel_w, -panel_h (default 1920x1080),
+ * -seconds (per measurement, default 3).
+ */
+public class TVRenderBenchmark {
+
+    private static ILogger log = new Logger.ILoggerAdapter();
+
+    /** A noisy jpeg, so that decoding is not trivial; different for each seed */
+    static byte[] makeJpeg(int width, int height, long seed, boolean progressive) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        Random random = new Random(seed);
+        for (int i = 0; i < 2000; i++) {
+            g.setColor(new Color(random.nextInt(0xffffff)));
+            g.fillRect(random.nextInt(width), random.nextInt(height), 1+random.nextInt(width/8), 1+random.nextInt(height/8));
+        }
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageOutputStream ios = ImageIO.createImageOutputStream(out);
+        writer.setOutput(ios);
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (progressive) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        writer.write(null, new IIOImage(image, null, null), param);
+        writer.dispose();
+        ios.close();
+        return out.toByteArray();
+    }
+
+    /** @return paints per second */
+    static double measurePaints(BiomineTVImagePanel panel, int width, int height, long millis) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = target.createGraphics();
+        int numPaints = 0;
+        long startTime = System.nanoTime();
+        long endTime = startTime + millis * 1000000L;
+        long now;
+        do {
+            panel.paintComponent(g);
+            numPaints++;
+            now = System.nanoTime();
+        }
+        while (now < endTime);
+        g.dispose();
+        return numPaints * 1e9 / (now - startTime);
+    }
+
+    /** @return paints per second, painting from the full image, as the panel used to */
+    static double measureUnpreparedPaints(BufferedImage image, int width, int height, long millis) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = target.createGraphics();
+        int numPaints = 0;
+        long startTime = System.nanoTime();
+        long endTime = startTime + millis * 1000000L;
+        long now;
+        do {
+            Rectangle bounds = ImageDecodePipeline.letterbox(image.getWidth(), image.getHeight(), width, height);
+            Color[] edgeColors = new Color[4];
+            Edge[] edges = { Edge.TOP, Edge.BOTTOM, Edge.LEFT, Edge.RIGHT };
+            for (int i = 0; i < edges.length; i++) {
+                Color color = ImageUtils.getEdgeColor(image, edges[i]);
+                edgeColors[i] = color != null ? color : Color.BLACK;
+            }
+            ImageDecodePipeline.paintLetterbox(g, bounds, edgeColors, width, height);
+            g.drawImage(image, bounds.x, bounds.y, bounds.width, bounds.height, null);
+            numPaints++;
+            now = System.nanoTime();
+        }
+        while (now < endTime);
+        g.dispose();
+        return numPaints * 1e9 / (now - startTime);
+    }
+
+    /** Wait until the panel shows the latest image, scaled to its current size */
+    static void awaitImage(BiomineTVImagePanel panel) throws InterruptedException {
+        while (!panel.isImageReady()) {
+            Thread.sleep(5);
+        }
+    }
+
+    public static void main(String[] pArgs) throws Exception {
+        Biomine3000Args args = new Biomine3000Args(pArgs, true);
+        int imageWidth = args.getIntOpt("image_w", 4000);
+        int imageHeight = args.getIntOpt("image_h", 3000);
+        int panelWidth = args.getIntOpt("panel_w", 1920);
+        int panelHeight = args.getIntOpt("panel_h", 1080);
+        long millis = args.getIntOpt("seconds", 3) * 1000L;
+
+        byte[] jpeg = makeJpeg(imageWidth, imageHeight, 1, false);
+        ImageObject imageObject = new ImageObject(Biomine3000Mimetype.JPGIMAGE, jpeg);
+        log.info("Image: "+imageWidth+"x"+imageHeight+", "+jpeg.length+" bytes; panel: "+panelWidth+"x"+panelHeight);
+
+        ImageDecodePipeline pipeline = new ImageDecodePipeline(ImageDecodePipeline.DEFAULT_NUM_THREADS);
+        BiomineTVImagePanel panel = new BiomineTVImagePanel(null, pipeline, null);
+        panel.setSize(panelWidth, panelHeight);
+
+        long startTime = System.currentTimeMillis();
+        panel.setImage(imageObject);
+        awaitImage(panel);
+        log.info("Decoded and prepared in "+(System.currentTimeMillis()-startTime)+" ms");
+
+        log.info(String.format("Prepared: %.1f paints/s", measurePaints(panel, panelWidth, panelHeight, millis)));
+
+        // no resize events without a display; the panel stretches until told otherwise
+        panel.setSize(panelWidth*3/4, panelHeight);
+        log.info(String.format("Resized, not yet prepared: %.1f paints/s",
+                               measurePaints(panel, panelWidth*3/4, panelHeight, millis)));
+
+        log.info(String.format("Unprepared: %.1f paints/s",
+                               measureUnpreparedPaints(imageObject.getImage(), panelWidth, panelHeight, millis)));
+
+        int burstSize = 20;
+        panel.setSize(panelWidth, panelHeight);
+        long numSkippedBefore = panel.getNumSkipped();
+        startTime = System.currentTimeMillis();
+        for (int i = 0; i < burstSize; i++) {
+            panel.setImage(new ImageObject(Biomine3000Mimetype.JPGIMAGE, jpeg));
+        }
+        awaitImage(panel);
+        long numSkipped = panel.getNumSkipped() - numSkippedBefore;
+        log.info("Burst of "+burstSize+" images: "+(burstSize-numSkipped)+" decoded, "+numSkipped+" skipped, in "+
+                 (System.currentTimeMillis()-startTime)+" ms");
+
+        pipeline.shutdown();
+    }
+}
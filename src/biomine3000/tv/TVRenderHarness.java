@@ -0,0 +1,260 @@
+package biomine3000.tv;
+
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+
+import biomine3000.objects.ABBOEConnection;
+import biomine3000.objects.ABBOEJournal;
+import biomine3000.objects.Biomine3000Args;
+import biomine3000.objects.Biomine3000Mimetype;
+import biomine3000.objects.BusinessObject;
+import biomine3000.objects.ImageObject;
+import biomine3000.objects.PlainTextObject;
+
+import util.dbg.ILogger;
+import util.dbg.Logger;
+
+/**
+ * Runs a {@link BiomineTV} without a display, feeding it a stream of objects as if received from
+ * a server, and painting the whole TV into an offscreen image at a given frame rate, as a screen would.
+ * Reports time spent decoding and painting, and how many frames and images were dropped.
+ *
+ * The stream is either synthetic (default): images of given size to channels in turn at a given
+ * rate, and lines of text at another; or recorded: objects replayed, over and over, from an
+ * {@link ABBOEJournal} of a server (-journal), at a given rate.
+ *
+ * Options:
+ * <pre>
+ *   -seconds        how long to run (default 10)
+ *   -tiles          number of tiles of the TV (default 4)
+ *   -width, -height size of the TV (default 1280x720)
+ *   -fps            frame rate to paint at (default 30)
+ *   -image_rate     images per second (default 10)
+ *   -text_rate      lines of text per second (default 20)
+ *   -image_w, -image_h  size of synthetic images (default 4000x3000)
+ *   -channels       number of channels of synthetic images (default 4)
+ *   -progressive    1 to make synthetic images progressive jpegs (default 0)
+ *   -journal        dir of a journal to replay instead
+ *   -replay         number of latest objects of the journal to replay (default 1000)
+ *   -rate           objects per second when replaying (default 20)
+ * </pre>
+ * No display is needed: java.awt.headless is set by the harness itself.
+ */
+public class TVRenderHarness {
+
+    private static ILogger log = new Logger.ILoggerAdapter("TVRenderHarness: ");
+
+    private BiomineTV tv;
+    private ABBOEConnection.BusinessObjectHandler feed;
+    private volatile boolean stop;
+    private int numImagesFed;
+    private int numTextsFed;
+
+    TVRenderHarness(BiomineTV tv) {
+        this.tv = tv;
+        this.feed = tv.openFeed();
+    }
+
+    /** Feed objects at given rate, in turn, until stopped, from a thread of its own (as a connection would) */
+    Thread startFeeding(final List<BusinessObject> objects, final double rate, final String name) {
+        Thread thread = new Thread(name) {
+            public void run() {
+                long intervalNanos = (long)(1e9 / rate);
+                long next = System.nanoTime();
+                int i = 0;
+                while (!stop) {
+                    BusinessObject bo = copy(objects.get(i++ % objects.size()));
+                    feed.handleObject(bo);
+                    synchronized(TVRenderHarness.this) {
+                        if (bo instanceof ImageObject) {
+                            numImagesFed++;
+                        }
+                        else {
+                            numTextsFed++;
+                        }
+                    }
+                    next += intervalNanos;
+                    long delay = next - System.nanoTime();
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+                        }
+                        catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /** A fresh object each time, so that nothing decoded is cached in the object */
+    private static BusinessObject copy(BusinessObject bo) {
+        return BusinessObject.makeObject(bo.getMetaData().clone(), bo.getPayload());
+    }
+
+    /** Synthetic images, one per channel */
+    static List<BusinessObject> makeImages(int width, int height, int numChannels, boolean progressive) throws Exception {
+        List<BusinessObject> images = new ArrayList<BusinessObject>();
+        for (int i = 0; i < numChannels; i++) {
+            ImageObject image = new ImageObject(Biomine3000Mimetype.JPGIMAGE, TVRenderBenchmark.makeJpeg(width, height, i, progressive));
+            image.getMetaData().put("channel", "channel-"+(i+1));
+            images.add(image);
+        }
+        return images;
+    }
+
+    static List<BusinessObject> makeTexts(int n) {
+        List<BusinessObject> texts = new ArrayList<BusinessObject>();
+        for (int i = 0; i < n; i++) {
+            texts.add(new PlainTextObject("<zombi> line "+i+" of the synthetic irc discussion about brains"));
+        }
+        return texts;
+    }
+
+    /** Latest objects of a journal, in order */
+    static List<BusinessObject> readJournal(File dir, int n) throws Exception {
+        ABBOEJournal journal = new ABBOEJournal(dir, ABBOEJournal.DEFAULT_SEGMENT_SIZE, ABBOEJournal.DEFAULT_MAX_SEGMENTS);
+        List<BusinessObject> objects = new ArrayList<BusinessObject>();
+        for (ByteBuffer frame: journal.replayLast(n, null)) {
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            objects.add(BusinessObject.readObject(new ByteArrayInputStream(bytes)));
+        }
+        return objects;
+    }
+
+    /**
+     * Paint the TV at given frame rate for given time, as a screen refreshing it would.
+     * A frame is dropped whenever painting the previous ones took so long that its time had passed.
+     */
+    void run(final int width, final int height, int fps, long millis) throws Exception {
+        final JComponent root = tv.getRoot();
+        final BufferedImage screen = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                root.setSize(width, height);
+                layout(root);
+            }
+        });
+
+        final long[] paintNanos = new long[2]; // total, max
+        Runnable painter = new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                Graphics2D g = screen.createGraphics();
+                root.paint(g);
+                g.dispose();
+                long time = System.nanoTime() - start;
+                paintNanos[0] += time;
+                paintNanos[1] = Math.max(paintNanos[1], time);
+            }
+        };
+
+        long intervalNanos = 1000000000L / fps;
+        long startTime = System.nanoTime();
+        long endTime = startTime + millis * 1000000L;
+        long next = startTime;
+        long numFrames = 0;
+        long numDropped = 0;
+        while (next < endTime) {
+            SwingUtilities.invokeAndWait(painter);
+            numFrames++;
+            next += intervalNanos;
+            long now = System.nanoTime();
+            if (now > next) {
+                long missed = (now - next) / intervalNanos + 1;
+                numDropped += missed;
+                next += missed * intervalNanos;
+            }
+            long delay = next - now;
+            if (delay > 0) {
+                Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+            }
+        }
+        stop = true;
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        ImageDecodePipeline pipeline = tv.getImagePipeline();
+        long numSkipped = 0;
+        for (BiomineTVImagePanel panel: tv.getImagePanels()) {
+            numSkipped += panel.getNumSkipped();
+        }
+        long numDecoded = pipeline.getNumDecoded();
+        synchronized(this) {
+            log.info(String.format("Fed %d images (%.1f/s) and %d texts (%.1f/s) in %.1f s",
+                                   numImagesFed, numImagesFed / seconds, numTextsFed, numTextsFed / seconds, seconds));
+        }
+        log.info(String.format("Decoded %d images (%d failed, %d skipped as newer ones arrived; %.1f skipped/s), "+
+                               "%d previews shown", numDecoded, pipeline.getNumFailed(), numSkipped,
+                               numSkipped / seconds, pipeline.getNumPreviews()));
+        if (numDecoded > 0) {
+            log.info(String.format("Decode time: %.1f ms/image, scale time: %.1f ms/image",
+                                   (double)pipeline.getDecodeMillis() / numDecoded,
+                                   (double)pipeline.getScaleMillis() / numDecoded));
+        }
+        log.info(String.format("Painted %d frames of %dx%d: %.2f ms/frame on average, %.2f ms at most",
+                               numFrames, width, height, paintNanos[0] / 1e6 / numFrames, paintNanos[1] / 1e6));
+        log.info(String.format("Dropped %d frames of %d fps (%.1f/s)", numDropped, fps, numDropped / seconds));
+        MediaCache cache = tv.getMediaCache();
+        log.info(String.format("Kept %d recent images, %.1f MB", cache.size(), cache.getCachedBytes() / 1048576.0));
+    }
+
+    /** Lay out a component tree not shown on any screen */
+    private static void layout(Container container) {
+        container.doLayout();
+        for (Component c: container.getComponents()) {
+            if (c instanceof Container) {
+                layout((Container)c);
+            }
+        }
+    }
+
+    public static void main(String[] pArgs) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        Biomine3000Args args = new Biomine3000Args(pArgs, true);
+        long millis = args.getIntOpt("seconds", 10) * 1000L;
+        int tiles = args.getIntOpt("tiles", 4);
+        int width = args.getIntOpt("width", 1280);
+        int height = args.getIntOpt("height", 720);
+        int fps = args.getIntOpt("fps", 30);
+
+        BiomineTV tv = new BiomineTV(new Logger.ILoggerAdapter("BiomineTV: "), tiles, true);
+        TVRenderHarness harness = new TVRenderHarness(tv);
+
+        String journalDir = args.get("journal");
+        if (journalDir != null) {
+            List<BusinessObject> objects = readJournal(new File(journalDir), args.getIntOpt("replay", 1000));
+            if (objects.size() == 0) {
+                log.error("No objects in journal "+journalDir);
+                System.exit(1);
+            }
+            log.info("Replaying "+objects.size()+" objects from journal "+journalDir);
+            harness.startFeeding(objects, args.getIntOpt("rate", 20), "journal-feed");
+        }
+        else {
+            int imageWidth = args.getIntOpt("image_w", 4000);
+            int imageHeight = args.getIntOpt("image_h", 3000);
+            int channels = args.getIntOpt("channels", 4);
+            log.info("Generating "+channels+" images of "+imageWidth+"x"+imageHeight);
+            harness.startFeeding(makeImages(imageWidth, imageHeight, channels, args.getIntOpt("progressive", 0) != 0), args.getIntOpt("image_rate", 10), "image-feed");
+            harness.startFeeding(makeTexts(100), args.getIntOpt("text_rate", 20), "text-feed");
+        }
+
+        harness.run(width, height, fps, millis);
+        System.exit(0);
+    }
+}